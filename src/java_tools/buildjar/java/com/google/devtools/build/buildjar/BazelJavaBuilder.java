@@ -26,13 +26,18 @@ import com.google.devtools.build.buildjar.javac.plugins.errorprone.ErrorPronePlu
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /** The JavaBuilder main called by bazel. */
 public abstract class BazelJavaBuilder {
@@ -42,7 +47,16 @@ public abstract class BazelJavaBuilder {
   /** The main method of the BazelJavaBuilder. */
   public static void main(String[] args) {
     if (args.length == 1 && args[0].equals("--persistent_worker")) {
-      System.exit(runPersistentWorker());
+      System.exit(
+          runPersistentWorker(
+              System.in,
+              System.out,
+              new RequestProcessor() {
+                @Override
+                public int processRequest(List<String> args, PrintWriter err) {
+                  return BazelJavaBuilder.processRequest(args, err);
+                }
+              }));
     } else {
       // This is a single invocation of JavaBuilder that exits after it processed the request.
       PrintWriter err =
@@ -53,31 +67,87 @@ public abstract class BazelJavaBuilder {
     }
   }
 
-  private static int runPersistentWorker() {
-    while (true) {
-      try {
-        WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
+  /** Compiles the arguments of a request, and writes its diagnostics to {@code err}. */
+  @VisibleForTesting
+  interface RequestProcessor {
+    int processRequest(List<String> args, PrintWriter err);
+  }
 
-        if (request == null) {
-          break;
+  @VisibleForTesting
+  static int runPersistentWorker(
+      InputStream in, final PrintStream out, final RequestProcessor processor) {
+    // Requests with an id are compiled concurrently, on threads started as they are needed.
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      while (true) {
+        try {
+          final WorkRequest request = WorkRequest.parseDelimitedFrom(in);
+
+          if (request == null) {
+            break;
+          }
+
+          if (request.getRequestId() == 0) {
+            respond(request, out, processor);
+          } else {
+            executor.execute(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    try {
+                      respond(request, out, processor);
+                    } catch (IOException e) {
+                      // Blaze closed our stdin and stdout, so the main loop is about to exit.
+                      e.printStackTrace();
+                    } catch (Throwable t) {
+                      // Blaze waits for a response to every request, so a worker that cannot
+                      // send one must not outlive it.
+                      t.printStackTrace();
+                      System.exit(1);
+                    }
+                  }
+                });
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+          return 1;
         }
+      }
+    } finally {
+      // Finish the requests in flight, so that their responses are not lost.
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return 0;
+  }
 
-        try (StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw)) {
-          int exitCode = processRequest(request.getArgumentsList(), pw);
+  private static void respond(WorkRequest request, PrintStream out, RequestProcessor processor)
+      throws IOException {
+    try (StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw)) {
+      int exitCode;
+      try {
+        exitCode = processor.processRequest(request.getArgumentsList(), pw);
+      } catch (Throwable t) {
+        // Errors too are reported as a failed request, rather than left without a response.
+        t.printStackTrace(pw);
+        exitCode = 1;
+      }
+      WorkResponse response =
           WorkResponse.newBuilder()
               .setOutput(sw.toString())
               .setExitCode(exitCode)
-              .build()
-              .writeDelimitedTo(System.out);
-          System.out.flush();
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
-        return 1;
+              .setRequestId(request.getRequestId())
+              .build();
+      synchronized (out) {
+        response.writeDelimitedTo(out);
+        out.flush();
       }
     }
-    return 0;
   }
 
   public static int processRequest(List<String> args, PrintWriter err) {
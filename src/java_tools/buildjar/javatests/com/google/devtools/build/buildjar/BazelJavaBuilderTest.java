@@ -0,0 +1,93 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.buildjar;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.buildjar.BazelJavaBuilder.RequestProcessor;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** {@link BazelJavaBuilder}Test */
+@RunWith(JUnit4.class)
+public class BazelJavaBuilderTest {
+
+  /** Fails the requests whose only argument is "error" with an {@link Error}. */
+  private static final RequestProcessor PROCESSOR =
+      new RequestProcessor() {
+        @Override
+        public int processRequest(List<String> args, PrintWriter err) {
+          if (args.contains("error")) {
+            throw new AssertionError("request failed");
+          }
+          err.print("compiled " + args);
+          return 0;
+        }
+      };
+
+  private static Map<Integer, WorkResponse> run(WorkRequest... requests) throws IOException {
+    ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+    for (WorkRequest request : requests) {
+      request.writeDelimitedTo(requestBytes);
+    }
+    ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+    int exitCode =
+        BazelJavaBuilder.runPersistentWorker(
+            new ByteArrayInputStream(requestBytes.toByteArray()),
+            new PrintStream(responseBytes),
+            PROCESSOR);
+    assertThat(exitCode).isEqualTo(0);
+
+    Map<Integer, WorkResponse> responses = new HashMap<>();
+    InputStream in = new ByteArrayInputStream(responseBytes.toByteArray());
+    WorkResponse response;
+    while ((response = WorkResponse.parseDelimitedFrom(in)) != null) {
+      responses.put(response.getRequestId(), response);
+    }
+    return responses;
+  }
+
+  private static WorkRequest request(int requestId, String arg) {
+    return WorkRequest.newBuilder().setRequestId(requestId).addArguments(arg).build();
+  }
+
+  @Test
+  public void errorInRequestIsReportedAsFailure() throws Exception {
+    Map<Integer, WorkResponse> responses =
+        run(request(0, "error"), request(1, "a"), request(2, "error"), request(3, "b"));
+
+    assertThat(responses.keySet()).containsExactly(0, 1, 2, 3);
+    for (int requestId : new int[] {0, 2}) {
+      assertThat(responses.get(requestId).getExitCode()).isEqualTo(1);
+      assertThat(responses.get(requestId).getOutput()).contains("request failed");
+    }
+    assertThat(responses.get(1).getExitCode()).isEqualTo(0);
+    assertThat(responses.get(1).getOutput()).isEqualTo("compiled [a]");
+    assertThat(responses.get(3).getExitCode()).isEqualTo(0);
+    assertThat(responses.get(3).getOutput()).isEqualTo("compiled [b]");
+  }
+}
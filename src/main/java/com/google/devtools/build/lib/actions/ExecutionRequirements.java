@@ -143,4 +143,13 @@ public class ExecutionRequirements {
 
   public static final ImmutableMap<String, String> WORKER_MODE_ENABLED =
       ImmutableMap.of(SUPPORTS_WORKERS, "1");
+
+  /**
+   * If an action supports running in a persistent worker that handles several requests at the same
+   * time, telling them apart by their request id.
+   */
+  public static final String SUPPORTS_MULTIPLEX_WORKERS = "supports-multiplex-workers";
+
+  public static final ImmutableMap<String, String> WORKER_MULTIPLEX_MODE_ENABLED =
+      ImmutableMap.of(SUPPORTS_WORKERS, "1", SUPPORTS_MULTIPLEX_WORKERS, "1");
 }
@@ -142,6 +142,10 @@ public class ResourceManager {
   // Used local test count. Corresponds to the local test count definition in the ResourceSet class.
   private int usedLocalTestCount;
 
+  // RAM in MB held by processes that outlive the actions that use them, like idle persistent
+  // workers. It is not reset between builds, as the processes are not either.
+  private double unmanagedRam;
+
   // Specifies how much of the RAM in staticResources we should allow to be used.
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
   private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
@@ -185,6 +189,19 @@ public class ResourceManager {
     processWaitingThreads();
   }
 
+  /**
+   * Sets how much RAM in MB is held by processes that no action accounts for, like idle persistent
+   * workers. It is taken off the RAM that actions may use.
+   */
+  public synchronized void setUnmanagedMemoryMb(double memoryMb) {
+    Preconditions.checkArgument(memoryMb >= 0.0);
+    boolean released = memoryMb < unmanagedRam;
+    unmanagedRam = memoryMb;
+    if (released && availableResources != null) {
+      processWaitingThreads();
+    }
+  }
+
   /**
    * Specify how much of the available RAM we should allow to be used.
    */
@@ -388,7 +405,7 @@ public class ResourceManager {
     int localTestCount = resources.getLocalTestCount();
 
     double availableCpu = availableResources.getCpuUsage();
-    double availableRam = availableResources.getMemoryMb();
+    double availableRam = availableResources.getMemoryMb() - unmanagedRam;
     double availableIo = availableResources.getIoUsage();
     int availableLocalTestCount = availableResources.getLocalTestCount();
 
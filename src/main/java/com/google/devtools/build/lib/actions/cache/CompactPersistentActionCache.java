@@ -60,11 +60,11 @@ public class CompactPersistentActionCache implements ActionCache {
   // Key of the action cache record that holds information used to verify referential integrity
   // between action cache and string indexer. Must be < 0 to avoid conflict with real action
   // cache records.
-  private static final int VALIDATION_KEY = -10;
+  static final int VALIDATION_KEY = -10;
 
   private static final int NO_INPUT_DISCOVERY_COUNT = -1;
 
-  private static final int VERSION = 12;
+  static final int VERSION = 12;
 
   private static final Logger LOG = Logger.getLogger(CompactPersistentActionCache.class.getName());
 
@@ -193,7 +193,7 @@ public class CompactPersistentActionCache implements ActionCache {
    * Rename corrupted files so they could be analyzed later. This would also ensure
    * that next initialization attempt will create empty cache.
    */
-  private static void renameCorruptedFiles(Path cacheRoot) {
+  static void renameCorruptedFiles(Path cacheRoot) {
     try {
       for (Path path : UnixGlob.forPath(cacheRoot).addPattern("action_*_v" + VERSION + ".*")
           .glob()) {
@@ -212,7 +212,7 @@ public class CompactPersistentActionCache implements ActionCache {
    * @return non-null error description if indexer contains no data or integrity check has failed,
    *     and null otherwise
    */
-  private static String validateIntegrity(int indexerSize, byte[] validationRecord) {
+  static String validateIntegrity(int indexerSize, byte[] validationRecord) {
     if (indexerSize == 0) {
       return "empty index";
     }
@@ -347,7 +347,7 @@ public class CompactPersistentActionCache implements ActionCache {
   /**
    * @return action data encoded as a byte[] array.
    */
-  private static byte[] encode(StringIndexer indexer, ActionCache.Entry entry) {
+  static byte[] encode(StringIndexer indexer, ActionCache.Entry entry) {
     Preconditions.checkState(!entry.isCorrupted());
 
     try {
@@ -394,7 +394,7 @@ public class CompactPersistentActionCache implements ActionCache {
    * will stay in the compressed format until entry is actually used by the
    * dependency checker.
    */
-  private static ActionCache.Entry decode(StringIndexer indexer, byte[] data) throws IOException {
+  static ActionCache.Entry decode(StringIndexer indexer, byte[] data) throws IOException {
     try {
       ByteBuffer source = ByteBuffer.wrap(data);
 
@@ -0,0 +1,773 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An implementation of the ActionCache interface that keeps its entries off-heap, in memory-mapped
+ * files, and only decodes them when they are looked up.
+ *
+ * <p>The cache consists of two files. The index file holds an open-addressed hash table with linear
+ * probing, whose slots contain the 64-bit hash of a key and the offset of its record in the data
+ * file. Records are only ever appended to the data file; a record contains the key, the encoded
+ * entry and a checksum. Opening the cache only maps the files, and its entries are neither loaded
+ * into the heap nor scanned by the garbage collector.
+ *
+ * <p>The operating system writes the mapped pages back to disk at its own pace, and {@link #save}
+ * forces it to do so. If the server dies in between, the files may be left partially written: a
+ * slot may then point to a record that does not contain the expected key or checksum, which is
+ * reported as a cache miss. The records of overwritten and removed entries are garbage, which is
+ * reclaimed on {@link #save} once it makes up most of the data file.
+ *
+ * <p>Garbage is reclaimed by copying the live records into a new data file, whose generation is
+ * recorded in the header of a new index file. Renaming the new index file into place commits the
+ * compaction, so a failure at any point leaves either the old or the new pair of files in place.
+ */
+@ConditionallyThreadSafe // condition: each instance must instantiated with
+                         // different cache root
+public class MappedActionCache implements ActionCache, Closeable {
+  private static final Logger LOG = Logger.getLogger(MappedActionCache.class.getName());
+
+  private static final int MAGIC = 0x4d414331;
+  private static final int VERSION = CompactPersistentActionCache.VERSION;
+
+  // Layout of the header of the index file.
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int SIZE_OFFSET = 12;
+  private static final int USED_SLOTS_OFFSET = 16;
+  private static final int DATA_END_OFFSET = 24;
+  private static final int GARBAGE_OFFSET = 32;
+  private static final int GENERATION_OFFSET = 40;
+  private static final int HEADER_SIZE = 64;
+
+  /** Each slot holds the hash of the key and the offset of the record in the data file. */
+  private static final int SLOT_SIZE = 16;
+  private static final long EMPTY_SLOT = 0;
+  private static final long REMOVED_OFFSET = -1;
+  private static final int INITIAL_CAPACITY = 1 << 16;
+
+  /** The data file is mapped in segments of this size; records never span two segments. */
+  @VisibleForTesting static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+  /** Each record starts with the length of its payload and the checksum of the payload. */
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  private static final int NO_INPUT_DISCOVERY_COUNT = -1;
+
+  private final Path cacheRoot;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // All the fields below are guarded by the lock. Mapped buffers and slices of them must not be
+  // used after the lock is released, since they are unmapped when they are replaced.
+  private FileChannel indexChannel;
+  private MappedByteBuffer index;
+  private int capacity;
+  private FileChannel dataChannel;
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+  public MappedActionCache(Path cacheRoot) throws IOException {
+    this.cacheRoot = cacheRoot;
+    FileSystemUtils.createDirectoryAndParents(cacheRoot);
+    try {
+      open();
+    } catch (IOException e) {
+      closeFiles();
+      CompactPersistentActionCache.renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load action cache data", e);
+    }
+  }
+
+  @VisibleForTesting
+  static Path indexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_index_v" + VERSION + ".mapped");
+  }
+
+  /** Returns the data file of the given generation, which is recorded in the index file. */
+  @VisibleForTesting
+  static Path dataFile(Path cacheRoot, long generation) {
+    return cacheRoot.getChild("action_data_v" + VERSION + "." + generation + ".mapped");
+  }
+
+  private static Path newIndexFile(Path cacheRoot) {
+    return cacheRoot.getChild(indexFile(cacheRoot).getBaseName() + ".tmp");
+  }
+
+  private static FileChannel openFile(Path path, StandardOpenOption create) throws IOException {
+    return FileChannel.open(
+        path.getPathFile().toPath(), create, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private void open() throws IOException {
+    boolean exists = indexFile(cacheRoot).exists();
+    indexChannel = openFile(indexFile(cacheRoot), StandardOpenOption.CREATE);
+    if (!exists || indexChannel.size() == 0) {
+      capacity = INITIAL_CAPACITY;
+      index = mapIndex(indexChannel, capacity);
+      writeHeader(index, capacity, /*generation=*/ 0);
+      dataChannel = openFile(dataFile(cacheRoot, 0), StandardOpenOption.CREATE);
+      deleteStaleDataFiles(0);
+      return;
+    }
+    if (indexChannel.size() < HEADER_SIZE) {
+      throw new IOException("Index file is too short");
+    }
+    MappedByteBuffer header = indexChannel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+    if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+      throw new IOException("Unexpected format");
+    }
+    capacity = header.getInt(CAPACITY_OFFSET);
+    if (Integer.bitCount(capacity) != 1
+        || indexChannel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+      throw new IOException("Unexpected index size");
+    }
+    index = mapIndex(indexChannel, capacity);
+    long generation = index.getLong(GENERATION_OFFSET);
+    Path dataFile = dataFile(cacheRoot, generation);
+    if (!dataFile.exists()) {
+      throw new IOException("Data file is missing");
+    }
+    dataChannel = openFile(dataFile, StandardOpenOption.CREATE);
+    long dataEnd = index.getLong(DATA_END_OFFSET);
+    if (dataEnd < 0 || dataEnd > dataChannel.size()) {
+      throw new IOException("Data file is too short");
+    }
+    while ((long) segments.size() * SEGMENT_SIZE < dataEnd) {
+      mapNextSegment(dataChannel, segments);
+    }
+    deleteStaleDataFiles(generation);
+  }
+
+  /**
+   * Deletes the data files of other generations, and the index file of an unfinished compaction,
+   * which a server that died while compacting may have left behind.
+   */
+  private void deleteStaleDataFiles(long generation) {
+    String prefix = "action_data_v" + VERSION + ".";
+    try {
+      newIndexFile(cacheRoot).delete();
+      for (Path path : cacheRoot.getDirectoryEntries()) {
+        if (path.getBaseName().startsWith(prefix)
+            && !path.equals(dataFile(cacheRoot, generation))) {
+          path.delete();
+        }
+      }
+    } catch (IOException e) {
+      LOG.warning("Failed to delete stale action cache files: " + e.getMessage());
+    }
+  }
+
+  private static MappedByteBuffer mapIndex(FileChannel channel, int capacity) throws IOException {
+    return channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+  }
+
+  private static void writeHeader(MappedByteBuffer index, int capacity, long generation) {
+    index.putInt(MAGIC_OFFSET, MAGIC);
+    index.putInt(VERSION_OFFSET, VERSION);
+    index.putInt(CAPACITY_OFFSET, capacity);
+    index.putLong(GENERATION_OFFSET, generation);
+  }
+
+  private static void mapNextSegment(FileChannel channel, List<MappedByteBuffer> segments)
+      throws IOException {
+    segments.add(
+        channel.map(MapMode.READ_WRITE, (long) segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+  }
+
+  /**
+   * Unmaps the files and closes them, after which the cache must not be used anymore. The entries
+   * are kept on disk, but {@link #save} must be called first for them to be safe from crashes.
+   */
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      closeFiles();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Unmaps all the files and closes their channels. Must be called with the write lock held. */
+  private void closeFiles() {
+    if (index != null) {
+      unmap(index);
+      index = null;
+    }
+    for (MappedByteBuffer segment : segments) {
+      unmap(segment);
+    }
+    segments.clear();
+    closeQuietly(indexChannel);
+    indexChannel = null;
+    closeQuietly(dataChannel);
+    dataChannel = null;
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing we can do, the files are either deleted or renamed next.
+    }
+  }
+
+  /**
+   * Releases the mapping of the given buffer right away, instead of whenever the buffer happens to
+   * be garbage collected, so that replaced files do not stay mapped. The buffer and its slices must
+   * not be used afterwards.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      // Java 9 and later.
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Fall back to the Java 8 way below.
+    }
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // The mapping is released when the buffer is garbage collected.
+    }
+  }
+
+  private static long hash(String key) {
+    long hash = Hashing.murmur3_128().hashString(key, ISO_8859_1).asLong();
+    return hash == EMPTY_SLOT ? 1 : hash;
+  }
+
+  private static int slotPosition(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /** Returns the slot that holds the given key, or -1. Must be called with the lock held. */
+  private int findSlot(String key, long hash) {
+    int mask = capacity - 1;
+    for (int i = 0, slot = (int) hash & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+      long slotHash = index.getLong(slotPosition(slot));
+      if (slotHash == EMPTY_SLOT) {
+        return -1;
+      }
+      long offset = index.getLong(slotPosition(slot) + 8);
+      if (slotHash == hash && offset != REMOVED_OFFSET) {
+        ByteBuffer payload = readRecord(offset);
+        if (payload != null && key.equals(readString(payload))) {
+          return slot;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the payload of the record at the given offset, or null if there is no valid record
+   * there. Must be called with the lock held.
+   */
+  private ByteBuffer readRecord(long offset) {
+    long dataEnd = index.getLong(DATA_END_OFFSET);
+    if (offset < 0 || offset + RECORD_HEADER_SIZE > dataEnd) {
+      return null;
+    }
+    ByteBuffer segment = segments.get((int) (offset / SEGMENT_SIZE)).duplicate();
+    int position = (int) (offset % SEGMENT_SIZE);
+    int length = segment.getInt(position);
+    if (length <= 0 || length > SEGMENT_SIZE - position - RECORD_HEADER_SIZE) {
+      return null;
+    }
+    int checksum = segment.getInt(position + 4);
+    segment.position(position + RECORD_HEADER_SIZE);
+    segment.limit(position + RECORD_HEADER_SIZE + length);
+    ByteBuffer payload = segment.slice();
+    CRC32 crc = new CRC32();
+    crc.update(payload.duplicate());
+    return (int) crc.getValue() == checksum ? payload : null;
+  }
+
+  /** Appends a record and returns its offset. Must be called with the write lock held. */
+  private long appendRecord(byte[] payload) throws IOException {
+    long offset =
+        appendRecord(
+            dataChannel, segments, index.getLong(DATA_END_OFFSET), ByteBuffer.wrap(payload));
+    index.putLong(DATA_END_OFFSET, offset + RECORD_HEADER_SIZE + payload.length);
+    return offset;
+  }
+
+  /**
+   * Writes a record with the given payload at the given end of the data in the given file, or at
+   * the start of the next segment if it does not fit in the current one, and returns its offset.
+   */
+  private static long appendRecord(
+      FileChannel channel, List<MappedByteBuffer> segments, long dataEnd, ByteBuffer payload)
+      throws IOException {
+    long offset = dataEnd;
+    int length = RECORD_HEADER_SIZE + payload.remaining();
+    if (offset % SEGMENT_SIZE + length > SEGMENT_SIZE) {
+      // Skip to the start of the next segment.
+      offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+    }
+    while (segments.size() <= offset / SEGMENT_SIZE) {
+      mapNextSegment(channel, segments);
+    }
+    ByteBuffer segment = segments.get((int) (offset / SEGMENT_SIZE)).duplicate();
+    CRC32 crc = new CRC32();
+    crc.update(payload.duplicate());
+    segment.position((int) (offset % SEGMENT_SIZE));
+    segment.putInt(payload.remaining());
+    segment.putInt((int) crc.getValue());
+    segment.put(payload.duplicate());
+    return offset;
+  }
+
+  private int recordSize(long offset) {
+    ByteBuffer payload = readRecord(offset);
+    return payload != null ? RECORD_HEADER_SIZE + payload.remaining() : 0;
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    lock.readLock().lock();
+    try {
+      int slot = findSlot(key, hash(key));
+      if (slot < 0) {
+        return null;
+      }
+      ByteBuffer payload = readRecord(index.getLong(slotPosition(slot) + 8));
+      readString(payload); // Skip the key.
+      return decode(payload);
+    } catch (IOException | BufferUnderflowException e) {
+      // return entry marked as corrupted.
+      return CompactPersistentActionCache.CORRUPTED;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    byte[] payload = encode(key, entry);
+    if (payload.length > SEGMENT_SIZE - RECORD_HEADER_SIZE) {
+      LOG.warning("Not caching action with an entry of " + payload.length + " bytes: " + key);
+      return;
+    }
+    long hash = hash(key);
+    lock.writeLock().lock();
+    try {
+      long offset = appendRecord(payload);
+      int slot = findSlot(key, hash);
+      if (slot >= 0) {
+        addGarbage(recordSize(index.getLong(slotPosition(slot) + 8)));
+        index.putLong(slotPosition(slot) + 8, offset);
+        return;
+      }
+      int mask = capacity - 1;
+      slot = (int) hash & mask;
+      while (index.getLong(slotPosition(slot)) != EMPTY_SLOT
+          && index.getLong(slotPosition(slot) + 8) != REMOVED_OFFSET) {
+        slot = (slot + 1) & mask;
+      }
+      if (index.getLong(slotPosition(slot)) == EMPTY_SLOT) {
+        index.putInt(USED_SLOTS_OFFSET, index.getInt(USED_SLOTS_OFFSET) + 1);
+      }
+      index.putLong(slotPosition(slot) + 8, offset);
+      index.putLong(slotPosition(slot), hash);
+      index.putInt(SIZE_OFFSET, index.getInt(SIZE_OFFSET) + 1);
+      if (index.getInt(USED_SLOTS_OFFSET) > capacity / 2) {
+        rehash(capacity * 2);
+      }
+    } catch (IOException e) {
+      LOG.warning("Failed to write action cache entry for " + key + ": " + e.getMessage());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    long hash = hash(key);
+    lock.writeLock().lock();
+    try {
+      int slot = findSlot(key, hash);
+      if (slot >= 0) {
+        addGarbage(recordSize(index.getLong(slotPosition(slot) + 8)));
+        index.putLong(slotPosition(slot) + 8, REMOVED_OFFSET);
+        index.putInt(SIZE_OFFSET, index.getInt(SIZE_OFFSET) - 1);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void addGarbage(long bytes) {
+    index.putLong(GARBAGE_OFFSET, index.getLong(GARBAGE_OFFSET) + bytes);
+  }
+
+  /**
+   * Replaces the index with one of the given capacity, which only contains the live slots of the
+   * current one. Must be called with the write lock held.
+   */
+  private void rehash(int newCapacity) throws IOException {
+    Path tmpFile = newIndexFile(cacheRoot);
+    tmpFile.delete();
+    FileChannel newChannel = openFile(tmpFile, StandardOpenOption.CREATE_NEW);
+    MappedByteBuffer newIndex = mapIndex(newChannel, newCapacity);
+    int mask = newCapacity - 1;
+    int size = 0;
+    for (int slot = 0; slot < capacity; slot++) {
+      long hash = index.getLong(slotPosition(slot));
+      long offset = index.getLong(slotPosition(slot) + 8);
+      if (hash == EMPTY_SLOT || offset == REMOVED_OFFSET) {
+        continue;
+      }
+      int newSlot = (int) hash & mask;
+      while (newIndex.getLong(slotPosition(newSlot)) != EMPTY_SLOT) {
+        newSlot = (newSlot + 1) & mask;
+      }
+      newIndex.putLong(slotPosition(newSlot), hash);
+      newIndex.putLong(slotPosition(newSlot) + 8, offset);
+      size++;
+    }
+    writeHeader(newIndex, newCapacity, index.getLong(GENERATION_OFFSET));
+    newIndex.putInt(SIZE_OFFSET, size);
+    newIndex.putInt(USED_SLOTS_OFFSET, size);
+    newIndex.putLong(DATA_END_OFFSET, index.getLong(DATA_END_OFFSET));
+    newIndex.putLong(GARBAGE_OFFSET, index.getLong(GARBAGE_OFFSET));
+    newIndex.force();
+    try {
+      tmpFile.renameTo(indexFile(cacheRoot));
+    } catch (IOException e) {
+      unmap(newIndex);
+      closeQuietly(newChannel);
+      tmpFile.delete();
+      throw e;
+    }
+    unmap(index);
+    closeQuietly(indexChannel);
+    indexChannel = newChannel;
+    index = newIndex;
+    capacity = newCapacity;
+  }
+
+  /**
+   * Copies the live records into a new data file of the next generation, along with a new index,
+   * and then replaces the current files with them. The records are copied from one mapping to the
+   * other, without going through the heap. Must be called with the write lock held.
+   */
+  private void compact() throws IOException {
+    long generation = index.getLong(GENERATION_OFFSET) + 1;
+    int size = index.getInt(SIZE_OFFSET);
+    int newCapacity = INITIAL_CAPACITY;
+    while (size > newCapacity / 4) {
+      newCapacity *= 2;
+    }
+    Path newIndexFile = newIndexFile(cacheRoot);
+    Path newDataFile = dataFile(cacheRoot, generation);
+    newIndexFile.delete();
+    newDataFile.delete();
+    FileChannel newIndexChannel = null;
+    FileChannel newDataChannel = null;
+    MappedByteBuffer newIndex = null;
+    List<MappedByteBuffer> newSegments = new ArrayList<>();
+    boolean committed = false;
+    try {
+      newIndexChannel = openFile(newIndexFile, StandardOpenOption.CREATE_NEW);
+      newDataChannel = openFile(newDataFile, StandardOpenOption.CREATE_NEW);
+      newIndex = mapIndex(newIndexChannel, newCapacity);
+      int mask = newCapacity - 1;
+      int newSize = 0;
+      long dataEnd = 0;
+      for (int slot = 0; slot < capacity; slot++) {
+        long hash = index.getLong(slotPosition(slot));
+        long offset = index.getLong(slotPosition(slot) + 8);
+        if (hash == EMPTY_SLOT || offset == REMOVED_OFFSET) {
+          continue;
+        }
+        ByteBuffer payload = readRecord(offset);
+        if (payload == null) {
+          continue;
+        }
+        long newOffset = appendRecord(newDataChannel, newSegments, dataEnd, payload);
+        dataEnd = newOffset + RECORD_HEADER_SIZE + payload.remaining();
+        int newSlot = (int) hash & mask;
+        while (newIndex.getLong(slotPosition(newSlot)) != EMPTY_SLOT) {
+          newSlot = (newSlot + 1) & mask;
+        }
+        newIndex.putLong(slotPosition(newSlot), hash);
+        newIndex.putLong(slotPosition(newSlot) + 8, newOffset);
+        newSize++;
+      }
+      writeHeader(newIndex, newCapacity, generation);
+      newIndex.putInt(SIZE_OFFSET, newSize);
+      newIndex.putInt(USED_SLOTS_OFFSET, newSize);
+      newIndex.putLong(DATA_END_OFFSET, dataEnd);
+      for (MappedByteBuffer segment : newSegments) {
+        segment.force();
+      }
+      newIndex.force();
+      // This commits the compaction: the new index refers to the new data file.
+      newIndexFile.renameTo(indexFile(cacheRoot));
+      committed = true;
+    } finally {
+      if (!committed) {
+        if (newIndex != null) {
+          unmap(newIndex);
+        }
+        for (MappedByteBuffer segment : newSegments) {
+          unmap(segment);
+        }
+        closeQuietly(newIndexChannel);
+        closeQuietly(newDataChannel);
+        newIndexFile.delete();
+        newDataFile.delete();
+      }
+    }
+    unmap(index);
+    for (MappedByteBuffer segment : segments) {
+      unmap(segment);
+    }
+    closeQuietly(indexChannel);
+    closeQuietly(dataChannel);
+    dataFile(cacheRoot, generation - 1).delete();
+    indexChannel = newIndexChannel;
+    dataChannel = newDataChannel;
+    index = newIndex;
+    capacity = newCapacity;
+    segments.clear();
+    segments.addAll(newSegments);
+  }
+
+  /** Reclaims the garbage right away, rather than once it makes up most of the data file. */
+  @VisibleForTesting
+  void compactForTesting() throws IOException {
+    lock.writeLock().lock();
+    try {
+      compact();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long save() throws IOException {
+    lock.writeLock().lock();
+    try {
+      long dataEnd = index.getLong(DATA_END_OFFSET);
+      if (dataEnd > SEGMENT_SIZE && index.getLong(GARBAGE_OFFSET) * 2 > dataEnd) {
+        compact();
+      }
+      index.force();
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+      return HEADER_SIZE + (long) capacity * SLOT_SIZE + index.getLong(DATA_END_OFFSET);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      long generation = index.getLong(GENERATION_OFFSET);
+      closeFiles();
+      indexFile(cacheRoot).delete();
+      dataFile(cacheRoot, generation).delete();
+      open();
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to clear the action cache", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Calls the visitor with the key and payload of every entry, in no particular order. */
+  private void forEachEntry(EntryVisitor visitor) {
+    lock.readLock().lock();
+    try {
+      for (int slot = 0; slot < capacity; slot++) {
+        long hash = index.getLong(slotPosition(slot));
+        long offset = index.getLong(slotPosition(slot) + 8);
+        if (hash == EMPTY_SLOT || offset == REMOVED_OFFSET) {
+          continue;
+        }
+        ByteBuffer payload = readRecord(offset);
+        if (payload == null) {
+          continue;
+        }
+        int packedLength = payload.remaining();
+        String key = readString(payload);
+        String content;
+        try {
+          content = decode(payload).toString();
+        } catch (IOException | BufferUnderflowException e) {
+          content = e + "\n";
+        }
+        if (!visitor.visit(key, content, packedLength)) {
+          return;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private interface EntryVisitor {
+    /** Returns false to stop the iteration. */
+    boolean visit(String key, String content, int packedLength);
+  }
+
+  private int size() {
+    lock.readLock().lock();
+    try {
+      return index.getInt(SIZE_OFFSET);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    int numRecords = size();
+    builder.append("Action cache (" + numRecords + " records):\n");
+    int size = numRecords > 1000 ? 10 : numRecords;
+    int[] ct = {0};
+    forEachEntry(
+        (key, content, packedLength) -> {
+          builder.append("-> ").append(key).append("\n")
+              .append(content).append("  packed_len = ").append(packedLength).append("\n");
+          if (++ct[0] > size) {
+            builder.append("...");
+            return false;
+          }
+          return true;
+        });
+    return builder.toString();
+  }
+
+  /**
+   * Dumps action cache content.
+   */
+  @Override
+  public void dump(PrintStream out) {
+    out.println("Action cache (" + size() + " records):\n");
+    forEachEntry(
+        (key, content, packedLength) -> {
+          out.println(key + ":\n" + content + "\n      packed_len = " + packedLength + "\n");
+          return true;
+        });
+  }
+
+  private static void writeString(String s, ByteArrayOutputStream sink) throws IOException {
+    byte[] bytes = s.getBytes(ISO_8859_1);
+    VarInt.putVarInt(bytes.length, sink);
+    sink.write(bytes);
+  }
+
+  private static String readString(ByteBuffer source) {
+    int length = VarInt.getVarInt(source);
+    if (length < 0 || length > source.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    source.get(bytes);
+    return new String(bytes, ISO_8859_1);
+  }
+
+  /**
+   * Returns the payload of the record of the given entry. Unlike {@link
+   * CompactPersistentActionCache}, file names are stored inline rather than as indices into a
+   * filename index, since that index would have to be loaded into the heap.
+   */
+  private static byte[] encode(String key, ActionCache.Entry entry) {
+    Preconditions.checkState(!entry.isCorrupted());
+    try {
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      writeString(key, sink);
+      writeString(entry.getActionKey(), sink);
+      DigestUtils.write(entry.getFileDigest(), sink);
+      Collection<String> files = entry.getPaths();
+      VarInt.putVarInt(entry.discoversInputs() ? files.size() : NO_INPUT_DISCOVERY_COUNT, sink);
+      for (String file : files) {
+        writeString(file, sink);
+      }
+      DigestUtils.write(entry.getUsedClientEnvDigest(), sink);
+      return sink.toByteArray();
+    } catch (IOException e) {
+      // This Exception can never be thrown by ByteArrayOutputStream.
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Decodes the entry that follows the key in the given payload. */
+  private static ActionCache.Entry decode(ByteBuffer source) throws IOException {
+    String actionKey = readString(source);
+    Md5Digest md5Digest = DigestUtils.read(source);
+    int count = VarInt.getVarInt(source);
+    ImmutableList.Builder<String> files = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      files.add(readString(source));
+    }
+    Md5Digest usedClientEnvDigest = DigestUtils.read(source);
+    if (source.remaining() > 0) {
+      throw new IOException("serialized entry data has not been fully decoded");
+    }
+    return new Entry(
+        actionKey,
+        usedClientEnvDigest,
+        count == NO_INPUT_DISCOVERY_COUNT ? null : files.build(),
+        md5Digest);
+  }
+}
@@ -50,14 +50,19 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
   private static final class PersistentIndexMap extends PersistentMap<String, Integer>  {
     private static final int VERSION = 0x01;
     private static final long SAVE_INTERVAL_NS = 3L * 1000 * 1000 * 1000;
+    /** With keepJournal, the map file is rewritten once the journal is this much of its size. */
+    private static final int MAX_JOURNAL_PERCENTAGE = 10;
 
     private final Clock clock;
+    private final boolean keepJournal;
     private long nextUpdate;
 
-    public PersistentIndexMap(Path mapFile, Path journalFile, Clock clock) throws IOException {
+    public PersistentIndexMap(Path mapFile, Path journalFile, Clock clock, boolean keepJournal)
+        throws IOException {
       super(VERSION, PersistentStringIndexer.<String, Integer>newConcurrentMap(INITIAL_ENTRIES),
             mapFile, journalFile);
       this.clock = clock;
+      this.keepJournal = keepJournal;
       nextUpdate = clock.nanoTime();
       load(/*throwOnLoadFailure=*/true);
     }
@@ -81,6 +86,25 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
       super.forceFlush();
     }
 
+    @Override
+    protected boolean keepJournal() {
+      if (!keepJournal) {
+        return false;
+      }
+      // Appending is cheap, so the whole index is only rewritten once its journal has grown large.
+      forceFlush();
+      try {
+        return journalSize() * 100 <= cacheSize() * MAX_JOURNAL_PERCENTAGE;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    @Override
+    protected boolean compactOnLoad() {
+      return !keepJournal;
+    }
+
     @Override
     protected String readKey(DataInputStream in) throws IOException {
       int length = in.readInt();
@@ -118,8 +142,18 @@ final class PersistentStringIndexer extends CanonicalStringIndexer {
    */
   static PersistentStringIndexer newPersistentStringIndexer(Path dataPath,
                                                             Clock clock) throws IOException {
+    return newPersistentStringIndexer(dataPath, clock, /*keepJournal=*/ false);
+  }
+
+  /**
+   * Instantiates and loads instance of the persistent string indexer. If {@code keepJournal} is
+   * true, {@link #save} only appends the new strings to the journal, and rewrites the index file
+   * only once the journal has grown large compared to it.
+   */
+  static PersistentStringIndexer newPersistentStringIndexer(
+      Path dataPath, Clock clock, boolean keepJournal) throws IOException {
     PersistentIndexMap persistentIndexMap = new PersistentIndexMap(dataPath,
-        FileSystemUtils.replaceExtension(dataPath, ".journal"), clock);
+        FileSystemUtils.replaceExtension(dataPath, ".journal"), clock, keepJournal);
     Map<Integer, String> reverseMapping = newConcurrentMap(INITIAL_ENTRIES);
     for (Map.Entry<String, Integer> entry : persistentIndexMap.entrySet()) {
       if (reverseMapping.put(entry.getValue(), entry.getKey()) != null) {
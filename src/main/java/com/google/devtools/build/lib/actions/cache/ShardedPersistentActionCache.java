@@ -0,0 +1,417 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An implementation of the ActionCache interface that splits the entries of a {@link
+ * CompactPersistentActionCache} into a fixed number of shards, each with its own lock, map file
+ * and journal.
+ *
+ * <p>Lookups do not take any lock, and updates only lock the shard of the updated entry, so
+ * concurrent action cache checks do not contend with each other. On {@link #save}, shards that did
+ * not change are not touched, and the others only append their changes to their journal. Shards
+ * whose journal grew too large compared to their map file are compacted afterwards, one at a time,
+ * on a background thread.
+ *
+ * <p>The entries are encoded like those of {@link CompactPersistentActionCache}, and share its
+ * filename index, whose new entries are also only appended to its journal on save. Changing the
+ * number of shards discards the cached entries, and deletes the files of the old shards.
+ */
+@ConditionallyThreadSafe // condition: each instance must instantiated with
+                         // different cache root
+public class ShardedPersistentActionCache implements ActionCache {
+  private static final int SAVE_INTERVAL_SECONDS = 3;
+  // Log if periodically saving a shard incurs more than 5% overhead.
+  private static final int MIN_TIME_FOR_LOGGING_MILLIS =
+      (int) (TimeUnit.SECONDS.toMillis(SAVE_INTERVAL_SECONDS) * 0.05);
+  /** A shard is compacted once its journal is larger than this percentage of its map file. */
+  private static final int MAX_JOURNAL_PERCENTAGE = 10;
+
+  /** Matches the map, journal and temporary files of shards; see {@link #cacheFile}. */
+  private static final Pattern SHARD_FILE_PATTERN =
+      Pattern.compile("action_(?:cache|journal)_v(\\d+)\\.\\d+_of_(\\d+)\\.(?:blaze|tmp)");
+
+  private static final Logger LOG = Logger.getLogger(ShardedPersistentActionCache.class.getName());
+
+  private final class Shard extends PersistentMap<Integer, byte[]> {
+    private final Clock clock;
+    private long nextUpdateSecs;
+    // Guarded by this shard.
+    private boolean compactionScheduled;
+
+    Shard(Clock clock, Path mapFile, Path journalFile) throws IOException {
+      super(
+          CompactPersistentActionCache.VERSION,
+          new ConcurrentHashMap<Integer, byte[]>(),
+          mapFile,
+          journalFile);
+      this.clock = clock;
+      nextUpdateSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()) + SAVE_INTERVAL_SECONDS;
+      load();
+    }
+
+    @Override
+    protected boolean updateJournal() {
+      long timeSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime());
+      if (SAVE_INTERVAL_SECONDS == 0 || timeSecs > nextUpdateSecs) {
+        nextUpdateSecs = timeSecs + SAVE_INTERVAL_SECONDS;
+        // The filename index must be on disk before any journal entry that refers to it.
+        indexer.flush();
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    protected void markAsDirty() {
+      try (AutoProfiler p =
+          AutoProfiler.logged("slow write to journal", LOG, MIN_TIME_FOR_LOGGING_MILLIS)) {
+        super.markAsDirty();
+      }
+    }
+
+    @Override
+    protected boolean keepJournal() {
+      // Only compactions rewrite the map file, all other saves only append to the journal.
+      return true;
+    }
+
+    @Override
+    protected boolean compactOnLoad() {
+      // Leave that to the background compaction, rather than rewriting all shards on startup.
+      return false;
+    }
+
+    boolean needsCompaction() throws IOException {
+      return journalSize() * 100 > cacheSize() * MAX_JOURNAL_PERCENTAGE;
+    }
+
+    /** Rewrites the map file with all the entries of this shard, and deletes the journal. */
+    @Override
+    protected long compact() throws IOException {
+      return super.compact();
+    }
+
+    @Override
+    protected Integer readKey(DataInputStream in) throws IOException {
+      return in.readInt();
+    }
+
+    @Override
+    protected byte[] readValue(DataInputStream in) throws IOException {
+      int size = in.readInt();
+      if (size < 0) {
+        throw new IOException("found negative array size: " + size);
+      }
+      byte[] data = new byte[size];
+      in.readFully(data);
+      return data;
+    }
+
+    @Override
+    protected void writeKey(Integer key, DataOutputStream out) throws IOException {
+      out.writeInt(key);
+    }
+
+    @Override
+    protected void writeValue(byte[] value, DataOutputStream out) throws IOException {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  }
+
+  private final Shard[] shards;
+  private final PersistentStringIndexer indexer;
+  private final ExecutorService compactionExecutor;
+
+  public ShardedPersistentActionCache(Path cacheRoot, Clock clock, int numShards)
+      throws IOException {
+    Preconditions.checkArgument(numShards > 0, "numShards must be greater than 0");
+    Path indexFile =
+        cacheRoot.getChild("filename_index_v" + CompactPersistentActionCache.VERSION + ".blaze");
+    try {
+      indexer =
+          PersistentStringIndexer.newPersistentStringIndexer(
+              indexFile, clock, /*keepJournal=*/ true);
+    } catch (IOException e) {
+      CompactPersistentActionCache.renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load filename index data", e);
+    }
+
+    deleteStaleShardFiles(cacheRoot, numShards);
+    shards = new Shard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      try {
+        shards[i] =
+            new Shard(
+                clock, cacheFile(cacheRoot, i, numShards), journalFile(cacheRoot, i, numShards));
+      } catch (IOException e) {
+        CompactPersistentActionCache.renameCorruptedFiles(cacheRoot);
+        throw new IOException("Failed to load action cache data", e);
+      }
+      // Validate referential integrity between the shard and the index.
+      if (!shards[i].isEmpty()) {
+        String integrityError =
+            CompactPersistentActionCache.validateIntegrity(
+                indexer.size(), shards[i].get(CompactPersistentActionCache.VALIDATION_KEY));
+        if (integrityError != null) {
+          CompactPersistentActionCache.renameCorruptedFiles(cacheRoot);
+          throw new IOException(
+              "Failed action cache referential integrity check: " + integrityError);
+        }
+      }
+    }
+
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            10,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("action-cache-compaction %d")
+                .setDaemon(true)
+                .build());
+    executor.allowCoreThreadTimeOut(true);
+    compactionExecutor = executor;
+  }
+
+  /**
+   * Deletes the files of shards written with another number of shards or another version, which
+   * are never read again.
+   */
+  private static void deleteStaleShardFiles(Path cacheRoot, int numShards) {
+    if (!cacheRoot.isDirectory()) {
+      return;
+    }
+    try {
+      for (Path path : cacheRoot.getDirectoryEntries()) {
+        Matcher matcher = SHARD_FILE_PATTERN.matcher(path.getBaseName());
+        if (matcher.matches()
+            && (Integer.parseInt(matcher.group(1)) != CompactPersistentActionCache.VERSION
+                || Integer.parseInt(matcher.group(2)) != numShards)) {
+          path.delete();
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      LOG.log(Level.WARNING, "Failed to delete stale action cache shards", e);
+    }
+  }
+
+  @VisibleForTesting
+  static Path cacheFile(Path cacheRoot, int shard, int numShards) {
+    return cacheRoot.getChild(
+        String.format(
+            "action_cache_v%d.%d_of_%d.blaze",
+            CompactPersistentActionCache.VERSION, shard, numShards));
+  }
+
+  @VisibleForTesting
+  static Path journalFile(Path cacheRoot, int shard, int numShards) {
+    return cacheRoot.getChild(
+        String.format(
+            "action_journal_v%d.%d_of_%d.blaze",
+            CompactPersistentActionCache.VERSION, shard, numShards));
+  }
+
+  private Shard shardFor(int index) {
+    return shards[index % shards.length];
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    int index = indexer.getIndex(key);
+    if (index < 0) {
+      return null;
+    }
+    // The backing maps are concurrent, so lookups do not need to lock the shard.
+    byte[] data = shardFor(index).get(index);
+    try {
+      return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
+    } catch (IOException e) {
+      // return entry marked as corrupted.
+      return CompactPersistentActionCache.CORRUPTED;
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    // Encode record. Note that both methods may create new mappings in the indexer.
+    int index = indexer.getOrCreateIndex(key);
+    byte[] content = CompactPersistentActionCache.encode(indexer, entry);
+
+    // Each shard has its own validation record, since shards are saved independently.
+    ByteBuffer buffer = ByteBuffer.allocate(4); // size of int in bytes
+    buffer.asIntBuffer().put(indexer.size());
+
+    Shard shard = shardFor(index);
+    synchronized (shard) {
+      shard.put(CompactPersistentActionCache.VALIDATION_KEY, buffer.array());
+      shard.put(index, content);
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    int index = indexer.getIndex(key);
+    if (index < 0) {
+      return;
+    }
+    Shard shard = shardFor(index);
+    synchronized (shard) {
+      shard.remove(index);
+    }
+  }
+
+  @Override
+  public long save() throws IOException {
+    long size = indexer.save();
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        size += shard.save();
+        if (!shard.compactionScheduled && shard.needsCompaction()) {
+          shard.compactionScheduled = true;
+          compactionExecutor.execute(() -> compact(shard));
+        }
+      }
+    }
+    return size;
+  }
+
+  private void compact(Shard shard) {
+    synchronized (shard) {
+      shard.compactionScheduled = false;
+      try (AutoProfiler p = AutoProfiler.logged("compacting action cache shard", LOG)) {
+        // Entries added since the last save may refer to filenames that are not on disk yet.
+        indexer.flush();
+        shard.compact();
+      } catch (IOException e) {
+        // The journal is kept, so nothing is lost; the next save will try again.
+        LOG.log(Level.WARNING, "Failed to compact action cache shard", e);
+      }
+    }
+  }
+
+  /** Waits until all the compactions scheduled so far are finished. */
+  @VisibleForTesting
+  void awaitCompactions() throws InterruptedException {
+    try {
+      compactionExecutor.submit(() -> {}).get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void clear() {
+    indexer.clear();
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        shard.clear();
+      }
+    }
+  }
+
+  private int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      // Do not count the validation keys.
+      size += shard.containsKey(CompactPersistentActionCache.VALIDATION_KEY)
+          ? shard.size() - 1
+          : shard.size();
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    int numRecords = size();
+    builder.append("Action cache (" + numRecords + " records):\n");
+    int size = numRecords > 1000 ? 10 : numRecords;
+    int ct = 0;
+    for (Shard shard : shards) {
+      for (Map.Entry<Integer, byte[]> entry : shard.entrySet()) {
+        if (entry.getKey() == CompactPersistentActionCache.VALIDATION_KEY) {
+          continue;
+        }
+        String content;
+        try {
+          content = CompactPersistentActionCache.decode(indexer, entry.getValue()).toString();
+        } catch (IOException e) {
+          content = e + "\n";
+        }
+        builder.append("-> ").append(indexer.getStringForIndex(entry.getKey())).append("\n")
+            .append(content).append("  packed_len = ").append(entry.getValue().length)
+            .append("\n");
+        if (++ct > size) {
+          builder.append("...");
+          return builder.toString();
+        }
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Dumps action cache content.
+   */
+  @Override
+  public void dump(PrintStream out) {
+    out.println("String indexer content:\n");
+    out.println(indexer);
+    out.println("Action cache (" + size() + " records in " + shards.length + " shards):\n");
+    for (Shard shard : shards) {
+      for (Map.Entry<Integer, byte[]> entry : shard.entrySet()) {
+        if (entry.getKey() == CompactPersistentActionCache.VALIDATION_KEY) {
+          continue;
+        }
+        String content;
+        try {
+          content = CompactPersistentActionCache.decode(indexer, entry.getValue()).toString();
+        } catch (IOException e) {
+          content = e + "\n";
+        }
+        out.println(entry.getKey() + ", " + indexer.getStringForIndex(entry.getKey()) + ":\n"
+            + content + "\n      packed_len = " + entry.getValue().length + "\n");
+      }
+    }
+  }
+}
@@ -232,4 +232,12 @@ public final class BuildEventId implements Serializable {
     return new BuildEventId(
         BuildEventStreamProtos.BuildEventId.newBuilder().setBuildFinished(finishedId).build());
   }
+
+  public static BuildEventId skyFunctionMetricsId() {
+    return new BuildEventId(
+        BuildEventStreamProtos.BuildEventId.newBuilder()
+            .setSkyfunctionMetrics(
+                BuildEventStreamProtos.BuildEventId.SkyFunctionMetricsId.getDefaultInstance())
+            .build());
+  }
 }
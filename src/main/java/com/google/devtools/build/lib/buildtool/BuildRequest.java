@@ -128,6 +128,20 @@ public class BuildRequest implements OptionsClassProvider {
     )
     public boolean verboseExplanations;
 
+    @Option(
+      name = "experimental_skyframe_trace",
+      defaultValue = "null",
+      category = "verbosity",
+      optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help =
+          "Writes the shape of the Skyframe evaluations of the build to the specified file, for "
+              + "replaying with the Skyframe benchmark."
+    )
+    public PathFragment skyframeTracePath;
+
     @Option(
       name = "output_filter",
       converter = Converters.RegexPatternConverter.class,
@@ -19,6 +19,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.actions.BuildFailedException;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.analysis.AnalysisPhaseCompleteEvent;
@@ -46,6 +47,7 @@ import com.google.devtools.build.lib.buildtool.BuildRequest.BuildRequestOptions;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildInterruptedEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.buildtool.buildevent.SkyFunctionMetricsEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.TestFilteringCompleteEvent;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
@@ -74,7 +76,12 @@ import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.RegexFilter;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionMetrics;
+import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.common.options.OptionsParsingException;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -103,6 +110,10 @@ public final class BuildTool {
 
   private final CommandEnvironment env;
   private final BlazeRuntime runtime;
+  /** The calls made to each SkyFunction before the build started, if it did. */
+  @Nullable private ImmutableMap<SkyFunctionName, FunctionMetrics> skyFunctionMetricsAtStart;
+  /** The file the Skyframe evaluations of the build are traced to, if any. */
+  @Nullable private Path skyframeTraceFile;
 
   /**
    * Constructs a BuildTool.
@@ -141,6 +152,12 @@ public final class BuildTool {
           TargetParsingException, LoadingFailedException, AbruptExitException,
           InvalidConfigurationException, TestExecException {
     validateOptions(request);
+    skyFunctionMetricsAtStart = env.getSkyframeExecutor().getSkyFunctionMetrics().snapshot();
+    if (request.getBuildOptions().skyframeTracePath != null) {
+      skyframeTraceFile =
+          env.getWorkingDirectory().getRelative(request.getBuildOptions().skyframeTracePath);
+      env.getSkyframeExecutor().startEvaluationTrace();
+    }
     BuildOptions buildOptions = runtime.createBuildOptions(request);
     // Sync the package manager before sending the BuildStartingEvent in runLoadingPhase()
     env.setupPackageCache(request, DefaultsPackage.getDefaultsPackageContent(buildOptions));
@@ -598,6 +615,25 @@ public final class BuildTool {
     result.setExitCondition(exitCondition);
     // The stop time has to be captured before we send the BuildCompleteEvent.
     result.setStopTime(runtime.getClock().currentTimeMillis());
+    if (skyFunctionMetricsAtStart != null) {
+      env.getEventBus()
+          .post(
+              new SkyFunctionMetricsEvent(
+                  SkyFunctionMetrics.difference(
+                      env.getSkyframeExecutor().getSkyFunctionMetrics().snapshot(),
+                      skyFunctionMetricsAtStart)));
+    }
+    if (skyframeTraceFile != null) {
+      try {
+        env.getSkyframeExecutor().writeEvaluationTrace(skyframeTraceFile);
+      } catch (IOException e) {
+        getReporter()
+            .handle(
+                Event.warn(
+                    "Failed to write Skyframe trace to " + skyframeTraceFile + ": "
+                        + e.getMessage()));
+      }
+    }
     env.getEventBus().post(new BuildCompleteEvent(result));
   }
 
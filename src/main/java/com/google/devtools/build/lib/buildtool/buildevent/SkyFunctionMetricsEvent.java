@@ -0,0 +1,78 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildtool.buildevent;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.buildeventstream.BuildEvent;
+import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
+import com.google.devtools.build.lib.buildeventstream.BuildEventId;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import com.google.devtools.build.lib.buildeventstream.GenericBuildEvent;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionMetrics;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This event is fired from BuildTool#stopRequest(), just before the {@link BuildCompleteEvent},
+ * with the calls made to each {@link com.google.devtools.build.skyframe.SkyFunction} during the
+ * build, and how many of its values were dirtied, re-evaluated and pruned by the changes since
+ * the previous build.
+ *
+ * <p>This class also implements the {@link BuildEventStreamProtos.SkyFunctionMetrics} event of the
+ * build event protocol (BEP).
+ */
+public final class SkyFunctionMetricsEvent implements BuildEvent {
+  private final ImmutableMap<SkyFunctionName, FunctionMetrics> metrics;
+
+  public SkyFunctionMetricsEvent(ImmutableMap<SkyFunctionName, FunctionMetrics> metrics) {
+    this.metrics = metrics;
+  }
+
+  public ImmutableMap<SkyFunctionName, FunctionMetrics> getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public BuildEventId getEventId() {
+    return BuildEventId.skyFunctionMetricsId();
+  }
+
+  @Override
+  public Collection<BuildEventId> getChildrenEvents() {
+    return ImmutableList.of();
+  }
+
+  @Override
+  public BuildEventStreamProtos.BuildEvent asStreamProto(BuildEventConverters converters) {
+    BuildEventStreamProtos.SkyFunctionMetrics.Builder builder =
+        BuildEventStreamProtos.SkyFunctionMetrics.newBuilder();
+    for (Map.Entry<SkyFunctionName, FunctionMetrics> entry : metrics.entrySet()) {
+      FunctionMetrics functionMetrics = entry.getValue();
+      builder.addFunction(
+          BuildEventStreamProtos.SkyFunctionMetrics.Function.newBuilder()
+              .setName(entry.getKey().getName())
+              .setEvaluations(functionMetrics.getEvaluations())
+              .setRestarts(functionMetrics.getRestarts())
+              .setWallTimeMillis(
+                  TimeUnit.NANOSECONDS.toMillis(functionMetrics.getWallTimeNanos()))
+              .setDirtied(functionMetrics.getDirtied())
+              .setReevaluated(functionMetrics.getReevaluated())
+              .setPruned(functionMetrics.getPruned()));
+    }
+    return GenericBuildEvent.protoChaining(this).setSkyfunctionMetrics(builder.build()).build();
+  }
+}
@@ -306,4 +306,18 @@ public class ExecutionOptions extends OptionsBase {
             + " aggressive RAM optimizations in some cases."
   )
   public boolean enableCriticalPathProfiling;
+
+  @Option(
+    name = "experimental_critical_path_scheduling",
+    defaultValue = "false",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If set, actions that are ready to run are started in the order of how long the chains of "
+            + "actions depending on them took in previous builds, longest first, instead of in "
+            + "the order they became ready. The times are recorded by critical path profiling, "
+            + "which must be enabled, and kept in the output base."
+  )
+  public boolean criticalPathScheduling;
 }
@@ -0,0 +1,143 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.build.lib.util.Fingerprint;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Digests what the dependents of a {@link Package} can observe of it: its targets, their attributes
+ * and locations, its package-level defaults and its errors.
+ *
+ * <p>Locations are digested as they print, by line and column, so that a BUILD file edit that only
+ * touches comments or whitespace without moving targets to other lines yields the same digest, and
+ * dependents that keep the locations of the last package still report the right ones.
+ */
+public final class PackageFingerprinter {
+
+  private PackageFingerprinter() {}
+
+  /** Returns the digest of {@code pkg}, which must be fully built. */
+  public static byte[] fingerprint(Package pkg) {
+    Fingerprint fp = new Fingerprint();
+    fp.addString(pkg.getPackageIdentifier().toString());
+    fp.addPath(pkg.getFilename());
+    fp.addNullableString(pkg.getWorkspaceName());
+    fp.addBoolean(pkg.containsErrors());
+    for (Event event : pkg.getEvents()) {
+      fp.addString(event.getKind().name());
+      fp.addString(event.getMessage());
+      addLocation(fp, event.getLocation());
+    }
+    fp.addInt(pkg.getPosts().size());
+    addLabels(fp, pkg.getSubincludeLabels());
+    addLabels(fp, pkg.getSkylarkFileDependencies());
+    fp.addStrings(pkg.getFeatures());
+    for (Map.Entry<String, ?> binding : pkg.getMakeEnvironment().getBindings().entrySet()) {
+      fp.addString(binding.getKey());
+      fp.addString(binding.getValue().toString());
+    }
+
+    addLabels(fp, pkg.getDefaultVisibility().getDeclaredLabels());
+    fp.addBoolean(pkg.getDefaultTestOnly());
+    fp.addNullableString(pkg.getDefaultDeprecation());
+    fp.addNullableString(pkg.getDefaultHdrsCheck());
+    fp.addBoolean(pkg.getDefaultCopts() != null);
+    if (pkg.getDefaultCopts() != null) {
+      fp.addStrings(pkg.getDefaultCopts());
+    }
+    fp.addString(pkg.getDefaultLicense().toString());
+    fp.addString(pkg.getDefaultDistribs().toString());
+    addLabels(fp, pkg.getDefaultCompatibleWith());
+    addLabels(fp, pkg.getDefaultRestrictedTo());
+
+    for (Target target : pkg.getTargets().values()) {
+      fp.addString(target.getTargetKind());
+      fp.addString(target.getName());
+      addLocation(fp, target.getLocation());
+      if (target instanceof Rule) {
+        addRule(fp, (Rule) target);
+      } else if (target instanceof InputFile) {
+        InputFile inputFile = (InputFile) target;
+        fp.addBoolean(inputFile.isVisibilitySpecified());
+        if (inputFile.isVisibilitySpecified()) {
+          addLabels(fp, inputFile.getVisibility().getDeclaredLabels());
+        }
+        fp.addBoolean(inputFile.isLicenseSpecified());
+        if (inputFile.isLicenseSpecified()) {
+          fp.addString(inputFile.getLicense().toString());
+        }
+      } else if (target instanceof OutputFile) {
+        fp.addString(((OutputFile) target).getGeneratingRule().getName());
+      } else if (target instanceof PackageGroup) {
+        PackageGroup packageGroup = (PackageGroup) target;
+        fp.addStrings(packageGroup.getContainedPackages());
+        addLabels(fp, packageGroup.getIncludes());
+      } else if (target instanceof EnvironmentGroup) {
+        EnvironmentGroup environmentGroup = (EnvironmentGroup) target;
+        for (Label environment : environmentGroup.getEnvironments()) {
+          fp.addString(environment.toString());
+          addLabels(fp, environmentGroup.getFulfillers(environment));
+        }
+        addLabels(fp, environmentGroup.getDefaults());
+      }
+    }
+    return fp.digestAndReset();
+  }
+
+  /**
+   * Adds the attributes of {@code rule} as serialized by {@link RuleFormatter}, which also covers
+   * the definition of Skylark rule classes.
+   */
+  private static void addRule(Fingerprint fp, Rule rule) {
+    fp.addBoolean(rule.containsErrors());
+    Build.Rule serialized = RuleFormatter.serializeRule(rule).build();
+    fp.addString(serialized.getRuleClass());
+    fp.addNullableString(
+        serialized.hasSkylarkEnvironmentHashCode()
+            ? serialized.getSkylarkEnvironmentHashCode()
+            : null);
+    for (Build.Attribute attribute : serialized.getAttributeList()) {
+      fp.addBytes(attribute.toByteArray());
+    }
+  }
+
+  private static void addLocation(Fingerprint fp, @Nullable Location location) {
+    fp.addBoolean(location != null);
+    if (location != null) {
+      fp.addString(location.print());
+      LineAndColumn end = location.getEndLineAndColumn();
+      fp.addBoolean(end != null);
+      if (end != null) {
+        fp.addInt(end.getLine());
+        fp.addInt(end.getColumn());
+      }
+    }
+  }
+
+  private static void addLabels(Fingerprint fp, Iterable<Label> labels) {
+    int count = 0;
+    for (Label label : labels) {
+      fp.addString(label.toString());
+      count++;
+    }
+    fp.addInt(count);
+  }
+}
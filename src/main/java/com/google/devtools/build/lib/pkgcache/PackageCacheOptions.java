@@ -174,6 +174,34 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public boolean checkOutputFiles;
 
+  @Option(
+    name = "experimental_skyframe_graph_snapshot",
+    defaultValue = "false",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If true, the file system state known to Blaze, along with its package lookups and "
+            + "globs, is written to the output base when the server shuts down, if it changed, and "
+            + "a new server picks it up and only checks it against the file system instead of "
+            + "reading all files and directories again. Packages and configured targets are not "
+            + "written, so they are still loaded and analyzed again."
+  )
+  public boolean skyframeGraphSnapshot;
+
+  @Option(
+    name = "experimental_skyframe_eviction_threshold",
+    defaultValue = "100",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If less than 100, the parsed BUILD files and globs kept by Blaze are dropped whenever the "
+            + "tenured space is more than this percentage full after a full GC, and recomputed "
+            + "when next needed. Should be lower than --experimental_oom_more_eagerly_threshold."
+  )
+  public int skyframeEvictionThreshold;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
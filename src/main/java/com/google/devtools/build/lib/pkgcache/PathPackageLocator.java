@@ -51,9 +51,9 @@ public class PathPackageLocator implements Serializable {
       ImmutableSet.of("experimental");
 
   private final ImmutableList<Path> pathEntries;
-  // Transient because this is an injected value in Skyframe, and as such, its serialized
-  // representation is used as a key. We want a change to output base not to invalidate things.
-  private final transient Path outputBase;
+  // Serialized along with the path entries, so that a locator restored from a graph snapshot is
+  // equal to the one that is injected again.
+  private final Path outputBase;
 
   public static final PathPackageLocator EMPTY =
       new PathPackageLocator(null, ImmutableList.<Path>of());
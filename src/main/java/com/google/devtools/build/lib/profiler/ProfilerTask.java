@@ -89,6 +89,8 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  REMOTE_DOWNLOAD("Remote cache output download", 50000000, 0x9966CC, 0),
+  SKYFUNCTION_METRICS("skyfunction evaluation counts", -1, 0xCC6600, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
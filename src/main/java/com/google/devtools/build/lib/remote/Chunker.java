@@ -21,17 +21,19 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.remoteexecution.v1test.Digest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -42,7 +44,6 @@ import java.util.Set;
 public final class Chunker {
   // This is effectively final, should be changed only in unit-tests!
   private static int defaultChunkSize = 1024 * 16;
-  private static final byte[] EMPTY_BLOB = new byte[0];
 
   @VisibleForTesting
   static void setDefaultChunkSizeForTesting(int value) {
@@ -53,16 +54,19 @@ public final class Chunker {
     return defaultChunkSize;
   }
 
-  /** A piece of a byte[] blob. */
+  /** A piece of a blob. */
   public static final class Chunk {
 
     private final Digest digest;
     private final long offset;
-    // TODO(olaola): consider saving data in a different format that byte[].
-    private final byte[] data;
+    private final ByteString data;
 
     @VisibleForTesting
     Chunk(Digest digest, byte[] data, long offset) {
+      this(digest, ByteString.copyFrom(data), offset);
+    }
+
+    private Chunk(Digest digest, ByteString data, long offset) {
       this.digest = digest;
       this.data = data;
       this.offset = offset;
@@ -79,12 +83,12 @@ public final class Chunker {
       Chunk other = (Chunk) o;
       return other.offset == offset
           && other.digest.equals(digest)
-          && Arrays.equals(other.data, data);
+          && other.data.equals(data);
     }
 
     @Override
     public int hashCode() {
-      return Objects.hash(digest, offset, Arrays.hashCode(data));
+      return Objects.hash(digest, offset, data);
     }
 
     public Digest getDigest() {
@@ -95,8 +99,7 @@ public final class Chunker {
       return offset;
     }
 
-    // This returns a mutable copy, for efficiency.
-    public byte[] getData() {
+    public ByteString getData() {
       return data;
     }
   }
@@ -125,7 +128,11 @@ public final class Chunker {
     this(Iterators.singletonIterator(input), chunkSize);
   }
 
+  /** Skips the rest of the current input, if any, and moves on to the next one. */
   public void advanceInput() throws IOException {
+    if (currentStream != null) {
+      currentStream.close();
+    }
     if (inputIterator.hasNext()) {
       Item input = inputIterator.next();
       digest = input.getDigest();
@@ -149,15 +156,17 @@ public final class Chunker {
       throw new NoSuchElementException();
     }
     long offset = digest.getSizeBytes() - bytesLeft;
-    byte[] blob = EMPTY_BLOB;
-    if (bytesLeft > 0) {
-      blob = new byte[(int) Math.min(bytesLeft, chunkSize)];
-      currentStream.read(blob);
-      bytesLeft -= blob.length;
+    int length = (int) Math.min(bytesLeft, chunkSize);
+    Chunk result;
+    if (length == 0) {
+      result = new Chunk(digest, ByteString.EMPTY, offset);
+    } else {
+      byte[] blob = new byte[length];
+      ByteStreams.readFully(currentStream, blob);
+      result = new Chunk(digest, UnsafeByteOperations.unsafeWrap(blob), offset);
     }
-    Chunk result = new Chunk(digest, blob, offset);
+    bytesLeft -= length;
     if (bytesLeft == 0) {
-      currentStream.close();
       advanceInput(); // Sets the current stream to null, if it was the last.
     }
     return result;
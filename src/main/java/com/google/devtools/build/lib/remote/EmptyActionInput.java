@@ -51,6 +51,22 @@ final class EmptyActionInput implements VirtualActionInput {
     return ByteString.EMPTY;
   }
 
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof EmptyActionInput)) {
+      return false;
+    }
+    return execPath.equals(((EmptyActionInput) o).execPath);
+  }
+
+  @Override
+  public int hashCode() {
+    return execPath.hashCode();
+  }
+
   @Override
   public String toString() {
     return "EmptyActionInput: " + execPath;
@@ -25,9 +25,17 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.remote.Digests.ActionKey;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -56,6 +64,9 @@ import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.StatusRuntimeException;
 import io.grpc.protobuf.StatusProto;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -67,17 +78,33 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /** A RemoteActionCache implementation that uses gRPC calls to a remote cache server. */
 @ThreadSafe
 public class GrpcRemoteCache implements RemoteActionCache {
+  private static final Logger logger = Logger.getLogger(GrpcRemoteCache.class.getName());
+
   private final RemoteOptions options;
   private final ChannelOptions channelOptions;
   private final Channel channel;
   private final Retrier retrier;
+  private final ListeningExecutorService downloadExecutor;
+  private final UploadCoordinator uploadCoordinator;
+
+  /** Blobs up to this size are downloaded into memory rather than streamed to disk. */
+  private static final long MAX_BLOB_SIZE_FOR_BUFFERED_DOWNLOAD = 1024 * 1024;
+  /** How often an upload waiting for flow control checks whether its call has failed. */
+  private static final long UPLOAD_READY_POLL_MILLIS = 100;
 
   @VisibleForTesting
   public GrpcRemoteCache(Channel channel, ChannelOptions channelOptions, RemoteOptions options) {
@@ -85,6 +112,17 @@ public class GrpcRemoteCache implements RemoteActionCache {
     this.channelOptions = channelOptions;
     this.channel = channel;
     this.retrier = new Retrier(options);
+    this.downloadExecutor =
+        MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(
+                Math.max(1, options.experimentalRemoteDownloadConcurrency),
+                new ThreadFactoryBuilder()
+                    .setNameFormat("remote-cache-download %d")
+                    .setDaemon(true)
+                    .build()));
+    this.uploadCoordinator =
+        new UploadCoordinator(
+            this::findMissingDigests, options.experimentalRemoteFindMissingBatchWindowMillis);
   }
 
   private ContentAddressableStorageBlockingStub casBlockingStub() {
@@ -112,13 +150,16 @@ public class GrpcRemoteCache implements RemoteActionCache {
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    logger.info(uploadCoordinator.getStats());
+    downloadExecutor.shutdownNow();
+  }
 
   public static boolean isRemoteCacheOptions(RemoteOptions options) {
     return options.remoteCache != null;
   }
 
-  private ImmutableSet<Digest> getMissingDigests(Iterable<Digest> digests)
+  private ImmutableSet<Digest> findMissingDigests(Iterable<Digest> digests)
       throws IOException, InterruptedException {
     FindMissingBlobsRequest.Builder request =
         FindMissingBlobsRequest.newBuilder()
@@ -141,45 +182,55 @@ public class GrpcRemoteCache implements RemoteActionCache {
       TreeNodeRepository repository, Path execRoot, TreeNode root, Command command)
       throws IOException, InterruptedException {
     repository.computeMerkleDigests(root);
+    // The command goes first, and before claiming the inputs, so that waiting for another action
+    // that uploads the same command never happens while holding claims that action may wait for.
+    uploadBlob(command.toByteArray());
     // TODO(olaola): avoid querying all the digests, only ask for novel subtrees.
-    ImmutableSet<Digest> missingDigests = getMissingDigests(repository.getAllDigests(root));
-
-    // Only upload data that was missing from the cache.
-    ArrayList<ActionInput> actionInputs = new ArrayList<>();
-    ArrayList<Directory> treeNodes = new ArrayList<>();
-    repository.getDataFromDigests(missingDigests, actionInputs, treeNodes);
-
-    if (!treeNodes.isEmpty()) {
-      // TODO(olaola): split this into multiple requests if total size is > 10MB.
-      BatchUpdateBlobsRequest.Builder treeBlobRequest =
-          BatchUpdateBlobsRequest.newBuilder().setInstanceName(options.remoteInstanceName);
-      for (Directory d : treeNodes) {
-        byte[] data = d.toByteArray();
-        treeBlobRequest
-            .addRequestsBuilder()
-            .setContentDigest(Digests.computeDigest(data))
-            .setData(ByteString.copyFrom(data));
-      }
-      retrier.execute(
-          () -> {
-            BatchUpdateBlobsResponse response =
-                casBlockingStub().batchUpdateBlobs(treeBlobRequest.build());
-            for (BatchUpdateBlobsResponse.Response r : response.getResponsesList()) {
-              if (!Status.fromCodeValue(r.getStatus().getCode()).isOk()) {
-                throw StatusProto.toStatusRuntimeException(r.getStatus());
+    ImmutableSet<Digest> missingDigests =
+        uploadCoordinator.getMissingDigests(repository.getAllDigests(root));
+    UploadCoordinator.Claim claim = uploadCoordinator.claimUploads(missingDigests);
+    boolean success = false;
+    try {
+      // Only upload data that was missing from the cache, and isn't being uploaded already.
+      ArrayList<ActionInput> actionInputs = new ArrayList<>();
+      ArrayList<Directory> treeNodes = new ArrayList<>();
+      repository.getDataFromDigests(claim.getOwnedDigests(), actionInputs, treeNodes);
+
+      if (!treeNodes.isEmpty()) {
+        // TODO(olaola): split this into multiple requests if total size is > 10MB.
+        BatchUpdateBlobsRequest.Builder treeBlobRequest =
+            BatchUpdateBlobsRequest.newBuilder().setInstanceName(options.remoteInstanceName);
+        for (Directory d : treeNodes) {
+          byte[] data = d.toByteArray();
+          treeBlobRequest
+              .addRequestsBuilder()
+              .setContentDigest(Digests.computeDigest(data))
+              .setData(ByteString.copyFrom(data));
+        }
+        retrier.execute(
+            () -> {
+              BatchUpdateBlobsResponse response =
+                  casBlockingStub().batchUpdateBlobs(treeBlobRequest.build());
+              for (BatchUpdateBlobsResponse.Response r : response.getResponsesList()) {
+                if (!Status.fromCodeValue(r.getStatus().getCode()).isOk()) {
+                  throw StatusProto.toStatusRuntimeException(r.getStatus());
+                }
               }
-            }
-            return null;
-          });
-    }
-    uploadBlob(command.toByteArray());
-    if (!actionInputs.isEmpty()) {
-      uploadChunks(
-          actionInputs.size(),
-          new Chunker.Builder()
-              .addAllInputs(actionInputs, repository.getInputFileCache(), execRoot)
-              .onlyUseDigests(missingDigests));
+              return null;
+            });
+      }
+      if (!actionInputs.isEmpty()) {
+        uploadChunks(
+            actionInputs.size(),
+            new Chunker.Builder()
+                .addAllInputs(actionInputs, repository.getInputFileCache(), execRoot)
+                .onlyUseDigests(claim.getOwnedDigests()));
+      }
+      success = true;
+    } finally {
+      claim.finish(success);
     }
+    claim.awaitConcurrentUploads();
   }
 
   /**
@@ -193,70 +244,174 @@ public class GrpcRemoteCache implements RemoteActionCache {
   /**
    * Download all results of a remotely executed action locally. TODO(olaola): will need to amend to
    * include the {@link com.google.devtools.build.lib.remote.TreeNodeRepository} for updating.
+   *
+   * <p>Output files, stdout and stderr are fetched concurrently on the shared download executor.
+   * Blobs up to {@link #MAX_BLOB_SIZE_FOR_BUFFERED_DOWNLOAD} are read into memory and written in
+   * one go, larger ones are streamed to disk as the data arrives.
    */
   @Override
   public void download(ActionResult result, Path execRoot, FileOutErr outErr)
       throws IOException, InterruptedException, CacheNotFoundException {
-    for (OutputFile file : result.getOutputFilesList()) {
-      Path path = execRoot.getRelative(file.getPath());
-      FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
-      Digest digest = file.getDigest();
-      if (digest.getSizeBytes() == 0) {
-        // Handle empty file locally.
-        FileSystemUtils.writeContent(path, new byte[0]);
-      } else {
-        if (!file.getContent().isEmpty()) {
+    long startTime = Profiler.nanoTimeMaybe();
+    DownloadGroup downloads = new DownloadGroup();
+    try {
+      for (OutputFile file : result.getOutputFilesList()) {
+        Path path = execRoot.getRelative(file.getPath());
+        FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+        Digest digest = file.getDigest();
+        if (digest.getSizeBytes() == 0) {
+          // Handle empty file locally.
+          FileSystemUtils.writeContent(path, new byte[0]);
+          path.setExecutable(file.getIsExecutable());
+        } else if (!file.getContent().isEmpty()) {
           try (OutputStream stream = path.getOutputStream()) {
             file.getContent().writeTo(stream);
           }
+          path.setExecutable(file.getIsExecutable());
         } else {
-          try {
-            retrier.execute(
-                () -> {
-                  try (OutputStream stream = path.getOutputStream()) {
-                    Iterator<ReadResponse> replies = readBlob(digest);
-                    while (replies.hasNext()) {
-                      replies.next().getData().writeTo(stream);
-                    }
-                  }
-                  Digest receivedDigest = Digests.computeDigest(path);
-                  if (!receivedDigest.equals(digest)) {
-                    throw new IOException(
-                        "Digest does not match " + receivedDigest + " != " + digest);
-                  }
-                  return null;
-                });
-          } catch (RetryException e) {
-            Throwables.throwIfInstanceOf(e.getCause(), CacheNotFoundException.class);
-            throw e;
-          }
+          downloads.submit(
+              () -> {
+                downloadFile(digest, path);
+                path.setExecutable(file.getIsExecutable());
+                return null;
+              });
         }
       }
-      path.setExecutable(file.getIsExecutable());
+      // TODO(ulfjack): use same code as above also for stdout / stderr if applicable.
+      ListenableFuture<byte[]> stdout = null;
+      if (result.getStdoutRaw().isEmpty() && result.hasStdoutDigest()) {
+        stdout = downloads.submit(() -> downloadBlob(result.getStdoutDigest()));
+      }
+      ListenableFuture<byte[]> stderr = null;
+      if (result.getStderrRaw().isEmpty() && result.hasStderrDigest()) {
+        stderr = downloads.submit(() -> downloadBlob(result.getStderrDigest()));
+      }
+      waitForDownloads(downloads.futures);
+
+      for (OutputDirectory directory : result.getOutputDirectoriesList()) {
+        downloadTree(directory.getDigest(), execRoot.getRelative(directory.getPath()));
+      }
+      writeOutErr(result, outErr, stdout, stderr);
+    } finally {
+      // The caller may fall back to running the action locally, which writes the same outputs.
+      downloads.cancelAndAwaitStopped();
+      Profiler.instance().logSimpleTask(startTime, ProfilerTask.REMOTE_DOWNLOAD, "download");
+    }
+  }
+
+  private void downloadFile(Digest digest, Path path)
+      throws IOException, InterruptedException, CacheNotFoundException {
+    if (digest.getSizeBytes() <= MAX_BLOB_SIZE_FOR_BUFFERED_DOWNLOAD) {
+      // downloadBlob already checks the size of what it receives.
+      FileSystemUtils.writeContent(path, downloadBlob(digest));
+      return;
+    }
+    try {
+      retrier.execute(
+          () -> {
+            try (OutputStream stream = path.getOutputStream()) {
+              Iterator<ReadResponse> replies = readBlob(digest);
+              while (replies.hasNext()) {
+                replies.next().getData().writeTo(stream);
+              }
+            }
+            Digest receivedDigest = Digests.computeDigest(path);
+            if (!receivedDigest.equals(digest)) {
+              throw new IOException("Digest does not match " + receivedDigest + " != " + digest);
+            }
+            return null;
+          });
+    } catch (RetryException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), CacheNotFoundException.class);
+      throw e;
+    }
+  }
+
+  /**
+   * The downloads of one call to {@link #download}, which must all have stopped writing to the
+   * outputs before it returns.
+   *
+   * <p>Cancelling a future interrupts its download, but the future is done right away, while the
+   * download may still be writing. So each download also signals when it really stopped.
+   */
+  private final class DownloadGroup {
+    private final List<ListenableFuture<?>> futures = new ArrayList<>();
+    private final List<AtomicBoolean> started = new ArrayList<>();
+    private final List<CountDownLatch> stopped = new ArrayList<>();
+
+    <T> ListenableFuture<T> submit(Callable<T> download) {
+      AtomicBoolean downloadStarted = new AtomicBoolean();
+      CountDownLatch downloadStopped = new CountDownLatch(1);
+      ListenableFuture<T> future =
+          downloadExecutor.submit(
+              () -> {
+                if (!downloadStarted.compareAndSet(false, true)) {
+                  // Cancelled before it started.
+                  throw new CancellationException();
+                }
+                try {
+                  return download.call();
+                } finally {
+                  downloadStopped.countDown();
+                }
+              });
+      futures.add(future);
+      started.add(downloadStarted);
+      stopped.add(downloadStopped);
+      return future;
     }
-    for (OutputDirectory directory : result.getOutputDirectoriesList()) {
-      downloadTree(directory.getDigest(), execRoot.getRelative(directory.getPath()));
+
+    /** Cancels the downloads that did not finish, and waits until none of them is running. */
+    void cancelAndAwaitStopped() {
+      for (ListenableFuture<?> future : futures) {
+        future.cancel(true);
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        // A download that did not start yet never will.
+        if (started.get(i).compareAndSet(false, true)) {
+          stopped.get(i).countDown();
+        }
+        Uninterruptibles.awaitUninterruptibly(stopped.get(i));
+      }
     }
-    // TODO(ulfjack): use same code as above also for stdout / stderr if applicable.
-    downloadOutErr(result, outErr);
   }
 
-  private void downloadOutErr(ActionResult result, FileOutErr outErr)
+  /**
+   * Waits for all the given downloads to complete, and rethrows the first failure. The remaining
+   * downloads are cancelled by the caller.
+   */
+  private static void waitForDownloads(List<ListenableFuture<?>> downloads)
       throws IOException, InterruptedException, CacheNotFoundException {
+    try {
+      Futures.allAsList(downloads).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+      Throwables.throwIfInstanceOf(cause, CacheNotFoundException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  private static void writeOutErr(
+      ActionResult result,
+      FileOutErr outErr,
+      @Nullable ListenableFuture<byte[]> stdout,
+      @Nullable ListenableFuture<byte[]> stderr)
+      throws IOException {
     if (!result.getStdoutRaw().isEmpty()) {
       result.getStdoutRaw().writeTo(outErr.getOutputStream());
       outErr.getOutputStream().flush();
-    } else if (result.hasStdoutDigest()) {
-      byte[] stdoutBytes = downloadBlob(result.getStdoutDigest());
-      outErr.getOutputStream().write(stdoutBytes);
+    } else if (stdout != null) {
+      outErr.getOutputStream().write(Futures.getUnchecked(stdout));
       outErr.getOutputStream().flush();
     }
     if (!result.getStderrRaw().isEmpty()) {
       result.getStderrRaw().writeTo(outErr.getErrorStream());
       outErr.getErrorStream().flush();
-    } else if (result.hasStderrDigest()) {
-      byte[] stderrBytes = downloadBlob(result.getStderrDigest());
-      outErr.getErrorStream().write(stderrBytes);
+    } else if (stderr != null) {
+      outErr.getErrorStream().write(Futures.getUnchecked(stderr));
       outErr.getErrorStream().flush();
     }
   }
@@ -295,6 +450,13 @@ public class GrpcRemoteCache implements RemoteActionCache {
       throws IOException, InterruptedException {
     ActionResult.Builder result = ActionResult.newBuilder();
     upload(execRoot, files, outErr, result);
+    // Silently return without upload if the action cache is read-only.
+    updateActionResult(actionKey, result.build());
+  }
+
+  /** Does nothing if the remote cache does not allow updating the action cache. */
+  private void updateActionResult(ActionKey actionKey, ActionResult result)
+      throws IOException, InterruptedException {
     try {
       retrier.execute(
           () ->
@@ -307,7 +469,6 @@ public class GrpcRemoteCache implements RemoteActionCache {
                           .build()));
     } catch (RetryException e) {
       if (e.causedByStatusCode(Status.Code.UNIMPLEMENTED)) {
-        // Silently return without upload.
         return;
       }
       throw e;
@@ -328,13 +489,11 @@ public class GrpcRemoteCache implements RemoteActionCache {
         // TreeNodeRepository to call uploadTree.
         throw new UnsupportedOperationException("Storing a directory is not yet supported.");
       }
-      digests.add(Digests.computeDigest(file));
+      Digest digest = Digests.computeDigest(file);
+      digests.add(digest);
       b.addInput(file);
     }
-    ImmutableSet<Digest> missing = getMissingDigests(digests);
-    if (!missing.isEmpty()) {
-      uploadChunks(missing.size(), b.onlyUseDigests(missing));
-    }
+    uploadMissing(digests, b);
     int index = 0;
     for (Path file : files) {
       // Add to protobuf.
@@ -364,10 +523,7 @@ public class GrpcRemoteCache implements RemoteActionCache {
    */
   private Digest uploadFileContents(Path file) throws IOException, InterruptedException {
     Digest digest = Digests.computeDigest(file);
-    ImmutableSet<Digest> missing = getMissingDigests(ImmutableList.of(digest));
-    if (!missing.isEmpty()) {
-      uploadChunks(1, new Chunker.Builder().addInput(file));
-    }
+    uploadMissing(ImmutableList.of(digest), new Chunker.Builder().addInput(file));
     return digest;
   }
 
@@ -380,13 +536,35 @@ public class GrpcRemoteCache implements RemoteActionCache {
   Digest uploadFileContents(ActionInput input, Path execRoot, ActionInputFileCache inputCache)
       throws IOException, InterruptedException {
     Digest digest = Digests.getDigestFromInputCache(input, inputCache);
-    ImmutableSet<Digest> missing = getMissingDigests(ImmutableList.of(digest));
-    if (!missing.isEmpty()) {
-      uploadChunks(1, new Chunker.Builder().addInput(input, inputCache, execRoot));
-    }
+    uploadMissing(
+        ImmutableList.of(digest), new Chunker.Builder().addInput(input, inputCache, execRoot));
     return digest;
   }
 
+  /**
+   * Uploads those of the given digests that are missing from the CAS, unless a concurrent action
+   * is already uploading them, in which case this waits for that upload to finish instead.
+   */
+  private void uploadMissing(Iterable<Digest> digests, Chunker.Builder chunkerBuilder)
+      throws IOException, InterruptedException {
+    ImmutableSet<Digest> missing = uploadCoordinator.getMissingDigests(digests);
+    if (missing.isEmpty()) {
+      return;
+    }
+    UploadCoordinator.Claim claim = uploadCoordinator.claimUploads(missing);
+    boolean success = false;
+    try {
+      if (!claim.getOwnedDigests().isEmpty()) {
+        uploadChunks(
+            claim.getOwnedDigests().size(), chunkerBuilder.onlyUseDigests(claim.getOwnedDigests()));
+      }
+      success = true;
+    } finally {
+      claim.finish(success);
+    }
+    claim.awaitConcurrentUploads();
+  }
+
   private void uploadChunks(int numItems, Chunker.Builder chunkerBuilder)
       throws InterruptedException, IOException {
     String resourceName = "";
@@ -395,12 +573,15 @@ public class GrpcRemoteCache implements RemoteActionCache {
     }
     Retrier.Backoff backoff = retrier.newBackoff();
     Chunker chunker = chunkerBuilder.build();
+    // Notified whenever one of the calls becomes ready for more data, or finishes.
+    Object readyLock = new Object();
     while (true) { // Retry until either uploaded everything or raised an exception.
       CountDownLatch finishLatch = new CountDownLatch(numItems);
       AtomicReference<IOException> crashException = new AtomicReference<>(null);
       List<Status> errors = Collections.synchronizedList(new ArrayList<Status>());
       Set<Digest> failedDigests = Collections.synchronizedSet(new HashSet<Digest>());
       StreamObserver<WriteRequest> requestObserver = null;
+      AtomicBoolean requestDone = null;
       while (chunker.hasNext()) {
         Chunker.Chunk chunk = chunker.next();
         Digest digest = chunk.getDigest();
@@ -412,13 +593,20 @@ public class GrpcRemoteCache implements RemoteActionCache {
               String.format(
                   "%s/uploads/%s/blobs/%s/%d",
                   resourceName, UUID.randomUUID(), digest.getHash(), digest.getSizeBytes()));
+          AtomicBoolean done = new AtomicBoolean();
+          requestDone = done;
           // The batches execute simultaneously.
           requestObserver =
               bsStub()
                   .write(
-                      new StreamObserver<WriteResponse>() {
+                      new ClientResponseObserver<WriteRequest, WriteResponse>() {
                         private long bytesLeft = digest.getSizeBytes();
 
+                        @Override
+                        public void beforeStart(ClientCallStreamObserver<WriteRequest> call) {
+                          call.setOnReadyHandler(() -> wakeUp(readyLock));
+                        }
+
                         @Override
                         public void onNext(WriteResponse reply) {
                           bytesLeft -= reply.getCommittedSize();
@@ -436,23 +624,25 @@ public class GrpcRemoteCache implements RemoteActionCache {
 
                           failedDigests.add(digest);
                           errors.add(Status.fromThrowable(t));
+                          done.set(true);
                           finishLatch.countDown();
+                          wakeUp(readyLock);
                         }
 
                         @Override
                         public void onCompleted() {
                           // This can actually happen even if we did not send all the bytes,
                           // if the server has and is able to reuse parts of the uploaded blob.
+                          done.set(true);
                           finishLatch.countDown();
+                          wakeUp(readyLock);
                         }
                       });
         }
-        byte[] data = chunk.getData();
-        boolean finishWrite = offset + data.length == digest.getSizeBytes();
-        request
-            .setData(ByteString.copyFrom(data))
-            .setWriteOffset(offset)
-            .setFinishWrite(finishWrite);
+        ByteString data = chunk.getData();
+        boolean finishWrite = offset + data.size() == digest.getSizeBytes();
+        request.setData(data).setWriteOffset(offset).setFinishWrite(finishWrite);
+        awaitReady(requestObserver, requestDone, readyLock);
         requestObserver.onNext(request.build());
         if (finishWrite) {
           requestObserver.onCompleted();
@@ -479,12 +669,33 @@ public class GrpcRemoteCache implements RemoteActionCache {
     }
   }
 
+  /**
+   * Waits until the given call can accept another message without buffering it in memory, so that
+   * reading the inputs doesn't get ahead of the network, or until the call is done.
+   */
+  private static void awaitReady(
+      StreamObserver<WriteRequest> call, AtomicBoolean callDone, Object readyLock)
+      throws InterruptedException {
+    if (!(call instanceof CallStreamObserver)) {
+      return;
+    }
+    CallStreamObserver<WriteRequest> flowControlledCall = (CallStreamObserver<WriteRequest>) call;
+    synchronized (readyLock) {
+      while (!flowControlledCall.isReady() && !callDone.get()) {
+        readyLock.wait(UPLOAD_READY_POLL_MILLIS);
+      }
+    }
+  }
+
+  private static void wakeUp(Object lock) {
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
   Digest uploadBlob(byte[] blob) throws IOException, InterruptedException {
     Digest digest = Digests.computeDigest(blob);
-    ImmutableSet<Digest> missing = getMissingDigests(ImmutableList.of(digest));
-    if (!missing.isEmpty()) {
-      uploadChunks(1, new Chunker.Builder().addInput(blob));
-    }
+    uploadMissing(ImmutableList.of(digest), new Chunker.Builder().addInput(blob));
     return digest;
   }
 
@@ -0,0 +1,155 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.MapMaker;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import com.google.devtools.remoteexecution.v1test.Directory;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Memoizes the Merkle digests of input directories across all the {@link TreeNodeRepository}
+ * instances that share it, i.e. across actions and across builds in the same server.
+ *
+ * <p>All the sharing repositories intern their {@link TreeNode}s here, so that the subtrees that
+ * are common to several actions are represented by the same object, and the digest of a subtree is
+ * looked up by node identity. An entry is trusted without further checks for the rest of the build
+ * in which it was computed or revalidated; in a later build it is revalidated once, by rebuilding
+ * the {@link Directory} message from the current input metadata, and only re-hashed if it changed.
+ *
+ * <p>The entries are weakly keyed by their node. To keep the trees of recent actions alive between
+ * actions, the cache holds strong references to a bounded number of recently used input roots.
+ */
+@ThreadSafe
+final class MerkleTreeCache {
+  /** The memoized {@link Directory} message of a node and its digest. */
+  static final class Entry {
+    private final Directory directory;
+    private final Digest digest;
+    private volatile long generation;
+
+    private Entry(Directory directory, Digest digest, long generation) {
+      this.directory = directory;
+      this.digest = digest;
+      this.generation = generation;
+    }
+
+    Directory getDirectory() {
+      return directory;
+    }
+
+    Digest getDigest() {
+      return digest;
+    }
+  }
+
+  private final int maxRetainedRoots;
+  private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+  private final ConcurrentMap<TreeNode, Entry> entries = new MapMaker().weakKeys().makeMap();
+  private final ConcurrentMap<Digest, TreeNode> nodes = new MapMaker().weakValues().makeMap();
+  private final Cache<TreeNode, Boolean> retainedRoots;
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong trustedHits = new AtomicLong();
+  private final AtomicLong revalidatedHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  MerkleTreeCache(int maxRetainedRoots) {
+    this.maxRetainedRoots = maxRetainedRoots;
+    this.retainedRoots = CacheBuilder.newBuilder().maximumSize(maxRetainedRoots).build();
+  }
+
+  int getMaxRetainedRoots() {
+    return maxRetainedRoots;
+  }
+
+  /**
+   * Starts a new build. Entries computed in earlier builds will be revalidated before their next
+   * use, because the contents of the input files may have changed in the meantime.
+   */
+  void newBuild() {
+    generation.incrementAndGet();
+    trustedHits.set(0);
+    revalidatedHits.set(0);
+    misses.set(0);
+  }
+
+  TreeNode intern(TreeNode node) {
+    return interner.intern(node);
+  }
+
+  /** Keeps the tree of the given input root alive, so that later actions can reuse its subtrees. */
+  void retain(TreeNode root) {
+    retainedRoots.put(root, Boolean.TRUE);
+  }
+
+  /** Returns the entry of the given node, if it may be used without revalidation. */
+  @Nullable
+  Entry getTrusted(TreeNode node) {
+    Entry entry = entries.get(node);
+    if (entry == null || entry.generation != generation.get()) {
+      return null;
+    }
+    trustedHits.incrementAndGet();
+    return entry;
+  }
+
+  /** Returns the entry of the given node, if any, regardless of when it was validated. */
+  @Nullable
+  Entry get(TreeNode node) {
+    return entries.get(node);
+  }
+
+  @Nullable
+  TreeNode getNode(Digest digest) {
+    return nodes.get(digest);
+  }
+
+  /**
+   * Records the {@link Directory} message of the given node for the current build, and returns its
+   * entry. The digest is only recomputed if the message differs from the one previously recorded.
+   */
+  Entry put(TreeNode node, Directory directory) {
+    long currentGeneration = generation.get();
+    Entry entry = entries.get(node);
+    if (entry != null && entry.directory.equals(directory)) {
+      entry.generation = currentGeneration;
+      revalidatedHits.incrementAndGet();
+      return entry;
+    }
+    misses.incrementAndGet();
+    entry = new Entry(directory, Digests.computeDigest(directory), currentGeneration);
+    entries.put(node, entry);
+    nodes.put(entry.digest, node);
+    return entry;
+  }
+
+  /** Returns a human-readable summary of the cache efficiency in the current build. */
+  String getStats() {
+    return String.format(
+        "Merkle tree cache: %d subtrees reused, %d revalidated, %d computed",
+        trustedHits.get(),
+        revalidatedHits.get(),
+        misses.get());
+  }
+}
@@ -21,22 +21,36 @@ import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
+import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ActionContextProvider;
 import com.google.devtools.build.lib.exec.ActionInputPrefetcher;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.local.LocalExecutionOptions;
+import com.google.devtools.build.lib.remote.blobstore.DiskCacheBlobStore;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.standalone.StandaloneSpawnStrategy;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Provide a remote execution context.
  */
 final class RemoteActionContextProvider extends ActionContextProvider {
+  private static final Logger logger = Logger.getLogger(RemoteActionContextProvider.class.getName());
+
   private final CommandEnvironment env;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
+  @Nullable private final DiskCacheBlobStore diskCacheStore;
   private RemoteSpawnStrategy spawnStrategy;
+  private TwoTierRemoteActionCache twoTierCache;
 
-  RemoteActionContextProvider(CommandEnvironment env) {
+  RemoteActionContextProvider(
+      CommandEnvironment env,
+      @Nullable MerkleTreeCache merkleTreeCache,
+      @Nullable DiskCacheBlobStore diskCacheStore) {
     this.env = env;
+    this.merkleTreeCache = merkleTreeCache;
+    this.diskCacheStore = diskCacheStore;
   }
 
   @Override
@@ -54,6 +68,11 @@ final class RemoteActionContextProvider extends ActionContextProvider {
             env.getRuntime().getProductName(),
             ResourceManager.instance());
 
+    if (merkleTreeCache != null) {
+      // Input files may have changed since the last build.
+      merkleTreeCache.newBuild();
+    }
+
     RemoteOptions remoteOptions = env.getOptions().getOptions(RemoteOptions.class);
     AuthAndTLSOptions authAndTlsOptions = env.getOptions().getOptions(AuthAndTLSOptions.class);
     ChannelOptions channelOptions = ChannelOptions.create(authAndTlsOptions);
@@ -73,6 +92,16 @@ final class RemoteActionContextProvider extends ActionContextProvider {
       remoteCache = null;
     }
 
+    if (diskCacheStore != null) {
+      SimpleBlobStoreActionCache diskCache = new SimpleBlobStoreActionCache(diskCacheStore);
+      if (remoteCache != null) {
+        twoTierCache = new TwoTierRemoteActionCache(diskCache, remoteCache);
+        remoteCache = twoTierCache;
+      } else {
+        remoteCache = diskCache;
+      }
+    }
+
     // Otherwise remoteCache remains null and remote caching/execution are disabled.
     GrpcRemoteExecutor remoteExecutor;
     if (remoteCache != null && GrpcRemoteExecutor.isRemoteExecutionOptions(remoteOptions)) {
@@ -90,6 +119,7 @@ final class RemoteActionContextProvider extends ActionContextProvider {
             remoteOptions,
             remoteCache,
             remoteExecutor,
+            merkleTreeCache,
             executionOptions.verboseFailures,
             fallbackStrategy);
   }
@@ -101,6 +131,13 @@ final class RemoteActionContextProvider extends ActionContextProvider {
 
   @Override
   public void executionPhaseEnding() {
+    if (merkleTreeCache != null) {
+      logger.info(merkleTreeCache.getStats());
+    }
+    if (twoTierCache != null) {
+      env.getReporter().handle(Event.info(twoTierCache.getStats()));
+      twoTierCache = null;
+    }
     if (spawnStrategy != null) {
       spawnStrategy.close();
       spawnStrategy = null;
@@ -19,17 +19,22 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.remote.blobstore.DiskCacheBlobStore;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.runtime.ServerBuilder;
 import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsProvider;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /** RemoteModule provides distributed cache and remote execution for Bazel. */
 public final class RemoteModule extends BlazeModule {
@@ -72,6 +77,12 @@ public final class RemoteModule extends BlazeModule {
   }
 
   private final CasPathConverter converter = new CasPathConverter();
+  // Shared by all the builds of this server, if enabled.
+  private MerkleTreeCache merkleTreeCache;
+  // Shared by all the builds of this server, if enabled, so that its index is only loaded once.
+  private DiskCacheBlobStore diskCache;
+  private Path diskCacheRoot;
+  private long diskCacheMaxSizeBytes;
 
   @Override
   public void serverInit(OptionsProvider startupOptions, ServerBuilder builder)
@@ -80,8 +91,19 @@ public final class RemoteModule extends BlazeModule {
   }
 
   @Override
-  public void beforeCommand(CommandEnvironment env) {
+  public void beforeCommand(CommandEnvironment env) throws AbruptExitException {
     env.getEventBus().register(this);
+    RemoteOptions remoteOptions = env.getOptions().getOptions(RemoteOptions.class);
+    if (remoteOptions != null
+        && remoteEnabled(remoteOptions)
+        && !FileSystem.getDigestFunction().isCryptographic()) {
+      throw new AbruptExitException(
+          "Remote caching and execution require a cryptographic digest function, but Bazel is "
+              + "using "
+              + FileSystem.getDigestFunction()
+              + ". Use -Dbazel.DigestFunction=SHA256 or another cryptographic digest function.",
+          ExitCode.COMMAND_LINE_ERROR);
+    }
   }
 
   @Override
@@ -91,7 +113,59 @@ public final class RemoteModule extends BlazeModule {
 
   @Override
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
-    builder.addActionContextProvider(new RemoteActionContextProvider(env));
+    RemoteOptions remoteOptions = env.getOptions().getOptions(RemoteOptions.class);
+    int merkleTreeCacheRoots = remoteOptions.experimentalRemoteMerkleTreeCacheRoots;
+    if (merkleTreeCacheRoots <= 0) {
+      merkleTreeCache = null;
+    } else if (merkleTreeCache == null
+        || merkleTreeCache.getMaxRetainedRoots() != merkleTreeCacheRoots) {
+      merkleTreeCache = new MerkleTreeCache(merkleTreeCacheRoots);
+    }
+    builder.addActionContextProvider(
+        new RemoteActionContextProvider(env, merkleTreeCache, getDiskCache(env, remoteOptions)));
+  }
+
+  /**
+   * Returns the local disk cache that the options ask for, reusing the one of the previous build
+   * if it is the same.
+   */
+  @Nullable
+  private DiskCacheBlobStore getDiskCache(CommandEnvironment env, RemoteOptions remoteOptions) {
+    if (remoteOptions.experimentalLocalDiskCache == null) {
+      shutdownDiskCache();
+      return null;
+    }
+    Path root = env.getWorkingDirectory().getRelative(remoteOptions.experimentalLocalDiskCache);
+    long maxSizeBytes = remoteOptions.experimentalLocalDiskCacheMaxSizeMb * 1024 * 1024;
+    if (diskCache != null && root.equals(diskCacheRoot) && maxSizeBytes == diskCacheMaxSizeBytes) {
+      return diskCache;
+    }
+    shutdownDiskCache();
+    try {
+      diskCache = DiskCacheBlobStore.create(root, maxSizeBytes);
+      diskCacheRoot = root;
+      diskCacheMaxSizeBytes = maxSizeBytes;
+    } catch (IOException e) {
+      env.getReporter()
+          .handle(
+              Event.warn(
+                  "Failed to open the local disk cache at " + root + ", not using it: "
+                      + e.getMessage()));
+    }
+    return diskCache;
+  }
+
+  private void shutdownDiskCache() {
+    if (diskCache != null) {
+      diskCache.shutdown();
+      diskCache = null;
+      diskCacheRoot = null;
+    }
+  }
+
+  @Override
+  public void blazeShutdown() {
+    shutdownDiskCache();
   }
 
   @Override
@@ -78,6 +78,31 @@ public final class RemoteOptions extends OptionsBase {
   )
   public int hazelcastStandaloneListenPort;
 
+  @Option(
+    name = "experimental_local_disk_cache",
+    defaultValue = "null",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "A directory for a local, size-bounded disk cache. If a remote cache is configured as "
+            + "well, the disk cache is consulted first and populated with everything fetched from "
+            + "or uploaded to the remote cache. The directory may be shared by several workspaces."
+  )
+  public String experimentalLocalDiskCache;
+
+  @Option(
+    name = "experimental_local_disk_cache_max_size_mb",
+    defaultValue = "10240",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum size of the --experimental_local_disk_cache, in megabytes. Least recently "
+            + "used blobs are evicted once it is exceeded."
+  )
+  public long experimentalLocalDiskCacheMaxSizeMb;
+
   @Option(
     name = "remote_executor",
     defaultValue = "null",
@@ -108,6 +133,32 @@ public final class RemoteOptions extends OptionsBase {
   )
   public int remoteTimeout;
 
+  @Option(
+    name = "experimental_remote_download_concurrency",
+    defaultValue = "16",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum number of output blobs that are downloaded from the remote cache "
+            + "concurrently, across all actions."
+  )
+  public int experimentalRemoteDownloadConcurrency;
+
+  @Option(
+    name = "experimental_remote_find_missing_batch_window_millis",
+    defaultValue = "5",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "How long to wait for more queries before asking the remote cache which blobs are "
+            + "missing, when other actions are already waiting for answers. Queries that are issued "
+            + "while a request is in flight are always merged into the next request. An action "
+            + "that runs on its own never waits."
+  )
+  public long experimentalRemoteFindMissingBatchWindowMillis;
+
   @Option(
     name = "remote_accept_cached",
     defaultValue = "true",
@@ -218,6 +269,19 @@ public final class RemoteOptions extends OptionsBase {
   )
   public double experimentalRemoteRetryJitter;
 
+  @Option(
+    name = "experimental_remote_merkle_tree_cache_roots",
+    defaultValue = "1000",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The number of recent action input trees whose Merkle digests are kept in memory across "
+            + "actions and builds, so that shared subtrees are only digested once. 0 disables the "
+            + "cache."
+  )
+  public int experimentalRemoteMerkleTreeCacheRoots;
+
   public Platform parseRemotePlatformOverride() {
     if (experimentalRemotePlatformOverride != null) {
       Platform.Builder platformBuilder = Platform.newBuilder();
@@ -47,6 +47,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeSet;
+import javax.annotation.Nullable;
 
 /**
  * Strategy that uses a distributed cache for sharing action input and output files. Optionally this
@@ -67,12 +68,14 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
 
   private final RemoteActionCache remoteCache;
   private final GrpcRemoteExecutor workExecutor;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
 
   RemoteSpawnStrategy(
       Path execRoot,
       RemoteOptions remoteOptions,
       RemoteActionCache remoteCache,
       GrpcRemoteExecutor remoteExecutor,
+      @Nullable MerkleTreeCache merkleTreeCache,
       boolean verboseFailures,
       SpawnActionContext fallbackStrategy) {
     this.execRoot = execRoot;
@@ -82,6 +85,7 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
     this.platform = remoteOptions.parseRemotePlatformOverride();
     this.remoteCache = remoteCache;
     this.workExecutor = remoteExecutor;
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   /** Release resources associated with this spawn strategy. */
@@ -178,7 +182,8 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
     try {
       // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
       ActionInputFileCache inputFileCache = actionExecutionContext.getActionInputFileCache();
-      TreeNodeRepository repository = new TreeNodeRepository(execRoot, inputFileCache);
+      TreeNodeRepository repository =
+          new TreeNodeRepository(execRoot, inputFileCache, merkleTreeCache);
       SortedMap<PathFragment, ActionInput> inputMap =
           spawnInputExpander.getInputMapping(
               spawn,
@@ -178,8 +178,11 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
 
   private static final TreeNode EMPTY_NODE = new TreeNode(ImmutableList.<TreeNode.ChildEntry>of());
 
-  // Keep only one canonical instance of every TreeNode in the repository.
+  // Keep only one canonical instance of every TreeNode in the repository. Unused if the repository
+  // shares a MerkleTreeCache, which interns the nodes of all its repositories.
   private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+  // Memoizes the digests of subtrees that don't depend on this action, may be null.
+  @Nullable private final MerkleTreeCache merkleTreeCache;
   // Merkle hashes are computed and cached by the repository, therefore execRoot must
   // be part of the state.
   private final Path execRoot;
@@ -191,8 +194,20 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
   private final Map<Digest, VirtualActionInput> digestVirtualInputCache = new HashMap<>();
 
   public TreeNodeRepository(Path execRoot, ActionInputFileCache inputFileCache) {
+    this(execRoot, inputFileCache, null);
+  }
+
+  /**
+   * Creates a repository that looks up and records the digests of its subtrees in the given cache,
+   * which may be shared with the repositories of other actions.
+   */
+  public TreeNodeRepository(
+      Path execRoot,
+      ActionInputFileCache inputFileCache,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.inputFileCache = inputFileCache;
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   public ActionInputFileCache getInputFileCache() {
@@ -270,7 +285,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       Preconditions.checkArgument(
           inputsStart == inputsEnd - 1, "Encountered two inputs with the same path.");
       // TODO: check that the actionInput is a single file!
-      return interner.intern(new TreeNode(inputs.get(inputsStart)));
+      return intern(new TreeNode(inputs.get(inputsStart)));
     }
     ArrayList<TreeNode.ChildEntry> entries = new ArrayList<>();
     String segment = segments.get(inputsStart).get(segmentIndex);
@@ -287,7 +302,11 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
         }
       }
     }
-    return interner.intern(new TreeNode(entries));
+    return intern(new TreeNode(entries));
+  }
+
+  private TreeNode intern(TreeNode node) {
+    return merkleTreeCache != null ? merkleTreeCache.intern(node) : interner.intern(node);
   }
 
   private synchronized Directory getOrComputeDirectory(TreeNode node) throws IOException {
@@ -295,18 +314,16 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     Preconditions.checkArgument(!node.isLeaf());
     Directory directory = directoryCache.get(node);
     if (directory == null) {
+      // Only nodes that don't depend on any action-specific virtual inputs may be shared.
+      boolean shareable = merkleTreeCache != null;
       Directory.Builder b = Directory.newBuilder();
       for (TreeNode.ChildEntry entry : node.getChildEntries()) {
         TreeNode child = entry.getChild();
         if (child.isLeaf()) {
           ActionInput input = child.getActionInput();
           if (input instanceof VirtualActionInput) {
-            VirtualActionInput virtualInput = (VirtualActionInput) input;
-            Digest digest = Digests.computeDigest(virtualInput);
-            virtualInputDigestCache.put(virtualInput, digest);
-            // There may be multiple inputs with the same digest. In that case, we don't care which
-            // one we get back from the digestVirtualInputCache later.
-            digestVirtualInputCache.put(digest, virtualInput);
+            shareable &= input instanceof EmptyActionInput;
+            Digest digest = getVirtualInputDigest((VirtualActionInput) input);
             b.addFilesBuilder()
                 .setName(entry.getSegment())
                 .setDigest(digest)
@@ -318,11 +335,20 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
                 .setIsExecutable(execRoot.getRelative(input.getExecPathString()).isExecutable());
           }
         } else {
-          Digest childDigest = Preconditions.checkNotNull(treeNodeDigestCache.get(child));
+          Digest childDigest = treeNodeDigestCache.get(child);
+          if (childDigest == null) {
+            childDigest = getSharedEntry(child).getDigest();
+          } else {
+            shareable = false;
+          }
           b.addDirectoriesBuilder().setName(entry.getSegment()).setDigest(childDigest);
         }
       }
       directory = b.build();
+      if (shareable) {
+        merkleTreeCache.put(node, directory);
+        return directory;
+      }
       directoryCache.put(node, directory);
       Digest digest = Digests.computeDigest(directory);
       treeNodeDigestCache.put(node, digest);
@@ -334,28 +360,47 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
   // Recursively traverses the tree, expanding and computing Merkle digests for nodes for which
   // they have not yet been computed and cached.
   public void computeMerkleDigests(TreeNode root) throws IOException {
+    if (merkleTreeCache != null) {
+      merkleTreeCache.retain(root);
+    }
+    computeMerkleDigestsRecursively(root);
+  }
+
+  private void computeMerkleDigestsRecursively(TreeNode node) throws IOException {
     synchronized (this) {
-      if (directoryCache.get(root) != null) {
+      if (directoryCache.get(node) != null) {
         // Strong assumption: the cache is valid, i.e. parent present implies children present.
         return;
       }
     }
-    if (!root.isLeaf()) {
-      for (TreeNode child : children(root)) {
-        computeMerkleDigests(child);
+    if (merkleTreeCache != null && merkleTreeCache.getTrusted(node) != null) {
+      // Same assumption: the whole subtree was computed or revalidated in this build.
+      return;
+    }
+    if (!node.isLeaf()) {
+      for (TreeNode child : children(node)) {
+        computeMerkleDigestsRecursively(child);
       }
-      getOrComputeDirectory(root);
+      getOrComputeDirectory(node);
     }
   }
 
+  private MerkleTreeCache.Entry getSharedEntry(TreeNode node) {
+    Preconditions.checkState(merkleTreeCache != null, "Merkle digest was not computed: %s", node);
+    return Preconditions.checkNotNull(merkleTreeCache.get(node));
+  }
+
+  private Digest getDirectoryDigest(TreeNode node) {
+    Digest digest = treeNodeDigestCache.get(node);
+    return digest != null ? digest : getSharedEntry(node).getDigest();
+  }
+
   /**
    * Should only be used after computeMerkleDigests has been called on one of the node ancestors.
    * Returns the precomputed digest.
    */
   public Digest getMerkleDigest(TreeNode node) throws IOException {
-    return node.isLeaf()
-        ? actionInputToDigest(node.getActionInput())
-        : treeNodeDigestCache.get(node);
+    return node.isLeaf() ? actionInputToDigest(node.getActionInput()) : getDirectoryDigest(node);
   }
 
   /**
@@ -368,18 +413,31 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       digests.add(
           node.isLeaf()
               ? actionInputToDigest(node.getActionInput())
-              : Preconditions.checkNotNull(treeNodeDigestCache.get(node)));
+              : getDirectoryDigest(node));
     }
     return digests.build();
   }
 
   private Digest actionInputToDigest(ActionInput input) throws IOException {
     if (input instanceof VirtualActionInput) {
-      return Preconditions.checkNotNull(virtualInputDigestCache.get(input));
+      // Not necessarily computed yet, if the parent directory was found in the MerkleTreeCache.
+      return getVirtualInputDigest((VirtualActionInput) input);
     }
     return Digests.getDigestFromInputCache(input, inputFileCache);
   }
 
+  private synchronized Digest getVirtualInputDigest(VirtualActionInput input) throws IOException {
+    Digest digest = virtualInputDigestCache.get(input);
+    if (digest == null) {
+      digest = Digests.computeDigest(input);
+      virtualInputDigestCache.put(input, digest);
+      // There may be multiple inputs with the same digest. In that case, we don't care which
+      // one we get back from the digestVirtualInputCache later.
+      digestVirtualInputCache.put(digest, input);
+    }
+    return digest;
+  }
+
   /**
    * Serializes all of the subtree to a Directory list. TODO(olaola): add a version that only copies
    * a part of the tree that we are interested in. Should only be used after computeMerkleDigests
@@ -391,7 +449,7 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     ImmutableList.Builder<Directory> directories = ImmutableList.builder();
     for (TreeNode node : descendants(root)) {
       if (!node.isLeaf()) {
-        directories.add(Preconditions.checkNotNull(directoryCache.get(node)));
+        directories.add(getDirectory(node));
       }
     }
     return directories.build();
@@ -405,8 +463,11 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       Iterable<Digest> digests, List<ActionInput> actionInputs, List<Directory> nodes) {
     for (Digest digest : digests) {
       TreeNode treeNode = digestTreeNodeCache.get(digest);
+      if (treeNode == null && merkleTreeCache != null) {
+        treeNode = merkleTreeCache.getNode(digest);
+      }
       if (treeNode != null) {
-        nodes.add(Preconditions.checkNotNull(directoryCache.get(treeNode)));
+        nodes.add(getDirectory(treeNode));
       } else { // If not there, it must be an ActionInput.
         ByteString hexDigest = ByteString.copyFromUtf8(digest.getHash());
         ActionInput input = inputFileCache.getInputFromDigest(hexDigest);
@@ -418,4 +479,9 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       }
     }
   }
+
+  private Directory getDirectory(TreeNode node) {
+    Directory directory = directoryCache.get(node);
+    return directory != null ? directory : getSharedEntry(node).getDirectory();
+  }
 }
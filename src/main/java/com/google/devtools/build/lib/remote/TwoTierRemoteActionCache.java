@@ -0,0 +1,351 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.Digests.ActionKey;
+import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.remoteexecution.v1test.ActionResult;
+import com.google.devtools.remoteexecution.v1test.Command;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import com.google.devtools.remoteexecution.v1test.OutputFile;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link RemoteActionCache} that puts a local, content-addressable disk tier in front of another
+ * (typically networked) cache.
+ *
+ * <p>Lookups and downloads are served from the disk tier first, and only fall through to the
+ * remote tier on a miss. Anything fetched from the remote tier, as well as the results of locally
+ * executed actions, is written to the disk tier on a few background threads. The disk tier is
+ * strictly best-effort: failures to read from or write to it are logged and otherwise ignored, and
+ * writes are dropped rather than holding up actions when too many of them are pending.
+ *
+ * <p>Files that are copied from the exec root to the disk tier are checked against the digest
+ * they are stored under, so that a file that changed after it was downloaded cannot poison the
+ * cache. That also makes it safe for pending writes to finish after the command is over.
+ *
+ * <p>Output directories are not written to the disk tier. An action result with output directories
+ * that was fetched from the remote tier is still stored, but downloading it from the disk tier
+ * misses the directory contents, and falls through to the remote tier.
+ */
+@ThreadSafe
+final class TwoTierRemoteActionCache implements RemoteActionCache {
+  private static final Logger logger = Logger.getLogger(TwoTierRemoteActionCache.class.getName());
+
+  private static final int DISK_WRITE_THREADS = 4;
+  private static final int MAX_PENDING_DISK_WRITES = 1024;
+
+  private final SimpleBlobStoreActionCache diskCache;
+  private final RemoteActionCache remoteCache;
+  private final ExecutorService writeExecutor;
+
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong diskMisses = new AtomicLong();
+  private final AtomicLong remoteHits = new AtomicLong();
+  private final AtomicLong remoteMisses = new AtomicLong();
+  private final AtomicLong diskDownloads = new AtomicLong();
+  private final AtomicLong remoteDownloads = new AtomicLong();
+  private final AtomicLong diskWriteErrors = new AtomicLong();
+  private final AtomicLong diskWritesDropped = new AtomicLong();
+
+  TwoTierRemoteActionCache(SimpleBlobStoreActionCache diskCache, RemoteActionCache remoteCache) {
+    this(
+        diskCache,
+        remoteCache,
+        new ThreadPoolExecutor(
+            DISK_WRITE_THREADS,
+            DISK_WRITE_THREADS,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_PENDING_DISK_WRITES),
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-cache-write %d")
+                .setDaemon(true)
+                .build()));
+  }
+
+  @VisibleForTesting
+  TwoTierRemoteActionCache(
+      SimpleBlobStoreActionCache diskCache,
+      RemoteActionCache remoteCache,
+      ExecutorService writeExecutor) {
+    this.diskCache = diskCache;
+    this.remoteCache = remoteCache;
+    this.writeExecutor = writeExecutor;
+  }
+
+  @Override
+  public void ensureInputsPresent(
+      TreeNodeRepository repository, Path execRoot, TreeNode root, Command command)
+      throws IOException, InterruptedException {
+    // Remote execution needs the inputs in the remote tier; the disk tier doesn't help here.
+    remoteCache.ensureInputsPresent(repository, execRoot, root, command);
+  }
+
+  @Nullable
+  @Override
+  public ActionResult getCachedActionResult(ActionKey actionKey)
+      throws IOException, InterruptedException {
+    ActionResult result = null;
+    try {
+      result = diskCache.getCachedActionResult(actionKey);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read from the disk cache", e);
+    }
+    if (result != null) {
+      diskHits.incrementAndGet();
+      return result;
+    }
+    diskMisses.incrementAndGet();
+
+    result = remoteCache.getCachedActionResult(actionKey);
+    if (result == null) {
+      remoteMisses.incrementAndGet();
+      return null;
+    }
+    remoteHits.incrementAndGet();
+    final ActionResult remoteResult = result;
+    writeInBackground(
+        () -> {
+          try {
+            diskCache.setCachedActionResult(actionKey, remoteResult);
+          } catch (IOException e) {
+            diskWriteFailed(e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    return result;
+  }
+
+  @Override
+  public void download(ActionResult result, Path execRoot, FileOutErr outErr)
+      throws IOException, InterruptedException, CacheNotFoundException {
+    try {
+      diskCache.download(result, execRoot, outErr);
+      diskDownloads.incrementAndGet();
+      return;
+    } catch (CacheNotFoundException e) {
+      // Some of the blobs have been evicted or were never written; fetch all of them remotely.
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to download from the disk cache", e);
+    }
+    remoteCache.download(result, execRoot, outErr);
+    remoteDownloads.incrementAndGet();
+
+    // The stdout / stderr files are reused by the next action, so copy them right away.
+    try {
+      if (result.getStdoutRaw().isEmpty() && result.hasStdoutDigest()) {
+        writeToDisk(result.getStdoutDigest(), outErr.getOutputPath());
+      }
+      if (result.getStderrRaw().isEmpty() && result.hasStderrDigest()) {
+        writeToDisk(result.getStderrDigest(), outErr.getErrorPath());
+      }
+    } catch (IOException e) {
+      diskWriteFailed(e);
+    }
+    writeInBackground(
+        () -> {
+          try {
+            for (OutputFile file : result.getOutputFilesList()) {
+              if (file.getContent().isEmpty()) {
+                writeToDisk(file.getDigest(), execRoot.getRelative(file.getPath()));
+              }
+            }
+          } catch (IOException e) {
+            diskWriteFailed(e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+  }
+
+  @Override
+  public void upload(ActionKey actionKey, Path execRoot, Collection<Path> files, FileOutErr outErr)
+      throws IOException, InterruptedException {
+    // The caller may reuse the stdout / stderr files as soon as this returns, so read them now.
+    // Everything else is written to the disk tier in the background.
+    byte[] stdout = readIfExists(outErr.getOutputPath());
+    byte[] stderr = readIfExists(outErr.getErrorPath());
+    writeInBackground(
+        () -> {
+          try {
+            ActionResult.Builder result = ActionResult.newBuilder();
+            diskCache.upload(result, execRoot, files);
+            if (stderr != null) {
+              result.setStderrDigest(diskCache.uploadBlob(stderr));
+            }
+            if (stdout != null) {
+              result.setStdoutDigest(diskCache.uploadBlob(stdout));
+            }
+            diskCache.setCachedActionResult(actionKey, result.build());
+          } catch (IOException e) {
+            diskWriteFailed(e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    remoteCache.upload(actionKey, execRoot, files, outErr);
+  }
+
+  @Nullable
+  private byte[] readIfExists(Path file) {
+    try {
+      return file.exists() ? FileSystemUtils.readContent(file) : null;
+    } catch (IOException e) {
+      diskWriteFailed(e);
+      return null;
+    }
+  }
+
+  /** Returns a human-readable summary of the hit and miss counts of both tiers. */
+  String getStats() {
+    return String.format(
+        "Disk cache: %d hits, %d misses. Remote cache: %d hits, %d misses. "
+            + "Outputs downloaded from disk: %d, from remote: %d. Disk cache write errors: %d, "
+            + "dropped writes: %d.",
+        diskHits.get(),
+        diskMisses.get(),
+        remoteHits.get(),
+        remoteMisses.get(),
+        diskDownloads.get(),
+        remoteDownloads.get(),
+        diskWriteErrors.get(),
+        diskWritesDropped.get());
+  }
+
+  /**
+   * Closes the remote tier right away. Pending disk writes are best-effort, so the command does
+   * not wait for them; they keep running on their daemon threads, and new ones are dropped.
+   */
+  @Override
+  public void close() {
+    remoteCache.close();
+    writeExecutor.shutdown();
+    // The disk store is owned by the server and outlives the command, so closing it does not stop
+    // the pending writes.
+    diskCache.close();
+    logger.fine(getStats());
+  }
+
+  private void writeInBackground(Runnable write) {
+    try {
+      writeExecutor.execute(write);
+    } catch (RejectedExecutionException e) {
+      // Too many writes are pending, or the build is over.
+      diskWritesDropped.incrementAndGet();
+    }
+  }
+
+  private void writeToDisk(Digest digest, Path file) throws IOException, InterruptedException {
+    if (diskCache.containsKey(digest)) {
+      return;
+    }
+    try (InputStream in = new VerifyingInputStream(file.getInputStream(), digest)) {
+      diskCache.uploadBlob(digest, in);
+    }
+  }
+
+  private void diskWriteFailed(Throwable t) {
+    diskWriteErrors.incrementAndGet();
+    logger.log(Level.WARNING, "Failed to write to the disk cache", t);
+  }
+
+  /**
+   * Fails the read that reaches the end of a stream whose contents do not match the expected
+   * digest. The disk tier only commits a blob once it has read all of it, so it drops the blob.
+   */
+  @VisibleForTesting
+  static final class VerifyingInputStream extends FilterInputStream {
+    private final Digest expected;
+    private final HashingInputStream hashing;
+    private long size;
+    private boolean verified;
+
+    VerifyingInputStream(InputStream in, Digest expected) {
+      this(new HashingInputStream(FileSystem.getDigestFunction().getHash(), in), expected);
+    }
+
+    private VerifyingInputStream(HashingInputStream hashing, Digest expected) {
+      super(hashing);
+      this.hashing = hashing;
+      this.expected = expected;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        verify();
+      } else {
+        size++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n == -1) {
+        verify();
+      } else {
+        size += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      throw new IOException("Cannot verify a stream that is skipped");
+    }
+
+    private void verify() throws IOException {
+      if (verified) {
+        return;
+      }
+      verified = true;
+      Digest actual = Digests.buildDigest(hashing.hash().asBytes(), size);
+      if (!actual.equals(expected)) {
+        throw new IOException(
+            String.format(
+                "File contents changed: expected digest %s/%d, got %s/%d",
+                expected.getHash(),
+                expected.getSizeBytes(),
+                actual.getHash(),
+                actual.getSizeBytes()));
+      }
+    }
+  }
+}
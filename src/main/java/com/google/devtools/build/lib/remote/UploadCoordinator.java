@@ -0,0 +1,335 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinates the remote cache uploads of all the actions of one invocation.
+ *
+ * <p>Many concurrently scheduled actions share inputs (headers, jars, ...). Without coordination
+ * every action asks the CAS about every one of its inputs, and uploads everything that is missing,
+ * even if another action is uploading the very same blob at the same time. This class
+ *
+ * <ul>
+ *   <li>remembers all the digests that are known to be present in the CAS, and never asks about
+ *       them again,
+ *   <li>sends only one FindMissingBlobs query at a time, and merges the queries of all the actions
+ *       that arrive while it is in flight into the next one, sharing the answer for digests that
+ *       are queried by several actions at once, and
+ *   <li>makes sure that each missing blob is uploaded by only one action, while the others wait
+ *       for that upload to finish.
+ * </ul>
+ *
+ * <p>An instance must only be used for a single invocation, because blobs may be evicted from the
+ * CAS between invocations.
+ */
+@ThreadSafe
+final class UploadCoordinator {
+  /** Asks the CAS which of the given digests are missing. */
+  interface MissingDigestsFinder {
+    ImmutableSet<Digest> findMissingDigests(Iterable<Digest> digests)
+        throws IOException, InterruptedException;
+  }
+
+  /** The maximum number of digests sent in a single FindMissingBlobs request. */
+  private static final int MAX_DIGESTS_PER_QUERY = 10000;
+
+  private final MissingDigestsFinder finder;
+  private final long batchWindowMillis;
+
+  private final Set<Digest> knownPresent = ConcurrentHashMap.newKeySet();
+  /** Digests with an outstanding query; the future is true iff the digest is missing. */
+  private final Map<Digest, SettableFuture<Boolean>> queries = new HashMap<>();
+  /** Digests that are waiting to be sent in the next query, guarded by {@link #queries}. */
+  private final List<Digest> pendingQueries = new ArrayList<>();
+  /** Whether a caller is sending the pending queries, guarded by {@link #queries}. */
+  private boolean flushing;
+  /** The number of callers waiting for the answers to their queries, guarded by {@link #queries}. */
+  private int waitingCallers;
+  /** Digests that are currently being uploaded by some action. */
+  private final ConcurrentMap<Digest, SettableFuture<Void>> uploads = new ConcurrentHashMap<>();
+
+  private final AtomicLong queriedDigests = new AtomicLong();
+  private final AtomicLong queryRpcs = new AtomicLong();
+  private final AtomicLong deduplicatedUploads = new AtomicLong();
+
+  UploadCoordinator(MissingDigestsFinder finder, long batchWindowMillis) {
+    this.finder = finder;
+    this.batchWindowMillis = batchWindowMillis;
+  }
+
+  /**
+   * Returns the subset of the given digests that is missing from the CAS. Queries are batched with
+   * those of concurrent callers, and digests that are already known to be present are not queried.
+   *
+   * <p>The first caller to find no query in flight sends the pending queries, and goes on sending
+   * the ones that arrived in the meantime until there are none left. Only if other callers are
+   * already waiting does it wait for the batch window first, so that an action that runs on its own
+   * is never delayed.
+   */
+  ImmutableSet<Digest> getMissingDigests(Iterable<Digest> digests)
+      throws IOException, InterruptedException {
+    Map<Digest, ListenableFuture<Boolean>> results = new HashMap<>();
+    boolean leader;
+    boolean contended;
+    synchronized (queries) {
+      for (Digest digest : digests) {
+        if (knownPresent.contains(digest) || results.containsKey(digest)) {
+          continue;
+        }
+        SettableFuture<Boolean> result = queries.get(digest);
+        if (result == null) {
+          result = SettableFuture.create();
+          queries.put(digest, result);
+          pendingQueries.add(digest);
+        }
+        results.put(digest, result);
+      }
+      if (results.isEmpty()) {
+        return ImmutableSet.of();
+      }
+      waitingCallers++;
+      leader = !flushing && !pendingQueries.isEmpty();
+      contended = waitingCallers > 1;
+      if (leader) {
+        flushing = true;
+      }
+    }
+    try {
+      if (leader) {
+        try {
+          if (contended && batchWindowMillis > 0) {
+            Thread.sleep(batchWindowMillis);
+          }
+        } finally {
+          // Always flush, even if interrupted, since other callers may be waiting for the answer.
+          flushAll();
+        }
+      }
+
+      ImmutableSet.Builder<Digest> missing = ImmutableSet.builder();
+      for (Map.Entry<Digest, ListenableFuture<Boolean>> e : results.entrySet()) {
+        if (getChecked(e.getValue())) {
+          missing.add(e.getKey());
+        }
+      }
+      return missing.build();
+    } finally {
+      synchronized (queries) {
+        waitingCallers--;
+      }
+    }
+  }
+
+  /**
+   * Claims the uploads of the given missing digests. The caller must upload the {@link
+   * Claim#getOwnedDigests owned} digests and then call {@link Claim#finish}; the other digests are
+   * already being uploaded by concurrent callers.
+   */
+  Claim claimUploads(Iterable<Digest> missing) {
+    ImmutableSet.Builder<Digest> owned = ImmutableSet.builder();
+    ImmutableList.Builder<ListenableFuture<Void>> others = ImmutableList.builder();
+    Map<Digest, SettableFuture<Void>> ownedUploads = new HashMap<>();
+    for (Digest digest : missing) {
+      if (knownPresent.contains(digest) || ownedUploads.containsKey(digest)) {
+        continue;
+      }
+      SettableFuture<Void> upload = SettableFuture.create();
+      SettableFuture<Void> existing = uploads.putIfAbsent(digest, upload);
+      if (existing == null) {
+        owned.add(digest);
+        ownedUploads.put(digest, upload);
+      } else {
+        others.add(existing);
+        deduplicatedUploads.incrementAndGet();
+      }
+    }
+    return new Claim(owned.build(), others.build(), ownedUploads);
+  }
+
+  /** Returns a human-readable summary of how much work was saved. */
+  String getStats() {
+    return String.format(
+        "%d digests queried in %d FindMissingBlobs calls, %d known present, "
+            + "%d concurrent uploads deduplicated",
+        queriedDigests.get(),
+        queryRpcs.get(),
+        knownPresent.size(),
+        deduplicatedUploads.get());
+  }
+
+  @VisibleForTesting
+  int getPendingQueryCount() {
+    synchronized (queries) {
+      return pendingQueries.size();
+    }
+  }
+
+  /** Sends pending queries until there are none left, and then lets the next caller send. */
+  private void flushAll() throws IOException, InterruptedException {
+    boolean done = false;
+    try {
+      while (true) {
+        List<Digest> batch;
+        synchronized (queries) {
+          if (pendingQueries.isEmpty()) {
+            flushing = false;
+            done = true;
+            return;
+          }
+          batch = new ArrayList<>(pendingQueries);
+          pendingQueries.clear();
+        }
+        flush(batch);
+      }
+    } finally {
+      if (!done) {
+        // The queries that are still pending are failed rather than left without a sender.
+        List<Digest> batch;
+        synchronized (queries) {
+          batch = new ArrayList<>(pendingQueries);
+          pendingQueries.clear();
+          flushing = false;
+        }
+        IOException failure = new IOException("An earlier FindMissingBlobs query failed");
+        for (Digest digest : batch) {
+          SettableFuture<Boolean> result;
+          synchronized (queries) {
+            result = queries.remove(digest);
+          }
+          result.setException(failure);
+        }
+      }
+    }
+  }
+
+  private void flush(List<Digest> batch) throws IOException, InterruptedException {
+    Map<Digest, SettableFuture<Boolean>> batchResults = new HashMap<>();
+    synchronized (queries) {
+      for (Digest digest : batch) {
+        batchResults.put(digest, queries.get(digest));
+      }
+    }
+    try {
+      Set<Digest> missing = new LinkedHashSet<>();
+      for (List<Digest> partition : Iterables.partition(batch, MAX_DIGESTS_PER_QUERY)) {
+        queryRpcs.incrementAndGet();
+        queriedDigests.addAndGet(partition.size());
+        missing.addAll(finder.findMissingDigests(partition));
+      }
+      for (Digest digest : batch) {
+        if (!missing.contains(digest)) {
+          knownPresent.add(digest);
+        }
+      }
+      synchronized (queries) {
+        for (Digest digest : batch) {
+          queries.remove(digest);
+        }
+      }
+      for (Map.Entry<Digest, SettableFuture<Boolean>> e : batchResults.entrySet()) {
+        e.getValue().set(missing.contains(e.getKey()));
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      synchronized (queries) {
+        for (Digest digest : batch) {
+          queries.remove(digest);
+        }
+      }
+      for (SettableFuture<Boolean> result : batchResults.values()) {
+        result.setException(e);
+      }
+      throw e;
+    }
+  }
+
+  private static <T> T getChecked(ListenableFuture<T> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  /** A set of uploads that the caller is responsible for, or waits for. */
+  final class Claim {
+    private final ImmutableSet<Digest> owned;
+    private final ImmutableList<ListenableFuture<Void>> others;
+    private final Map<Digest, SettableFuture<Void>> ownedUploads;
+
+    private Claim(
+        ImmutableSet<Digest> owned,
+        ImmutableList<ListenableFuture<Void>> others,
+        Map<Digest, SettableFuture<Void>> ownedUploads) {
+      this.owned = owned;
+      this.others = others;
+      this.ownedUploads = ownedUploads;
+    }
+
+    /** The digests that the caller must upload. */
+    ImmutableSet<Digest> getOwnedDigests() {
+      return owned;
+    }
+
+    /**
+     * Releases the owned uploads. Must be called exactly once, whether or not the upload succeeded,
+     * since concurrent callers may be waiting for it.
+     */
+    void finish(boolean success) {
+      for (Map.Entry<Digest, SettableFuture<Void>> e : ownedUploads.entrySet()) {
+        if (success) {
+          knownPresent.add(e.getKey());
+        }
+        uploads.remove(e.getKey());
+        if (success) {
+          e.getValue().set(null);
+        } else {
+          e.getValue().setException(new IOException("Failed to upload " + e.getKey().getHash()));
+        }
+      }
+    }
+
+    /** Waits for the uploads of concurrent callers that this claim depends on. */
+    void awaitConcurrentUploads() throws IOException, InterruptedException {
+      getChecked(Futures.allAsList(others));
+    }
+  }
+}
@@ -0,0 +1,342 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A size-bounded on-disk store for the remote action cache.
+ *
+ * <p>Unlike {@link OnDiskBlobStore}, blobs are not stored as flat children of the root directory.
+ * Each blob lives in a shard directory named after the first two characters of its (hexadecimal)
+ * key, e.g. {@code <root>/cas/ab/abcdef...}, which keeps every directory small even for caches
+ * holding millions of entries.
+ *
+ * <p>An in-memory index keeps track of the size of every blob and the order in which blobs were
+ * last accessed. Whenever the total size exceeds the configured budget, least-recently-used blobs
+ * are deleted on a background thread until the total size drops below {@link #LOW_WATERMARK} of
+ * the budget. The index is rebuilt from the file modification times when the store is opened, and
+ * reads update the modification time, so that the eviction order survives restarts. Rebuilding the
+ * index stats every blob, so it happens on the eviction thread, and nothing is evicted until it is
+ * done.
+ *
+ * <p>A blob is renamed into place and added to the index under the same lock that eviction holds
+ * while it removes index entries and renames their files out of the way, so that a concurrent put
+ * of an evicted key never loses its file to the eviction.
+ */
+@ThreadSafe
+public final class DiskCacheBlobStore implements SimpleBlobStore {
+  private static final Logger logger = Logger.getLogger(DiskCacheBlobStore.class.getName());
+
+  /** Fraction of the budget that eviction shrinks the cache to, to avoid evicting on every put. */
+  @VisibleForTesting static final double LOW_WATERMARK = 0.9;
+
+  /**
+   * Age after which a temporary file is considered a leftover of a crash. The directory may be
+   * shared with other servers, so younger ones may still be written to.
+   */
+  @VisibleForTesting static final long STALE_TEMP_FILE_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final String CAS_DIR = "cas";
+  private static final String TMP_DIR = "tmp";
+  private static final int SHARD_PREFIX_LENGTH = 2;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final Path casRoot;
+  private final Path tmpRoot;
+  private final long maxSizeBytes;
+  private final Executor evictionExecutor;
+  private final ExecutorService ownedExecutor;
+
+  /** Blob key to blob size in bytes, in access order (least recently used first). */
+  private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalSizeBytes;
+  private boolean evictionScheduled;
+  private boolean indexLoaded;
+
+  /**
+   * Opens (creating it if necessary) a disk cache under {@code root} that holds at most {@code
+   * maxSizeBytes} bytes of blobs. Eviction happens on a dedicated daemon thread.
+   */
+  public static DiskCacheBlobStore create(Path root, long maxSizeBytes) throws IOException {
+    ExecutorService executor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-cache-eviction %d")
+                .setDaemon(true)
+                .build());
+    return new DiskCacheBlobStore(root, maxSizeBytes, executor, executor);
+  }
+
+  @VisibleForTesting
+  static DiskCacheBlobStore createForTesting(Path root, long maxSizeBytes) throws IOException {
+    return createForTesting(root, maxSizeBytes, MoreExecutors.directExecutor());
+  }
+
+  @VisibleForTesting
+  static DiskCacheBlobStore createForTesting(Path root, long maxSizeBytes, Executor executor)
+      throws IOException {
+    return new DiskCacheBlobStore(root, maxSizeBytes, executor, null);
+  }
+
+  private DiskCacheBlobStore(
+      Path root, long maxSizeBytes, Executor evictionExecutor, ExecutorService ownedExecutor)
+      throws IOException {
+    Preconditions.checkArgument(maxSizeBytes > 0, "maxSizeBytes must be positive");
+    this.casRoot = root.getChild(CAS_DIR);
+    this.tmpRoot = root.getChild(TMP_DIR);
+    this.maxSizeBytes = maxSizeBytes;
+    this.evictionExecutor = evictionExecutor;
+    this.ownedExecutor = ownedExecutor;
+    FileSystemUtils.createDirectoryAndParents(casRoot);
+    FileSystemUtils.createDirectoryAndParents(tmpRoot);
+    deleteStaleTempFiles();
+    for (char hi : HEX_DIGITS) {
+      for (char lo : HEX_DIGITS) {
+        casRoot.getChild(new String(new char[] {hi, lo})).createDirectory();
+      }
+    }
+    evictionExecutor.execute(this::loadIndex);
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    synchronized (this) {
+      if (index.containsKey(key)) {
+        return true;
+      }
+    }
+    // The directory may be shared with other processes, so fall back to the file system.
+    return toPath(key).exists();
+  }
+
+  @Override
+  public boolean get(String key, OutputStream out) throws IOException {
+    Path f = toPath(key);
+    long size;
+    try (InputStream in = f.getInputStream()) {
+      size = ByteStreams.copy(in, out);
+    } catch (FileNotFoundException e) {
+      synchronized (this) {
+        Long removed = index.remove(key);
+        if (removed != null) {
+          totalSizeBytes -= removed;
+        }
+      }
+      return false;
+    }
+    recordAccess(key, size);
+    try {
+      // Persist the access order for the next time the index is loaded.
+      f.setLastModifiedTime(-1L);
+    } catch (IOException e) {
+      // The blob may have been evicted concurrently; the content was already served.
+    }
+    return true;
+  }
+
+  @Override
+  public void put(String key, InputStream in) throws IOException {
+    // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
+    Path temp = tmpRoot.getChild(UUID.randomUUID().toString());
+    try {
+      OnDiskBlobStore.writeAndSync(in, temp);
+      long size = temp.getFileSize();
+      synchronized (this) {
+        temp.renameTo(toPath(key));
+        recordAccess(key, size);
+      }
+    } finally {
+      if (temp.exists()) {
+        temp.delete();
+      }
+    }
+    maybeScheduleEviction();
+  }
+
+  /**
+   * Does nothing. The store is meant to be shared by all the commands of a server, so that the
+   * index is only loaded once; its owner calls {@link #shutdown} instead.
+   */
+  @Override
+  public void close() {}
+
+  /** Stops the eviction thread. The store must not be used afterwards. */
+  public void shutdown() {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+  /** Returns the total size in bytes of all the blobs currently known to the index. */
+  public synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  @VisibleForTesting
+  Path toPath(String key) {
+    Preconditions.checkArgument(key.length() > SHARD_PREFIX_LENGTH, "Invalid key: %s", key);
+    return casRoot.getChild(key.substring(0, SHARD_PREFIX_LENGTH)).getChild(key);
+  }
+
+  private synchronized void recordAccess(String key, long size) {
+    Long previous = index.put(key, size);
+    totalSizeBytes += size - (previous == null ? 0 : previous);
+  }
+
+  private void maybeScheduleEviction() {
+    synchronized (this) {
+      if (!indexLoaded || evictionScheduled || totalSizeBytes <= maxSizeBytes) {
+        return;
+      }
+      evictionScheduled = true;
+    }
+    evictionExecutor.execute(this::evict);
+  }
+
+  private void evict() {
+    List<Path> tombstones = new ArrayList<>();
+    synchronized (this) {
+      long target = (long) (maxSizeBytes * LOW_WATERMARK);
+      Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+      while (totalSizeBytes > target && it.hasNext()) {
+        Map.Entry<String, Long> eldest = it.next();
+        totalSizeBytes -= eldest.getValue();
+        it.remove();
+        // Renaming is cheap, and doing it under the lock guarantees that the file is the one the
+        // index entry stood for, and not one that a concurrent put is adding back.
+        Path tombstone = tmpRoot.getChild(UUID.randomUUID().toString());
+        try {
+          toPath(eldest.getKey()).renameTo(tombstone);
+          tombstones.add(tombstone);
+        } catch (FileNotFoundException e) {
+          // Deleted by someone else sharing the directory.
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to evict " + eldest.getKey() + " from disk cache", e);
+        }
+      }
+      evictionScheduled = false;
+    }
+    // Delete outside of the lock, so that lookups are not blocked on deleting large files.
+    for (Path tombstone : tombstones) {
+      try {
+        tombstone.delete();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to delete evicted blob " + tombstone, e);
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary files left over from a crash in the middle of a put or an eviction, which
+   * are never referenced. Only old ones are deleted, as other servers sharing the directory may be
+   * writing the others.
+   */
+  private void deleteStaleTempFiles() throws IOException {
+    long cutoff = System.currentTimeMillis() - STALE_TEMP_FILE_AGE_MILLIS;
+    for (Path temp : tmpRoot.getDirectoryEntries()) {
+      FileStatus stat = temp.statIfFound();
+      if (stat == null || stat.getLastModifiedTime() >= cutoff) {
+        continue;
+      }
+      try {
+        if (stat.isDirectory()) {
+          FileSystemUtils.deleteTree(temp);
+        } else {
+          temp.delete();
+        }
+      } catch (IOException e) {
+        // Deleted by another server sharing the directory, or it will be tried again next time.
+      }
+    }
+  }
+
+  /**
+   * Populates the index from the blobs already on disk, ordered by their last modification time.
+   * Blobs that were put or read while loading are more recent than all the others.
+   */
+  private void loadIndex() {
+    List<IndexEntry> entries = new ArrayList<>();
+    try {
+      for (char hi : HEX_DIGITS) {
+        for (char lo : HEX_DIGITS) {
+          Path shard = casRoot.getChild(new String(new char[] {hi, lo}));
+          for (Path blob : shard.getDirectoryEntries()) {
+            FileStatus stat = blob.statIfFound();
+            if (stat != null && stat.isFile()) {
+              entries.add(
+                  new IndexEntry(blob.getBaseName(), stat.getSize(), stat.getLastModifiedTime()));
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to load the disk cache index, evicting only new blobs", e);
+    }
+    entries.sort((a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+    synchronized (this) {
+      LinkedHashMap<String, Long> accessedWhileLoading = new LinkedHashMap<>(index);
+      index.clear();
+      totalSizeBytes = 0;
+      for (IndexEntry entry : entries) {
+        if (!accessedWhileLoading.containsKey(entry.key)) {
+          index.put(entry.key, entry.size);
+          totalSizeBytes += entry.size;
+        }
+      }
+      for (Map.Entry<String, Long> entry : accessedWhileLoading.entrySet()) {
+        index.put(entry.getKey(), entry.getValue());
+        totalSizeBytes += entry.getValue();
+      }
+      indexLoaded = true;
+    }
+    maybeScheduleEviction();
+  }
+
+  private static final class IndexEntry {
+    final String key;
+    final long size;
+    final long lastAccess;
+
+    IndexEntry(String key, long size, long lastAccess) {
+      this.key = key;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
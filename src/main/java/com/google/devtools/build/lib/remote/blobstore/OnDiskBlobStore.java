@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.remote.blobstore;
 
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.vfs.Path;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -49,11 +50,7 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
   public void put(String key, InputStream in) throws IOException {
     // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
     Path temp = toPath(UUID.randomUUID().toString());
-    try (OutputStream out = temp.getOutputStream()) {
-      ByteStreams.copy(in, out);
-    }
-    // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
-    // crashes (the OS may reorder the writes and the rename).
+    writeAndSync(in, temp);
     Path f = toPath(key);
     temp.renameTo(f);
   }
@@ -64,4 +61,18 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
   private Path toPath(String key) {
     return root.getChild(key);
   }
-}
\ No newline at end of file
+
+  /**
+   * Copies {@code in} to {@code dest} and flushes the file to stable storage before returning.
+   * Without the fsync, the OS may reorder the writes and a subsequent rename, so that a machine
+   * crash leaves a truncated blob under its final name.
+   */
+  static void writeAndSync(InputStream in, Path dest) throws IOException {
+    try (OutputStream out = dest.getOutputStream()) {
+      ByteStreams.copy(in, out);
+      if (out instanceof FileOutputStream) {
+        ((FileOutputStream) out).getFD().sync();
+      }
+    }
+  }
+}
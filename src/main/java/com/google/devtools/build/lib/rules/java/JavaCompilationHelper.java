@@ -241,7 +241,7 @@ public final class JavaCompilationHelper {
 
   private ImmutableMap<String, String> getExecutionInfo() {
     if (javaToolchain.getJavacSupportsWorkers()) {
-      return ExecutionRequirements.WORKER_MODE_ENABLED;
+      return ExecutionRequirements.WORKER_MULTIPLEX_MODE_ENABLED;
     }
     return ImmutableMap.of();
   }
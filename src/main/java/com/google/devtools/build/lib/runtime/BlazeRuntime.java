@@ -470,8 +470,29 @@ public final class BlazeRuntime {
     return commandMap;
   }
 
-  /** Invokes {@link BlazeModule#blazeShutdown()} on all registered modules. */
+  /**
+   * Writes the Skyframe graph snapshot of the workspace if the graph changed since it was last
+   * written. Only called when no command is running, because the graph is traversed unlocked.
+   */
+  private void saveGraphSnapshot() {
+    if (workspace == null) {
+      return;
+    }
+    try {
+      workspace.getSkyframeExecutor().saveGraphSnapshot();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write the Skyframe graph snapshot", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes the Skyframe graph snapshot and invokes {@link BlazeModule#blazeShutdown()} on all
+   * registered modules.
+   */
   public void shutdown() {
+    saveGraphSnapshot();
     for (BlazeModule module : blazeModules) {
       module.blazeShutdown();
     }
@@ -765,7 +786,10 @@ public final class BlazeRuntime {
   private static int serverMain(Iterable<BlazeModule> modules, OutErr outErr, String[] args) {
     InterruptSignalHandler sigintHandler = null;
     try {
-      final RPCServer blazeServer = createBlazeRPCServer(modules, Arrays.asList(args));
+      final RPCServer[] rpcServer = new RPCServer[1];
+      Runnable prepareForAbruptShutdown = () -> rpcServer[0].prepareForAbruptShutdown();
+      BlazeRuntime runtime = newRuntime(modules, Arrays.asList(args), prepareForAbruptShutdown);
+      final RPCServer blazeServer = rpcServer[0] = createBlazeRPCServer(runtime);
 
       // Register the signal handler.
       sigintHandler =
@@ -778,6 +802,9 @@ public final class BlazeRuntime {
           };
 
       blazeServer.serve();
+      // The server stopped because it was idle for too long, or because of a command that already
+      // called shutdown(), in which case the snapshot is up to date.
+      runtime.saveGraphSnapshot();
       return ExitCode.SUCCESS.getNumericExitCode();
     } catch (OptionsParsingException e) {
       outErr.printErr(e.getMessage());
@@ -813,15 +840,11 @@ public final class BlazeRuntime {
   }
 
   /**
-   * Creates and returns a new Blaze RPCServer. Call {@link RPCServer#serve()} to start the server.
+   * Creates and returns a new Blaze RPCServer for {@code runtime}. Call {@link RPCServer#serve()}
+   * to start the server.
    */
-  private static RPCServer createBlazeRPCServer(
-      Iterable<BlazeModule> modules, List<String> args)
-      throws IOException, OptionsParsingException, AbruptExitException {
-    final RPCServer[] rpcServer = new RPCServer[1];
-    Runnable prepareForAbruptShutdown = () -> rpcServer[0].prepareForAbruptShutdown();
-
-    BlazeRuntime runtime = newRuntime(modules, args, prepareForAbruptShutdown);
+  private static RPCServer createBlazeRPCServer(BlazeRuntime runtime)
+      throws IOException, AbruptExitException {
     BlazeCommandDispatcher dispatcher = new BlazeCommandDispatcher(runtime);
     CommandExecutor commandExecutor = new CommandExecutor(runtime, dispatcher);
 
@@ -833,12 +856,11 @@ public final class BlazeRuntime {
       Class<?> factoryClass = Class.forName(
           "com.google.devtools.build.lib.server.GrpcServerImpl$Factory");
       RPCServer.Factory factory = (RPCServer.Factory) factoryClass.getConstructor().newInstance();
-      rpcServer[0] = factory.create(commandExecutor, runtime.getClock(),
+      return factory.create(commandExecutor, runtime.getClock(),
           startupOptions.commandPort,
           runtime.getWorkspace().getWorkspace(),
           runtime.getServerDirectory(),
           startupOptions.maxIdleSeconds);
-      return rpcServer[0];
     } catch (ReflectiveOperationException | IllegalArgumentException e) {
       throw new AbruptExitException("gRPC server not compiled in", ExitCode.BLAZE_INTERNAL_ERROR);
     }
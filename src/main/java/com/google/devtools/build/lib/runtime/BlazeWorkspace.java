@@ -21,6 +21,8 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.MappedActionCache;
+import com.google.devtools.build.lib.actions.cache.ShardedPersistentActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
@@ -34,6 +36,7 @@ import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsProvider;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -61,8 +64,13 @@ public final class BlazeWorkspace {
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
   private ActionCache actionCache;
+  /** The number of shards of {@link #actionCache}, or 0 if it is not sharded. */
+  private int actionCacheShards;
+  private boolean actionCacheMapped;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
+  /** Installed when a command first enables eviction under memory pressure. */
+  @Nullable private MemoryPressureEvictor memoryPressureEvictor = null;
 
   private final String outputBaseFilesystemTypeName;
 
@@ -163,6 +171,37 @@ public final class BlazeWorkspace {
     return getOutputBase().getChild("action_cache");
   }
 
+  /**
+   * Returns the path of the Skyframe graph snapshot. It is kept in the cache directory, so that it
+   * is deleted along with the other caches by {@link #clearCaches}.
+   */
+  Path getGraphSnapshotFile() {
+    return getCacheDirectory().getChild("skyframe_graph.snapshot");
+  }
+
+  /**
+   * Returns the path of the history of action times used by critical path scheduling. It is kept in
+   * the cache directory, so that it is deleted along with the other caches by {@link #clearCaches}.
+   */
+  Path getCriticalPathHistoryFile() {
+    return getCacheDirectory().getChild("critical_path_history");
+  }
+
+  /**
+   * Sets the percentage of the tenured space above which recomputable Skyframe values are dropped
+   * after a full GC, or 100 to keep them.
+   */
+  void setSkyframeEvictionThreshold(int occupiedHeapPercentageThreshold) {
+    if (memoryPressureEvictor == null) {
+      if (occupiedHeapPercentageThreshold == 100) {
+        return;
+      }
+      memoryPressureEvictor = new MemoryPressureEvictor(skyframeExecutor);
+      memoryPressureEvictor.install();
+    }
+    memoryPressureEvictor.setThreshold(occupiedHeapPercentageThreshold);
+  }
+
   void recordLastExecutionTime(long commandStartTime) {
     long currentTimeMillis = runtime.getClock().currentTimeMillis();
     lastExecutionRange =
@@ -224,6 +263,7 @@ public final class BlazeWorkspace {
   public void clearCaches() throws IOException {
     if (actionCache != null) {
       actionCache.clear();
+      closeActionCache();
     }
     actionCache = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
@@ -234,11 +274,19 @@ public final class BlazeWorkspace {
    * instance. Note, that method may recreate instance between different build
    * requests, so return value should not be cached.
    */
-  public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+  public ActionCache getPersistentActionCache(Reporter reporter, int shards, boolean mapped)
+      throws IOException {
+    if (actionCache != null && (actionCacheShards != shards || actionCacheMapped != mapped)) {
+      actionCache.save();
+      closeActionCache();
+      actionCache = null;
+    }
     if (actionCache == null) {
+      actionCacheShards = shards;
+      actionCacheMapped = mapped;
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, LOG)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = newPersistentActionCache(shards, mapped);
         } catch (IOException e) {
           LOG.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -251,13 +299,29 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Blaze will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = newPersistentActionCache(shards, mapped);
         }
       }
     }
     return actionCache;
   }
 
+  /** Releases the files that the action cache keeps open, if any, once it is no longer used. */
+  private void closeActionCache() throws IOException {
+    if (actionCache instanceof Closeable) {
+      ((Closeable) actionCache).close();
+    }
+  }
+
+  private ActionCache newPersistentActionCache(int shards, boolean mapped) throws IOException {
+    if (mapped) {
+      return new MappedActionCache(getCacheDirectory());
+    }
+    return shards > 0
+        ? new ShardedPersistentActionCache(getCacheDirectory(), runtime.getClock(), shards)
+        : new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
@@ -25,7 +25,10 @@ import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.skyframe.CriticalPathHistory;
 import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -42,6 +45,9 @@ public class BuildSummaryStatsModule extends BlazeModule {
   private Reporter reporter;
   private boolean enabled;
   private boolean discardActions;
+  // Kept across commands, so that it is only read from disk once per server.
+  private CriticalPathHistory criticalPathHistory;
+  private boolean scheduling;
 
   @Override
   public void beforeCommand(CommandEnvironment env) {
@@ -61,6 +67,15 @@ public class BuildSummaryStatsModule extends BlazeModule {
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
     enabled = env.getOptions().getOptions(ExecutionOptions.class).enableCriticalPathProfiling;
     discardActions = !env.getSkyframeExecutor().hasIncrementalState();
+    scheduling =
+        enabled && env.getOptions().getOptions(ExecutionOptions.class).criticalPathScheduling;
+    if (scheduling) {
+      Path file = env.getBlazeWorkspace().getCriticalPathHistoryFile();
+      if (criticalPathHistory == null || !criticalPathHistory.getFile().equals(file)) {
+        criticalPathHistory = CriticalPathHistory.load(file);
+      }
+    }
+    env.getSkyframeExecutor().setCriticalPathHistory(scheduling ? criticalPathHistory : null);
   }
 
   @Subscribe
@@ -98,6 +113,20 @@ public class BuildSummaryStatsModule extends BlazeModule {
                   stat.prettyPrintAction());
         }
         Profiler.instance().completeTask(ProfilerTask.CRITICAL_PATH);
+
+        if (scheduling) {
+          criticalPathHistory.update(criticalPathComputer.getRemainingTimeMillisByOutput());
+          try {
+            criticalPathHistory.save();
+          } catch (IOException e) {
+            reporter.handle(
+                Event.warn(
+                    "Failed to save critical path history to "
+                        + criticalPathHistory.getFile()
+                        + ": "
+                        + e.getMessage()));
+          }
+        }
       }
 
       reporter.handle(Event.info(Joiner.on(", ").join(items)));
@@ -384,7 +384,9 @@ public final class CommandEnvironment {
   }
 
   public ActionCache getPersistentActionCache() throws IOException {
-    return workspace.getPersistentActionCache(reporter);
+    CommonCommandOptions commonOptions = options.getOptions(CommonCommandOptions.class);
+    return workspace.getPersistentActionCache(
+        reporter, commonOptions.actionCacheShards, commonOptions.mappedActionCache);
   }
 
   /**
@@ -502,6 +504,12 @@ public final class CommandEnvironment {
     for (BlazeModule module : runtime.getBlazeModules()) {
       skyframeExecutor.injectExtraPrecomputedValues(module.getPrecomputedValues());
     }
+    skyframeExecutor.setGraphSnapshotFile(
+        options.getOptions(PackageCacheOptions.class).skyframeGraphSnapshot
+            ? workspace.getGraphSnapshotFile()
+            : null);
+    workspace.setSkyframeEvictionThreshold(
+        options.getOptions(PackageCacheOptions.class).skyframeEvictionThreshold);
     skyframeExecutor.sync(
         reporter,
         options.getOptions(PackageCacheOptions.class),
@@ -362,6 +362,33 @@ public class CommonCommandOptions extends OptionsBase {
   )
   public boolean allowProjectFiles;
 
+  @Option(
+    name = "experimental_action_cache_shards",
+    defaultValue = "0",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+    help =
+        "If greater than 0, the action cache is split into this many shards, each with its own "
+            + "lock and journal, and only the shards that changed are saved after a build. "
+            + "Changing the number of shards discards the action cache."
+  )
+  public int actionCacheShards;
+
+  @Option(
+    name = "experimental_mapped_action_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+    help =
+        "If true, the action cache is kept in memory-mapped files and its entries are only read "
+            + "when they are looked up, so it is neither loaded at startup nor kept on the heap. "
+            + "Takes precedence over --experimental_action_cache_shards. Changing this option "
+            + "discards the action cache."
+  )
+  public boolean mappedActionCache;
+
   @Option(
     name = "block_for_lock",
     defaultValue = "true",
@@ -15,7 +15,9 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionCompletionEvent;
@@ -29,9 +31,15 @@ import com.google.devtools.build.lib.util.Preconditions;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -224,6 +232,65 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     return ImmutableList.copyOf(list).reverse();
   }
 
+  /**
+   * Returns, for each output of the actions that finished running, how long it took from the start
+   * of its generating action to the end of the longest chain of actions that depend on it, in
+   * milliseconds. This is the time by which the build would have been longer had the action started
+   * later, so a scheduler can use it to start the actions with the longest tail first.
+   *
+   * <p>Only the dependency of each action that is on its critical path is known, so the chains are
+   * those of critical path edges.
+   */
+  public ImmutableMap<String, Long> getRemainingTimeMillisByOutput() {
+    Set<C> components = Sets.newIdentityHashSet();
+    for (C component : outputArtifactToComponent.values()) {
+      if (!component.isRunning) {
+        components.add(component);
+      }
+    }
+    // A component finishes before the components that depend on it start, so it is processed
+    // after all of them.
+    List<C> byFinishTime = new ArrayList<>(components);
+    Collections.sort(
+        byFinishTime,
+        new Comparator<C>() {
+          @Override
+          public int compare(C o1, C o2) {
+            return Long.compare(
+                o2.getStartNanos() + o2.getElapsedTimeNanos(),
+                o1.getStartNanos() + o1.getElapsedTimeNanos());
+          }
+        });
+    Map<C, Long> remainingNanos = new IdentityHashMap<>();
+    Map<C, Long> longestDependentNanos = new IdentityHashMap<>();
+    for (C component : byFinishTime) {
+      Long dependent = longestDependentNanos.get(component);
+      long remaining = component.getElapsedTimeNanos() + (dependent == null ? 0 : dependent);
+      remainingNanos.put(component, remaining);
+      C child = component.getChild();
+      if (child != null) {
+        Long childDependent = longestDependentNanos.get(child);
+        if (childDependent == null || childDependent < remaining) {
+          longestDependentNanos.put(child, remaining);
+        }
+      }
+    }
+
+    // Shared actions have distinct artifacts with the same path, so keep the longest of them.
+    Map<String, Long> result = new HashMap<>();
+    for (Map.Entry<Artifact, C> entry : outputArtifactToComponent.entrySet()) {
+      Long remaining = remainingNanos.get(entry.getValue());
+      if (remaining != null) {
+        String path = entry.getKey().getExecPathString();
+        Long previous = result.get(path);
+        if (previous == null || previous < TimeUnit.NANOSECONDS.toMillis(remaining)) {
+          result.put(path, TimeUnit.NANOSECONDS.toMillis(remaining));
+        }
+      }
+    }
+    return ImmutableMap.copyOf(result);
+  }
+
   private void finalizeActionStat(long startTimeNanos, Action action, C component) {
 
     for (Artifact input : action.getInputs()) {
@@ -0,0 +1,102 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Drops the Skyframe values that are cheap to recompute when the retained heap grows too large.
+ * Like {@link RetainedHeapLimiter}, checks the size of the tenured space after each major GC; if it
+ * exceeds the threshold, asks the {@link SkyframeExecutor} to evict its recomputable nodes, which
+ * happens once its current or next evaluation is done. Running below the threshold of the {@link
+ * RetainedHeapLimiter} gives the server a chance to shed memory before it is killed.
+ */
+class MemoryPressureEvictor implements NotificationListener {
+  private static final Logger LOG = Logger.getLogger(MemoryPressureEvictor.class.getName());
+
+  private final SkyframeExecutor skyframeExecutor;
+  private boolean installed = false;
+  private volatile int occupiedHeapPercentageThreshold = 100;
+
+  MemoryPressureEvictor(SkyframeExecutor skyframeExecutor) {
+    this.skyframeExecutor = skyframeExecutor;
+  }
+
+  void install() {
+    Preconditions.checkState(!installed, "MemoryPressureEvictor installed twice");
+    installed = true;
+    for (GarbageCollectorMXBean gcbean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      boolean collectsTenured = false;
+      for (String name : gcbean.getMemoryPoolNames()) {
+        collectsTenured |= RetainedHeapLimiter.isTenuredSpace(name);
+      }
+      if (collectsTenured) {
+        ((NotificationEmitter) gcbean).addNotificationListener(this, null, null);
+      }
+    }
+  }
+
+  /** Sets the percentage of the tenured space above which to evict, or 100 to never evict. */
+  void setThreshold(int occupiedHeapPercentageThreshold) {
+    Preconditions.checkArgument(
+        occupiedHeapPercentageThreshold >= 0 && occupiedHeapPercentageThreshold <= 100,
+        occupiedHeapPercentageThreshold);
+    this.occupiedHeapPercentageThreshold = occupiedHeapPercentageThreshold;
+  }
+
+  @Override
+  public void handleNotification(Notification notification, Object handback) {
+    int threshold = occupiedHeapPercentageThreshold;
+    if (threshold == 100
+        || !notification
+            .getType()
+            .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+      return;
+    }
+    GarbageCollectionNotificationInfo info =
+        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+    Map<String, MemoryUsage> spaces = info.getGcInfo().getMemoryUsageAfterGc();
+    for (Map.Entry<String, MemoryUsage> entry : spaces.entrySet()) {
+      if (RetainedHeapLimiter.isTenuredSpace(entry.getKey())) {
+        MemoryUsage space = entry.getValue();
+        if (space.getMax() == 0) {
+          // The CMS collector sometimes passes us nonsense stats.
+          continue;
+        }
+        long percentUsed = 100 * space.getUsed() / space.getMax();
+        if (percentUsed > threshold) {
+          LOG.info(
+              "Evicting recomputable Skyframe nodes with "
+                  + space.getUsed()
+                  + " out of "
+                  + space.getMax()
+                  + " used");
+          skyframeExecutor.evictRecomputableNodes();
+        }
+      }
+    }
+  }
+}
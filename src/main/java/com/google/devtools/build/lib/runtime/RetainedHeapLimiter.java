@@ -121,7 +121,7 @@ class RetainedHeapLimiter implements NotificationListener {
     }
   }
 
-  private static boolean isTenuredSpace(String name) {
+  static boolean isTenuredSpace(String name) {
     return "CMS Old Gen".equals(name)
         || "G1 Old Gen".equals(name)
         || "PS Old Gen".equals(name)
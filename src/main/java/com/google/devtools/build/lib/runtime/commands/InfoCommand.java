@@ -217,6 +217,7 @@ public class InfoCommand implements BlazeCommand {
             new InfoItem.MaxHeapSizeInfoItem(),
             new InfoItem.GcTimeInfoItem(),
             new InfoItem.GcCountInfoItem(),
+            new InfoItem.SkyFunctionMetricsInfoItem(),
             new InfoItem.JavaRuntimeInfoItem(),
             new InfoItem.JavaVirtualMachineInfoItem(),
             new InfoItem.JavaHomeInfoItem(),
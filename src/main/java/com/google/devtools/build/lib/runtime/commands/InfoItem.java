@@ -34,10 +34,13 @@ import com.google.devtools.build.lib.query2.proto.proto2api.Build.AttributeDefin
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.BuildLanguage;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.RuleDefinition;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ProcessUtils;
 import com.google.devtools.build.lib.util.StringUtilities;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionMetrics;
+import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.common.options.OptionsProvider;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
@@ -46,8 +49,12 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An item that is returned by <code>blaze info</code>.
@@ -443,6 +450,53 @@ public abstract class InfoItem {
     }
   }
 
+  /**
+   * Info item for the calls made to each SkyFunction since the server started, slowest first, and
+   * the number of values of each kept in memory.
+   */
+  public static final class SkyFunctionMetricsInfoItem extends InfoItem {
+    public SkyFunctionMetricsInfoItem() {
+      super(
+          "skyfunction-metrics",
+          "For each SkyFunction: the number of evaluations since the server started, how many of "
+              + "them were restarts because of missing dependencies, their total wall time, how "
+              + "many values were dirtied by changes, re-evaluated and pruned as unchanged, and "
+              + "the number of values kept in memory.",
+          true);
+    }
+
+    @Override
+    public byte[] get(Supplier<BuildConfiguration> configurationSupplier, CommandEnvironment env)
+        throws AbruptExitException {
+      SkyframeExecutor skyframeExecutor = env.getSkyframeExecutor();
+      Map<SkyFunctionName, Integer> valueCounts = skyframeExecutor.countValuesByFunction();
+      Map<SkyFunctionName, FunctionMetrics> metrics =
+          skyframeExecutor.getSkyFunctionMetrics().snapshot();
+      List<SkyFunctionName> functionNames = new ArrayList<>(metrics.keySet());
+      functionNames.sort(
+          Comparator.comparingLong(
+                  (SkyFunctionName functionName) -> metrics.get(functionName).getWallTimeNanos())
+              .reversed());
+      StringBuilder result = new StringBuilder();
+      for (SkyFunctionName functionName : functionNames) {
+        FunctionMetrics functionMetrics = metrics.get(functionName);
+        result.append(
+            String.format(
+                "%s: evaluations=%d restarts=%d wall_time_ms=%d dirtied=%d reevaluated=%d "
+                    + "pruned=%d values=%d\n",
+                functionName,
+                functionMetrics.getEvaluations(),
+                functionMetrics.getRestarts(),
+                TimeUnit.NANOSECONDS.toMillis(functionMetrics.getWallTimeNanos()),
+                functionMetrics.getDirtied(),
+                functionMetrics.getReevaluated(),
+                functionMetrics.getPruned(),
+                valueCounts.getOrDefault(functionName, 0)));
+      }
+      return print(result);
+    }
+  }
+
   /** Info item for the name and version of the Java runtime environment. */
   public static final class JavaRuntimeInfoItem extends InfoItem {
     public JavaRuntimeInfoItem() {
@@ -14,12 +14,15 @@
 
 package com.google.devtools.build.lib.sandbox;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.shell.CommandException;
 import com.google.devtools.build.lib.util.OsUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.File;
@@ -28,6 +31,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * Helper class for running the Linux sandbox. This runner prepares environment inside the sandbox,
@@ -41,6 +45,11 @@ final class LinuxSandboxRunner extends SandboxRunner {
   private final Set<Path> tmpfsPaths;
   // a <target, source> mapping of paths to bind mount
   private final Map<Path, Path> bindMounts;
+  // a <target, source> mapping of input directories to bind mount, passed in inputMountsFile
+  private final Map<Path, Path> inputMounts;
+  // directories that get an empty tmpfs to bind inputMounts into, passed in inputMountsFile
+  private final Set<Path> inputTmpfsDirs;
+  @Nullable private final Path inputMountsFile;
   private final boolean sandboxDebug;
 
   LinuxSandboxRunner(
@@ -48,6 +57,9 @@ final class LinuxSandboxRunner extends SandboxRunner {
       Set<Path> writableDirs,
       Set<Path> tmpfsPaths,
       Map<Path, Path> bindMounts,
+      Map<Path, Path> inputMounts,
+      Set<Path> inputTmpfsDirs,
+      @Nullable Path inputMountsFile,
       boolean verboseFailures,
       boolean sandboxDebug) {
     super(verboseFailures);
@@ -55,6 +67,9 @@ final class LinuxSandboxRunner extends SandboxRunner {
     this.writableDirs = writableDirs;
     this.tmpfsPaths = tmpfsPaths;
     this.bindMounts = bindMounts;
+    this.inputMounts = inputMounts;
+    this.inputTmpfsDirs = inputTmpfsDirs;
+    this.inputMountsFile = inputMountsFile;
     this.sandboxDebug = sandboxDebug;
   }
 
@@ -106,8 +121,28 @@ final class LinuxSandboxRunner extends SandboxRunner {
       boolean useFakeHostname,
       boolean useFakeUsername)
       throws IOException {
+    List<String> commandLineArgs =
+        getCommandLine(
+            getLinuxSandbox(cmdEnv),
+            spawnArguments,
+            timeout,
+            allowNetwork,
+            useFakeHostname,
+            useFakeUsername);
+    return new Command(commandLineArgs.toArray(new String[0]), env, sandboxExecRoot.getPathFile());
+  }
+
+  /** Returns the command line that runs {@code spawnArguments} with {@code linuxSandbox}. */
+  List<String> getCommandLine(
+      Path linuxSandbox,
+      List<String> spawnArguments,
+      int timeout,
+      boolean allowNetwork,
+      boolean useFakeHostname,
+      boolean useFakeUsername)
+      throws IOException {
     List<String> commandLineArgs = new ArrayList<>();
-    commandLineArgs.add(getLinuxSandbox(cmdEnv).getPathString());
+    commandLineArgs.add(linuxSandbox.getPathString());
 
     if (sandboxDebug) {
       commandLineArgs.add("-D");
@@ -141,6 +176,23 @@ final class LinuxSandboxRunner extends SandboxRunner {
       }
     }
 
+    if (!inputMounts.isEmpty() || !inputTmpfsDirs.isEmpty()) {
+      // There can be more input mounts than fit on a command line, so they are passed in a file.
+      List<String> inputMountArgs = new ArrayList<>();
+      for (Path inputTmpfsDir : inputTmpfsDirs) {
+        inputMountArgs.add("-I");
+        inputMountArgs.add(inputTmpfsDir.getPathString());
+      }
+      for (Map.Entry<Path, Path> inputMount : inputMounts.entrySet()) {
+        inputMountArgs.add("-M");
+        inputMountArgs.add(inputMount.getValue().getPathString());
+        inputMountArgs.add("-m");
+        inputMountArgs.add(inputMount.getKey().getPathString());
+      }
+      FileSystemUtils.writeLinesAs(inputMountsFile, ISO_8859_1, inputMountArgs);
+      commandLineArgs.add("@" + inputMountsFile.getPathString());
+    }
+
     if (!allowNetwork) {
       // Block network access out of the namespace.
       commandLineArgs.add("-N");
@@ -158,7 +210,7 @@ final class LinuxSandboxRunner extends SandboxRunner {
 
     commandLineArgs.add("--");
     commandLineArgs.addAll(spawnArguments);
-    return new Command(commandLineArgs.toArray(new String[0]), env, sandboxExecRoot.getPathFile());
+    return commandLineArgs;
   }
 
 }
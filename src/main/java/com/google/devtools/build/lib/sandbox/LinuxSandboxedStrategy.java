@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.SpawnInputExpander;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.sandbox.SandboxExecRootPool.SandboxDirectory;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -38,7 +39,12 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
 /** Strategy that uses sandboxing to execute a process. */
 @ExecutionStrategy(
@@ -58,6 +64,9 @@ public class LinuxSandboxedStrategy extends SandboxStrategy {
   private final SpawnInputExpander spawnInputExpander;
   private final Path inaccessibleHelperFile;
   private final Path inaccessibleHelperDir;
+  @Nullable private final SandboxExecRootPool execRootPool;
+  @Nullable private final SandboxReaper reaper;
+  @Nullable private final ExecutorService outputMover;
 
   private LinuxSandboxedStrategy(
       CommandEnvironment cmdEnv,
@@ -65,7 +74,10 @@ public class LinuxSandboxedStrategy extends SandboxStrategy {
       Path sandboxBase,
       boolean verboseFailures,
       Path inaccessibleHelperFile,
-      Path inaccessibleHelperDir) {
+      Path inaccessibleHelperDir,
+      @Nullable SandboxExecRootPool execRootPool,
+      @Nullable SandboxReaper reaper,
+      @Nullable ExecutorService outputMover) {
     super(
         cmdEnv,
         buildRequest,
@@ -79,13 +91,19 @@ public class LinuxSandboxedStrategy extends SandboxStrategy {
     this.spawnInputExpander = new SpawnInputExpander(false);
     this.inaccessibleHelperFile = inaccessibleHelperFile;
     this.inaccessibleHelperDir = inaccessibleHelperDir;
+    this.execRootPool = execRootPool;
+    this.reaper = reaper;
+    this.outputMover = outputMover;
   }
 
   static LinuxSandboxedStrategy create(
       CommandEnvironment cmdEnv,
       BuildRequest buildRequest,
       Path sandboxBase,
-      boolean verboseFailures)
+      boolean verboseFailures,
+      @Nullable SandboxExecRootPool execRootPool,
+      @Nullable SandboxReaper reaper,
+      @Nullable ExecutorService outputMover)
       throws IOException {
     Path inaccessibleHelperFile = sandboxBase.getRelative("inaccessibleHelperFile");
     FileSystemUtils.touchFile(inaccessibleHelperFile);
@@ -105,7 +123,10 @@ public class LinuxSandboxedStrategy extends SandboxStrategy {
         sandboxBase,
         verboseFailures,
         inaccessibleHelperFile,
-        inaccessibleHelperDir);
+        inaccessibleHelperDir,
+        execRootPool,
+        reaper,
+        outputMover);
   }
 
   @Override
@@ -119,28 +140,61 @@ public class LinuxSandboxedStrategy extends SandboxStrategy {
         .post(ActionStatusMessage.runningStrategy(spawn.getResourceOwner(), "linux-sandbox"));
     SandboxHelpers.reportSubcommand(actionExecutionContext, spawn);
 
-    // Each invocation of "exec" gets its own sandbox.
-    Path sandboxPath = getSandboxRoot();
-    Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
+    // Each invocation of "exec" gets its own sandbox, which may have been used by an earlier one.
+    SandboxDirectory pooledDirectory =
+        execRootPool != null ? execRootPool.acquire(spawn.getMnemonic()) : null;
+    Path sandboxPath;
+    SymlinkedExecRoot symlinkedExecRoot;
+    if (pooledDirectory != null) {
+      sandboxPath = pooledDirectory.getSandboxPath();
+      symlinkedExecRoot = pooledDirectory.getExecRoot();
+    } else {
+      sandboxPath = getSandboxRoot();
+      symlinkedExecRoot = new SymlinkedExecRoot(getSandboxExecRoot(sandboxPath), outputMover);
+      if (execRootPool != null) {
+        pooledDirectory =
+            new SandboxDirectory(sandboxPath, symlinkedExecRoot, spawn.getMnemonic());
+      }
+    }
+    Path sandboxExecRoot = getSandboxExecRoot(sandboxPath);
 
-    Set<Path> writableDirs = getWritableDirs(sandboxExecRoot, spawn.getEnvironment());
-    SymlinkedExecRoot symlinkedExecRoot = new SymlinkedExecRoot(sandboxExecRoot);
-    ImmutableSet<PathFragment> outputs = SandboxHelpers.getOutputFiles(spawn);
-    symlinkedExecRoot.createFileSystem(
-        SandboxHelpers.getInputFiles(spawnInputExpander, execRoot, spawn, actionExecutionContext),
-        outputs,
-        writableDirs);
+    // A directory is only reused after its spawn succeeded; a failed or interrupted spawn may have
+    // left it in any state.
+    boolean reusable = false;
+    try {
+      Set<Path> writableDirs = getWritableDirs(sandboxExecRoot, spawn.getEnvironment());
+      ImmutableSet<PathFragment> outputs = SandboxHelpers.getOutputFiles(spawn);
+      Map<PathFragment, Path> inputs =
+          SandboxHelpers.getInputFiles(spawnInputExpander, execRoot, spawn, actionExecutionContext);
+      SortedMap<Path, Path> inputMounts = new TreeMap<>();
+      SortedSet<Path> inputTmpfsDirs = new TreeSet<>();
+      if (sandboxOptions.sandboxMountInputDirectories) {
+        inputs =
+            SandboxInputMounts.extractInputMounts(
+                execRoot,
+                PathFragment.create(blazeDirs.getRelativeOutputPath()),
+                inputs,
+                outputs,
+                writableDirs,
+                sandboxExecRoot,
+                inputMounts,
+                inputTmpfsDirs);
+      }
+      symlinkedExecRoot.createFileSystem(inputs, outputs, writableDirs);
+      SandboxInputMounts.createMountPoints(inputMounts, inputTmpfsDirs);
 
-    SandboxRunner runner =
-        new LinuxSandboxRunner(
-            sandboxExecRoot,
-            writableDirs,
-            getTmpfsPaths(),
-            getReadOnlyBindMounts(blazeDirs, sandboxExecRoot),
-            verboseFailures,
-            sandboxOptions.sandboxDebug);
+      SandboxRunner runner =
+          new LinuxSandboxRunner(
+              sandboxExecRoot,
+              writableDirs,
+              getTmpfsPaths(),
+              getReadOnlyBindMounts(blazeDirs, sandboxExecRoot),
+              inputMounts,
+              inputTmpfsDirs,
+              sandboxPath.getRelative("input-mounts"),
+              verboseFailures,
+              sandboxOptions.sandboxDebug);
 
-    try {
       runSpawn(
           spawn,
           actionExecutionContext,
@@ -149,8 +203,17 @@ public class LinuxSandboxedStrategy extends SandboxStrategy {
           outputs,
           runner,
           writeOutputFiles);
+      reusable = true;
     } finally {
-      if (!sandboxOptions.sandboxDebug) {
+      if (pooledDirectory != null) {
+        if (reusable) {
+          execRootPool.release(pooledDirectory);
+        } else {
+          execRootPool.discard(pooledDirectory);
+        }
+      } else if (reaper != null) {
+        reaper.reap(sandboxPath);
+      } else if (!sandboxOptions.sandboxDebug) {
         try {
           FileSystemUtils.deleteTree(sandboxPath);
         } catch (IOException e) {
@@ -166,6 +229,10 @@ public class LinuxSandboxedStrategy extends SandboxStrategy {
     }
   }
 
+  private Path getSandboxExecRoot(Path sandboxPath) {
+    return sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
+  }
+
   @Override
   protected ImmutableSet<Path> getWritableDirs(Path sandboxExecRoot, Map<String, String> env)
       throws IOException {
@@ -22,6 +22,8 @@ import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Nullable;
 
 /**
  * Provides the sandboxed spawn strategy.
@@ -34,7 +36,13 @@ final class SandboxActionContextProvider extends ActionContextProvider {
   }
 
   public static SandboxActionContextProvider create(
-      CommandEnvironment cmdEnv, BuildRequest buildRequest, Path sandboxBase) throws IOException {
+      CommandEnvironment cmdEnv,
+      BuildRequest buildRequest,
+      Path sandboxBase,
+      @Nullable SandboxExecRootPool execRootPool,
+      @Nullable SandboxReaper reaper,
+      @Nullable ExecutorService outputMover)
+      throws IOException {
     ImmutableList.Builder<ActionContext> contexts = ImmutableList.builder();
 
     boolean verboseFailures = buildRequest.getOptions(ExecutionOptions.class).verboseFailures;
@@ -51,7 +59,14 @@ final class SandboxActionContextProvider extends ActionContextProvider {
     // This is the preferred sandboxing strategy on Linux.
     if (LinuxSandboxedStrategy.isSupported(cmdEnv)) {
       contexts.add(
-          LinuxSandboxedStrategy.create(cmdEnv, buildRequest, sandboxBase, verboseFailures));
+          LinuxSandboxedStrategy.create(
+              cmdEnv,
+              buildRequest,
+              sandboxBase,
+              verboseFailures,
+              execRootPool,
+              reaper,
+              outputMover));
     }
 
     // This is the preferred sandboxing strategy on macOS.
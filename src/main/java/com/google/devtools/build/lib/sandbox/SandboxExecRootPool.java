@@ -0,0 +1,183 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
+
+/**
+ * A pool of sandbox directories that are reused across spawns, instead of creating a symlink forest
+ * for every spawn and deleting it afterwards.
+ *
+ * <p>A released directory is scrubbed by a background thread, which deletes everything but the
+ * inputs it was staged with, and then waits for the next spawn with the same mnemonic, whose inputs
+ * likely overlap the most. Staging that spawn then only has to apply the difference between the two
+ * sets of inputs. Directories that cannot be reused, and idle ones beyond the limit, are deleted in
+ * the background as well, so that neither cost is on the critical path of a spawn.
+ */
+final class SandboxExecRootPool {
+
+  /** A sandbox directory and the exec root inside it. */
+  static final class SandboxDirectory {
+    private final Path sandboxPath;
+    private final SymlinkedExecRoot execRoot;
+    private String mnemonic;
+
+    SandboxDirectory(Path sandboxPath, SymlinkedExecRoot execRoot, String mnemonic) {
+      this.sandboxPath = sandboxPath;
+      this.execRoot = execRoot;
+      this.mnemonic = mnemonic;
+    }
+
+    Path getSandboxPath() {
+      return sandboxPath;
+    }
+
+    SymlinkedExecRoot getExecRoot() {
+      return execRoot;
+    }
+  }
+
+  private final int maxIdle;
+  private final ExecutorService cleaner;
+
+  /** Scrubbed directories, the most recently released last. */
+  private final Deque<SandboxDirectory> idle = new ArrayDeque<>();
+
+  private boolean shutDown;
+
+  /**
+   * @param maxIdle the most directories kept for reuse; the number of spawns that run at the same
+   *     time is a good choice
+   * @param cleanerThreads the number of background threads that scrub and delete directories
+   */
+  SandboxExecRootPool(int maxIdle, int cleanerThreads) {
+    Preconditions.checkArgument(maxIdle > 0 && cleanerThreads > 0);
+    this.maxIdle = maxIdle;
+    this.cleaner =
+        Executors.newFixedThreadPool(
+            cleanerThreads,
+            new ThreadFactoryBuilder()
+                .setNameFormat("sandbox-cleaner-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  /**
+   * Returns an idle directory, preferably one that was last used by a spawn with the same
+   * mnemonic, or null if there is none.
+   */
+  @Nullable
+  synchronized SandboxDirectory acquire(String mnemonic) {
+    SandboxDirectory any = idle.peekFirst();
+    for (Iterator<SandboxDirectory> it = idle.descendingIterator(); it.hasNext(); ) {
+      SandboxDirectory directory = it.next();
+      if (directory.mnemonic.equals(mnemonic)) {
+        it.remove();
+        return directory;
+      }
+    }
+    if (any != null && idle.size() == maxIdle) {
+      // Restaging the least recently used directory is still cheaper than a fresh one, once it
+      // would be evicted anyway.
+      idle.removeFirst();
+      any.mnemonic = mnemonic;
+      return any;
+    }
+    return null;
+  }
+
+  /**
+   * Hands back a directory whose spawn is done and whose outputs were moved out. The directory is
+   * scrubbed in the background and then becomes idle, unless the pool is full.
+   */
+  void release(final SandboxDirectory directory) {
+    submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              directory.execRoot.scrub();
+            } catch (IOException e) {
+              delete(directory);
+              return;
+            }
+            SandboxDirectory evicted = null;
+            synchronized (SandboxExecRootPool.this) {
+              idle.addLast(directory);
+              if (idle.size() > maxIdle) {
+                evicted = idle.removeFirst();
+              }
+            }
+            if (evicted != null) {
+              delete(evicted);
+            }
+          }
+        },
+        directory);
+  }
+
+  /** Deletes a directory that must not be reused, for example after staging it failed. */
+  void discard(final SandboxDirectory directory) {
+    submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            delete(directory);
+          }
+        },
+        directory);
+  }
+
+  private synchronized void submit(Runnable task, SandboxDirectory directory) {
+    if (shutDown) {
+      // The sandbox base is deleted after the command anyway.
+      return;
+    }
+    cleaner.execute(task);
+  }
+
+  private static void delete(SandboxDirectory directory) {
+    try {
+      FileSystemUtils.deleteTree(directory.sandboxPath);
+    } catch (IOException e) {
+      // The SandboxModule deletes the sandbox base after the command, and tries again then.
+    }
+  }
+
+  /**
+   * Waits for the background threads to finish, so that the sandbox base can be deleted. The idle
+   * directories are not deleted here.
+   */
+  void shutdown() {
+    synchronized (this) {
+      shutDown = true;
+      idle.clear();
+    }
+    if (ExecutorUtil.uninterruptibleShutdown(cleaner)) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
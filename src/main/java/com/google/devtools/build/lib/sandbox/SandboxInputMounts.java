@@ -0,0 +1,345 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * Finds the source directories of the execroot whose inputs the sandbox can mount instead of
+ * creating a symlink for every one of them.
+ *
+ * <p>A directory whose whole content is among the inputs of a spawn is bind mounted read-only. A
+ * directory that also holds undeclared files gets a filtered view instead: an empty, read-only
+ * tmpfs that each of its inputs is bound into, and each of its complete subdirectories, so that the
+ * spawn does not see the undeclared files. Both only show the inputs, and vanish with the mount
+ * namespace of the spawn, so there is nothing to delete afterwards.
+ *
+ * <p>Directories below the output directory are never mounted. A bind mount is a live view of the
+ * directory, so other actions running at the same time could add undeclared outputs to it that the
+ * spawn would then see. Inputs there are always staged one by one.
+ *
+ * <p>A directory can be mounted if every input below it is the file at the same path in the
+ * execroot, and no output or writable directory is below it, since mounts are read-only. It is
+ * complete if, moreover, every entry below it in the execroot is such an input or a directory that
+ * is complete itself. Symlinks and special files in the execroot make their directory incomplete,
+ * because a bind mount would show them as they are rather than as the file they point to.
+ *
+ * <p>Each candidate directory is read once, deepest first, and not at all if one of its
+ * subdirectories with inputs is already incomplete.
+ */
+final class SandboxInputMounts {
+
+  /**
+   * The fewest inputs a directory must hold to be mounted. A mount costs the sandbox more than a
+   * symlink, so only directories with many inputs are worth it.
+   */
+  static final int MIN_INPUTS_PER_MOUNT = 16;
+
+  /**
+   * The most mounts the inputs of a spawn may take. The kernel limits a mount namespace to {@code
+   * fs.mount-max} mounts, 100000 by default, and linux-sandbox doubles the input mounts when it
+   * binds the writable directories recursively. The directories with the most inputs per mount are
+   * mounted first, and a filtered view that does not fit is split into its subdirectories.
+   */
+  static final int MAX_INPUT_MOUNTS = 10000;
+
+  private SandboxInputMounts() {}
+
+  /**
+   * Finds the directories of the execroot whose inputs can be mounted instead of staged, adds the
+   * bind mounts that show them to {@code inputMounts}, from the path in the sandbox to the path in
+   * the execroot, and adds the directories that get a filtered view to {@code inputTmpfsDirs}.
+   *
+   * @return the inputs that are not below a mounted directory
+   */
+  static Map<PathFragment, Path> extractInputMounts(
+      Path execRoot,
+      PathFragment outputDir,
+      Map<PathFragment, Path> inputs,
+      Set<PathFragment> outputs,
+      Set<Path> writableDirs,
+      Path sandboxExecRoot,
+      SortedMap<Path, Path> inputMounts,
+      SortedSet<Path> inputTmpfsDirs)
+      throws IOException {
+    Set<PathFragment> blocked = new HashSet<>(outputs);
+    for (Path writableDir : writableDirs) {
+      if (writableDir.startsWith(sandboxExecRoot)) {
+        blocked.add(writableDir.relativeTo(sandboxExecRoot));
+      }
+    }
+    Set<PathFragment> boundPaths = new HashSet<>();
+    Set<PathFragment> filteredDirs = new HashSet<>();
+    findInputMounts(
+        execRoot, inputs, outputDir, blocked, MAX_INPUT_MOUNTS, boundPaths, filteredDirs);
+    if (boundPaths.isEmpty() && filteredDirs.isEmpty()) {
+      return inputs;
+    }
+    for (PathFragment boundPath : boundPaths) {
+      inputMounts.put(sandboxExecRoot.getRelative(boundPath), execRoot.getRelative(boundPath));
+    }
+    for (PathFragment filteredDir : filteredDirs) {
+      inputTmpfsDirs.add(sandboxExecRoot.getRelative(filteredDir));
+    }
+    Map<PathFragment, Path> stagedInputs = new HashMap<>();
+    for (Map.Entry<PathFragment, Path> input : inputs.entrySet()) {
+      if (!isBelowAny(input.getKey(), boundPaths) && !isBelowAny(input.getKey(), filteredDirs)) {
+        stagedInputs.put(input.getKey(), input.getValue());
+      }
+    }
+    return stagedInputs;
+  }
+
+  /**
+   * Creates the mount points of the mounts found by {@link #extractInputMounts} that are not inside
+   * a filtered view. The sandbox creates the others once the tmpfs of their view is mounted.
+   */
+  static void createMountPoints(SortedMap<Path, Path> inputMounts, SortedSet<Path> inputTmpfsDirs)
+      throws IOException {
+    for (Path inputTmpfsDir : inputTmpfsDirs) {
+      if (!inputTmpfsDirs.contains(inputTmpfsDir.getParentDirectory())) {
+        FileSystemUtils.createDirectoryAndParents(inputTmpfsDir);
+      }
+    }
+    for (Path inputMount : inputMounts.keySet()) {
+      if (!inputTmpfsDirs.contains(inputMount.getParentDirectory())) {
+        FileSystemUtils.createDirectoryAndParents(inputMount);
+      }
+    }
+  }
+
+  /**
+   * Finds the mounts that show the inputs below the outermost directories, relative to the
+   * execroot, that can be mounted instead of staging the inputs below them.
+   *
+   * @param inputs the inputs of the spawn, as passed to {@link SandboxExecRoot#createFileSystem}
+   * @param outputDir the output directory, relative to the execroot, such as {@code bazel-out}
+   * @param blocked paths relative to the execroot that must stay writable, such as the outputs;
+   *     none of their parent directories is mounted
+   * @param maxMounts the most mounts to add
+   * @param boundPaths receives the complete directories to bind mount, and the inputs and complete
+   *     directories to bind into the filtered views
+   * @param filteredDirs receives the directories that get a filtered view, outermost first when
+   *     sorted
+   */
+  static void findInputMounts(
+      Path execRoot,
+      Map<PathFragment, Path> inputs,
+      PathFragment outputDir,
+      Collection<PathFragment> blocked,
+      int maxMounts,
+      Set<PathFragment> boundPaths,
+      Set<PathFragment> filteredDirs)
+      throws IOException {
+    Set<PathFragment> excluded = new HashSet<>();
+    for (PathFragment path : blocked) {
+      addWithParents(excluded, path);
+    }
+    // The names of the inputs and input directories right below each directory.
+    Map<PathFragment, Set<String>> children = new HashMap<>();
+    final Map<PathFragment, Integer> inputCounts = new HashMap<>();
+    for (Entry<PathFragment, Path> input : inputs.entrySet()) {
+      PathFragment path = input.getKey();
+      if (path.startsWith(outputDir)) {
+        continue;
+      }
+      if (input.getValue() == null || !input.getValue().equals(execRoot.getRelative(path))) {
+        addWithParents(excluded, path);
+        continue;
+      }
+      PathFragment child = path;
+      for (PathFragment dir = path.getParentDirectory();
+          dir != null && dir.segmentCount() > 0;
+          child = dir, dir = dir.getParentDirectory()) {
+        Set<String> names = children.get(dir);
+        if (names == null) {
+          names = new HashSet<>();
+          children.put(dir, names);
+        }
+        names.add(child.getBaseName());
+        Integer count = inputCounts.get(dir);
+        inputCounts.put(dir, count == null ? 1 : count + 1);
+      }
+    }
+
+    List<PathFragment> dirs = new ArrayList<>(children.keySet());
+    Collections.sort(
+        dirs,
+        new Comparator<PathFragment>() {
+          @Override
+          public int compare(PathFragment a, PathFragment b) {
+            return Integer.compare(b.segmentCount(), a.segmentCount());
+          }
+        });
+    Set<PathFragment> complete = new HashSet<>();
+    Set<PathFragment> incomplete = new HashSet<>();
+    // The number of mounts that show the inputs below each directory that can be mounted.
+    final Map<PathFragment, Integer> mountCounts = new HashMap<>();
+    List<PathFragment> outermost = new ArrayList<>();
+    for (PathFragment dir : dirs) {
+      // The parents of an excluded path are all excluded, so the subdirectories of a directory that
+      // is not excluded are not excluded either.
+      if (excluded.contains(dir)) {
+        continue;
+      }
+      PathFragment parent = dir.getParentDirectory();
+      if (incomplete.contains(dir) || !isComplete(execRoot, dir, children, complete)) {
+        incomplete.add(parent);
+        int mountCount = 1;
+        for (String name : children.get(dir)) {
+          Integer childMountCount = mountCounts.get(dir.getRelative(name));
+          mountCount += childMountCount == null ? 1 : childMountCount;
+        }
+        mountCounts.put(dir, mountCount);
+      } else {
+        complete.add(dir);
+        mountCounts.put(dir, 1);
+      }
+      if (parent.segmentCount() == 0 || excluded.contains(parent)) {
+        outermost.add(dir);
+      }
+    }
+
+    PriorityQueue<PathFragment> candidates =
+        new PriorityQueue<>(
+            Math.max(outermost.size(), 1),
+            new Comparator<PathFragment>() {
+              @Override
+              public int compare(PathFragment a, PathFragment b) {
+                // The most inputs per mount first.
+                return Long.compare(
+                    (long) inputCounts.get(b) * mountCounts.get(a),
+                    (long) inputCounts.get(a) * mountCounts.get(b));
+              }
+            });
+    for (PathFragment dir : outermost) {
+      if (inputCounts.get(dir) >= MIN_INPUTS_PER_MOUNT) {
+        candidates.add(dir);
+      }
+    }
+    int mountsLeft = maxMounts;
+    while (!candidates.isEmpty()) {
+      PathFragment dir = candidates.poll();
+      int mountCount = mountCounts.get(dir);
+      if (mountCount <= mountsLeft) {
+        addMounts(dir, children, complete, boundPaths, filteredDirs);
+        mountsLeft -= mountCount;
+      } else if (!complete.contains(dir)) {
+        // The inputs right below the directory are staged, and its subdirectories are mounted if
+        // they fit.
+        for (String name : children.get(dir)) {
+          PathFragment child = dir.getRelative(name);
+          if (children.containsKey(child) && inputCounts.get(child) >= MIN_INPUTS_PER_MOUNT) {
+            candidates.add(child);
+          }
+        }
+      }
+    }
+  }
+
+  /** Adds the mounts that show the inputs below {@code dir}, a directory that can be mounted. */
+  private static void addMounts(
+      PathFragment dir,
+      Map<PathFragment, Set<String>> children,
+      Set<PathFragment> complete,
+      Set<PathFragment> boundPaths,
+      Set<PathFragment> filteredDirs) {
+    if (complete.contains(dir)) {
+      boundPaths.add(dir);
+      return;
+    }
+    filteredDirs.add(dir);
+    for (String name : children.get(dir)) {
+      PathFragment child = dir.getRelative(name);
+      if (children.containsKey(child)) {
+        addMounts(child, children, complete, boundPaths, filteredDirs);
+      } else {
+        boundPaths.add(child);
+      }
+    }
+  }
+
+  private static boolean isComplete(
+      Path execRoot,
+      PathFragment dir,
+      Map<PathFragment, Set<String>> children,
+      Set<PathFragment> complete)
+      throws IOException {
+    Set<String> names = children.get(dir);
+    Collection<Dirent> entries = execRoot.getRelative(dir).readdir(Symlinks.NOFOLLOW);
+    if (entries.size() != names.size()) {
+      return false;
+    }
+    for (Dirent entry : entries) {
+      if (!names.contains(entry.getName())) {
+        return false;
+      }
+      switch (entry.getType()) {
+        case FILE:
+          // Only an input, not a directory of inputs, may be a file.
+          if (children.containsKey(dir.getRelative(entry.getName()))) {
+            return false;
+          }
+          break;
+        case DIRECTORY:
+          if (!complete.contains(dir.getRelative(entry.getName()))) {
+            return false;
+          }
+          break;
+        default:
+          return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isBelowAny(PathFragment path, Set<PathFragment> dirs) {
+    for (PathFragment dir = path.getParentDirectory();
+        dir != null && dir.segmentCount() > 0;
+        dir = dir.getParentDirectory()) {
+      if (dirs.contains(dir)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void addWithParents(Set<PathFragment> paths, PathFragment path) {
+    for (PathFragment dir = path; dir != null && dir.segmentCount() > 0;
+        dir = dir.getParentDirectory()) {
+      if (!paths.add(dir)) {
+        break;
+      }
+    }
+  }
+}
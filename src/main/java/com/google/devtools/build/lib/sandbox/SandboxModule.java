@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.sandbox;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
@@ -27,6 +28,9 @@ import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 
 /**
  * This module provides the Sandbox spawn strategy.
@@ -34,6 +38,9 @@ import java.io.IOException;
 public final class SandboxModule extends BlazeModule {
   private Path sandboxBase;
   private boolean shouldCleanupSandboxBase;
+  @Nullable private SandboxExecRootPool execRootPool;
+  @Nullable private SandboxReaper reaper;
+  @Nullable private ExecutorService outputMover;
 
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
@@ -62,10 +69,32 @@ public final class SandboxModule extends BlazeModule {
     // out the contents of the generated sandbox directories.
     shouldCleanupSandboxBase = !sandboxOptions.sandboxDebug;
 
+    if (sandboxOptions.sandboxReuseDirectories && !sandboxOptions.sandboxDebug) {
+      // Every job holds at most one directory. A scrub is much cheaper than the spawn it follows,
+      // so a few cleaner threads keep up with all of them.
+      int jobs = Math.max(1, request.getBuildOptions().jobs);
+      execRootPool = new SandboxExecRootPool(jobs, Math.max(1, jobs / 8));
+    }
+
+    if (sandboxOptions.sandboxAsyncTeardown && !sandboxOptions.sandboxDebug) {
+      // Deleting a sandbox takes less time than the spawn that filled it, so a few threads keep up
+      // with all jobs, and up to two directories per job may wait before the jobs help out.
+      int jobs = Math.max(1, request.getBuildOptions().jobs);
+      reaper = new SandboxReaper(Math.max(1, jobs / 8), 2 * jobs);
+      outputMover =
+          Executors.newFixedThreadPool(
+              Math.max(2, Math.min(jobs, Runtime.getRuntime().availableProcessors())),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("sandbox-output-mover-%d")
+                  .setDaemon(true)
+                  .build());
+    }
+
     try {
       FileSystemUtils.createDirectoryAndParents(sandboxBase);
       builder.addActionContextProvider(
-          SandboxActionContextProvider.create(cmdEnv, request, sandboxBase));
+          SandboxActionContextProvider.create(
+              cmdEnv, request, sandboxBase, execRootPool, reaper, outputMover));
     } catch (IOException e) {
       throw new IllegalStateException(e);
     }
@@ -76,6 +105,18 @@ public final class SandboxModule extends BlazeModule {
   public void afterCommand() {
     super.afterCommand();
 
+    if (execRootPool != null) {
+      execRootPool.shutdown();
+      execRootPool = null;
+    }
+    if (outputMover != null) {
+      outputMover.shutdownNow();
+      outputMover = null;
+    }
+    if (reaper != null) {
+      reaper.shutdown();
+      reaper = null;
+    }
     if (sandboxBase != null) {
       if (shouldCleanupSandboxBase) {
         try {
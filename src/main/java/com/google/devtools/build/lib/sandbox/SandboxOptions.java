@@ -105,6 +105,47 @@ public class SandboxOptions extends OptionsBase {
   )
   public String sandboxBase;
 
+  @Option(
+    name = "experimental_sandbox_reuse_directories",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If true, the Linux sandbox reuses the sandbox directories of earlier actions, preferably "
+            + "of the same mnemonic, and only changes the inputs that differ, instead of creating "
+            + "every input anew for each action. Ignored with --sandbox_debug."
+  )
+  public boolean sandboxReuseDirectories;
+
+  @Option(
+    name = "experimental_sandbox_mount_input_directories",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If true, the Linux sandbox bind mounts the source directories of the execroot whose "
+            + "whole content is among the inputs of an action read-only, instead of creating a "
+            + "symlink for every input below them. Source directories that also hold undeclared "
+            + "files get a read-only tmpfs that only their inputs are bound into. Directories below "
+            + "the output directory are always staged one input at a time."
+  )
+  public boolean sandboxMountInputDirectories;
+
+  @Option(
+    name = "experimental_sandbox_async_teardown",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If true, the Linux sandbox moves the files of large output directories in parallel when "
+            + "they cannot be renamed as a whole, and deletes sandbox directories in the "
+            + "background instead of on the thread of the action. Ignored with --sandbox_debug."
+  )
+  public boolean sandboxAsyncTeardown;
+
   @Option(
     name = "sandbox_fake_hostname",
     defaultValue = "false",
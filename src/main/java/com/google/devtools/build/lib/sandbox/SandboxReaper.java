@@ -0,0 +1,149 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Deletes sandbox directories in the background, so that the thread of a spawn can go on to the
+ * next spawn as soon as the outputs were moved out.
+ *
+ * <p>The number of directories waiting to be deleted is bounded. Once the queue is full, the
+ * caller deletes its directory itself, so that a slow disk holds back the spawns instead of
+ * filling up with stale sandboxes.
+ */
+final class SandboxReaper {
+  private static final Logger LOG = Logger.getLogger(SandboxReaper.class.getName());
+
+  private final ExecutorService executor;
+  private final Semaphore queueSlots;
+
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicInteger reaped = new AtomicInteger();
+  private final AtomicInteger reapedByCaller = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  /**
+   * @param threads the number of background threads that delete directories
+   * @param maxQueueDepth the most directories that may wait to be deleted
+   */
+  SandboxReaper(int threads, int maxQueueDepth) {
+    Preconditions.checkArgument(threads > 0 && maxQueueDepth > 0);
+    this.queueSlots = new Semaphore(maxQueueDepth);
+    this.executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder().setNameFormat("sandbox-reaper-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Deletes {@code sandboxPath} in the background, or right away if too many directories are
+   * waiting already.
+   */
+  void reap(final Path sandboxPath) {
+    if (!queueSlots.tryAcquire()) {
+      reapedByCaller.incrementAndGet();
+      delete(sandboxPath);
+      return;
+    }
+    int depth = queueDepth.incrementAndGet();
+    int max = maxQueueDepth.get();
+    while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+      max = maxQueueDepth.get();
+    }
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                delete(sandboxPath);
+              } finally {
+                queueDepth.decrementAndGet();
+                queueSlots.release();
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The reaper was shut down, and the SandboxModule deletes the sandbox base after the
+      // command anyway.
+      queueDepth.decrementAndGet();
+      queueSlots.release();
+    }
+  }
+
+  private void delete(Path sandboxPath) {
+    try {
+      FileSystemUtils.deleteTree(sandboxPath);
+      reaped.incrementAndGet();
+    } catch (IOException e) {
+      // The spawn may have left processes behind that still hold the directory. The SandboxModule
+      // tries again when it deletes the sandbox base after the command.
+      failed.incrementAndGet();
+    }
+  }
+
+  /** Returns the number of directories that currently wait to be deleted. */
+  int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /** Returns the most directories that waited to be deleted at the same time. */
+  int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /** Returns the number of directories the caller deleted itself because the queue was full. */
+  int getReapedByCaller() {
+    return reapedByCaller.get();
+  }
+
+  /** Returns the number of directories that were deleted, in the background or not. */
+  int getReaped() {
+    return reaped.get();
+  }
+
+  /** Returns the number of directories that could not be deleted. */
+  int getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Waits for the queued directories to be deleted, so that the sandbox base can be deleted, and
+   * logs how the reaper kept up.
+   */
+  void shutdown() {
+    if (ExecutorUtil.uninterruptibleShutdown(executor)) {
+      Thread.currentThread().interrupt();
+    }
+    LOG.info(
+        String.format(
+            "Sandbox reaper deleted %d directories, %d of them on the spawn thread because the "
+                + "queue was full; max queue depth %d; %d could not be deleted",
+            getReaped(), getReapedByCaller(), getMaxQueueDepth(), getFailed()));
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.sandbox;
 
+import com.google.common.base.Throwables;
 import com.google.common.io.Files;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.FileStatus;
@@ -22,11 +23,20 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 
 /**
  * Creates an execRoot for a Spawn that contains input files as symlinks to their original
@@ -34,10 +44,30 @@ import java.util.Set;
  */
 public final class SymlinkedExecRoot implements SandboxExecRoot {
 
+  /** The fewest files of an output tree that are worth moving in parallel. */
+  static final int MIN_FILES_FOR_PARALLEL_MOVE = 64;
+
+  /** The number of parts the files of an output tree are split into to move them in parallel. */
+  private static final int PARALLEL_MOVE_BATCHES = 16;
+
   private final Path sandboxExecRoot;
 
+  /** The inputs staged by the last {@link #createFileSystem}, or null if it failed. */
+  @Nullable private Map<PathFragment, Path> stagedInputs;
+
+  /** Whether {@link #scrub} left nothing but the staged inputs in the exec root. */
+  private boolean scrubbed;
+
+  /** Moves the files of large output trees in parallel, if not null. */
+  @Nullable private final ExecutorService outputMover;
+
   public SymlinkedExecRoot(Path sandboxExecRoot) {
+    this(sandboxExecRoot, null);
+  }
+
+  public SymlinkedExecRoot(Path sandboxExecRoot, @Nullable ExecutorService outputMover) {
     this.sandboxExecRoot = sandboxExecRoot;
+    this.outputMover = outputMover;
   }
 
   @Override
@@ -45,12 +75,121 @@ public final class SymlinkedExecRoot implements SandboxExecRoot {
       Map<PathFragment, Path> inputs, Collection<PathFragment> outputs, Set<Path> writableDirs)
       throws IOException {
     Set<Path> createdDirs = new HashSet<>();
-    cleanFileSystem(inputs.keySet());
-    FileSystemUtils.createDirectoryAndParentsWithCache(createdDirs, sandboxExecRoot);
-    createParentDirectoriesForInputs(createdDirs, inputs.keySet());
-    createInputs(inputs);
+    Map<PathFragment, Path> staged = scrubbed ? stagedInputs : null;
+    stagedInputs = null;
+    scrubbed = false;
+    if (staged == null) {
+      cleanFileSystem(inputs.keySet());
+      FileSystemUtils.createDirectoryAndParentsWithCache(createdDirs, sandboxExecRoot);
+      createParentDirectoriesForInputs(createdDirs, inputs.keySet());
+      createInputs(inputs);
+    } else {
+      Map<PathFragment, Path> addedInputs = deleteStaleInputs(staged, inputs);
+      checkNotBelowOtherInputs(addedInputs.keySet(), inputs);
+      FileSystemUtils.createDirectoryAndParentsWithCache(createdDirs, sandboxExecRoot);
+      createParentDirectoriesForInputs(createdDirs, addedInputs.keySet());
+      createInputs(addedInputs);
+    }
     createWritableDirectories(createdDirs, writableDirs);
     createDirectoriesForOutputs(createdDirs, outputs);
+    stagedInputs = new HashMap<>(inputs);
+  }
+
+  /**
+   * Deletes everything in the exec root but the inputs staged by the last {@link
+   * #createFileSystem} and their parent directories, such as the outputs and temporary files that
+   * the spawn left behind, so that the next {@link #createFileSystem} can skip walking the exec
+   * root and only apply the difference between the two sets of inputs.
+   */
+  void scrub() throws IOException {
+    Map<PathFragment, Path> staged = Preconditions.checkNotNull(stagedInputs);
+    stagedInputs = null;
+    Map<PathFragment, Path> intact = new HashMap<>();
+    if (sandboxExecRoot.exists(Symlinks.NOFOLLOW)) {
+      scrubDirectory(sandboxExecRoot, staged, intact);
+    }
+    stagedInputs = intact;
+    scrubbed = true;
+  }
+
+  private void scrubDirectory(
+      Path dir, Map<PathFragment, Path> staged, Map<PathFragment, Path> intact)
+      throws IOException {
+    for (Path p : dir.getDirectoryEntries()) {
+      FileStatus stat = p.stat(Symlinks.NOFOLLOW);
+      PathFragment input = p.relativeTo(sandboxExecRoot);
+      if (stat.isDirectory() && !staged.containsKey(input)) {
+        scrubDirectory(p, staged, intact);
+        if (p.getDirectoryEntries().isEmpty()) {
+          p.delete();
+        }
+      } else if (staged.containsKey(input) && isStaged(p, stat, staged.get(input))) {
+        intact.put(input, staged.get(input));
+      } else if (stat.isDirectory()) {
+        // The spawn replaced an input with a directory.
+        FileSystemUtils.deleteTree(p);
+      } else {
+        p.delete();
+      }
+    }
+  }
+
+  private static boolean isStaged(Path p, FileStatus stat, @Nullable Path target)
+      throws IOException {
+    if (target == null) {
+      return stat.isFile() && stat.getSize() == 0;
+    }
+    return stat.isSymbolicLink() && p.readSymbolicLink().equals(target.asFragment());
+  }
+
+  /**
+   * Deletes the staged inputs that are not among {@code inputs}, or link to another file, and the
+   * directories that are left empty.
+   *
+   * @return the inputs that are not staged yet
+   */
+  private Map<PathFragment, Path> deleteStaleInputs(
+      Map<PathFragment, Path> staged, Map<PathFragment, Path> inputs) throws IOException {
+    for (Entry<PathFragment, Path> entry : staged.entrySet()) {
+      PathFragment input = entry.getKey();
+      if (inputs.containsKey(input) && Objects.equals(inputs.get(input), entry.getValue())) {
+        continue;
+      }
+      Path key = sandboxExecRoot.getRelative(input);
+      key.delete();
+      for (Path dir = key.getParentDirectory();
+          !dir.equals(sandboxExecRoot) && dir.getDirectoryEntries().isEmpty();
+          dir = dir.getParentDirectory()) {
+        dir.delete();
+      }
+    }
+    Map<PathFragment, Path> addedInputs = new HashMap<>();
+    for (Entry<PathFragment, Path> entry : inputs.entrySet()) {
+      PathFragment input = entry.getKey();
+      if (!staged.containsKey(input) || !Objects.equals(staged.get(input), entry.getValue())) {
+        addedInputs.put(input, entry.getValue());
+      }
+    }
+    return addedInputs;
+  }
+
+  /**
+   * Fails if one of {@code addedInputs} is below another input. A full {@link #createFileSystem}
+   * finds out when the directories are created, but when an input that links to a directory is
+   * kept from the last spawn, creating a new input below it would write through the link.
+   */
+  private static void checkNotBelowOtherInputs(
+      Set<PathFragment> addedInputs, Map<PathFragment, Path> inputs) throws IOException {
+    for (PathFragment input : addedInputs) {
+      for (PathFragment dir = input.getParentDirectory();
+          dir != null && dir.segmentCount() > 0;
+          dir = dir.getParentDirectory()) {
+        if (inputs.containsKey(dir)) {
+          throw new IOException(
+              String.format("Input '%s' is below input '%s' in the sandbox", input, dir));
+        }
+      }
+    }
   }
 
   private void cleanFileSystem(Set<PathFragment> allowedFiles) throws IOException {
@@ -152,9 +291,83 @@ public final class SymlinkedExecRoot implements SandboxExecRoot {
         } catch (IOException e) {
           // Failed to move directory directly, thus move it recursively.
           target.createDirectory();
-          FileSystemUtils.moveTreesBelow(source, target);
+          if (outputMover != null) {
+            moveTreeInParallel(source, target);
+          } else {
+            FileSystemUtils.moveTreesBelow(source, target);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the content of the directory {@code from} to the existing directory {@code to} like
+   * {@link FileSystemUtils#moveTreesBelow}, but moves the files with {@link #outputMover} once
+   * there are enough of them. The directories are created by the calling thread first.
+   */
+  private void moveTreeInParallel(Path from, Path to) throws IOException {
+    List<Path[]> files = new ArrayList<>();
+    collectFilesToMove(from, to, files);
+    if (files.size() < MIN_FILES_FOR_PARALLEL_MOVE) {
+      for (Path[] file : files) {
+        FileSystemUtils.moveFile(file[0], file[1]);
+      }
+      return;
+    }
+    int batchSize = Math.max(1, files.size() / PARALLEL_MOVE_BATCHES);
+    List<Future<?>> batches = new ArrayList<>();
+    for (int start = 0; start < files.size(); start += batchSize) {
+      final List<Path[]> batch = files.subList(start, Math.min(files.size(), start + batchSize));
+      batches.add(
+          outputMover.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  for (Path[] file : batch) {
+                    FileSystemUtils.moveFile(file[0], file[1]);
+                  }
+                  return null;
+                }
+              }));
+    }
+    boolean interrupted = false;
+    IOException failure = null;
+    for (Future<?> batch : batches) {
+      // Wait for every batch even after a failure, so that no file is moved after this returns.
+      while (true) {
+        try {
+          batch.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause());
+          if (failure == null) {
+            failure = (IOException) e.getCause();
+          }
+          break;
         }
       }
     }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void collectFilesToMove(Path from, Path to, List<Path[]> files)
+      throws IOException {
+    for (Path entry : from.getDirectoryEntries()) {
+      Path target = to.getChild(entry.getBaseName());
+      if (entry.isDirectory(Symlinks.NOFOLLOW)) {
+        target.createDirectory();
+        collectFilesToMove(entry, target, files);
+      } else {
+        files.add(new Path[] {entry, target});
+      }
+    }
   }
 }
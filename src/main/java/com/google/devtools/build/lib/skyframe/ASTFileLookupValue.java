@@ -16,10 +16,13 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.skyframe.FingerprintedSkyValue;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import javax.annotation.Nullable;
 
 /**
  * A value that represents an AST file lookup result. There are two subclasses: one for the case
@@ -32,12 +35,30 @@ public abstract class ASTFileLookupValue implements SkyValue {
   public abstract String getErrorMsg();
   
   /** If the file is found, this class encapsulates the parsed AST. */
-  private static class ASTLookupWithFile extends ASTFileLookupValue {
+  private static class ASTLookupWithFile extends ASTFileLookupValue
+      implements FingerprintedSkyValue {
     private final BuildFileAST ast;
+    @Nullable private final byte[] fingerprint;
 
     private ASTLookupWithFile(BuildFileAST ast) {
       Preconditions.checkNotNull(ast);
       this.ast = ast;
+      // Lets an edit that only touches comment lines, or whitespace that no token moves over, spare
+      // re-evaluating the extensions that load the file.
+      byte[] syntaxFingerprint = ast.getSyntaxFingerprint();
+      this.fingerprint =
+          syntaxFingerprint == null
+              ? null
+              : new Fingerprint()
+                  .addBytes(syntaxFingerprint)
+                  .addBoolean(ast.containsErrors())
+                  .digestAndReset();
+    }
+
+    @Nullable
+    @Override
+    public byte[] getFingerprint() {
+      return fingerprint;
     }
 
     @Override
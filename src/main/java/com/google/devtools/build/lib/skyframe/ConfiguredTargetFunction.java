@@ -79,6 +79,7 @@ import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.ValueOrException;
 import com.google.devtools.build.skyframe.ValueOrException2;
@@ -141,6 +142,26 @@ final class ConfiguredTargetFunction implements SkyFunction {
     }
   };
 
+  /**
+   * The results of the steps of {@link #computeDependencies} that completed without missing
+   * values, so that they are not redone after a restart.
+   */
+  private static class ComputeDependenciesState {
+    @Nullable private OrderedSetMultimap<Attribute, Dependency> depValueNames;
+    @Nullable private Map<SkyKey, ConfiguredTarget> depValues;
+  }
+
+  /**
+   * What {@link #compute} found before a restart. The packages and root causes found by the steps
+   * that are not redone are kept along with their results.
+   */
+  private static class State extends ComputeDependenciesState implements SkyKeyComputeState {
+    private final NestedSetBuilder<Package> transitivePackages = NestedSetBuilder.stableOrder();
+    private final NestedSetBuilder<Label> transitiveLoadingRootCauses =
+        NestedSetBuilder.stableOrder();
+    @Nullable private ImmutableMap<Label, ConfigMatchingProvider> configConditions;
+  }
+
   private final BuildViewProvider buildViewProvider;
   private final RuleClassProvider ruleClassProvider;
   private final Semaphore cpuBoundSemaphore;
@@ -165,8 +186,9 @@ final class ConfiguredTargetFunction implements SkyFunction {
   public SkyValue compute(SkyKey key, Environment env) throws ConfiguredTargetFunctionException,
       InterruptedException {
     SkyframeBuildView view = buildViewProvider.getSkyframeBuildView();
-    NestedSetBuilder<Package> transitivePackages = NestedSetBuilder.stableOrder();
-    NestedSetBuilder<Label> transitiveLoadingRootCauses = NestedSetBuilder.stableOrder();
+    State state = env.getState(State::new);
+    NestedSetBuilder<Package> transitivePackages = state.transitivePackages;
+    NestedSetBuilder<Label> transitiveLoadingRootCauses = state.transitiveLoadingRootCauses;
     ConfiguredTargetKey configuredTargetKey = (ConfiguredTargetKey) key.argument();
     LabelAndConfiguration lc = LabelAndConfiguration.of(
         configuredTargetKey.getLabel(), configuredTargetKey.getConfiguration());
@@ -222,12 +244,16 @@ final class ConfiguredTargetFunction implements SkyFunction {
     cpuBoundSemaphore.acquire();
     try {
       // Get the configuration targets that trigger this rule's configurable attributes.
-      ImmutableMap<Label, ConfigMatchingProvider> configConditions = getConfigConditions(
-          ctgValue.getTarget(), env, resolver, ctgValue, transitivePackages,
-          transitiveLoadingRootCauses);
-      if (env.valuesMissing()) {
-        return null;
+      if (state.configConditions == null) {
+        ImmutableMap<Label, ConfigMatchingProvider> configConditions = getConfigConditions(
+            ctgValue.getTarget(), env, resolver, ctgValue, transitivePackages,
+            transitiveLoadingRootCauses);
+        if (env.valuesMissing()) {
+          return null;
+        }
+        state.configConditions = configConditions;
       }
+      ImmutableMap<Label, ConfigMatchingProvider> configConditions = state.configConditions;
       // TODO(ulfjack): ConfiguredAttributeMapper (indirectly used from computeDependencies) isn't
       // safe to use if there are missing config conditions, so we stop here, but only if there are
       // config conditions - though note that we can't check if configConditions is non-empty - it
@@ -250,7 +276,8 @@ final class ConfiguredTargetFunction implements SkyFunction {
               ruleClassProvider,
               view.getHostConfiguration(configuration),
               transitivePackages,
-              transitiveLoadingRootCauses);
+              transitiveLoadingRootCauses,
+              state);
       if (env.valuesMissing()) {
         return null;
       }
@@ -320,41 +347,86 @@ final class ConfiguredTargetFunction implements SkyFunction {
       NestedSetBuilder<Label> transitiveLoadingRootCauses)
       throws DependencyEvaluationException, ConfiguredTargetFunctionException,
       AspectCreationException, InterruptedException {
-    // Create the map from attributes to set of (target, configuration) pairs.
-    OrderedSetMultimap<Attribute, Dependency> depValueNames;
-    try {
-      depValueNames = resolver.dependentNodeMap(
-          ctgValue, hostConfiguration, aspects, configConditions, transitiveLoadingRootCauses);
-    } catch (EvalException e) {
-      // EvalException can only be thrown by computed Skylark attributes in the current rule.
-      env.getListener().handle(Event.error(e.getLocation(), e.getMessage()));
-      throw new DependencyEvaluationException(
-          new ConfiguredValueCreationException(e.print(), ctgValue.getLabel()));
-    } catch (InvalidConfigurationException e) {
-      throw new DependencyEvaluationException(e);
-    } catch (InconsistentAspectOrderException e) {
-      env.getListener().handle(Event.error(e.getLocation(), e.getMessage()));
-      throw new DependencyEvaluationException(e);
-    }
+    return computeDependencies(
+        env,
+        resolver,
+        ctgValue,
+        aspects,
+        configConditions,
+        ruleClassProvider,
+        hostConfiguration,
+        transitivePackages,
+        transitiveLoadingRootCauses,
+        new ComputeDependenciesState());
+  }
 
-    // Trim each dep's configuration so it only includes the fragments needed by its transitive
-    // closure (only dynamic configurations support this).
-    if (useDynamicConfigurations(ctgValue.getConfiguration())) {
-      depValueNames = getDynamicConfigurations(env, ctgValue, depValueNames, hostConfiguration,
-          ruleClassProvider);
-      // It's important that we don't use "if (env.missingValues()) { return null }" here (or
-      // in the following lines). See the comments in getDynamicConfigurations' Skyframe call
-      // for explanation.
-      if (depValueNames == null) {
-        return null;
+  /**
+   * Like {@link #computeDependencies(Environment, SkyframeDependencyResolver,
+   * TargetAndConfiguration, Iterable, ImmutableMap, RuleClassProvider, BuildConfiguration,
+   * NestedSetBuilder, NestedSetBuilder)}, but skips the steps whose results are in {@code state},
+   * and stores there those of the steps it completes. The caller must pass the same {@code
+   * transitivePackages} and {@code transitiveLoadingRootCauses} along with the same state.
+   */
+  @Nullable
+  private static OrderedSetMultimap<Attribute, ConfiguredTarget> computeDependencies(
+      Environment env,
+      SkyframeDependencyResolver resolver,
+      TargetAndConfiguration ctgValue,
+      Iterable<Aspect> aspects,
+      ImmutableMap<Label, ConfigMatchingProvider> configConditions,
+      RuleClassProvider ruleClassProvider,
+      BuildConfiguration hostConfiguration,
+      NestedSetBuilder<Package> transitivePackages,
+      NestedSetBuilder<Label> transitiveLoadingRootCauses,
+      ComputeDependenciesState state)
+      throws DependencyEvaluationException, ConfiguredTargetFunctionException,
+      AspectCreationException, InterruptedException {
+    OrderedSetMultimap<Attribute, Dependency> depValueNames = state.depValueNames;
+    if (depValueNames == null) {
+      // Create the map from attributes to set of (target, configuration) pairs.
+      try {
+        depValueNames = resolver.dependentNodeMap(
+            ctgValue, hostConfiguration, aspects, configConditions, transitiveLoadingRootCauses);
+      } catch (EvalException e) {
+        // EvalException can only be thrown by computed Skylark attributes in the current rule.
+        env.getListener().handle(Event.error(e.getLocation(), e.getMessage()));
+        throw new DependencyEvaluationException(
+            new ConfiguredValueCreationException(e.print(), ctgValue.getLabel()));
+      } catch (InvalidConfigurationException e) {
+        throw new DependencyEvaluationException(e);
+      } catch (InconsistentAspectOrderException e) {
+        env.getListener().handle(Event.error(e.getLocation(), e.getMessage()));
+        throw new DependencyEvaluationException(e);
+      }
+
+      // Trim each dep's configuration so it only includes the fragments needed by its transitive
+      // closure (only dynamic configurations support this).
+      if (useDynamicConfigurations(ctgValue.getConfiguration())) {
+        depValueNames = getDynamicConfigurations(env, ctgValue, depValueNames, hostConfiguration,
+            ruleClassProvider);
+        // It's important that we don't use "if (env.missingValues()) { return null }" here (or
+        // in the following lines). See the comments in getDynamicConfigurations' Skyframe call
+        // for explanation.
+        if (depValueNames == null) {
+          return null;
+        }
+      }
+      if (!env.valuesMissing()) {
+        // Otherwise, the map may lack the deps of targets that are not loaded yet.
+        state.depValueNames = depValueNames;
       }
     }
 
     // Resolve configured target dependencies and handle errors.
-    Map<SkyKey, ConfiguredTarget> depValues = resolveConfiguredTargetDependencies(env,
-        depValueNames.values(), transitivePackages, transitiveLoadingRootCauses);
+    Map<SkyKey, ConfiguredTarget> depValues = state.depValues;
     if (depValues == null) {
-      return null;
+      depValues = resolveConfiguredTargetDependencies(env,
+          depValueNames.values(), transitivePackages, transitiveLoadingRootCauses);
+      if (depValues == null) {
+        return null;
+      }
+      // No values were missing, so the names it was computed from are complete.
+      state.depValues = depValues;
     }
 
     // Resolve required aspects.
@@ -53,6 +53,11 @@ public abstract class ContainingPackageLookupValue implements SkyValue {
 
     private NoContainingPackage() {}
 
+    /** Keeps the value unique when it is restored from a graph snapshot. */
+    private Object readResolve() {
+      return NONE;
+    }
+
     @Override
     public boolean hasContainingPackage() {
       return false;
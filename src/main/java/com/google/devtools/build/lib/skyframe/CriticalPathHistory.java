@@ -0,0 +1,142 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How long each action took, in previous builds, from its start to the end of the longest chain
+ * of actions that depended on it, keyed by the exec path of its outputs. Used to start the actions
+ * with the longest tail first.
+ *
+ * <p>The history is persisted in a file of the output base, so that it survives server restarts.
+ * When an action is observed to be faster than recorded, for example because it was an action cache
+ * hit, its recorded time is only halved, so that a single cached build does not erase what was
+ * learned about the long poles of the build.
+ */
+@ThreadSafe
+public final class CriticalPathHistory {
+  private static final Logger LOG = Logger.getLogger(CriticalPathHistory.class.getName());
+
+  private static final int MAGIC = 0x43504831;
+  private static final int VERSION = 1;
+
+  /** The number of outputs kept, those with the longest times. */
+  @VisibleForTesting static final int MAX_ENTRIES = 1 << 20;
+
+  private final Path file;
+  private final Map<String, Long> remainingMillis = new ConcurrentHashMap<>();
+
+  private CriticalPathHistory(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns the history stored in {@code file}, or an empty history that will be stored there if
+   * the file does not exist or cannot be read.
+   */
+  public static CriticalPathHistory load(Path file) {
+    CriticalPathHistory history = new CriticalPathHistory(file);
+    if (!file.exists()) {
+      return history;
+    }
+    try (DataInputStream in =
+        new DataInputStream(
+            new GZIPInputStream(new BufferedInputStream(file.getInputStream())))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unexpected format");
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        history.remainingMillis.put(in.readUTF(), in.readLong());
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Ignoring critical path history " + file, e);
+      history.remainingMillis.clear();
+    }
+    return history;
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /** Returns the recorded time of the action generating {@code execPath}, or 0 if unknown. */
+  public long getRemainingMillis(String execPath) {
+    Long millis = remainingMillis.get(execPath);
+    return millis == null ? 0 : millis;
+  }
+
+  /** Records the times observed in a build, keyed by the exec paths of action outputs. */
+  public void update(Map<String, Long> observed) {
+    for (Map.Entry<String, Long> entry : observed.entrySet()) {
+      Long previous = remainingMillis.get(entry.getKey());
+      long millis = entry.getValue();
+      if (previous != null && previous / 2 > millis) {
+        millis = previous / 2;
+      }
+      remainingMillis.put(entry.getKey(), millis);
+    }
+  }
+
+  /** Writes the history to its file, keeping only the {@link #MAX_ENTRIES} longest times. */
+  public void save() throws IOException {
+    List<Map.Entry<String, Long>> entries = new ArrayList<>(remainingMillis.entrySet());
+    if (entries.size() > MAX_ENTRIES) {
+      entries =
+          new Ordering<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> left, Map.Entry<String, Long> right) {
+              return Long.compare(left.getValue(), right.getValue());
+            }
+          }.greatestOf(entries, MAX_ENTRIES);
+    }
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new GZIPOutputStream(new BufferedOutputStream(tmpFile.getOutputStream())))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Long> entry : entries) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+    }
+    tmpFile.renameTo(file);
+  }
+
+  @VisibleForTesting
+  int size() {
+    return remainingMillis.size();
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.actions.ActionLookupData;
+import com.google.devtools.build.lib.actions.ActionLookupValue;
+import com.google.devtools.build.skyframe.EvaluationPriority;
+import com.google.devtools.build.skyframe.NodeEntry;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.Map;
+
+/**
+ * Evaluates first the actions that were on the longest chains of actions in previous builds,
+ * according to a {@link CriticalPathHistory}.
+ *
+ * <p>Nodes other than actions are evaluated before all actions: they are cheap, and evaluating them
+ * is what discovers the actions that are ready, so delaying them would only hide long poles from
+ * the ranking.
+ */
+final class CriticalPathPriority implements EvaluationPriority {
+  private final CriticalPathHistory history;
+  private final Map<SkyKey, ? extends NodeEntry> graph;
+
+  CriticalPathPriority(CriticalPathHistory history, Map<SkyKey, ? extends NodeEntry> graph) {
+    this.history = history;
+    this.graph = graph;
+  }
+
+  @Override
+  public long getPriority(SkyKey key) {
+    if (!key.functionName().equals(SkyFunctions.ACTION_EXECUTION)) {
+      return Long.MAX_VALUE;
+    }
+    ActionLookupData actionLookupData = (ActionLookupData) key.argument();
+    // The action was created by analysis, which is done by the time the action is enqueued.
+    NodeEntry lookupEntry = graph.get(actionLookupData.getActionLookupNode());
+    if (lookupEntry == null || !lookupEntry.isDone()) {
+      return 0;
+    }
+    SkyValue lookupValue;
+    try {
+      lookupValue = lookupEntry.toValue();
+    } catch (InterruptedException e) {
+      // In-memory entries are not interruptible. Leave the interrupt to the evaluator.
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+    if (!(lookupValue instanceof ActionLookupValue)) {
+      return 0;
+    }
+    return history.getRemainingMillis(
+        ((ActionLookupValue) lookupValue)
+            .getAction(actionLookupData.getActionIndex())
+            .getPrimaryOutput()
+            .getExecPathString());
+  }
+}
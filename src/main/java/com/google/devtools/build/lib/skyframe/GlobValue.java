@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
@@ -26,6 +27,9 @@ import com.google.devtools.build.lib.vfs.UnixGlob;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 
 /** A value corresponding to a glob. */
 @Immutable
@@ -55,6 +59,29 @@ public final class GlobValue implements SkyValue {
     return matches;
   }
 
+  private Object writeReplace() {
+    return new SerializationProxy(matches);
+  }
+
+  private void readObject(@SuppressWarnings("unused") ObjectInputStream in) throws IOException {
+    throw new IOException("Serialization is allowed only by proxy");
+  }
+
+  /** Serializes the matches of a {@link GlobValue}, which is not itself serializable. */
+  private static final class SerializationProxy implements Serializable {
+    private final ImmutableList<PathFragment> matches;
+
+    private SerializationProxy(NestedSet<PathFragment> matches) {
+      this.matches = ImmutableList.copyOf(matches.toList());
+    }
+
+    private Object readResolve() {
+      return matches.isEmpty()
+          ? EMPTY
+          : new GlobValue(NestedSetBuilder.wrap(Order.STABLE_ORDER, matches));
+    }
+  }
+
   @Override
   public boolean equals(Object other) {
     if (other == this) {
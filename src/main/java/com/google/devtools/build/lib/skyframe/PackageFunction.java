@@ -64,6 +64,7 @@ import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.ValueOrException2;
 import com.google.devtools.build.skyframe.ValueOrException3;
@@ -211,6 +212,23 @@ public class PackageFunction implements SkyFunction {
     }
   }
 
+  /**
+   * The deps that {@link #compute} looked up before it can load the package, and, when it inlines
+   * the loading of Skylark imports, the imports it loaded, so that it does not look them up again
+   * after a restart. The package itself is kept across restarts by {@link #packageFunctionCache}.
+   */
+  private static class State implements SkyKeyComputeState {
+    @Nullable private PackageLookupValue packageLookupValue;
+    @Nullable private String workspaceName;
+    @Nullable private FileValue buildFileValue;
+    @Nullable private String replacementContents;
+    @Nullable private RuleVisibility defaultVisibility;
+    @Nullable private SkylarkSemanticsOptions skylarkSemantics;
+    @Nullable private List<Statement> preludeStatements;
+    private final LinkedHashMap<Label, SkylarkImportLookupValue> inlinedImports =
+        new LinkedHashMap<>();
+  }
+
   private static void maybeThrowFilesystemInconsistency(PackageIdentifier packageIdentifier,
       Exception skyframeException, boolean packageWasInError)
           throws InternalInconsistentFilesystemException {
@@ -461,94 +479,113 @@ public class PackageFunction implements SkyFunction {
   public SkyValue compute(SkyKey key, Environment env) throws PackageFunctionException,
       InterruptedException {
     PackageIdentifier packageId = (PackageIdentifier) key.argument();
+    State state = env.getState(State::new);
 
-    SkyKey packageLookupKey = PackageLookupValue.key(packageId);
-    PackageLookupValue packageLookupValue;
-    try {
-      packageLookupValue = (PackageLookupValue)
-          env.getValueOrThrow(packageLookupKey, BuildFileNotFoundException.class,
-              InconsistentFilesystemException.class);
-    } catch (BuildFileNotFoundException e) {
-      throw new PackageFunctionException(e, Transience.PERSISTENT);
-    } catch (InconsistentFilesystemException e) {
-      // This error is not transient from the perspective of the PackageFunction.
-      throw new PackageFunctionException(
-          new NoSuchPackageException(packageId, e.getMessage(), e), Transience.PERSISTENT);
-    }
-    if (packageLookupValue == null) {
-      return null;
-    }
+    if (state.packageLookupValue == null) {
+      SkyKey packageLookupKey = PackageLookupValue.key(packageId);
+      PackageLookupValue packageLookupValue;
+      try {
+        packageLookupValue = (PackageLookupValue)
+            env.getValueOrThrow(packageLookupKey, BuildFileNotFoundException.class,
+                InconsistentFilesystemException.class);
+      } catch (BuildFileNotFoundException e) {
+        throw new PackageFunctionException(e, Transience.PERSISTENT);
+      } catch (InconsistentFilesystemException e) {
+        // This error is not transient from the perspective of the PackageFunction.
+        throw new PackageFunctionException(
+            new NoSuchPackageException(packageId, e.getMessage(), e), Transience.PERSISTENT);
+      }
+      if (packageLookupValue == null) {
+        return null;
+      }
 
-    if (!packageLookupValue.packageExists()) {
-      switch (packageLookupValue.getErrorReason()) {
-        case NO_BUILD_FILE:
-        case DELETED_PACKAGE:
-        case REPOSITORY_NOT_FOUND:
-          throw new PackageFunctionException(new BuildFileNotFoundException(packageId,
-              packageLookupValue.getErrorMsg()), Transience.PERSISTENT);
-        case INVALID_PACKAGE_NAME:
-          throw new PackageFunctionException(new InvalidPackageNameException(packageId,
-              packageLookupValue.getErrorMsg()), Transience.PERSISTENT);
-        default:
-          // We should never get here.
-          throw new IllegalStateException();
+      if (!packageLookupValue.packageExists()) {
+        switch (packageLookupValue.getErrorReason()) {
+          case NO_BUILD_FILE:
+          case DELETED_PACKAGE:
+          case REPOSITORY_NOT_FOUND:
+            throw new PackageFunctionException(new BuildFileNotFoundException(packageId,
+                packageLookupValue.getErrorMsg()), Transience.PERSISTENT);
+          case INVALID_PACKAGE_NAME:
+            throw new PackageFunctionException(new InvalidPackageNameException(packageId,
+                packageLookupValue.getErrorMsg()), Transience.PERSISTENT);
+          default:
+            // We should never get here.
+            throw new IllegalStateException();
+        }
       }
+      state.packageLookupValue = packageLookupValue;
     }
+    PackageLookupValue packageLookupValue = state.packageLookupValue;
 
     if (packageId.equals(Label.EXTERNAL_PACKAGE_IDENTIFIER)) {
       return getExternalPackage(env, packageLookupValue.getRoot());
     }
-    WorkspaceNameValue workspaceNameValue =
-        (WorkspaceNameValue) env.getValue(WorkspaceNameValue.key());
-    if (workspaceNameValue == null) {
-      return null;
+    if (state.workspaceName == null) {
+      WorkspaceNameValue workspaceNameValue =
+          (WorkspaceNameValue) env.getValue(WorkspaceNameValue.key());
+      if (workspaceNameValue == null) {
+        return null;
+      }
+      state.workspaceName = workspaceNameValue.getName();
     }
-    String workspaceName = workspaceNameValue.getName();
+    String workspaceName = state.workspaceName;
     RootedPath buildFileRootedPath = packageLookupValue.getRootedPath(packageId);
-    FileValue buildFileValue = null;
     Path buildFilePath = buildFileRootedPath.asPath();
-    String replacementContents = null;
 
     if (!isDefaultsPackage(packageId)) {
-      buildFileValue = getBuildFileValue(env, buildFileRootedPath);
-      if (buildFileValue == null) {
-        return null;
+      if (state.buildFileValue == null) {
+        state.buildFileValue = getBuildFileValue(env, buildFileRootedPath);
+        if (state.buildFileValue == null) {
+          return null;
+        }
       }
-    } else {
-      replacementContents = PrecomputedValue.DEFAULTS_PACKAGE_CONTENTS.get(env);
-      if (replacementContents == null) {
+    } else if (state.replacementContents == null) {
+      state.replacementContents = PrecomputedValue.DEFAULTS_PACKAGE_CONTENTS.get(env);
+      if (state.replacementContents == null) {
         return null;
       }
     }
+    FileValue buildFileValue = state.buildFileValue;
+    String replacementContents = state.replacementContents;
 
-    RuleVisibility defaultVisibility = PrecomputedValue.DEFAULT_VISIBILITY.get(env);
-    if (defaultVisibility == null) {
-      return null;
+    if (state.defaultVisibility == null) {
+      state.defaultVisibility = PrecomputedValue.DEFAULT_VISIBILITY.get(env);
+      if (state.defaultVisibility == null) {
+        return null;
+      }
     }
+    RuleVisibility defaultVisibility = state.defaultVisibility;
 
-    SkylarkSemanticsOptions skylarkSemantics = PrecomputedValue.SKYLARK_SEMANTICS.get(env);
-    if (skylarkSemantics == null) {
-      return null;
+    if (state.skylarkSemantics == null) {
+      state.skylarkSemantics = PrecomputedValue.SKYLARK_SEMANTICS.get(env);
+      if (state.skylarkSemantics == null) {
+        return null;
+      }
     }
+    SkylarkSemanticsOptions skylarkSemantics = state.skylarkSemantics;
 
-    SkyKey astLookupKey = ASTFileLookupValue.key(preludeLabel);
-    ASTFileLookupValue astLookupValue = null;
-    try {
-      astLookupValue = (ASTFileLookupValue) env.getValueOrThrow(astLookupKey,
-          ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
-    } catch (ErrorReadingSkylarkExtensionException | InconsistentFilesystemException e) {
-      throw new PackageFunctionException(
-          new NoSuchPackageException(
-              packageId, "Error encountered while reading the prelude file: " + e.getMessage()),
-          Transience.PERSISTENT);
-    }
-    if (astLookupValue == null) {
-      return null;
+    if (state.preludeStatements == null) {
+      SkyKey astLookupKey = ASTFileLookupValue.key(preludeLabel);
+      ASTFileLookupValue astLookupValue = null;
+      try {
+        astLookupValue = (ASTFileLookupValue) env.getValueOrThrow(astLookupKey,
+            ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
+      } catch (ErrorReadingSkylarkExtensionException | InconsistentFilesystemException e) {
+        throw new PackageFunctionException(
+            new NoSuchPackageException(
+                packageId, "Error encountered while reading the prelude file: " + e.getMessage()),
+            Transience.PERSISTENT);
+      }
+      if (astLookupValue == null) {
+        return null;
+      }
+      // The prelude file doesn't have to exist. If not, we substitute an empty statement list.
+      state.preludeStatements =
+          astLookupValue.lookupSuccessful()
+              ? astLookupValue.getAST().getStatements() : ImmutableList.<Statement>of();
     }
-    // The prelude file doesn't have to exist. If not, we substitute an empty statement list.
-    List<Statement> preludeStatements =
-        astLookupValue.lookupSuccessful()
-            ? astLookupValue.getAST().getStatements() : ImmutableList.<Statement>of();
+    List<Statement> preludeStatements = state.preludeStatements;
     CacheEntryWithGlobDeps<Package.Builder> packageBuilderAndGlobDeps =
         loadPackage(
             workspaceName,
@@ -560,6 +597,7 @@ public class PackageFunction implements SkyFunction {
             skylarkSemantics,
             preludeStatements,
             packageLookupValue.getRoot(),
+            state.inlinedImports,
             env);
     if (packageBuilderAndGlobDeps == null) {
       return null;
@@ -656,6 +694,29 @@ public class PackageFunction implements SkyFunction {
       Environment env,
       SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining)
       throws NoSuchPackageException, InterruptedException {
+    return fetchImportsFromBuildFile(
+        buildFilePath,
+        packageId,
+        buildFileAST,
+        env,
+        skylarkImportLookupFunctionForInlining,
+        new LinkedHashMap<Label, SkylarkImportLookupValue>());
+  }
+
+  /**
+   * Like {@link #fetchImportsFromBuildFile(Path, PackageIdentifier, BuildFileAST, Environment,
+   * SkylarkImportLookupFunction)}, but when inlining, starts from the imports in {@code
+   * inlinedImports}, and adds to it those it loads, so that a restarted caller that passes the same
+   * map does not load them again.
+   */
+  private static SkylarkImportResult fetchImportsFromBuildFile(
+      Path buildFilePath,
+      PackageIdentifier packageId,
+      BuildFileAST buildFileAST,
+      Environment env,
+      SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
+      LinkedHashMap<Label, SkylarkImportLookupValue> inlinedImports)
+      throws NoSuchPackageException, InterruptedException {
     Preconditions.checkArgument(!packageId.getRepository().isDefault());
 
     ImmutableList<SkylarkImport> imports = buildFileAST.getImports();
@@ -712,12 +773,10 @@ public class PackageFunction implements SkyFunction {
         }
       } else {
         // Inlining calls to SkylarkImportLookupFunction
-        LinkedHashMap<Label, SkylarkImportLookupValue> alreadyVisitedImports =
-            Maps.newLinkedHashMapWithExpectedSize(importLookupKeys.size());
         for (SkyKey importLookupKey : importLookupKeys) {
           SkyValue skyValue =
               skylarkImportLookupFunctionForInlining.computeWithInlineCalls(
-                  importLookupKey, env, alreadyVisitedImports);
+                  importLookupKey, env, inlinedImports);
           if (skyValue == null) {
             Preconditions.checkState(
                 env.valuesMissing(), "no skylark import value for %s", importLookupKey);
@@ -1179,6 +1238,7 @@ public class PackageFunction implements SkyFunction {
       SkylarkSemanticsOptions skylarkSemantics,
       List<Statement> preludeStatements,
       Path packageRoot,
+      LinkedHashMap<Label, SkylarkImportLookupValue> inlinedImports,
       Environment env)
       throws InterruptedException, PackageFunctionException {
     CacheEntryWithGlobDeps<Package.Builder> packageFunctionCacheEntry =
@@ -1256,7 +1316,8 @@ public class PackageFunction implements SkyFunction {
                   packageId,
                   astAfterPreprocessing.ast,
                   env,
-                  skylarkImportLookupFunctionForInlining);
+                  skylarkImportLookupFunctionForInlining,
+                  inlinedImports);
         } catch (NoSuchPackageException e) {
           throw new PackageFunctionException(e, Transience.PERSISTENT);
         } catch (InterruptedException e) {
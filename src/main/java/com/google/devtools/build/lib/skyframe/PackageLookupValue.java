@@ -235,6 +235,11 @@ public abstract class PackageLookupValue implements SkyValue {
     private NoBuildFilePackageLookupValue() {
     }
 
+    /** Keeps the marker value unique when it is restored from a graph snapshot. */
+    private Object readResolve() {
+      return NO_BUILD_FILE_VALUE;
+    }
+
     @Override
     ErrorReason getErrorReason() {
       return ErrorReason.NO_BUILD_FILE;
@@ -286,6 +291,11 @@ public abstract class PackageLookupValue implements SkyValue {
     private DeletedPackageLookupValue() {
     }
 
+    /** Keeps the marker value unique when it is restored from a graph snapshot. */
+    private Object readResolve() {
+      return DELETED_PACKAGE_VALUE;
+    }
+
     @Override
     ErrorReason getErrorReason() {
       return ErrorReason.DELETED_PACKAGE;
@@ -305,6 +315,11 @@ public abstract class PackageLookupValue implements SkyValue {
 
     private NoRepositoryPackageLookupValue() {}
 
+    /** Keeps the marker value unique when it is restored from a graph snapshot. */
+    private Object readResolve() {
+      return NO_SUCH_REPOSITORY_VALUE;
+    }
+
     @Override
     ErrorReason getErrorReason() {
       return ErrorReason.REPOSITORY_NOT_FOUND;
@@ -18,22 +18,33 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.packages.BuildFileContainsErrorsException;
 import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageFingerprinter;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.skyframe.FingerprintedSkyValue;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.NotComparableSkyValue;
 import com.google.devtools.build.skyframe.SkyKey;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * A Skyframe value representing a package.
+ *
+ * <p>Packages are not comparable, but a package that is loaded again with the same targets,
+ * attributes and locations has the same {@link #getFingerprint fingerprint}, so its dependents are
+ * not re-evaluated. Edits to a BUILD file that only touch comments or whitespace without moving
+ * targets to other lines, or a touch of the file, thus do not reach the targets of the package.
  */
 @Immutable
 @ThreadSafe
-public class PackageValue implements NotComparableSkyValue {
+public class PackageValue implements NotComparableSkyValue, FingerprintedSkyValue {
 
   private final Package pkg;
 
+  /** Computed when the package is first compared, since most never are. */
+  @Nullable private volatile byte[] fingerprint;
+
   public PackageValue(Package pkg) {
     this.pkg = Preconditions.checkNotNull(pkg);
   }
@@ -48,6 +59,17 @@ public class PackageValue implements NotComparableSkyValue {
     return pkg;
   }
 
+  @Override
+  public byte[] getFingerprint() {
+    byte[] result = fingerprint;
+    if (result == null) {
+      // Racing threads compute the same digest, so either may win.
+      result = PackageFingerprinter.fingerprint(pkg);
+      fingerprint = result;
+    }
+    return result;
+  }
+
   @Override
   public String toString() {
     return "<PackageValue name=" + pkg.getName() + ">";
@@ -361,7 +361,10 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       throws InterruptedException, AbruptExitException {
     super.sync(eventHandler, packageCacheOptions, skylarkSemanticsOptions, outputBase,
         workingDirectory, defaultsPackageContents, commandId, clientEnv, tsgm, options);
-    handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles, options);
+    // Output files may have been modified while no server was watching them, so the restored ones
+    // are checked as well.
+    boolean restoredGraph = maybeRestoreGraphSnapshot();
+    handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles || restoredGraph, options);
   }
 
   /**
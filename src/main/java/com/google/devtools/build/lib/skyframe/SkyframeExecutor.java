@@ -125,6 +125,7 @@ import com.google.devtools.build.lib.util.ResourceUsage;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -143,12 +144,17 @@ import com.google.devtools.build.skyframe.Injectable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import com.google.devtools.common.options.OptionsClassProvider;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -168,6 +174,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -189,6 +196,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   protected final ExternalFilesHelper externalFilesHelper;
   @Nullable
   private OutputService outputService;
+  @Nullable private CriticalPathHistory criticalPathHistory;
 
   // TODO(bazel-team): Figure out how to handle value builders that block internally. Blocking
   // operations may need to be handled in another (bigger?) thread pool. Also, we should detect
@@ -295,6 +303,51 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
   private static final Logger LOG = Logger.getLogger(SkyframeExecutor.class.getName());
 
+  /**
+   * The value types that are written to graph snapshots. Their values only depend on the file
+   * system, on the {@link #GRAPH_SNAPSHOT_PRECOMPUTED_KEYS} and on the {@link
+   * #graphSnapshotIdentity}, so the {@link FilesystemValueChecker} and the injection of the
+   * precomputed values can tell which of the restored ones are stale, and they survive
+   * serialization. Packages and the ASTs they are built from do not serialize, so they are loaded
+   * again by a restored server, but without redoing their package lookups and globs.
+   */
+  private static final ImmutableSet<SkyFunctionName> GRAPH_SNAPSHOT_FUNCTIONS =
+      ImmutableSet.of(
+          SkyFunctions.FILE_STATE,
+          SkyFunctions.FILE,
+          SkyFunctions.DIRECTORY_LISTING_STATE,
+          SkyFunctions.DIRECTORY_LISTING,
+          SkyFunctions.BLACKLISTED_PACKAGE_PREFIXES,
+          SkyFunctions.LOCAL_REPOSITORY_LOOKUP,
+          SkyFunctions.PACKAGE_LOOKUP,
+          SkyFunctions.CONTAINING_PACKAGE_LOOKUP,
+          SkyFunctions.GLOB);
+
+  /**
+   * The precomputed values that the {@link #GRAPH_SNAPSHOT_FUNCTIONS} depend on. They are injected
+   * again by every {@link #sync}, which replaces the restored ones that differ.
+   */
+  private static final ImmutableSet<SkyKey> GRAPH_SNAPSHOT_PRECOMPUTED_KEYS =
+      ImmutableSet.of(
+          PrecomputedValue.PATH_PACKAGE_LOCATOR.getKeyForTesting(),
+          PrecomputedValue.BLACKLISTED_PACKAGE_PREFIXES_FILE.getKeyForTesting());
+
+  private static final Predicate<SkyKey> IS_GRAPH_SNAPSHOT_KEY =
+      new Predicate<SkyKey>() {
+        @Override
+        public boolean apply(SkyKey key) {
+          return GRAPH_SNAPSHOT_FUNCTIONS.contains(key.functionName())
+              || GRAPH_SNAPSHOT_PRECOMPUTED_KEYS.contains(key);
+        }
+      };
+
+  @Nullable private Path graphSnapshotFile;
+  /**
+   * Whether a node of one of the {@link #GRAPH_SNAPSHOT_FUNCTIONS} was built or invalidated since
+   * the graph snapshot was last written or restored.
+   */
+  private volatile boolean graphChangedSinceSnapshot = false;
+
   protected SkyframeExecutor(
       EvaluatorSupplier evaluatorSupplier,
       PackageFactory pkgFactory,
@@ -532,6 +585,64 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.outputService = outputService;
   }
 
+  /**
+   * Sets the history used to start the actions with the longest tail first during execution, or
+   * restores the default order, in which actions start as soon as they are ready, if null.
+   */
+  public void setCriticalPathHistory(@Nullable CriticalPathHistory criticalPathHistory) {
+    this.criticalPathHistory = criticalPathHistory;
+  }
+
+  /**
+   * Drops, once the current or next evaluation is done, the values of the nodes that are cheap to
+   * compute again from their deps, keeping the nodes and their edges: parsed BUILD files and globs. They
+   * are recomputed when next requested, without re-evaluating the nodes that depend on them unless
+   * their deps changed. Action executions are left alone, since running an action again is not
+   * cheap.
+   *
+   * <p>May be called from any thread, for instance when the heap is nearly full.
+   */
+  @ThreadSafety.ThreadSafe
+  public void evictRecomputableNodes() {
+    memoizingEvaluator.evict(RECOMPUTABLE_NODES);
+  }
+
+  private static final Predicate<SkyKey> RECOMPUTABLE_NODES =
+      SkyFunctionName.functionIsIn(ImmutableSet.of(SkyFunctions.AST_FILE_LOOKUP, SkyFunctions.GLOB));
+
+  /** Returns the calls made to each {@link SkyFunction} since this executor was created. */
+  public SkyFunctionMetrics getSkyFunctionMetrics() {
+    return memoizingEvaluator.getSkyFunctionMetrics();
+  }
+
+  /** Returns the number of values kept in the graph for each {@link SkyFunction}. */
+  public ImmutableMap<SkyFunctionName, Integer> countValuesByFunction() {
+    Map<SkyFunctionName, Integer> counts = new HashMap<>();
+    for (SkyKey key : memoizingEvaluator.getDoneValues().keySet()) {
+      counts.merge(key.functionName(), 1, Integer::sum);
+    }
+    return ImmutableMap.copyOf(counts);
+  }
+
+  /** Starts recording the evaluations of the graph, for {@link #writeEvaluationTrace}. */
+  public void startEvaluationTrace() {
+    memoizingEvaluator.startTrace();
+  }
+
+  /**
+   * Writes the {@link com.google.devtools.build.skyframe.EvaluationTrace} of the evaluations since
+   * {@link #startEvaluationTrace} to {@code traceFile}, for replaying in benchmarks.
+   */
+  public void writeEvaluationTrace(Path traceFile) throws IOException {
+    try (AutoProfiler p = AutoProfiler.logged("writing Skyframe evaluation trace", LOG)) {
+      int nodes;
+      try (OutputStream out = new BufferedOutputStream(traceFile.getOutputStream())) {
+        nodes = memoizingEvaluator.writeTrace(out);
+      }
+      LOG.info("Wrote " + nodes + " nodes to " + traceFile);
+    }
+  }
+
   /**
    * Notify listeners about changed files, and release any associated memory afterwards.
    */
@@ -669,6 +780,85 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return true;
   }
 
+  /**
+   * Sets the file that {@link #saveGraphSnapshot} writes the graph to, and that the first {@link
+   * #sync} of a new evaluator restores it from, or null to not keep a snapshot of the graph.
+   */
+  public void setGraphSnapshotFile(@Nullable Path graphSnapshotFile) {
+    this.graphSnapshotFile = graphSnapshotFile;
+  }
+
+  /**
+   * Writes the file system and package lookup nodes of the graph to the graph snapshot file, if
+   * there is one and one of those nodes changed since it was last written. Must not be called while
+   * the graph is being evaluated or invalidated.
+   *
+   * <p>A restored graph saves the server the file system operations, package lookups and globs of
+   * its first build, but not the loading of packages and the analysis; and the restored file system
+   * nodes are still checked against the file system once.
+   */
+  public void saveGraphSnapshot() throws IOException, InterruptedException {
+    if (graphSnapshotFile == null || !graphChangedSinceSnapshot || !hasIncrementalState()) {
+      return;
+    }
+    FileSystemUtils.createDirectoryAndParents(graphSnapshotFile.getParentDirectory());
+    Path tmpFile = graphSnapshotFile.getParentDirectory()
+        .getChild(graphSnapshotFile.getBaseName() + ".tmp");
+    try (AutoProfiler p = AutoProfiler.logged("writing Skyframe graph snapshot", LOG)) {
+      int nodes;
+      try (OutputStream out = new BufferedOutputStream(tmpFile.getOutputStream())) {
+        nodes =
+            memoizingEvaluator.writeSnapshot(
+                out,
+                graphSnapshotIdentity(),
+                IS_GRAPH_SNAPSHOT_KEY);
+      }
+      tmpFile.renameTo(graphSnapshotFile);
+      LOG.info("Wrote " + nodes + " nodes to " + graphSnapshotFile);
+    }
+    graphChangedSinceSnapshot = false;
+  }
+
+  /**
+   * Restores the graph snapshot into the graph of a new evaluator, if there is a snapshot and the
+   * evaluator is still empty. The caller must then check the restored nodes against the file
+   * system before the next evaluation.
+   *
+   * @return whether any node was restored
+   */
+  protected boolean maybeRestoreGraphSnapshot() throws InterruptedException {
+    if (graphSnapshotFile == null
+        || !hasIncrementalState()
+        || !memoizingEvaluator.getGraphMap().isEmpty()
+        || !graphSnapshotFile.exists()) {
+      return false;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("restoring Skyframe graph snapshot", LOG);
+        InputStream in = new BufferedInputStream(graphSnapshotFile.getInputStream())) {
+      int nodes = memoizingEvaluator.restoreSnapshot(in, graphSnapshotIdentity());
+      LOG.info("Restored " + nodes + " nodes from " + graphSnapshotFile);
+      return nodes > 0;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Ignoring graph snapshot " + graphSnapshotFile, e);
+      return false;
+    }
+  }
+
+  /**
+   * Describes what the restored nodes of the graph depend on besides the files themselves and the
+   * precomputed values: the binary that computed them, the roots the files are looked up under,
+   * and the packages that are considered deleted, which package lookups read directly.
+   */
+  private String graphSnapshotIdentity() {
+    return directories.getInstallMD5()
+        + " "
+        + directories.getOutputBase()
+        + " "
+        + pkgLocator.get().getPathEntries()
+        + " "
+        + ImmutableSortedSet.copyOf(deletedPackages.get());
+  }
+
   @VisibleForTesting
   protected abstract Injectable injectable();
 
@@ -1224,12 +1414,17 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       Iterable<SkyKey> aspectKeys = AspectCompletionValue.keys(aspects, topLevelArtifactContext);
       Iterable<SkyKey> testKeys =
           TestCompletionValue.keys(targetsToTest, topLevelArtifactContext, exclusiveTesting);
+      if (criticalPathHistory != null) {
+        memoizingEvaluator.setEvaluationPriority(
+            new CriticalPathPriority(criticalPathHistory, memoizingEvaluator.getGraphMap()));
+      }
       return buildDriver.evaluate(
           Iterables.concat(artifactKeys, targetKeys, aspectKeys, testKeys),
           keepGoing,
           numJobs,
           reporter);
     } finally {
+      memoizingEvaluator.setEvaluationPriority(null);
       progressReceiver.executionProgressReceiver = null;
       // Also releases thread locks.
       resourceManager.resetResourceUsage();
@@ -2116,6 +2311,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void invalidated(SkyKey skyKey, InvalidationState state) {
+      noteGraphSnapshotChange(skyKey);
       if (ignoreInvalidations) {
         return;
       }
@@ -2135,6 +2331,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void evaluated(SkyKey skyKey, Supplier<SkyValue> valueSupplier, EvaluationState state) {
+      if (state == EvaluationState.BUILT) {
+        noteGraphSnapshotChange(skyKey);
+      }
       if (ignoreInvalidations) {
         return;
       }
@@ -2143,6 +2342,13 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         executionProgressReceiver.evaluated(skyKey, valueSupplier, state);
       }
     }
+
+    private void noteGraphSnapshotChange(SkyKey skyKey) {
+      if (!graphChangedSinceSnapshot
+          && GRAPH_SNAPSHOT_FUNCTIONS.contains(skyKey.functionName())) {
+        graphChangedSinceSnapshot = true;
+      }
+    }
   }
 
   public int getOutputDirtyFilesAndClear() {
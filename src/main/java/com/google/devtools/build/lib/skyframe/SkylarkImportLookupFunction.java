@@ -44,12 +44,14 @@ import com.google.devtools.build.lib.syntax.Mutability;
 import com.google.devtools.build.lib.syntax.SkylarkImport;
 import com.google.devtools.build.lib.syntax.SkylarkSemanticsOptions;
 import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.ValueOrException2;
 import java.util.LinkedHashMap;
@@ -121,43 +123,55 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
     PathFragment filePath = fileLabel.toPathFragment();
 
-    SkylarkSemanticsOptions skylarkSemantics = PrecomputedValue.SKYLARK_SEMANTICS.get(env);
-    if (skylarkSemantics == null) {
-      return null;
+    // Inlined calls share the environment of the function that inlines them, so only a call of its
+    // own can keep its state across restarts.
+    State state = alreadyVisited == null ? env.getState(State::new) : new State();
+
+    if (state.skylarkSemantics == null) {
+      state.skylarkSemantics = PrecomputedValue.SKYLARK_SEMANTICS.get(env);
+      if (state.skylarkSemantics == null) {
+        return null;
+      }
     }
+    SkylarkSemanticsOptions skylarkSemantics = state.skylarkSemantics;
 
     // Load the AST corresponding to this file.
-    ASTFileLookupValue astLookupValue;
-    try {
-      SkyKey astLookupKey = ASTFileLookupValue.key(fileLabel);
-      astLookupValue = (ASTFileLookupValue) env.getValueOrThrow(astLookupKey,
-          ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
-    } catch (ErrorReadingSkylarkExtensionException e) {
-      throw SkylarkImportFailedException.errorReadingFile(filePath, e);
-    }
-    if (astLookupValue == null) {
-      return null;
-    }
-    if (!astLookupValue.lookupSuccessful()) {
-      // Skylark import files have to exist.
-      throw SkylarkImportFailedException.noFile(astLookupValue.getErrorMsg());
-    }
-    BuildFileAST ast = astLookupValue.getAST();
-    if (ast.containsErrors()) {
-      throw SkylarkImportFailedException.skylarkErrors(filePath);
+    if (state.ast == null) {
+      ASTFileLookupValue astLookupValue;
+      try {
+        SkyKey astLookupKey = ASTFileLookupValue.key(fileLabel);
+        astLookupValue = (ASTFileLookupValue) env.getValueOrThrow(astLookupKey,
+            ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
+      } catch (ErrorReadingSkylarkExtensionException e) {
+        throw SkylarkImportFailedException.errorReadingFile(filePath, e);
+      }
+      if (astLookupValue == null) {
+        return null;
+      }
+      if (!astLookupValue.lookupSuccessful()) {
+        // Skylark import files have to exist.
+        throw SkylarkImportFailedException.noFile(astLookupValue.getErrorMsg());
+      }
+      state.ast = astLookupValue.getAST();
+      if (state.ast.containsErrors()) {
+        throw SkylarkImportFailedException.skylarkErrors(filePath);
+      }
     }
+    BuildFileAST ast = state.ast;
 
     // Process the load statements in the file.
     ImmutableList<SkylarkImport> imports = ast.getImports();
     Map<String, Extension> extensionsForImports = Maps.newHashMapWithExpectedSize(imports.size());
     ImmutableList.Builder<SkylarkFileDependency> fileDependencies = ImmutableList.builder();
-    ImmutableMap<String, Label> labelsForImports;
 
     // Find the labels corresponding to the load statements.
-    labelsForImports = findLabelsForLoadStatements(imports, fileLabel, env);
-    if (labelsForImports == null) {
-      return null;
+    if (state.labelsForImports == null) {
+      state.labelsForImports = findLabelsForLoadStatements(imports, fileLabel, env);
+      if (state.labelsForImports == null) {
+        return null;
+      }
     }
+    ImmutableMap<String, Label> labelsForImports = state.labelsForImports;
 
     // Look up and load the imports.
     ImmutableCollection<Label> importLabels = labelsForImports.values();
@@ -205,6 +219,13 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     }
 
     // Process the loaded imports.
+    Fingerprint fingerprint = null;
+    if (ast.getSyntaxFingerprint() != null) {
+      fingerprint =
+          new Fingerprint()
+              .addBytes(ast.getSyntaxFingerprint())
+              .addString(skylarkSemantics.toString());
+    }
     for (Entry<String, Label> importEntry : labelsForImports.entrySet()) {
       String importString = importEntry.getKey();
       Label importLabel = importEntry.getValue();
@@ -213,6 +234,14 @@ public class SkylarkImportLookupFunction implements SkyFunction {
           (SkylarkImportLookupValue) skylarkImportMap.get(keyForLabel);
       extensionsForImports.put(importString, importLookupValue.getEnvironmentExtension());
       fileDependencies.add(importLookupValue.getDependency());
+      if (fingerprint != null && importLookupValue.getFingerprint() != null) {
+        fingerprint
+            .addString(importString)
+            .addString(importLabel.toString())
+            .addBytes(importLookupValue.getFingerprint());
+      } else {
+        fingerprint = null;
+      }
     }
 
     // Skylark UserDefinedFunction-s in that file will share this function definition Environment,
@@ -226,13 +255,25 @@ public class SkylarkImportLookupFunction implements SkyFunction {
         inWorkspace);
     SkylarkImportLookupValue result =
         new SkylarkImportLookupValue(
-            extension, new SkylarkFileDependency(fileLabel, fileDependencies.build()));
+            extension,
+            new SkylarkFileDependency(fileLabel, fileDependencies.build()),
+            fingerprint == null ? null : fingerprint.digestAndReset());
     if (alreadyVisited != null) {
       alreadyVisited.put(fileLabel, result);
     }
     return result;
   }
 
+  /**
+   * What a call to {@link #computeInternal} found before it requested the imports of the file, so
+   * that it does not look it up again after a restart.
+   */
+  private static class State implements SkyKeyComputeState {
+    @Nullable private SkylarkSemanticsOptions skylarkSemantics;
+    @Nullable private BuildFileAST ast;
+    @Nullable private ImmutableMap<String, Label> labelsForImports;
+  }
+
   /**
    * Computes the set of Labels corresponding to a collection of PathFragments representing absolute
    * import paths.
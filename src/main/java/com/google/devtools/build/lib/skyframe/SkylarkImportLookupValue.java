@@ -17,18 +17,23 @@ import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.syntax.Environment.Extension;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.skyframe.FingerprintedSkyValue;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.SkyKey;
-import com.google.devtools.build.skyframe.SkyValue;
 import java.io.Serializable;
 import java.util.Objects;
+import javax.annotation.Nullable;
 
 /**
  * A value that represents a Skylark import lookup result. The lookup value corresponds to
  * exactly one Skylark file, identified by an absolute {@link Label} {@link SkyKey} argument. The
  * Label should not reference the special {@code external} package.
+ *
+ * <p>Its fingerprint digests the syntax of the file, the semantics it was evaluated with, and the
+ * labels and fingerprints of its imports, so that the dependents of an extension that is evaluated
+ * again from the same inputs, for instance after its value was evicted, are not re-evaluated.
  */
-public class SkylarkImportLookupValue implements SkyValue {
+public class SkylarkImportLookupValue implements FingerprintedSkyValue {
 
   private final Extension environmentExtension;
   /**
@@ -38,10 +43,20 @@ public class SkylarkImportLookupValue implements SkyValue {
    */
   private final SkylarkFileDependency dependency;
 
+  @Nullable private final byte[] fingerprint;
+
   public SkylarkImportLookupValue(
       Extension environmentExtension, SkylarkFileDependency dependency) {
+    this(environmentExtension, dependency, /*fingerprint=*/ null);
+  }
+
+  public SkylarkImportLookupValue(
+      Extension environmentExtension,
+      SkylarkFileDependency dependency,
+      @Nullable byte[] fingerprint) {
     this.environmentExtension = Preconditions.checkNotNull(environmentExtension);
     this.dependency = Preconditions.checkNotNull(dependency);
+    this.fingerprint = fingerprint;
   }
 
   /**
@@ -58,6 +73,12 @@ public class SkylarkImportLookupValue implements SkyValue {
     return dependency;
   }
 
+  @Nullable
+  @Override
+  public byte[] getFingerprint() {
+    return fingerprint;
+  }
+
   /**
    * SkyKey for a Skylark import composed of the label of the Skylark extension and wether it is
    * loaded from the WORKSPACE file or from a BUILD file.
@@ -54,16 +54,20 @@ public class BuildFileAST extends ASTNode {
 
   @Nullable private final String contentHashCode;
 
+  @Nullable private final byte[] syntaxFingerprint;
+
   private BuildFileAST(
       ImmutableList<Statement> stmts,
       boolean containsErrors,
       String contentHashCode,
+      @Nullable byte[] syntaxFingerprint,
       Location location,
       ImmutableList<Comment> comments,
       @Nullable ImmutableList<SkylarkImport> imports) {
     this.stmts = stmts;
     this.containsErrors = containsErrors;
     this.contentHashCode = contentHashCode;
+    this.syntaxFingerprint = syntaxFingerprint;
     this.comments = comments;
     this.setLocation(location);
     this.imports = imports;
@@ -87,6 +91,8 @@ public class BuildFileAST extends ASTNode {
         stmts,
         containsErrors,
         contentHashCode,
+        // The prelude is not part of the digest, so only the file on its own has one.
+        preludeStatements.isEmpty() ? result.syntaxFingerprint : null,
         result.location,
         ImmutableList.copyOf(result.comments),
         skylarkImports.second);
@@ -114,6 +120,7 @@ public class BuildFileAST extends ASTNode {
         stmts,
         containsErrors,
         null,
+        /*syntaxFingerprint=*/ null,
         this.stmts.get(firstStatement).getLocation(),
         ImmutableList.<Comment>of(),
         imports.build());
@@ -317,6 +324,7 @@ public class BuildFileAST extends ASTNode {
             .build(),
         result.containsErrors,
         /*contentHashCode=*/null,
+        result.syntaxFingerprint,
         result.location,
         ImmutableList.copyOf(result.comments),
         /*imports=*/null);
@@ -332,7 +340,8 @@ public class BuildFileAST extends ASTNode {
     if (valid || containsErrors) {
       return this;
     }
-    return new BuildFileAST(stmts, true, contentHashCode, getLocation(), comments, imports);
+    return new BuildFileAST(
+        stmts, true, contentHashCode, syntaxFingerprint, getLocation(), comments, imports);
   }
 
   private static BuildFileAST parseString(
@@ -407,4 +416,13 @@ public class BuildFileAST extends ASTNode {
   @Nullable public String getContentHashCode() {
     return contentHashCode;
   }
+
+  /**
+   * Returns a digest of the tokens the AST was parsed from, other than comments, with their
+   * positions. ASTs of the same file with equal digests are interchangeable, even when the file
+   * content differs. Returns null for ASTs that are not the whole of a single parsed input.
+   */
+  @Nullable public byte[] getSyntaxFingerprint() {
+    return syntaxFingerprint;
+  }
 }
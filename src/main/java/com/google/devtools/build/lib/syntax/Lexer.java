@@ -21,8 +21,10 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.util.HashMap;
@@ -139,6 +141,42 @@ public final class Lexer {
     return tokens;
   }
 
+  /**
+   * Returns a digest of the tokens of the input other than comments, with their kinds, values and
+   * the line and column they span. Two inputs with the same digest yield equal syntax trees whose
+   * locations print the same. Edits to comments on lines of their own, and to whitespace that no
+   * token moves over, leave it unchanged; the NEWLINE token after a trailing comment moves with the
+   * end of the comment.
+   */
+  byte[] getSyntaxFingerprint() {
+    Fingerprint fp = new Fingerprint();
+    PathFragment lastPath = null;
+    for (Token token : tokens) {
+      if (token.kind == TokenKind.COMMENT) {
+        continue;
+      }
+      // Only a preprocessed input with #line directives spans more than one path.
+      PathFragment path = locationInfo.lineNumberTable.getPath(Math.max(token.left, 0));
+      if (!Objects.equals(path, lastPath)) {
+        fp.addNullableString(path == null ? null : path.getPathString());
+        lastPath = path;
+      }
+      fp.addString(token.kind.name());
+      fp.addNullableString(token.value == null ? null : token.value.toString());
+      addLineAndColumn(fp, token.left);
+      addLineAndColumn(fp, token.right);
+    }
+    return fp.digestAndReset();
+  }
+
+  private void addLineAndColumn(Fingerprint fp, int offset) {
+    // The NEWLINE that ends an empty input starts before it.
+    LineAndColumn lineAndColumn =
+        locationInfo.lineNumberTable.getLineAndColumn(Math.max(offset, 0));
+    fp.addInt(lineAndColumn.getLine());
+    fp.addInt(lineAndColumn.getColumn());
+  }
+
   private void popParen() {
     if (openParenStackDepth == 0) {
       error("indentation error");
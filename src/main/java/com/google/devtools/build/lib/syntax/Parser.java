@@ -36,6 +36,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * Recursive descent parser for LL(2) BUILD language.
@@ -61,14 +62,18 @@ public class Parser {
     /** Whether the file contained any errors. */
     public final boolean containsErrors;
 
+    /** A digest of the tokens of the file; see {@link Lexer#getSyntaxFingerprint}. */
+    @Nullable public final byte[] syntaxFingerprint;
+
     public ParseResult(List<Statement> statements, List<Comment> comments, Location location,
-        boolean containsErrors) {
+        boolean containsErrors, @Nullable byte[] syntaxFingerprint) {
       // No need to copy here; when the object is created, the parser instance is just about to go
       // out of scope and be garbage collected.
       this.statements = Preconditions.checkNotNull(statements);
       this.comments = Preconditions.checkNotNull(comments);
       this.location = location;
       this.containsErrors = containsErrors;
+      this.syntaxFingerprint = syntaxFingerprint;
     }
   }
 
@@ -235,7 +240,8 @@ public class Parser {
         statements,
         parser.comments,
         locationFromStatements(lexer, statements),
-        parser.errorsCount > 0 || lexer.containsErrors());
+        parser.errorsCount > 0 || lexer.containsErrors(),
+        lexer.getSyntaxFingerprint());
   }
 
   /**
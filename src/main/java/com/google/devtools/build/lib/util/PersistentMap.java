@@ -237,7 +237,9 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
         }
         // Force the map to be dirty, so that we can save it to disk.
         dirty = true;
-        save(/*fullSave=*/ true);
+        if (compactOnLoad()) {
+          save(/*fullSave=*/ true);
+        }
       } else {
         dirty = false;
       }
@@ -292,30 +294,39 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
         deferredIOFailure = null;
       }
     }
-    if (dirty) {
-      if (!fullSave && keepJournal()) {
-        forceFlush();
-        journalOut.close();
-        journalOut = null;
-        return journalSize() + cacheSize();
-      } else {
-        dirty = false;
-        Path mapTemp =
-            mapFile.getRelative(FileSystemUtils.replaceExtension(mapFile.asFragment(), ".tmp"));
-        try {
-          saveEntries(delegate(), mapTemp);
-          mapFile.delete();
-          mapTemp.renameTo(mapFile);
-        } finally {
-          mapTemp.delete();
-        }
-        clearJournal();
-        journalFile.delete();
-        return cacheSize();
+    if (dirty && !fullSave && keepJournal()) {
+      forceFlush();
+      journalOut.close();
+      journalOut = null;
+      // The journal now holds all the changes, so the next save has nothing to do unless the map
+      // changes again.
+      dirty = false;
+    } else if (dirty || (fullSave && journalFile.exists())) {
+      dirty = false;
+      Path mapTemp =
+          mapFile.getRelative(FileSystemUtils.replaceExtension(mapFile.asFragment(), ".tmp"));
+      try {
+        saveEntries(delegate(), mapTemp);
+        mapFile.delete();
+        mapTemp.renameTo(mapFile);
+      } finally {
+        mapTemp.delete();
       }
-    } else {
-      return cacheSize();
+      clearJournal();
+      journalFile.delete();
     }
+    return journalSize() + cacheSize();
+  }
+
+  /**
+   * Saves all the entries of this map to disk and deletes the journal file, even if {@link
+   * #keepJournal} would keep it, and even if the journal already holds all the changes.
+   *
+   * @throws IOException if there was an I/O error during this call, or any previous call since the
+   *                     last save().
+   */
+  protected long compact() throws IOException {
+    return save(/*fullSave=*/ true);
   }
 
   protected final long journalSize() throws IOException {
@@ -335,6 +346,15 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
     return false;
   }
 
+  /**
+   * If true, the map file is rewritten with the contents of the journal when loading a map whose
+   * journal was kept. Otherwise, later updates are appended to the existing journal, which is
+   * cheaper if the map file is large compared to the journal.
+   */
+  protected boolean compactOnLoad() {
+    return true;
+  }
+
   private void clearJournal() throws IOException {
     journal.clear();
     if (journalOut != null) {
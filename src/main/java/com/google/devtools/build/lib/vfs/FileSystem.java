@@ -41,18 +41,27 @@ import java.util.List;
 @ThreadSafe
 public abstract class FileSystem {
 
-  /** Type of hash function to use for digesting files. */
+  /**
+   * Type of hash function to use for digesting files.
+   *
+   * <p>Non-cryptographic hash functions are much faster to compute on large files, but only detect
+   * accidental changes. They are fine for deciding whether a local action is up to date, but cannot
+   * be used to address content that is shared with other machines, such as a remote cache.
+   */
   // The underlying HashFunctions are immutable and thread safe.
   @SuppressWarnings("ImmutableEnumChecker")
   public enum HashFunction {
-    MD5(Hashing.md5()),
-    SHA1(Hashing.sha1()),
-    SHA256(Hashing.sha256());
+    MD5(Hashing.md5(), true),
+    SHA1(Hashing.sha1(), true),
+    SHA256(Hashing.sha256(), true),
+    MURMUR3_128(Hashing.murmur3_128(), false);
 
     private final com.google.common.hash.HashFunction hash;
+    private final boolean cryptographic;
 
-    HashFunction(com.google.common.hash.HashFunction hash) {
+    HashFunction(com.google.common.hash.HashFunction hash, boolean cryptographic) {
       this.hash = hash;
+      this.cryptographic = cryptographic;
     }
 
     /** Converts to {@link HashFunction}. */
@@ -69,6 +78,11 @@ public abstract class FileSystem {
     public boolean isValidDigest(byte[] digest) {
       return digest != null && digest.length * 8 == hash.bits();
     }
+
+    /** Returns whether it is infeasible to construct two inputs with the same digest. */
+    public boolean isCryptographic() {
+      return cryptographic;
+    }
   }
 
   // This is effectively final, should be changed only in unit-tests!
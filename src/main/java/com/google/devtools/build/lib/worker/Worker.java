@@ -13,13 +13,21 @@
 // limitations under the License.
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 /**
  * Interface to a worker process running as a child process.
@@ -40,6 +48,12 @@ class Worker {
 
   private Process process;
   private Thread shutdownHook;
+  private RecordingInputStream recordingStream;
+
+  /** Set by the {@link WorkerPool} to have {@link WorkerEvictionPolicy} destroy the idle worker. */
+  private volatile boolean evictionRequested;
+
+  private volatile boolean destroyed;
 
   Worker(WorkerKey workerKey, int workerId, final Path workDir, Path logFile) {
     this.workerKey = workerKey;
@@ -60,7 +74,6 @@ class Worker {
             }
           }
         };
-    Runtime.getRuntime().addShutdownHook(shutdownHook);
   }
 
   void createProcess() throws IOException {
@@ -78,10 +91,13 @@ class Worker {
     processBuilder.environment().clear();
     processBuilder.environment().putAll(workerKey.getEnv());
 
+    // Only a worker that owns a process needs to destroy it when Blaze exits.
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
     this.process = processBuilder.start();
   }
 
   void destroy() throws IOException {
+    destroyed = true;
     if (shutdownHook != null) {
       Runtime.getRuntime().removeShutdownHook(shutdownHook);
     }
@@ -139,6 +155,85 @@ class Worker {
     }
   }
 
+  /**
+   * Returns the resident set size of the worker process in KB, or 0 if it is not known. It is only
+   * known on Linux, where it is read from {@code /proc}.
+   */
+  long getResidentSetKb() {
+    if (process == null || OS.getCurrent() != OS.LINUX) {
+      return 0;
+    }
+    long pid = getPid(process);
+    if (pid <= 0) {
+      return 0;
+    }
+    try {
+      byte[] status = Files.readAllBytes(Paths.get("/proc/" + pid + "/status"));
+      return parseResidentSetKb(new String(status, StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      // The process exited, and the pool will find out when it validates the worker.
+      return 0;
+    }
+  }
+
+  /** Returns the pid of a process, or 0 if the JVM does not let us find it out. */
+  private static long getPid(Process process) {
+    // Process.pid() is only available from Java 9 on, and the UNIXProcess of earlier versions
+    // keeps the pid in a field instead.
+    try {
+      return (Long) Process.class.getMethod("pid").invoke(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Fall back to the field.
+    }
+    try {
+      Field pid = process.getClass().getDeclaredField("pid");
+      pid.setAccessible(true);
+      return pid.getInt(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return 0;
+    }
+  }
+
+  /** Returns the VmRSS in a {@code /proc/<pid>/status} file, or 0 if there is none. */
+  @VisibleForTesting
+  static long parseResidentSetKb(String status) {
+    for (String line : status.split("\n")) {
+      if (line.startsWith("VmRSS:")) {
+        String[] fields = line.substring("VmRSS:".length()).trim().split("\\s+");
+        try {
+          return Long.parseLong(fields[0]);
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns what owns the worker process. Workers that share a process return the same owner, so
+   * that its memory is counted once.
+   */
+  Object getProcessOwner() {
+    return this;
+  }
+
+  void requestEviction() {
+    evictionRequested = true;
+  }
+
+  void cancelEviction() {
+    evictionRequested = false;
+  }
+
+  boolean isEvictionRequested() {
+    return evictionRequested;
+  }
+
+  boolean isDestroyed() {
+    return destroyed;
+  }
+
   InputStream getInputStream() {
     return process.getInputStream();
   }
@@ -147,6 +242,31 @@ class Worker {
     return process.getOutputStream();
   }
 
+  /** Sends a request to the worker process. */
+  void putRequest(WorkRequest request) throws IOException {
+    request.writeDelimitedTo(getOutputStream());
+    getOutputStream().flush();
+  }
+
+  /**
+   * Waits for the response to the last request. Returns null if the worker process closed its
+   * stdout instead.
+   */
+  WorkResponse getResponse() throws IOException, InterruptedException {
+    recordingStream = new RecordingInputStream(getInputStream());
+    recordingStream.startRecording(4096);
+    return WorkResponse.parseDelimitedFrom(recordingStream);
+  }
+
+  /**
+   * Returns what the worker process wrote to stdout for the last response, which is helpful when
+   * {@link #getResponse} could not parse it.
+   */
+  String getRecordingStreamMessage() {
+    recordingStream.readRemaining();
+    return recordingStream.getRecordedDataAsString();
+  }
+
   public void prepareExecution(WorkerKey key) throws IOException {}
 
   public void finishExecution(WorkerKey key) throws IOException {}
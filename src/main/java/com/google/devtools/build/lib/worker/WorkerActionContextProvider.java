@@ -30,15 +30,17 @@ final class WorkerActionContextProvider extends ActionContextProvider {
 
   public WorkerActionContextProvider(
       CommandEnvironment env, BuildRequest buildRequest, WorkerPool workers) {
+    WorkerOptions workerOptions = buildRequest.getOptions(WorkerOptions.class);
     ImmutableMultimap.Builder<String, String> extraFlags = ImmutableMultimap.builder();
-    extraFlags.putAll(buildRequest.getOptions(WorkerOptions.class).workerExtraFlags);
+    extraFlags.putAll(workerOptions.workerExtraFlags);
 
     WorkerSpawnStrategy workerSpawnStrategy =
         new WorkerSpawnStrategy(
             env.getExecRoot(),
             workers,
             buildRequest.getOptions(ExecutionOptions.class).verboseFailures,
-            extraFlags.build());
+            extraFlags.build(),
+            workerOptions.workerMultiplex && !workerOptions.workerSandboxing);
     TestActionContext workerTestStrategy =
         new WorkerTestStrategy(env, buildRequest, workers, extraFlags.build());
     this.strategies = ImmutableList.of(workerSpawnStrategy, workerTestStrategy);
@@ -0,0 +1,33 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.EvictionConfig;
+import org.apache.commons.pool2.impl.EvictionPolicy;
+
+/**
+ * Evicts exactly the idle workers that the {@link WorkerPool} picked to get under its memory limit.
+ *
+ * <p>The pool only asks the policy about idle workers, so going through {@link
+ * WorkerPool#evict()} cannot destroy a worker that another thread borrowed in the meantime. The
+ * pool instantiates the policy by its class name, so it has to be public.
+ */
+public final class WorkerEvictionPolicy implements EvictionPolicy<Worker> {
+  @Override
+  public boolean evict(EvictionConfig config, PooledObject<Worker> underTest, int idleCount) {
+    return underTest.getObject().isEvictionRequested();
+  }
+}
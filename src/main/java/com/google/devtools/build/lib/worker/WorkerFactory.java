@@ -16,6 +16,9 @@ package com.google.devtools.build.lib.worker;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
@@ -35,6 +38,9 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
   private final Path workerBaseDir;
   private Reporter reporter;
 
+  /** The multiplexers that new proxies share, by the key of their proxies. */
+  private final Map<WorkerKey, WorkerMultiplexer> multiplexers = new HashMap<>();
+
   public WorkerFactory(WorkerOptions workerOptions, Path workerBaseDir) {
     this.workerOptions = workerOptions;
     this.workerBaseDir = workerBaseDir;
@@ -51,6 +57,9 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
   @Override
   public Worker create(WorkerKey key) throws Exception {
     int workerId = pidCounter.getAndIncrement();
+    if (key.getProxied()) {
+      return new WorkerProxy(key, workerId, getMultiplexer(key));
+    }
     Path logFile =
         workerBaseDir.getRelative("worker-" + workerId + "-" + key.getMnemonic() + ".log");
 
@@ -77,6 +86,38 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
     return worker;
   }
 
+  /**
+   * Returns the multiplexer that a new proxy for {@code key} shares with the other proxies, and
+   * starts a new one if there is none or its process cannot be used anymore.
+   */
+  private synchronized WorkerMultiplexer getMultiplexer(WorkerKey key) throws IOException {
+    WorkerMultiplexer multiplexer = multiplexers.get(key);
+    if (multiplexer != null
+        && multiplexer.isAlive()
+        && multiplexer.getWorkerFilesHash().equals(key.getWorkerFilesHash())
+        && multiplexer.addProxy()) {
+      return multiplexer;
+    }
+
+    int workerId = pidCounter.getAndIncrement();
+    Path logFile =
+        workerBaseDir.getRelative("worker-" + workerId + "-" + key.getMnemonic() + ".log");
+    multiplexer = new WorkerMultiplexer(new Worker(key, workerId, key.getExecRoot(), logFile));
+    multiplexer.start();
+    multiplexer.addProxy();
+    multiplexers.put(key, multiplexer);
+    if (workerOptions.workerVerbose) {
+      reporter.handle(
+          Event.info(
+              String.format(
+                  "Created new multiplexed %s worker (id %d), logging to %s",
+                  key.getMnemonic(),
+                  workerId,
+                  logFile)));
+    }
+    return multiplexer;
+  }
+
   /**
    * Use the DefaultPooledObject implementation.
    */
@@ -120,6 +161,11 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
                   key.getWorkerFilesHash())));
     }
 
+    // A proxy would fail every request once the process it shares quit.
+    if (worker instanceof WorkerProxy && !worker.isAlive()) {
+      return false;
+    }
+
     return hashMatches;
   }
 }
@@ -42,6 +42,8 @@ final class WorkerKey {
   private final Map<PathFragment, Path> inputFiles;
   private final Set<PathFragment> outputFiles;
   private final boolean mustBeSandboxed;
+  /** A key for {@link WorkerProxy} instances that share a {@link WorkerMultiplexer}. */
+  private final boolean proxied;
 
   WorkerKey(
       List<String> args,
@@ -51,7 +53,8 @@ final class WorkerKey {
       HashCode workerFilesHash,
       Map<PathFragment, Path> inputFiles,
       Set<PathFragment> outputFiles,
-      boolean mustBeSandboxed) {
+      boolean mustBeSandboxed,
+      boolean proxied) {
     this.args = ImmutableList.copyOf(Preconditions.checkNotNull(args));
     this.env = ImmutableMap.copyOf(Preconditions.checkNotNull(env));
     this.execRoot = Preconditions.checkNotNull(execRoot);
@@ -60,6 +63,7 @@ final class WorkerKey {
     this.inputFiles = Preconditions.checkNotNull(inputFiles);
     this.outputFiles = Preconditions.checkNotNull(outputFiles);
     this.mustBeSandboxed = mustBeSandboxed;
+    this.proxied = proxied;
   }
 
   public ImmutableList<String> getArgs() {
@@ -94,6 +98,10 @@ final class WorkerKey {
     return mustBeSandboxed;
   }
 
+  public boolean getProxied() {
+    return proxied;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -114,6 +122,9 @@ final class WorkerKey {
     if (!execRoot.equals(workerKey.execRoot)) {
       return false;
     }
+    if (proxied != workerKey.proxied) {
+      return false;
+    }
     return mnemonic.equals(workerKey.mnemonic);
 
   }
@@ -124,6 +135,7 @@ final class WorkerKey {
     result = 31 * result + env.hashCode();
     result = 31 * result + execRoot.hashCode();
     result = 31 * result + mnemonic.hashCode();
+    result = 31 * result + (proxied ? 1 : 0);
     return result;
   }
 
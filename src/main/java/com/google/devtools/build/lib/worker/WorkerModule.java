@@ -107,6 +107,7 @@ public class WorkerModule extends BlazeModule {
       workerPoolConfig = newConfig;
       workerPool = new WorkerPool(workerFactory, workerPoolConfig);
     }
+    workerPool.setMemoryLimitMb(options.workerMemoryLimitMb);
   }
 
   private WorkerPoolConfig createWorkerPoolConfig(WorkerOptions options) {
@@ -134,8 +135,11 @@ public class WorkerModule extends BlazeModule {
     config.setTestOnCreate(true);
     config.setTestOnReturn(true);
 
-    // No eviction of idle workers.
+    // No eviction of idle workers in the background. The pool evicts idle workers itself when
+    // they use too much memory, and then the policy has to look at all of them.
     config.setTimeBetweenEvictionRunsMillis(-1);
+    config.setEvictionPolicyClassName(WorkerEvictionPolicy.class.getName());
+    config.setNumTestsPerEvictionRun(-1);
 
     return config;
   }
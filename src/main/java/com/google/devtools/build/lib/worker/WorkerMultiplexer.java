@@ -0,0 +1,253 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A worker process that handles several requests at the same time, shared by all {@link
+ * WorkerProxy} instances of a {@link WorkerKey}.
+ *
+ * <p>Every request gets an id, which the worker process copies into its response. A background
+ * thread reads the responses in the order the worker process sends them, and hands each to the
+ * proxy that waits for it.
+ *
+ * <p>The protocol cannot cancel a single request, so the worker process is killed when a proxy
+ * stops waiting for its response. Otherwise the process would keep working on it while the pool
+ * hands the slot of the proxy out again. The other pending requests end as if the process had
+ * closed its stdout, and the pool replaces the process.
+ */
+@ThreadSafe
+final class WorkerMultiplexer {
+  private final Worker worker;
+
+  /** The ids of the requests that were sent, but whose responses were not read yet. */
+  private final Set<Integer> pendingRequests = new HashSet<>();
+
+  /** The responses that were read, but not picked up by their proxy yet. */
+  private final Map<Integer, WorkResponse> responses = new HashMap<>();
+
+  private int nextRequestId = 1;
+  private int proxies;
+  private boolean destroyed;
+
+  /** Whether the worker process closed its stdout, or sent something that is not a response. */
+  private boolean closed;
+
+  /** Whether the worker process was killed because a request was abandoned. */
+  private boolean killed;
+
+  /** Why reading the responses failed, or null if the worker process closed its stdout. */
+  @Nullable private IOException readFailure;
+
+  /** What the worker process wrote to stdout for the response whose reading failed. */
+  private String failedResponseMessage = "";
+
+  private RecordingInputStream recordingStream;
+
+  WorkerMultiplexer(Worker worker) {
+    this.worker = worker;
+  }
+
+  /** Starts the worker process and the thread that reads its responses. */
+  void start() throws IOException {
+    worker.createProcess();
+    recordingStream = new RecordingInputStream(worker.getInputStream());
+    Thread reader =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                readResponses();
+              }
+            },
+            "worker-multiplexer-" + worker.getWorkerId());
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void readResponses() {
+    IOException failure = null;
+    try {
+      while (true) {
+        recordingStream.startRecording(4096);
+        WorkResponse response = WorkResponse.parseDelimitedFrom(recordingStream);
+        if (response == null) {
+          break;
+        }
+        if (response.getRequestId() == 0) {
+          throw new IOException(
+              "Worker process sent a WorkResponse without a request id, so it does not support"
+                  + " multiplexing.");
+        }
+        synchronized (this) {
+          // The response to a request whose proxy gave up waiting is dropped.
+          if (pendingRequests.remove(response.getRequestId())) {
+            responses.put(response.getRequestId(), response);
+            notifyAll();
+          }
+        }
+      }
+    } catch (IOException e) {
+      recordingStream.readRemaining();
+      failure = e;
+    } finally {
+      synchronized (this) {
+        closed = true;
+        // Reading fails once the process is killed, but that is not the fault of the process.
+        if (!killed && failure != null) {
+          readFailure = failure;
+          failedResponseMessage = recordingStream.getRecordedDataAsString();
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Adds a proxy that shares this worker process. Returns false if the process was destroyed
+   * already, because its last proxy was removed.
+   */
+  synchronized boolean addProxy() {
+    if (destroyed) {
+      return false;
+    }
+    proxies++;
+    return true;
+  }
+
+  /** Removes a proxy, and destroys the worker process once no proxy shares it anymore. */
+  void removeProxy() throws IOException {
+    synchronized (this) {
+      if (--proxies > 0) {
+        return;
+      }
+      destroyed = true;
+    }
+    worker.destroy();
+  }
+
+  /** Sends a request to the worker process and returns the id to get its response with. */
+  int putRequest(WorkRequest request) throws IOException {
+    int requestId;
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Worker process already closed its stdout.");
+      }
+      requestId = nextRequestId++;
+      pendingRequests.add(requestId);
+    }
+    try {
+      synchronized (worker) {
+        worker.putRequest(request.toBuilder().setRequestId(requestId).build());
+      }
+    } catch (IOException e) {
+      synchronized (this) {
+        pendingRequests.remove(requestId);
+      }
+      throw e;
+    }
+    return requestId;
+  }
+
+  /**
+   * Waits for the response to a request. Returns null if the worker process closed its stdout, or
+   * was killed, before it sent the response.
+   *
+   * <p>If the wait is interrupted, the worker process is killed.
+   */
+  WorkResponse getResponse(int requestId) throws IOException, InterruptedException {
+    try {
+      return awaitResponse(requestId);
+    } catch (InterruptedException e) {
+      kill();
+      throw e;
+    }
+  }
+
+  private synchronized WorkResponse awaitResponse(int requestId)
+      throws IOException, InterruptedException {
+    try {
+      while (!responses.containsKey(requestId) && !closed) {
+        wait();
+      }
+    } finally {
+      // Nobody waits for the response anymore, so the reader drops it if it still arrives.
+      pendingRequests.remove(requestId);
+    }
+    WorkResponse response = responses.remove(requestId);
+    if (response == null && readFailure != null) {
+      throw new IOException(readFailure.getMessage(), readFailure);
+    }
+    return response;
+  }
+
+  /** Kills the worker process, and ends all pending requests. */
+  private void kill() {
+    synchronized (this) {
+      if (killed) {
+        return;
+      }
+      killed = true;
+      closed = true;
+      notifyAll();
+    }
+    try {
+      worker.destroy();
+    } catch (IOException e) {
+      // The process is gone either way, and the interrupt is what the caller reports.
+    }
+  }
+
+  /**
+   * Returns what the worker process wrote to stdout for the response it was sending when reading
+   * failed, which is helpful when it sent something else than a response. Empty if reading did not
+   * fail.
+   */
+  synchronized String getFailedResponseMessage() {
+    return failedResponseMessage;
+  }
+
+  synchronized boolean isAlive() {
+    return !closed && !destroyed && worker.isAlive();
+  }
+
+  /** Returns the resident set size of the shared worker process in KB. */
+  long getResidentSetKb() {
+    return worker.getResidentSetKb();
+  }
+
+  HashCode getWorkerFilesHash() {
+    return worker.getWorkerFilesHash();
+  }
+
+  int getWorkerId() {
+    return worker.getWorkerId();
+  }
+
+  Path getLogFile() {
+    return worker.getLogFile();
+  }
+}
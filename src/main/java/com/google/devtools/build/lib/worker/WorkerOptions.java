@@ -100,4 +100,31 @@ public class WorkerOptions extends OptionsBase {
     help = "If enabled, workers will be executed in a sandboxed environment."
   )
   public boolean workerSandboxing;
+
+  @Option(
+    name = "experimental_worker_multiplex",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If enabled, actions that support multiplex workers (like the Java compiler) send their "
+            + "requests to a single worker process per kind, which handles up to "
+            + "--worker_max_instances of them at the same time, instead of one process per "
+            + "request. Ignored with --worker_sandboxing."
+  )
+  public boolean workerMultiplex;
+
+  @Option(
+    name = "experimental_worker_memory_limit_mb",
+    defaultValue = "0",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If larger than 0, the least recently used idle workers are shut down whenever all "
+            + "workers together use more memory than this many MB. The memory of idle workers "
+            + "is also taken off the RAM available to local actions. Only works on Linux."
+  )
+  public int workerMemoryLimitMb;
 }
@@ -13,36 +13,119 @@
 // limitations under the License.
 package com.google.devtools.build.lib.worker;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
-
-import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
-
+import com.google.devtools.build.lib.actions.ResourceManager;
 import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.annotation.concurrent.ThreadSafe;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
 /**
  * A worker pool that spawns multiple workers and delegates work to them.
  *
  * <p>This is useful when the worker cannot handle multiple parallel requests on its own and we need
  * to pre-fork a couple of them instead.
+ *
+ * <p>With a memory limit, the pool samples the resident set size of a worker whenever it is
+ * returned. If all worker processes together use more than the limit, the least recently used
+ * idle workers are evicted until they would fit. The memory of the processes whose workers are all
+ * idle is taken off the RAM that the {@link ResourceManager} hands out to actions, since no action
+ * accounts for it.
+ *
+ * <p>Multiplexed workers share a process, whose memory is counted once. Their process only goes
+ * away with the last of them, so they are only evicted once they are all idle, and then together.
  */
 @ThreadSafe
 final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
 
+  private final Object memoryLock = new Object();
+
+  /** Serializes picking workers to evict, evicting them, and clearing the flags of the rest. */
+  private final Object evictionLock = new Object();
+
+  /**
+   * The resident set size in KB of the process of each worker, as of when the worker was last
+   * returned, or 0 for a worker that was not returned yet.
+   */
+  private final Map<Worker, Long> residentSetKb = new HashMap<>();
+
+  /** The idle workers, least recently returned first. */
+  private final Set<Worker> idleWorkers = new LinkedHashSet<>();
+
+  private volatile int memoryLimitMb;
+
   public WorkerPool(WorkerFactory factory, GenericKeyedObjectPoolConfig config) {
     super(factory, config);
   }
 
+  /** Sets how much memory all workers together may use, in MB, or 0 for no limit. */
+  void setMemoryLimitMb(int memoryLimitMb) {
+    this.memoryLimitMb = memoryLimitMb;
+    if (memoryLimitMb > 0) {
+      enforceMemoryLimit();
+    } else {
+      synchronized (memoryLock) {
+        residentSetKb.clear();
+        idleWorkers.clear();
+      }
+      ResourceManager.instance().setUnmanagedMemoryMb(0);
+    }
+  }
+
   @Override
   public Worker borrowObject(WorkerKey key) throws IOException, InterruptedException {
+    Worker worker;
     try {
-      return super.borrowObject(key);
+      worker = super.borrowObject(key);
     } catch (Throwable t) {
       Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
       throw new RuntimeException("unexpected", t);
     }
+    synchronized (memoryLock) {
+      // Once the worker is no longer idle, enforceMemoryLimit cannot pick it anymore, so clearing
+      // its flag afterwards is final. It was picked for eviction, but we got to it first.
+      idleWorkers.remove(worker);
+      worker.cancelEviction();
+      if (memoryLimitMb > 0 && !residentSetKb.containsKey(worker)) {
+        // Known to be busy, so that the other workers of its process are not evicted.
+        residentSetKb.put(worker, 0L);
+      }
+    }
+    if (memoryLimitMb > 0) {
+      reportIdleMemory();
+    }
+    return worker;
+  }
+
+  @Override
+  public void returnObject(WorkerKey key, Worker worker) {
+    boolean limited = memoryLimitMb > 0;
+    long sample = limited ? worker.getResidentSetKb() : 0;
+    // Before the worker goes back to the pool, so that a thread that borrows it right away finds
+    // it here.
+    synchronized (memoryLock) {
+      // Only an idle worker can be picked for eviction, so the flag is clear until it is idle.
+      worker.cancelEviction();
+      if (limited) {
+        residentSetKb.put(worker, sample);
+        idleWorkers.remove(worker);
+        idleWorkers.add(worker);
+      }
+    }
+    super.returnObject(key, worker);
+    if (limited) {
+      enforceMemoryLimit();
+    }
   }
 
   @Override
@@ -54,4 +137,137 @@ final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
       throw new RuntimeException("unexpected", t);
     }
   }
+
+  @Override
+  public void close() {
+    super.close();
+    if (memoryLimitMb > 0) {
+      ResourceManager.instance().setUnmanagedMemoryMb(0);
+    }
+  }
+
+  /** Evicts the least recently used idle workers while all workers use more than the limit. */
+  private void enforceMemoryLimit() {
+    synchronized (evictionLock) {
+      List<Worker> workersToEvict;
+      synchronized (memoryLock) {
+        pruneDestroyedWorkers();
+        workersToEvict = selectWorkersToEvict(idleWorkers, residentSetKb, memoryLimitMb * 1024L);
+        for (Worker worker : workersToEvict) {
+          worker.requestEviction();
+        }
+      }
+      if (!workersToEvict.isEmpty()) {
+        try {
+          // Only destroys the picked workers that are still idle, see WorkerEvictionPolicy.
+          evict();
+        } catch (Exception e) {
+          // The pool was closed in the meantime, which destroys the workers anyway.
+        }
+        synchronized (memoryLock) {
+          // A picked worker that evict() skipped stays in the pool, and must not be destroyed
+          // later when it is idle again.
+          for (Worker worker : workersToEvict) {
+            worker.cancelEviction();
+          }
+        }
+      }
+    }
+    reportIdleMemory();
+  }
+
+  private void reportIdleMemory() {
+    long idleKb = 0;
+    synchronized (memoryLock) {
+      pruneDestroyedWorkers();
+      Set<Object> busyProcesses = getBusyProcesses(idleWorkers, residentSetKb);
+      for (Map.Entry<Object, Long> process : getResidentSetKbByProcess(residentSetKb).entrySet()) {
+        if (!busyProcesses.contains(process.getKey())) {
+          idleKb += process.getValue();
+        }
+      }
+    }
+    ResourceManager.instance().setUnmanagedMemoryMb(idleKb / 1024.0);
+  }
+
+  private void pruneDestroyedWorkers() {
+    Iterator<Worker> workers = residentSetKb.keySet().iterator();
+    while (workers.hasNext()) {
+      Worker worker = workers.next();
+      if (worker.isDestroyed()) {
+        workers.remove();
+        idleWorkers.remove(worker);
+      }
+    }
+  }
+
+  /**
+   * Returns the idle workers that have to go, least recently used first, for all worker processes
+   * to use no more than {@code limitKb}. Returns fewer if evicting all idle workers is not enough.
+   *
+   * <p>The workers of a process are only picked if they are all idle, since evicting some of them
+   * frees no memory, and then all at once.
+   *
+   * @param residentSetKb the resident set size in KB of the process of every worker, idle or busy
+   */
+  @VisibleForTesting
+  static List<Worker> selectWorkersToEvict(
+      Iterable<Worker> idleWorkersLruFirst, Map<Worker, Long> residentSetKb, long limitKb) {
+    Map<Object, Long> processKb = getResidentSetKbByProcess(residentSetKb);
+    long totalKb = 0;
+    for (long kb : processKb.values()) {
+      totalKb += kb;
+    }
+    Set<Object> busyProcesses = getBusyProcesses(idleWorkersLruFirst, residentSetKb);
+    // The processes in the order of their least recently used worker.
+    Map<Object, List<Worker>> idleWorkersByProcess = new LinkedHashMap<>();
+    for (Worker worker : idleWorkersLruFirst) {
+      Object process = worker.getProcessOwner();
+      if (!busyProcesses.contains(process)) {
+        if (!idleWorkersByProcess.containsKey(process)) {
+          idleWorkersByProcess.put(process, new ArrayList<Worker>());
+        }
+        idleWorkersByProcess.get(process).add(worker);
+      }
+    }
+    List<Worker> workersToEvict = new ArrayList<>();
+    for (Map.Entry<Object, List<Worker>> process : idleWorkersByProcess.entrySet()) {
+      if (totalKb <= limitKb) {
+        break;
+      }
+      workersToEvict.addAll(process.getValue());
+      totalKb -= processKb.get(process.getKey());
+    }
+    return workersToEvict;
+  }
+
+  /**
+   * Returns the resident set size in KB of each worker process. Each worker of a shared process
+   * sampled it at a different time, and the largest sample counts.
+   */
+  private static Map<Object, Long> getResidentSetKbByProcess(Map<Worker, Long> residentSetKb) {
+    Map<Object, Long> processKb = new HashMap<>();
+    for (Map.Entry<Worker, Long> worker : residentSetKb.entrySet()) {
+      Object process = worker.getKey().getProcessOwner();
+      Long kb = processKb.get(process);
+      processKb.put(process, kb == null ? worker.getValue() : Math.max(kb, worker.getValue()));
+    }
+    return processKb;
+  }
+
+  /** Returns the owners of the worker processes that have a worker that is not idle. */
+  private static Set<Object> getBusyProcesses(
+      Iterable<Worker> idleWorkers, Map<Worker, Long> residentSetKb) {
+    Set<Worker> idle = new HashSet<>();
+    for (Worker worker : idleWorkers) {
+      idle.add(worker);
+    }
+    Set<Object> busyProcesses = new HashSet<>();
+    for (Worker worker : residentSetKb.keySet()) {
+      if (!idle.contains(worker)) {
+        busyProcesses.add(worker.getProcessOwner());
+      }
+    }
+    return busyProcesses;
+  }
 }
@@ -0,0 +1,88 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.worker;
+
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+
+/**
+ * A {@link Worker} that sends its requests to a worker process that it shares with other proxies,
+ * through a {@link WorkerMultiplexer}.
+ *
+ * <p>The {@link WorkerPool} hands out proxies just like workers, so it still bounds the number of
+ * requests of a kind that run at the same time, but they all run in the same process.
+ */
+final class WorkerProxy extends Worker {
+  private final WorkerMultiplexer multiplexer;
+  private int requestId;
+
+  /** What the worker process wrote to stdout if reading the response to the last request failed. */
+  private String recordingStreamMessage = "";
+
+  WorkerProxy(WorkerKey workerKey, int workerId, WorkerMultiplexer multiplexer) {
+    super(workerKey, workerId, workerKey.getExecRoot(), multiplexer.getLogFile());
+    this.multiplexer = multiplexer;
+  }
+
+  @Override
+  void createProcess() {
+    // The multiplexer started the shared process already.
+  }
+
+  @Override
+  void destroy() throws IOException {
+    super.destroy();
+    multiplexer.removeProxy();
+  }
+
+  @Override
+  boolean isAlive() {
+    return multiplexer.isAlive();
+  }
+
+  @Override
+  long getResidentSetKb() {
+    return multiplexer.getResidentSetKb();
+  }
+
+  @Override
+  Object getProcessOwner() {
+    return multiplexer;
+  }
+
+  @Override
+  void putRequest(WorkRequest request) throws IOException {
+    requestId = multiplexer.putRequest(request);
+  }
+
+  @Override
+  WorkResponse getResponse() throws IOException, InterruptedException {
+    recordingStreamMessage = "";
+    try {
+      return multiplexer.getResponse(requestId);
+    } catch (IOException e) {
+      // The shared stream records whatever the process sends, so this request only gets to see it
+      // when reading its own response failed.
+      recordingStreamMessage = multiplexer.getFailedResponseMessage();
+      throw e;
+    }
+  }
+
+  @Override
+  String getRecordingStreamMessage() {
+    return recordingStreamMessage;
+  }
+}
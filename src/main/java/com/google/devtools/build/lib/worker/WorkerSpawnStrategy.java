@@ -85,18 +85,21 @@ public final class WorkerSpawnStrategy implements SandboxedSpawnActionContext {
   private final boolean verboseFailures;
   private final Multimap<String, String> extraFlags;
   private final SpawnInputExpander spawnInputExpander;
+  private final boolean multiplex;
 
   public WorkerSpawnStrategy(
       Path execRoot,
       WorkerPool workers,
       boolean verboseFailures,
-      Multimap<String, String> extraFlags) {
+      Multimap<String, String> extraFlags,
+      boolean multiplex) {
     Preconditions.checkNotNull(workers);
     this.workers = Preconditions.checkNotNull(workers);
     this.execRoot = execRoot;
     this.verboseFailures = verboseFailures;
     this.extraFlags = extraFlags;
     this.spawnInputExpander = new SpawnInputExpander(false);
+    this.multiplex = multiplex;
   }
 
   @Override
@@ -173,7 +176,9 @@ public final class WorkerSpawnStrategy implements SandboxedSpawnActionContext {
               workerFilesHash,
               inputFiles,
               outputFiles,
-              writeOutputFiles != null);
+              writeOutputFiles != null,
+              // A sandboxed worker stages the inputs of one request at a time.
+              multiplex && writeOutputFiles == null && supportsMultiplexing(spawn));
 
       WorkRequest workRequest =
           createWorkRequest(spawn, actionExecutionContext, flagFiles, inputFileCache);
@@ -197,6 +202,11 @@ public final class WorkerSpawnStrategy implements SandboxedSpawnActionContext {
     }
   }
 
+  private static boolean supportsMultiplexing(Spawn spawn) {
+    return "1".equals(
+        spawn.getExecutionInfo().get(ExecutionRequirements.SUPPORTS_MULTIPLEX_WORKERS));
+  }
+
   /**
    * Splits the command-line arguments of the {@code Spawn} into the part that is used to start the
    * persistent worker ({@code workerArgs}) and the part that goes into the {@code WorkRequest}
@@ -314,8 +324,7 @@ public final class WorkerSpawnStrategy implements SandboxedSpawnActionContext {
       }
 
       try {
-        request.writeDelimitedTo(worker.getOutputStream());
-        worker.getOutputStream().flush();
+        worker.putRequest(request);
       } catch (IOException e) {
         throw new UserExecException(
             ErrorMessage.builder()
@@ -328,24 +337,31 @@ public final class WorkerSpawnStrategy implements SandboxedSpawnActionContext {
                 .toString());
       }
 
-      RecordingInputStream recordingStream = new RecordingInputStream(worker.getInputStream());
-      recordingStream.startRecording(4096);
       try {
         // response can be null when the worker has already closed stdout at this point and thus the
         // InputStream is at EOF.
-        response = WorkResponse.parseDelimitedFrom(recordingStream);
+        response = worker.getResponse();
       } catch (IOException e) {
         // If protobuf couldn't parse the response, try to print whatever the failing worker wrote
         // to stdout - it's probably a stack trace or some kind of error message that will help the
         // user figure out why the compiler is failing.
-        recordingStream.readRemaining();
         throw new UserExecException(
             ErrorMessage.builder()
                 .message("Worker process returned an unparseable WorkResponse:")
-                .logText(recordingStream.getRecordedDataAsString())
+                .logText(worker.getRecordingStreamMessage())
                 .exception(e)
                 .build()
                 .toString());
+      } catch (InterruptedException e) {
+        // The worker process may still be working on the request, so the worker must not be used
+        // again.
+        try {
+          workers.invalidateObject(key, worker);
+        } catch (IOException e1) {
+          // The interrupt is more important than this exception, so we'll just ignore it.
+        }
+        worker = null;
+        throw e;
       }
 
       if (writeOutputFiles != null
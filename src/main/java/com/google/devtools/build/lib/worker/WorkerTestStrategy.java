@@ -138,26 +138,22 @@ public class WorkerTestStrategy extends StandaloneTestStrategy {
               workerFilesHash,
               ImmutableMap.<PathFragment, Path>of(),
               ImmutableSet.<PathFragment>of(),
-              /*mustBeSandboxed=*/false);
+              /*mustBeSandboxed=*/false,
+              /*proxied=*/false);
       worker = workerPool.borrowObject(key);
 
-      WorkRequest request = WorkRequest.getDefaultInstance();
-      request.writeDelimitedTo(worker.getOutputStream());
-      worker.getOutputStream().flush();
+      worker.putRequest(WorkRequest.getDefaultInstance());
 
-      RecordingInputStream recordingStream = new RecordingInputStream(worker.getInputStream());
-      recordingStream.startRecording(4096);
       WorkResponse response;
       try {
         // response can be null when the worker has already closed stdout at this point and thus the
         // InputStream is at EOF.
-        response = WorkResponse.parseDelimitedFrom(recordingStream);
+        response = worker.getResponse();
       } catch (InvalidProtocolBufferException e) {
         // If protobuf couldn't parse the response, try to print whatever the failing worker wrote
         // to stdout - it's probably a stack trace or some kind of error message that will help the
         // user figure out why the compiler is failing.
-        recordingStream.readRemaining();
-        String data = recordingStream.getRecordedDataAsString();
+        String data = worker.getRecordingStreamMessage();
         ErrorMessage errorMessage =
             ErrorMessage.builder()
                 .message("Worker process returned an unparseable WorkResponse:")
@@ -15,6 +15,7 @@ package com.google.devtools.build.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.skyframe.ValueOrExceptionUtils.BottomException;
@@ -329,12 +330,17 @@ public abstract class AbstractSkyFunctionEnvironment implements SkyFunction.Envi
     return Collections.unmodifiableMap(result);
   }
 
-
   @Override
   public boolean valuesMissing() {
     return valuesMissing;
   }
 
+  /** Keeps no state across calls: subclasses that can do so must override this. */
+  @Override
+  public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+    return stateSupplier.get();
+  }
+
   private static final Function<ValueOrException<BottomException>, SkyValue> GET_VALUE_FROM_VOE =
       new Function<ValueOrException<BottomException>, SkyValue>() {
         @Override
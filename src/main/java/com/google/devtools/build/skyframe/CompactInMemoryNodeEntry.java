@@ -0,0 +1,190 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * {@link InMemoryNodeEntry} that stores the edges of done nodes as arrays of the ids given to the
+ * keys by a {@link SkyKeyIndex}, instead of arrays of references.
+ *
+ * <p>The direct deps of a done node are packed in a single int array: a group of one dep is its
+ * id, and a larger group is its size, negated, followed by the ids of its deps. This drops the list
+ * object that {@link GroupedList#compress} keeps for each group of more than one dep. Reverse deps
+ * are kept in an int-backed list that {@link ReverseDepsUtility} manipulates like any other. Nodes
+ * with a single dep or reverse dep store the key itself, as {@link InMemoryNodeEntry} does.
+ *
+ * <p>The ids are released when the edges that store them are dropped: when a done node is dirtied,
+ * when its reverse deps are replaced, and when the node is removed from the graph.
+ *
+ * <p>Each id takes four bytes, which halves the size of the edges when the heap is too large for
+ * compressed references, and saves the group lists regardless. In exchange, the edges are decoded
+ * on every read, which only happens when a node is dirtied, when its reverse deps are consolidated,
+ * and when its deps are checked for changes.
+ */
+class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+  private static final int[] NO_DEPS = new int[0];
+
+  private final SkyKeyIndex keyIndex;
+
+  CompactInMemoryNodeEntry(SkyKeyIndex keyIndex) {
+    this.keyIndex = keyIndex;
+  }
+
+  @Override
+  protected Object compressDirectDeps(GroupedList<SkyKey> directDeps) {
+    int numElements = directDeps.numElements();
+    if (numElements == 1) {
+      return directDeps.compress();
+    }
+    if (numElements == 0) {
+      return NO_DEPS;
+    }
+    int length = numElements;
+    for (Collection<SkyKey> group : directDeps) {
+      if (group.size() > 1) {
+        length++;
+      }
+    }
+    int[] packed = new int[length];
+    int i = 0;
+    for (Collection<SkyKey> group : directDeps) {
+      if (group.size() > 1) {
+        packed[i++] = -group.size();
+      }
+      for (SkyKey dep : group) {
+        packed[i++] = keyIndex.acquire(dep);
+      }
+    }
+    return packed;
+  }
+
+  @Override
+  protected GroupedList<SkyKey> uncompressDirectDeps(Object compressedDirectDeps) {
+    if (!(compressedDirectDeps instanceof int[])) {
+      return super.uncompressDirectDeps(compressedDirectDeps);
+    }
+    int[] packed = (int[]) compressedDirectDeps;
+    GroupedList<SkyKey> directDeps = new GroupedList<>();
+    for (int i = 0; i < packed.length; i++) {
+      if (packed[i] >= 0) {
+        directDeps.appendGroup(ImmutableList.of(keyIndex.getKey(packed[i])));
+      } else {
+        int groupSize = -packed[i];
+        ImmutableList.Builder<SkyKey> group = ImmutableList.builder();
+        for (int j = 0; j < groupSize; j++) {
+          group.add(keyIndex.getKey(packed[++i]));
+        }
+        directDeps.appendGroup(group.build());
+      }
+    }
+    return directDeps;
+  }
+
+  @Override
+  protected void discardCompressedDirectDeps(Object compressedDirectDeps) {
+    if (compressedDirectDeps instanceof int[]) {
+      for (int id : (int[]) compressedDirectDeps) {
+        if (id >= 0) {
+          keyIndex.release(id);
+        }
+      }
+    }
+  }
+
+  @Override
+  synchronized void removedFromGraph() {
+    super.removedFromGraph();
+    discardReverseDeps(null);
+  }
+
+  @Override
+  synchronized void setSingleReverseDepForReverseDepsUtil(SkyKey reverseDep) {
+    discardReverseDeps(null);
+    super.setSingleReverseDepForReverseDepsUtil(reverseDep);
+  }
+
+  @Override
+  synchronized void setReverseDepsForReverseDepsUtil(List<SkyKey> reverseDeps) {
+    List<SkyKey> newReverseDeps =
+        reverseDeps.isEmpty() || reverseDeps instanceof ReverseDepList
+            ? reverseDeps
+            : new ReverseDepList(keyIndex, reverseDeps);
+    discardReverseDeps(newReverseDeps);
+    super.setReverseDepsForReverseDepsUtil(newReverseDeps);
+  }
+
+  /** Releases the ids of the current reverse deps, unless they are kept as {@code replacement}. */
+  private void discardReverseDeps(List<SkyKey> replacement) {
+    if (reverseDeps instanceof ReverseDepList && reverseDeps != replacement) {
+      ((ReverseDepList) reverseDeps).release();
+    }
+  }
+
+  /**
+   * Growable list of keys, stored as their ids. Only supports what {@link ReverseDepsUtility} and
+   * readers of reverse deps need: reading and appending.
+   */
+  private static final class ReverseDepList extends AbstractList<SkyKey> implements RandomAccess {
+    private final SkyKeyIndex keyIndex;
+    private int[] ids;
+    private int size;
+
+    private ReverseDepList(SkyKeyIndex keyIndex, List<SkyKey> keys) {
+      this.keyIndex = keyIndex;
+      this.ids = new int[keys.size()];
+      for (SkyKey key : keys) {
+        ids[size++] = keyIndex.acquire(key);
+      }
+    }
+
+    private void release() {
+      for (int i = 0; i < size; i++) {
+        keyIndex.release(ids[i]);
+      }
+      size = 0;
+      modCount++;
+    }
+
+    @Override
+    public SkyKey get(int index) {
+      if (index >= size) {
+        throw new IndexOutOfBoundsException(index + " >= " + size);
+      }
+      return keyIndex.getKey(ids[index]);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean add(SkyKey key) {
+      if (size == ids.length) {
+        // Same growth as ArrayList.
+        ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+      }
+      ids[size++] = keyIndex.acquire(key);
+      modCount++;
+      return true;
+    }
+  }
+}
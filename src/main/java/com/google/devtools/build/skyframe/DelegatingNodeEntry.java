@@ -180,6 +180,11 @@ public abstract class DelegatingNodeEntry implements NodeEntry {
     return getDelegate().getReverseDepsForDoneEntry();
   }
 
+  @Override
+  public boolean isEvicted() {
+    return getDelegate().isEvicted();
+  }
+
   @Override
   public boolean isDirty() {
     return getThinDelegate().isDirty();
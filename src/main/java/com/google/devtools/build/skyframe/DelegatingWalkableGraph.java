@@ -74,7 +74,7 @@ public class DelegatingWalkableGraph implements WalkableGraph {
         graph.getBatch(null, Reason.WALKABLE_GRAPH_VALUE, keys);
     for (SkyKey key : keys) {
       NodeEntry nodeEntry = graphResult.get(key);
-      if (nodeEntry == null || !nodeEntry.isDone()) {
+      if (nodeEntry == null || !nodeEntry.isDone() || nodeEntry.isEvicted()) {
         result.put(key, null);
       } else {
         ErrorInfo errorInfo = nodeEntry.getErrorInfo();
@@ -63,6 +63,15 @@ public abstract class DirtyBuildingState {
    */
   protected int dirtyDirectDepIndex;
 
+  /**
+   * Whether the value of the last build was evicted, see {@link #markLastBuildValueEvicted}, in which case
+   * this node is rebuilt instead of being marked clean, and {@link #rebuildingEvictedValue} tells
+   * whether the new value can be assumed to equal the dropped one.
+   */
+  private boolean lastBuildValueEvicted = false;
+
+  private boolean rebuildingEvictedValue = false;
+
   protected DirtyBuildingState(boolean isChanged) {
     dirtyState = isChanged ? DirtyState.NEEDS_REBUILDING : DirtyState.CHECK_DEPENDENCIES;
     // We need to iterate through the deps to see if they have changed, or to remove them if one
@@ -91,6 +100,17 @@ public abstract class DirtyBuildingState {
     return dirtyState == DirtyState.NEEDS_REBUILDING || dirtyState == DirtyState.REBUILDING;
   }
 
+  /**
+   * Records that the value of the last build was evicted to save memory. If none of the deps of
+   * this node changed, the node is rebuilt when it is next checked, and since {@link SkyFunction}s
+   * are deterministic, its new value is assumed to be the same as the evicted one, so that its
+   * parents are still pruned.
+   */
+  final void markLastBuildValueEvicted() {
+    Preconditions.checkState(dirtyDirectDepIndex == 0, "Deps already checked: %s", this);
+    lastBuildValueEvicted = true;
+  }
+
   private void checkFinishedBuildingWhenAboutToSetValue() {
     Preconditions.checkState(
         dirtyState == DirtyState.VERIFIED_CLEAN || dirtyState == DirtyState.REBUILDING,
@@ -120,21 +140,32 @@ public abstract class DirtyBuildingState {
           && getNumOfGroupsInLastBuildDirectDeps() == dirtyDirectDepIndex) {
         // No other dep already marked this as NEEDS_REBUILDING, no deps outstanding, and this was
         // the last block of deps to be checked.
-        dirtyState = DirtyState.VERIFIED_CLEAN;
+        if (lastBuildValueEvicted) {
+          // There is no value to restore, so compute it again from the same deps.
+          rebuildingEvictedValue = true;
+          dirtyState = DirtyState.NEEDS_REBUILDING;
+        } else {
+          dirtyState = DirtyState.VERIFIED_CLEAN;
+        }
       }
     }
   }
 
   /**
-   * Returns true if {@code newValue}.equals the value from the last time this node was built.
-   * Should only be used by {@link NodeEntry#setValue}.
+   * Returns true if {@code newValue} equals the value from the last time this node was built, or has
+   * the same {@link FingerprintedSkyValue#getFingerprint fingerprint}. Should only be used by {@link
+   * NodeEntry#setValue}.
    *
    * <p>Changes in direct deps do <i>not</i> force this to return false. Only the value is
    * considered.
    */
   final boolean unchangedFromLastBuild(SkyValue newValue) throws InterruptedException {
     checkFinishedBuildingWhenAboutToSetValue();
-    return !(newValue instanceof NotComparableSkyValue) && getLastBuildValue().equals(newValue);
+    if (lastBuildValueEvicted) {
+      // An error may be transient, so it is not assumed to be what the dropped value held.
+      return rebuildingEvictedValue && ValueWithMetadata.getMaybeErrorInfo(newValue) == null;
+    }
+    return ValueWithMetadata.unchanged(getLastBuildValue(), newValue);
   }
 
   /**
@@ -192,7 +223,8 @@ public abstract class DirtyBuildingState {
   protected MoreObjects.ToStringHelper getStringHelper() {
     return MoreObjects.toStringHelper(this)
         .add("dirtyState", dirtyState)
-        .add("dirtyDirectDepIndex", dirtyDirectDepIndex);
+        .add("dirtyDirectDepIndex", dirtyDirectDepIndex)
+        .add("lastBuildValueEvicted", lastBuildValueEvicted);
   }
 
   @Override
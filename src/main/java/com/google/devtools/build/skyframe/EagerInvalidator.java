@@ -144,6 +144,30 @@ public final class EagerInvalidator {
     }
   }
 
+  /**
+   * Invalidates given values and their upward transitive closure in the graph if necessary,
+   * dirtying the nodes in shards of at least {@code minShardSize} nodes on the provided {@link
+   * ForkJoinPool}, which is left running for the next invalidation. See {@link
+   * DirtyingNodeVisitor}.
+   */
+  public static void invalidateInShards(
+      QueryableGraph graph,
+      Iterable<SkyKey> diff,
+      DirtyTrackingProgressReceiver progressReceiver,
+      InvalidationState state,
+      ForkJoinPool forkJoinPool,
+      int shardCount,
+      int minShardSize)
+      throws InterruptedException {
+    state.update(diff);
+    if (state.isEmpty()) {
+      return;
+    }
+    new DirtyingNodeVisitor(
+            graph, progressReceiver, state, forkJoinPool, shardCount, minShardSize)
+        .run();
+  }
+
   /** Invalidates given values and their upward transitive closure in the graph. */
   public static void invalidate(
       QueryableGraph graph,
@@ -0,0 +1,34 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety;
+
+/**
+ * Ranks the nodes that are ready to be evaluated by {@link ParallelEvaluator}.
+ *
+ * <p>Without a priority, ready nodes are evaluated in the order they became ready. With one, a
+ * free thread always picks the ready node with the highest priority, and nodes of equal priority
+ * are evaluated in the order they became ready. This lets long poles, such as the slow actions at
+ * the start of the critical path, start as soon as they are ready instead of waiting behind the
+ * nodes that became ready before them.
+ */
+@ThreadSafety.ThreadSafe
+public interface EvaluationPriority {
+  /**
+   * Returns the priority of {@code key}, which is ready to be evaluated. Nodes with a higher
+   * priority are evaluated first. Called once each time the node is enqueued, so must be cheap.
+   */
+  long getPriority(SkyKey key);
+}
@@ -0,0 +1,373 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+
+/**
+ * The shape of the evaluations recorded by a {@link MemoizingEvaluator} between {@link
+ * MemoizingEvaluator#startTrace} and {@link MemoizingEvaluator#writeTrace}, so that benchmarks can
+ * replay it against the evaluator with synthetic {@link SkyFunction}s.
+ *
+ * <p>A trace has a node for each key that was computed while recording and for each of their direct
+ * deps, numbered from zero. For each node, it has the name of its function, the groups of deps it
+ * requested, the wall time of all the calls to its function and an estimate of the memory its value
+ * retains. Nodes that were not computed while recording, such as injected nodes and those that were
+ * already done, are leaves with no compute time. The keys and values themselves are not written,
+ * which keeps traces small and free of the paths and labels of the traced workspace.
+ *
+ * <p>The value sizes are measured by serializing all the values of the trace to a single stream
+ * that only counts bytes, so that an object shared by several values is only counted for the first
+ * one. Many values cannot be serialized, e.g. packages and configured targets; their size is
+ * unknown.
+ */
+public final class EvaluationTrace {
+  private static final int MAGIC = 0x534b5452;
+  private static final int FORMAT_VERSION = 3;
+
+  /** The size of a value that could not be measured. */
+  public static final int UNKNOWN_SIZE = -1;
+
+  private final ImmutableList<SkyFunctionName> functionNames;
+  private final int[] functions;
+  private final long[] computeNanos;
+  private final int[] valueSizes;
+  private final int[][][] depGroups;
+  private final int[] roots;
+
+  private EvaluationTrace(
+      ImmutableList<SkyFunctionName> functionNames,
+      int[] functions,
+      long[] computeNanos,
+      int[] valueSizes,
+      int[][][] depGroups,
+      int[] roots) {
+    this.functionNames = functionNames;
+    this.functions = functions;
+    this.computeNanos = computeNanos;
+    this.valueSizes = valueSizes;
+    this.depGroups = depGroups;
+    this.roots = roots;
+  }
+
+  /** Returns the number of nodes. */
+  public int size() {
+    return functions.length;
+  }
+
+  /** Returns the name of the function of {@code node}. */
+  public SkyFunctionName getFunctionName(int node) {
+    return functionNames.get(functions[node]);
+  }
+
+  /** Returns the wall time of all the calls to the function of {@code node}, restarts included. */
+  public long getComputeNanos(int node) {
+    return computeNanos[node];
+  }
+
+  /**
+   * Returns the number of bytes the value of {@code node} took when serialized, not counting the
+   * objects it shares with values measured before it, such as those of its deps, or {@link
+   * #UNKNOWN_SIZE} if it could not be serialized.
+   */
+  public int getValueSize(int node) {
+    return valueSizes[node];
+  }
+
+  /**
+   * Returns the groups of direct deps of {@code node}, in the order they were requested. The
+   * arrays are not copied and must not be modified.
+   */
+  public int[][] getDepGroups(int node) {
+    return depGroups[node];
+  }
+
+  /** Returns the nodes that were requested by the callers of the evaluator. */
+  public int[] getRoots() {
+    return roots.clone();
+  }
+
+  /** Writes this trace to {@code out}, which is not closed. */
+  public void write(OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+    DataOutputStream data = new DataOutputStream(gzip);
+    data.writeInt(MAGIC);
+    data.writeInt(FORMAT_VERSION);
+    data.writeInt(functionNames.size());
+    for (SkyFunctionName functionName : functionNames) {
+      data.writeUTF(functionName.getName());
+    }
+    data.writeInt(size());
+    for (int node = 0; node < size(); node++) {
+      data.writeInt(functions[node]);
+      data.writeLong(computeNanos[node]);
+      data.writeInt(valueSizes[node]);
+      data.writeInt(depGroups[node].length);
+      for (int[] group : depGroups[node]) {
+        data.writeInt(group.length);
+        for (int dep : group) {
+          data.writeInt(dep);
+        }
+      }
+    }
+    data.writeInt(roots.length);
+    for (int root : roots) {
+      data.writeInt(root);
+    }
+    data.flush();
+    gzip.finish();
+  }
+
+  /** Reads a trace written by {@link #write}. */
+  public static EvaluationTrace read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new GZIPInputStream(in, 64 * 1024));
+    if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+      throw new IOException("Unexpected format");
+    }
+    ImmutableList.Builder<SkyFunctionName> functionNames = ImmutableList.builder();
+    int functionCount = checkCount(data.readInt(), "function");
+    for (int i = 0; i < functionCount; i++) {
+      functionNames.add(SkyFunctionName.create(data.readUTF()));
+    }
+    int count = checkCount(data.readInt(), "node");
+    int[] functions = new int[count];
+    long[] computeNanos = new long[count];
+    int[] valueSizes = new int[count];
+    int[][][] depGroups = new int[count][][];
+    for (int node = 0; node < count; node++) {
+      functions[node] = checkIndex(data.readInt(), functionCount, "function");
+      computeNanos[node] = data.readLong();
+      valueSizes[node] = data.readInt();
+      if (valueSizes[node] < UNKNOWN_SIZE) {
+        throw new IOException("Corrupted value size: " + valueSizes[node]);
+      }
+      depGroups[node] = new int[checkCount(data.readInt(), "group")][];
+      for (int group = 0; group < depGroups[node].length; group++) {
+        depGroups[node][group] = new int[checkCount(data.readInt(), "dep")];
+        for (int i = 0; i < depGroups[node][group].length; i++) {
+          depGroups[node][group][i] = checkIndex(data.readInt(), count, "dep");
+        }
+      }
+    }
+    int[] roots = new int[checkCount(data.readInt(), "root")];
+    for (int i = 0; i < roots.length; i++) {
+      roots[i] = checkIndex(data.readInt(), count, "root");
+    }
+    return new EvaluationTrace(
+        functionNames.build(), functions, computeNanos, valueSizes, depGroups, roots);
+  }
+
+  private static int checkCount(int count, String what) throws IOException {
+    if (count < 0) {
+      throw new IOException("Corrupted " + what + " count: " + count);
+    }
+    return count;
+  }
+
+  private static int checkIndex(int index, int count, String what) throws IOException {
+    if (index < 0 || index >= count) {
+      throw new IOException("Corrupted " + what + " index: " + index);
+    }
+    return index;
+  }
+
+  /**
+   * Collects the keys computed by an evaluator and the roots it was asked for, until it builds the
+   * trace from its graph.
+   */
+  @ThreadSafe
+  static final class Recorder {
+    private final ConcurrentHashMap<SkyKey, Long> computeNanos = new ConcurrentHashMap<>();
+    private final Set<SkyKey> roots = Sets.newConcurrentHashSet();
+
+    void computed(SkyKey key, long elapsedTimeNanos) {
+      computeNanos.merge(key, elapsedTimeNanos, Long::sum);
+    }
+
+    void requested(Iterable<SkyKey> rootKeys) {
+      for (SkyKey root : rootKeys) {
+        roots.add(root);
+      }
+    }
+
+    /**
+     * Builds the trace of the recorded keys that are done in {@code graph}, whose edges must be
+     * kept.
+     */
+    EvaluationTrace build(InMemoryGraph graph) {
+      Map<SkyKey, Integer> indices = new HashMap<>();
+      List<SkyKey> keys = new ArrayList<>();
+      List<GroupedList<SkyKey>> computedDeps = new ArrayList<>();
+      for (SkyKey key : computeNanos.keySet()) {
+        NodeEntry entry = graph.get(null, Reason.OTHER, key);
+        if (entry != null && entry.isDone()) {
+          indices.put(key, keys.size());
+          keys.add(key);
+          computedDeps.add(((InMemoryNodeEntry) entry).getGroupedDirectDeps());
+        }
+      }
+      for (GroupedList<SkyKey> deps : computedDeps) {
+        for (SkyKey dep : deps.toSet()) {
+          if (!indices.containsKey(dep)) {
+            indices.put(dep, keys.size());
+            keys.add(dep);
+          }
+        }
+      }
+
+      Map<SkyFunctionName, Integer> functionIndices = new HashMap<>();
+      ImmutableList.Builder<SkyFunctionName> functionNames = ImmutableList.builder();
+      int[] functions = new int[keys.size()];
+      long[] nanos = new long[keys.size()];
+      int[] valueSizes = new int[keys.size()];
+      int[][][] depGroups = new int[keys.size()][][];
+      for (int node = 0; node < keys.size(); node++) {
+        SkyKey key = keys.get(node);
+        Integer function = functionIndices.get(key.functionName());
+        if (function == null) {
+          function = functionIndices.size();
+          functionIndices.put(key.functionName(), function);
+          functionNames.add(key.functionName());
+        }
+        functions[node] = function;
+        Long computed = computeNanos.get(key);
+        nanos[node] = computed == null ? 0 : computed;
+        if (node < computedDeps.size()) {
+          GroupedList<SkyKey> deps = computedDeps.get(node);
+          depGroups[node] = new int[deps.listSize()][];
+          int group = 0;
+          for (Collection<SkyKey> depGroup : deps) {
+            int[] groupIndices = new int[depGroup.size()];
+            int i = 0;
+            for (SkyKey dep : depGroup) {
+              groupIndices[i++] = indices.get(dep);
+            }
+            depGroups[node][group++] = groupIndices;
+          }
+        } else {
+          depGroups[node] = new int[0][];
+        }
+      }
+      // A value often holds objects of the values of its deps, which are counted for the deps.
+      ValueSizer sizer = new ValueSizer();
+      for (int node : depsFirst(depGroups)) {
+        valueSizes[node] = sizer.measure(graph.get(null, Reason.OTHER, keys.get(node)));
+      }
+      List<Integer> rootIndices = new ArrayList<>();
+      for (SkyKey root : roots) {
+        Integer index = indices.get(root);
+        if (index != null) {
+          rootIndices.add(index);
+        }
+      }
+      int[] rootArray = new int[rootIndices.size()];
+      for (int i = 0; i < rootArray.length; i++) {
+        rootArray[i] = rootIndices.get(i);
+      }
+      return new EvaluationTrace(
+          functionNames.build(), functions, nanos, valueSizes, depGroups, rootArray);
+    }
+
+    /** Returns the nodes of a graph without cycles, each after its deps. */
+    private static int[] depsFirst(int[][][] depGroups) {
+      int[] order = new int[depGroups.length];
+      int ordered = 0;
+      boolean[] visited = new boolean[depGroups.length];
+      // A node is pushed again as its complement, and is ordered when that is popped.
+      Deque<Integer> stack = new ArrayDeque<>();
+      for (int start = 0; start < depGroups.length; start++) {
+        stack.push(start);
+        while (!stack.isEmpty()) {
+          int node = stack.pop();
+          if (node < 0) {
+            order[ordered++] = ~node;
+          } else if (!visited[node]) {
+            visited[node] = true;
+            stack.push(~node);
+            for (int[] group : depGroups[node]) {
+              for (int dep : group) {
+                if (!visited[dep]) {
+                  stack.push(dep);
+                }
+              }
+            }
+          }
+        }
+      }
+      return order;
+    }
+  }
+
+  /** Measures the serialized sizes of values written one after the other to the same stream. */
+  private static final class ValueSizer {
+    private final CountingOutputStream bytes =
+        new CountingOutputStream(ByteStreams.nullOutputStream());
+    @Nullable private ObjectOutputStream out;
+
+    /** Returns the number of bytes the value of {@code entry} adds to the stream. */
+    int measure(@Nullable NodeEntry entry) {
+      SkyValue value;
+      try {
+        value = entry != null && entry.isDone() ? entry.getValue() : null;
+      } catch (InterruptedException e) {
+        throw new IllegalStateException("InMemoryGraph does not throw", e);
+      }
+      if (value == null) {
+        return UNKNOWN_SIZE;
+      }
+      try {
+        if (out == null) {
+          out = new ObjectOutputStream(bytes);
+        }
+        long start = bytes.getCount();
+        out.writeObject(value);
+        out.flush();
+        return (int) Math.min(bytes.getCount() - start, Integer.MAX_VALUE);
+      } catch (NotSerializableException | InvalidClassException e) {
+        // The stream replaced the value by the exception and forgot the objects it had seen.
+        return UNKNOWN_SIZE;
+      } catch (IOException | RuntimeException e) {
+        // The stream is in an unknown state, so the next value starts a new one.
+        out = null;
+        return UNKNOWN_SIZE;
+      }
+    }
+  }
+}
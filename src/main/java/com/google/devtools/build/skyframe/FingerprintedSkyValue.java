@@ -0,0 +1,36 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link SkyValue} that carries a digest of what its dependents can observe of it.
+ *
+ * <p>When a node is re-evaluated to a value of the same class as its last one and both have
+ * non-null, equal fingerprints, the evaluator stores the new value but keeps the node's version, and
+ * does not re-evaluate the node's dependents, as if the two values were equal. This lets a value
+ * that does not otherwise implement {@code equals}, or whose equality would be expensive, cut off an
+ * incremental build. This holds for {@link NotComparableSkyValue}s too.
+ *
+ * <p>The fingerprint should be computed at most once, and must cover all the state that dependents
+ * can observe, locations included: the dependents that are not re-evaluated keep what they took
+ * from the last value. A null fingerprint falls back to {@link Object#equals}.
+ */
+public interface FingerprintedSkyValue extends SkyValue {
+
+  /** Returns the digest of this value, or null if it has none. Must not be modified by callers. */
+  @Nullable
+  byte[] getFingerprint();
+}
@@ -0,0 +1,270 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Predicate;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.WriteAbortedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the done nodes of an {@link InMemoryGraph} to a compact snapshot, and restores them into
+ * an empty graph, so that the work of one server can be reused by the next one.
+ *
+ * <p>A node is written if the caller's predicate accepts its key, it has a value rather than an
+ * error, its key and value can be serialized, and all its direct deps are written too. The last
+ * condition keeps the restored graph closed under dependencies, so that invalidating a restored
+ * node reaches all the restored nodes that depend on it. Keys and values are written to a single
+ * Java serialization stream, which {@link SkyKey} and {@link SkyValue} nominally support; nodes
+ * that fail to serialize are left out along with their reverse deps. A value whose serialization
+ * throws an unchecked exception fails the whole snapshot, since it corrupts the stream, so the
+ * caller's predicate must leave out such values.
+ *
+ * <p>Restored nodes have {@link #RESTORED_VERSION}, which precedes the versions of all evaluations,
+ * so that a restored node that is re-evaluated is seen as changed by its parents. The caller is
+ * responsible for invalidating the restored nodes whose inputs changed since the snapshot was
+ * written, e.g. by checking file system nodes against the file system.
+ */
+final class GraphSnapshot {
+  private static final int MAGIC = 0x534b5947;
+  private static final int FORMAT_VERSION = 2;
+
+  static final IntVersion RESTORED_VERSION = IntVersion.of(-1);
+
+  private GraphSnapshot() {}
+
+  /**
+   * Writes the nodes of {@code graph} that can be restored to {@code out}, which is not closed.
+   *
+   * @param identity a description of the environment the graph was built in; the snapshot is only
+   *     restored in an environment with the same identity
+   * @return the number of nodes written
+   */
+  static int write(
+      InMemoryGraph graph, Predicate<SkyKey> persistable, String identity, OutputStream out)
+      throws IOException, InterruptedException {
+    List<SkyKey> keys = new ArrayList<>();
+    List<SkyValue> values = new ArrayList<>();
+    for (Map.Entry<SkyKey, ? extends NodeEntry> entry : graph.getAllValues().entrySet()) {
+      NodeEntry node = entry.getValue();
+      // The error transience node refuses to be serialized, and nodes that depend on it have
+      // errors rather than values, so it would never be restored anyway.
+      if (node.isDone()
+          && persistable.apply(entry.getKey())
+          && !entry.getKey().equals(ErrorTransienceValue.KEY)
+          && node.getValue() != null) {
+        keys.add(entry.getKey());
+        values.add(node.getValue());
+      }
+    }
+
+    // All records go through one object stream, so that objects shared by several values are only
+    // written once. A record that fails to serialize is replaced in the stream by the exception,
+    // which the reader sees as a WriteAbortedException, and the stream stays usable.
+    GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+    ObjectOutputStream data = new ObjectOutputStream(gzip);
+    data.writeInt(MAGIC);
+    data.writeInt(FORMAT_VERSION);
+    data.writeUTF(identity);
+    data.writeInt(keys.size());
+    Map<SkyKey, Integer> indices = new HashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      try {
+        data.writeObject(new Object[] {keys.get(i), values.get(i)});
+        indices.put(keys.get(i), i);
+      } catch (NotSerializableException | InvalidClassException e) {
+        // A field that is not serializable; the node is simply not written. The reader keeps the
+        // handles of the exception that replaces the record, so both sides start over.
+        data.reset();
+      } catch (RuntimeException e) {
+        // Unlike an IOException, this leaves the stream in an unknown state.
+        throw new IOException("Cannot serialize " + keys.get(i), e);
+      }
+    }
+
+    // Leave out the nodes with a dep that is not written, and then their reverse deps.
+    Deque<SkyKey> removed = new ArrayDeque<>();
+    for (SkyKey key : new ArrayList<>(indices.keySet())) {
+      for (SkyKey dep : graph.get(null, Reason.OTHER, key).getDirectDeps()) {
+        if (!indices.containsKey(dep)) {
+          if (indices.remove(key) != null) {
+            removed.add(key);
+          }
+          break;
+        }
+      }
+    }
+    while (!removed.isEmpty()) {
+      SkyKey key = removed.pop();
+      for (SkyKey rdep : graph.get(null, Reason.OTHER, key).getReverseDepsForDoneEntry()) {
+        if (indices.remove(rdep) != null) {
+          removed.add(rdep);
+        }
+      }
+    }
+
+    data.writeInt(indices.size());
+    for (Map.Entry<SkyKey, Integer> entry : indices.entrySet()) {
+      data.writeInt(entry.getValue());
+      GroupedList<SkyKey> deps =
+          ((InMemoryNodeEntry) graph.get(null, Reason.OTHER, entry.getKey()))
+              .getGroupedDirectDeps();
+      data.writeInt(deps.listSize());
+      for (Collection<SkyKey> group : deps) {
+        data.writeInt(group.size());
+        for (SkyKey dep : group) {
+          data.writeInt(indices.get(dep));
+        }
+      }
+    }
+    data.flush();
+    gzip.finish();
+    return indices.size();
+  }
+
+  /**
+   * Adds the nodes of the snapshot in {@code in} to {@code graph}, which must be empty.
+   *
+   * @return the number of nodes restored
+   * @throws IOException if the snapshot cannot be read or was written with a different identity,
+   *     in which case the graph is left unchanged
+   */
+  static int restore(InputStream in, String identity, InMemoryGraph graph)
+      throws IOException, InterruptedException {
+    Preconditions.checkState(graph.getAllValues().isEmpty(), "Graph is not empty");
+    ObjectInputStream data = new ObjectInputStream(new GZIPInputStream(in, 64 * 1024));
+    if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+      throw new IOException("Unexpected format");
+    }
+    String snapshotIdentity = data.readUTF();
+    if (!snapshotIdentity.equals(identity)) {
+      throw new IOException(
+          "Snapshot was written for '" + snapshotIdentity + "', not '" + identity + "'");
+    }
+    int records = data.readInt();
+    if (records < 0) {
+      throw new IOException("Corrupted record count: " + records);
+    }
+    SkyKey[] recordKeys = new SkyKey[records];
+    SkyValue[] recordValues = new SkyValue[records];
+    for (int i = 0; i < records; i++) {
+      try {
+        Object[] record = (Object[]) data.readObject();
+        recordKeys[i] = (SkyKey) record[0];
+        recordValues[i] = (SkyValue) record[1];
+      } catch (WriteAbortedException e) {
+        // The record could not be serialized, so no written node refers to it.
+      } catch (ClassNotFoundException | ClassCastException | ArrayIndexOutOfBoundsException e) {
+        throw new IOException("Corrupted snapshot record", e);
+      }
+    }
+
+    int count = data.readInt();
+    if (count < 0 || count > records) {
+      throw new IOException("Corrupted node count: " + count);
+    }
+    SkyKey[] keys = new SkyKey[count];
+    SkyValue[] values = new SkyValue[count];
+    int[] recordToNode = new int[records];
+    Arrays.fill(recordToNode, -1);
+    // The groups of direct deps of each node, as record indices until all nodes are known.
+    int[][][] deps = new int[count][][];
+    for (int i = 0; i < count; i++) {
+      int record = data.readInt();
+      if (record < 0 || record >= records || recordKeys[record] == null
+          || recordToNode[record] != -1) {
+        throw new IOException("Corrupted node record: " + record);
+      }
+      recordToNode[record] = i;
+      keys[i] = recordKeys[record];
+      values[i] = recordValues[record];
+      deps[i] = new int[data.readInt()][];
+      for (int group = 0; group < deps[i].length; group++) {
+        deps[i][group] = new int[data.readInt()];
+        for (int j = 0; j < deps[i][group].length; j++) {
+          int dep = data.readInt();
+          if (dep < 0 || dep >= records) {
+            throw new IOException("Corrupted dependency of " + keys[i]);
+          }
+          deps[i][group][j] = dep;
+        }
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      for (int[] group : deps[i]) {
+        for (int j = 0; j < group.length; j++) {
+          group[j] = recordToNode[group[j]];
+          if (group[j] == -1) {
+            throw new IOException("Corrupted dependency of " + keys[i]);
+          }
+        }
+      }
+    }
+
+    // The snapshot has been read completely, so the graph is only modified from here on.
+    Map<SkyKey, ? extends NodeEntry> nodes =
+        graph.createIfAbsentBatch(null, Reason.OTHER, Arrays.asList(keys));
+    for (int i = 0; i < count; i++) {
+      NodeEntry node = nodes.get(keys[i]);
+      Preconditions.checkState(
+          node.addReverseDepAndCheckIfDone(null) == DependencyState.NEEDS_SCHEDULING,
+          "Duplicate key in snapshot: %s",
+          keys[i]);
+      GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+      for (int[] group : deps[i]) {
+        helper.startGroup(group.length);
+        for (int dep : group) {
+          helper.add(keys[dep]);
+        }
+        helper.endGroup();
+      }
+      node.addTemporaryDirectDeps(helper);
+      for (int[] group : deps[i]) {
+        for (int j = 0; j < group.length; j++) {
+          node.signalDep();
+        }
+      }
+      node.setValue(values[i], RESTORED_VERSION);
+    }
+    // All the nodes are done now, so reverse deps are recorded directly.
+    for (int i = 0; i < count; i++) {
+      for (int[] group : deps[i]) {
+        for (int dep : group) {
+          nodes.get(keys[dep]).addReverseDepAndCheckIfDone(keys[i]);
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -34,22 +34,54 @@ import javax.annotation.Nullable;
  * <p>This class is public only for use in alternative graph implementations.
  */
 public class InMemoryGraphImpl implements InMemoryGraph {
+  /**
+   * Whether graphs that keep edges use {@link LockFreeInMemoryNodeEntry} by default, which avoids
+   * contention on nodes with many parents at the cost of a little memory per node.
+   */
+  private static final boolean LOCK_FREE_NODE_ENTRIES =
+      Boolean.parseBoolean(
+          System.getProperty("skyframe.InMemoryGraph.LockFreeNodeEntries", "false"));
+
+  /**
+   * Whether graphs that keep edges use {@link CompactInMemoryNodeEntry} by default, which stores
+   * edges as int ids instead of references. Ignored if lock-free node entries are used.
+   */
+  private static final boolean COMPACT_EDGES =
+      Boolean.parseBoolean(System.getProperty("skyframe.InMemoryGraph.CompactEdges", "false"));
 
   protected final ConcurrentMap<SkyKey, InMemoryNodeEntry> nodeMap =
       new MapMaker().initialCapacity(1024).concurrencyLevel(200).makeMap();
   private final boolean keepEdges;
+  private final boolean lockFreeNodeEntries;
+  /** Ids of the keys of the graph if its edges are compact, and null otherwise. */
+  @Nullable private final SkyKeyIndex keyIndex;
 
   InMemoryGraphImpl() {
     this(/*keepEdges=*/ true);
   }
 
   public InMemoryGraphImpl(boolean keepEdges) {
+    this(keepEdges, LOCK_FREE_NODE_ENTRIES);
+  }
+
+  public InMemoryGraphImpl(boolean keepEdges, boolean lockFreeNodeEntries) {
+    this(keepEdges, lockFreeNodeEntries, COMPACT_EDGES);
+  }
+
+  public InMemoryGraphImpl(
+      boolean keepEdges, boolean lockFreeNodeEntries, boolean compactEdges) {
     this.keepEdges = keepEdges;
+    this.lockFreeNodeEntries = lockFreeNodeEntries;
+    this.keyIndex =
+        keepEdges && !lockFreeNodeEntries && compactEdges ? new SkyKeyIndex() : null;
   }
 
   @Override
   public void remove(SkyKey skyKey) {
-    nodeMap.remove(skyKey);
+    InMemoryNodeEntry entry = nodeMap.remove(skyKey);
+    if (entry != null) {
+      entry.removedFromGraph();
+    }
   }
 
   @Override
@@ -72,8 +104,16 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   protected InMemoryNodeEntry createIfAbsent(SkyKey key) {
-    InMemoryNodeEntry newval =
-        keepEdges ? new InMemoryNodeEntry() : new EdgelessInMemoryNodeEntry();
+    InMemoryNodeEntry newval;
+    if (!keepEdges) {
+      newval = new EdgelessInMemoryNodeEntry();
+    } else if (lockFreeNodeEntries) {
+      newval = new LockFreeInMemoryNodeEntry();
+    } else if (keyIndex != null) {
+      newval = new CompactInMemoryNodeEntry(keyIndex);
+    } else {
+      newval = new InMemoryNodeEntry();
+    }
     InMemoryNodeEntry oldval = nodeMap.putIfAbsent(key, newval);
     return oldval == null ? newval : oldval;
   }
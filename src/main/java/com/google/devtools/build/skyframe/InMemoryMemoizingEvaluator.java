@@ -16,10 +16,12 @@ package com.google.devtools.build.skyframe;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -28,6 +30,9 @@ import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingInvali
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationState;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -35,7 +40,9 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /**
@@ -48,6 +55,22 @@ import javax.annotation.Nullable;
  * must pass in a monotonically increasing {@link IntVersion}.
  */
 public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
+  /**
+   * Whether to dirty the nodes affected by changes in batches sharded across a fork-join pool,
+   * instead of with a task per node. See {@link EagerInvalidator#invalidateInShards}.
+   */
+  private static final boolean SHARDED_INVALIDATION =
+      Boolean.parseBoolean(
+          System.getProperty("skyframe.InMemoryMemoizingEvaluator.ShardedInvalidation", "false"));
+
+  private static final int INVALIDATION_THREAD_COUNT =
+      Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The fewest nodes that sharded invalidation dirties in one task. Steps of the visitation with
+   * fewer than twice as many nodes give each node a task of its own.
+   */
+  private static final int MIN_INVALIDATION_SHARD_SIZE = 64;
 
   private final ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions;
   private final DirtyTrackingProgressReceiver progressReceiver;
@@ -70,10 +93,23 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
   // re-evaluated even if none of their children are changed.
   private final InvalidationState invalidatorState = new DirtyingInvalidationState();
 
+  // Created by the first sharded invalidation and kept for the next ones. Its threads are daemons
+  // that exit when idle, so it is never shut down.
+  @Nullable private ForkJoinPool invalidationPool = null;
+
+  // Nodes whose values are dropped to save memory stay done, and are recomputed when requested.
+  private final AtomicReference<Predicate<SkyKey>> pendingEviction = new AtomicReference<>();
+
   private final EmittedEventState emittedEventState;
 
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
+  @Nullable private volatile EvaluationPriority evaluationPriority = null;
+
+  private final SkyFunctionMetrics metrics = new SkyFunctionMetrics();
+
+  @Nullable private volatile EvaluationTrace.Recorder traceRecorder = null;
+
   public InMemoryMemoizingEvaluator(
       Map<SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer) {
     this(skyFunctions, differencer, null);
@@ -94,7 +130,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       boolean keepEdges) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
-    this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
+    this.progressReceiver =
+        new DirtyTrackingProgressReceiver(progressReceiver) {
+          @Override
+          public void invalidated(
+              SkyKey skyKey, EvaluationProgressReceiver.InvalidationState state) {
+            super.invalidated(skyKey, state);
+            if (state == EvaluationProgressReceiver.InvalidationState.DIRTY) {
+              metrics.recordDirtied(skyKey.functionName());
+            }
+          }
+
+          @Override
+          public void computed(SkyKey skyKey, long elapsedTimeNanos) {
+            super.computed(skyKey, elapsedTimeNanos);
+            EvaluationTrace.Recorder recorder = traceRecorder;
+            if (recorder != null) {
+              recorder.computed(skyKey, elapsedTimeNanos);
+            }
+          }
+        };
     this.graph = new InMemoryGraphImpl(keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
@@ -135,6 +190,21 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
         }));
   }
 
+  @Override
+  public void evict(Predicate<SkyKey> evictPredicate) {
+    Preconditions.checkNotNull(evictPredicate);
+    Predicate<SkyKey> previous;
+    Predicate<SkyKey> combined;
+    do {
+      previous = pendingEviction.get();
+      // Callers tend to repeat the same predicate, for instance after each full GC.
+      combined =
+          previous == null || previous.equals(evictPredicate)
+              ? evictPredicate
+              : Predicates.or(previous, evictPredicate);
+    } while (!pendingEviction.compareAndSet(previous, combined));
+  }
+
   @Override
   public <T extends SkyValue> EvaluationResult<T> evaluate(
       Iterable<SkyKey> roots,
@@ -150,6 +220,10 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
         "InMemoryGraph supports only monotonically increasing Integer versions: %s %s",
         lastGraphVersion, version);
     setAndCheckEvaluateState(true, roots);
+    EvaluationTrace.Recorder recorder = traceRecorder;
+    if (recorder != null) {
+      recorder.requested(roots);
+    }
     try {
       // Mark for removal any inflight nodes from the previous evaluation.
       valuesToDelete.addAll(progressReceiver.getAndClearInflightKeys());
@@ -179,8 +253,12 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
               keepGoing,
               numThreads,
-              progressReceiver);
+              progressReceiver,
+              evaluationPriority,
+              metrics);
       EvaluationResult<T> result = evaluator.eval(roots);
+      // The result holds on to the values of the roots, so the graph is free to drop them now.
+      performEviction();
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
           .setWalkableGraph(new DelegatingWalkableGraph(graph))
@@ -243,9 +321,44 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     // Instead, just start afresh with a new LinkedHashSet.
     valuesToDelete = new LinkedHashSet<>();
 
-    EagerInvalidator.invalidate(graph, valuesToDirty, progressReceiver, invalidatorState);
+    if (SHARDED_INVALIDATION) {
+      if (invalidationPool == null) {
+        invalidationPool =
+            NamedForkJoinPool.newNamedPool("skyframe-invalidator", INVALIDATION_THREAD_COUNT);
+      }
+      EagerInvalidator.invalidateInShards(
+          graph,
+          valuesToDirty,
+          progressReceiver,
+          invalidatorState,
+          invalidationPool,
+          /*shardCount=*/ INVALIDATION_THREAD_COUNT,
+          MIN_INVALIDATION_SHARD_SIZE);
+    } else {
+      EagerInvalidator.invalidate(graph, valuesToDirty, progressReceiver, invalidatorState);
+    }
     // Ditto.
     valuesToDirty = new LinkedHashSet<>();
+
+    performEviction();
+  }
+
+  /**
+   * Drops the values of the nodes matching the pending eviction predicate, see {@link
+   * InMemoryNodeEntry#evictValue}. Their reverse deps are left alone. Only runs between
+   * evaluations, since a running evaluation reads the values of done nodes without requesting
+   * them again.
+   */
+  private void performEviction() {
+    Predicate<SkyKey> evictPredicate = pendingEviction.getAndSet(null);
+    if (evictPredicate == null || !keepEdges) {
+      return;
+    }
+    for (Entry<SkyKey, ? extends NodeEntry> entry : graph.getAllValues().entrySet()) {
+      if (entry.getValue() instanceof InMemoryNodeEntry && evictPredicate.apply(entry.getKey())) {
+        ((InMemoryNodeEntry) entry.getValue()).evictValue();
+      }
+    }
   }
 
   private void setAndCheckEvaluateState(boolean newValue, Object requestInfo) {
@@ -307,6 +420,50 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return graph;
   }
 
+  @Override
+  public SkyFunctionMetrics getSkyFunctionMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public void setEvaluationPriority(@Nullable EvaluationPriority priority) {
+    this.evaluationPriority = priority;
+  }
+
+  @Override
+  public int writeSnapshot(OutputStream out, String identity, Predicate<SkyKey> persistable)
+      throws IOException, InterruptedException {
+    Preconditions.checkState(keepEdges, "Snapshots need the edges of the graph");
+    Preconditions.checkState(!evaluating.get(), "Cannot write a snapshot while evaluating");
+    return GraphSnapshot.write(graph, persistable, identity, out);
+  }
+
+  @Override
+  public int restoreSnapshot(InputStream in, String identity)
+      throws IOException, InterruptedException {
+    Preconditions.checkState(keepEdges, "Snapshots need the edges of the graph");
+    Preconditions.checkState(
+        lastGraphVersion == null, "Cannot restore a snapshot after an evaluation");
+    return GraphSnapshot.restore(in, identity, graph);
+  }
+
+  @Override
+  public void startTrace() {
+    Preconditions.checkState(keepEdges, "Traces need the edges of the graph");
+    traceRecorder = new EvaluationTrace.Recorder();
+  }
+
+  @Override
+  public int writeTrace(OutputStream out) throws IOException {
+    Preconditions.checkState(!evaluating.get(), "Cannot write a trace while evaluating");
+    EvaluationTrace.Recorder recorder = traceRecorder;
+    Preconditions.checkState(recorder != null, "Not tracing");
+    traceRecorder = null;
+    EvaluationTrace trace = recorder.build(graph);
+    trace.write(out);
+    return trace.size();
+  }
+
   @Override
   public void dump(boolean summarize, PrintStream out) {
     if (summarize) {
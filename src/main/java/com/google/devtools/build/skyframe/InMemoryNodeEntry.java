@@ -72,8 +72,14 @@ import javax.annotation.Nullable;
  */
 public class InMemoryNodeEntry implements NodeEntry {
 
+  /**
+   * Stands in for the value of a done node that was dropped by {@link #evictValue}. The node keeps
+   * its edges and versions, and is recomputed the next time it is requested.
+   */
+  private static final SkyValue EVICTED = new SkyValue() {};
+
   /** Actual data stored in this entry when it is done. */
-  private SkyValue value = null;
+  protected SkyValue value = null;
 
   /**
    * The last version of the graph at which this node's value was changed. In {@link #setValue} it
@@ -187,13 +193,18 @@ public class InMemoryNodeEntry implements NodeEntry {
   @Override
   public synchronized SkyValue getValue() {
     Preconditions.checkState(isDone(), "no value until done. ValueEntry: %s", this);
-    return ValueWithMetadata.justValue(value);
+    return value == EVICTED ? null : ValueWithMetadata.justValue(value);
   }
 
   @Override
   public synchronized SkyValue getValueMaybeWithMetadata() {
     Preconditions.checkState(isDone(), "no value until done: %s", this);
-    return value;
+    return value == EVICTED ? null : value;
+  }
+
+  @Override
+  public synchronized boolean isEvicted() {
+    return value == EVICTED;
   }
 
   @Override
@@ -226,7 +237,30 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized GroupedList<SkyKey> getGroupedDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
-    return GroupedList.create(directDeps);
+    return uncompressDirectDeps(directDeps);
+  }
+
+  /**
+   * Returns the representation of the direct deps of a done node, which is stored until the node
+   * is dirtied and passed back to {@link #uncompressDirectDeps}.
+   */
+  protected Object compressDirectDeps(GroupedList<SkyKey> directDeps) {
+    return directDeps.compress();
+  }
+
+  /** Returns the direct deps stored by {@link #compressDirectDeps}. */
+  protected GroupedList<SkyKey> uncompressDirectDeps(Object compressedDirectDeps) {
+    return GroupedList.create(compressedDirectDeps);
+  }
+
+  /** Called when the direct deps stored by {@link #compressDirectDeps} are dropped. */
+  protected void discardCompressedDirectDeps(Object compressedDirectDeps) {}
+
+  /** Called once the node has been removed from the graph, after which its edges are unused. */
+  synchronized void removedFromGraph() {
+    if (isDone() && directDeps != null) {
+      discardCompressedDirectDeps(directDeps);
+    }
   }
 
   @Override
@@ -252,7 +286,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   protected synchronized Set<SkyKey> setStateFinishedAndReturnReverseDepsToSignal() {
     Set<SkyKey> reverseDepsToSignal =
         ReverseDepsUtility.consolidateDataAndReturnNewElements(this, getOpToStoreBare());
-    this.directDeps = getTemporaryDirectDeps().compress();
+    this.directDeps = compressDirectDeps(getTemporaryDirectDeps());
 
     markDone();
 
@@ -282,8 +316,14 @@ public class InMemoryNodeEntry implements NodeEntry {
 
     if (isDirty() && getDirtyBuildingState().unchangedFromLastBuild(value)) {
       // If the value is the same as before, just use the old value. Note that we don't use the new
-      // value, because preserving == equality is even better than .equals() equality.
-      this.value = getDirtyBuildingState().getLastBuildValue();
+      // value, because preserving == equality is even better than .equals() equality. If the old
+      // value was evicted, the new one is all there is. A value with the same fingerprint is only
+      // the same for the dependents, so the new one is stored, but the version stays the same.
+      SkyValue lastBuildValue = getDirtyBuildingState().getLastBuildValue();
+      this.value =
+          lastBuildValue == null || ValueWithMetadata.hasFingerprint(value)
+              ? value
+              : lastBuildValue;
     } else {
       // If this is a new value, or it has changed since the last build, set the version to the
       // current graph version.
@@ -296,6 +336,9 @@ public class InMemoryNodeEntry implements NodeEntry {
 
   @Override
   public synchronized DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
+    if (value == EVICTED) {
+      reviveEvictedValue();
+    }
     if (reverseDep != null) {
       if (isDone()) {
         if (keepEdges()) {
@@ -357,6 +400,9 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized DependencyState checkIfDoneForDirtyReverseDep(SkyKey reverseDep) {
     Preconditions.checkNotNull(reverseDep, this);
     Preconditions.checkState(keepEdges(), "%s %s", reverseDep, this);
+    if (value == EVICTED) {
+      reviveEvictedValue();
+    }
     if (isDone()) {
       ReverseDepsUtility.checkReverseDep(this, reverseDep);
     } else {
@@ -437,10 +483,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized MarkedDirtyResult markDirty(boolean isChanged) {
     assertKeepEdges();
     if (isDone()) {
-      dirtyBuildingState =
-          DirtyBuildingState.create(isChanged, GroupedList.<SkyKey>create(directDeps), value);
-      value = null;
-      directDeps = null;
+      startDirtyBuildingState(isChanged);
       return new MarkedDirtyResult(ReverseDepsUtility.getReverseDeps(this));
     }
     // The caller may be simultaneously trying to mark this node dirty and changed, and the dirty
@@ -471,6 +514,47 @@ public class InMemoryNodeEntry implements NodeEntry {
     return setStateFinishedAndReturnReverseDepsToSignal();
   }
 
+  /** Moves the value and direct deps of this done node into a new {@link #dirtyBuildingState}. */
+  private void startDirtyBuildingState(boolean isChanged) {
+    boolean evicted = value == EVICTED;
+    dirtyBuildingState =
+        DirtyBuildingState.create(
+            isChanged, uncompressDirectDeps(directDeps), evicted ? null : value);
+    if (evicted) {
+      dirtyBuildingState.markLastBuildValueEvicted();
+    }
+    value = null;
+    discardCompressedDirectDeps(directDeps);
+    directDeps = null;
+  }
+
+  /**
+   * Drops the value of this node to save memory, keeping its edges and versions, and returns
+   * whether it did. The next time the node is requested it is dirtied, without its reverse deps,
+   * and rebuilt once its deps are checked. If none of them changed, the new value is assumed to
+   * equal the dropped one, see {@link DirtyBuildingState#markLastBuildValueEvicted}.
+   *
+   * <p>Only done nodes without errors that have deps can be evicted: a node without deps could
+   * never be checked, and an error would not be assumed to come back. Must only be called when no
+   * evaluation is running, since a done node's value may be read without going through {@link
+   * #addReverseDepAndCheckIfDone}.
+   */
+  synchronized boolean evictValue() {
+    if (!isDone()
+        || value == EVICTED
+        || ValueWithMetadata.getMaybeErrorInfo(value) != null
+        || uncompressDirectDeps(directDeps).numElements() == 0) {
+      return false;
+    }
+    value = EVICTED;
+    return true;
+  }
+
+  /** Dirties this evicted node, without marking it changed, so that it is recomputed. */
+  private void reviveEvictedValue() {
+    startDirtyBuildingState(/*isChanged=*/ false);
+  }
+
   @Override
   public synchronized void forceRebuild() {
     Preconditions.checkState(getTemporaryDirectDeps().numElements() == signaledDeps, this);
@@ -594,7 +678,7 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("value", value)
         .add("lastChangedVersion", lastChangedVersion)
         .add("lastEvaluatedVersion", lastEvaluatedVersion)
-        .add("directDeps", isDone() ? GroupedList.create(directDeps) : directDeps)
+        .add("directDeps", isDone() ? uncompressDirectDeps(directDeps) : directDeps)
         .add("signaledDeps", signaledDeps)
         .add("reverseDeps", ReverseDepsUtility.toString(this))
         .add("dirtyBuildingState", dirtyBuildingState)
@@ -614,7 +698,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     nodeEntry.lastChangedVersion = this.lastChangedVersion;
     nodeEntry.lastEvaluatedVersion = this.lastEvaluatedVersion;
     ReverseDepsUtility.addReverseDeps(nodeEntry, ReverseDepsUtility.getReverseDeps(this));
-    nodeEntry.directDeps = directDeps;
+    nodeEntry.directDeps = nodeEntry.compressDirectDeps(uncompressDirectDeps(directDeps));
     nodeEntry.dirtyBuildingState = null;
     return nodeEntry;
   }
@@ -17,9 +17,12 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.math.IntMath;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ExecutorParams;
@@ -30,8 +33,10 @@ import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
 import com.google.devtools.build.skyframe.ThinNodeEntry.MarkedDirtyResult;
+import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -64,8 +69,10 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
 
   // Default thread count is equal to the number of cores to exploit
   // that level of hardware parallelism, since invalidation should be CPU-bound.
-  // We may consider increasing this in the future.
-  private static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+  // We may consider increasing this in the future. There are at least two threads even on a single
+  // core, so that a node can be marked dirty by one thread while another marks it changed.
+  private static final int DEFAULT_THREAD_COUNT =
+      Math.max(2, Runtime.getRuntime().availableProcessors());
   private static final int EXPECTED_PENDING_SET_SIZE = DEFAULT_THREAD_COUNT * 8;
   private static final int EXPECTED_VISITED_SET_SIZE = 1024;
 
@@ -117,10 +124,26 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
       DirtyTrackingProgressReceiver progressReceiver,
       InvalidationState state,
       ForkJoinPool forkJoinPool) {
-    this.executor = ForkJoinQuiescingExecutor.newBuilder()
-        .withOwnershipOf(forkJoinPool)
-        .setErrorClassifier(errorClassifier)
-        .build();
+    this(graph, progressReceiver, state, forkJoinPool, /*ownPool=*/ true);
+  }
+
+  /**
+   * Runs the visitation on {@code forkJoinPool}, which is shut down once the visitation is done if
+   * {@code ownPool} is true, and left running for later visitations otherwise.
+   */
+  protected InvalidatingNodeVisitor(
+      TGraph graph,
+      DirtyTrackingProgressReceiver progressReceiver,
+      InvalidationState state,
+      ForkJoinPool forkJoinPool,
+      boolean ownPool) {
+    ForkJoinQuiescingExecutor.Builder executorBuilder = ForkJoinQuiescingExecutor.newBuilder();
+    this.executor =
+        (ownPool
+                ? executorBuilder.withOwnershipOf(forkJoinPool)
+                : executorBuilder.withoutOwnershipOf(forkJoinPool))
+            .setErrorClassifier(errorClassifier)
+            .build();
     this.graph = Preconditions.checkNotNull(graph);
     this.progressReceiver = Preconditions.checkNotNull(progressReceiver);
     this.pendingVisitations = state.pendingValues;
@@ -131,8 +154,18 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
     // Make a copy to avoid concurrent modification confusing us as to which nodes were passed by
     // the caller, and which are added by other threads during the run. Since no tasks have been
     // started yet (the queueDirtying calls start them), this is thread-safe.
-    for (final Pair<SkyKey, InvalidationType> visitData :
-        ImmutableList.copyOf(pendingVisitations)) {
+    enqueueInitialVisitations(ImmutableList.copyOf(pendingVisitations));
+    executor.awaitQuiescence(/*interruptWorkers=*/ true);
+
+    // Note: implementations that do not support interruption also do not update pendingVisitations.
+    Preconditions.checkState(!getSupportInterruptions() || pendingVisitations.isEmpty(),
+        "All dirty nodes should have been processed: %s", pendingVisitations);
+  }
+
+  /** Starts the visitation of the nodes that were pending when {@link #run} was called. */
+  protected void enqueueInitialVisitations(
+      ImmutableList<Pair<SkyKey, InvalidationType>> visitations) {
+    for (final Pair<SkyKey, InvalidationType> visitData : visitations) {
       executor.execute(
           new Runnable() {
             @Override
@@ -141,11 +174,6 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
             }
           });
     }
-    executor.awaitQuiescence(/*interruptWorkers=*/ true);
-
-    // Note: implementations that do not support interruption also do not update pendingVisitations.
-    Preconditions.checkState(!getSupportInterruptions() || pendingVisitations.isEmpty(),
-        "All dirty nodes should have been processed: %s", pendingVisitations);
   }
 
   protected abstract boolean getSupportInterruptions();
@@ -354,6 +382,13 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
             new ConcurrentHashMap<SkyKey, Boolean>(
                 EXPECTED_VISITED_SET_SIZE, .75f, DEFAULT_THREAD_COUNT));
     private final boolean supportInterruptions;
+    /**
+     * The maximum number of shards that the nodes to dirty at each step of the visitation are split
+     * into, each processed by a single task. If zero, each node has a task of its own.
+     */
+    private final int shardCount;
+    /** The minimum number of nodes in a shard. Smaller steps give each node a task of its own. */
+    private final int minShardSize;
 
     protected DirtyingNodeVisitor(
         QueryableGraph graph,
@@ -362,6 +397,8 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         Function<ExecutorParams, ? extends ExecutorService> executorFactory) {
       super(graph, progressReceiver, state, executorFactory);
       this.supportInterruptions = true;
+      this.shardCount = 0;
+      this.minShardSize = 0;
     }
 
     /**
@@ -376,6 +413,30 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         boolean supportInterruptions) {
       super(graph, progressReceiver, state, forkJoinPool);
       this.supportInterruptions = supportInterruptions;
+      this.shardCount = 0;
+      this.minShardSize = 0;
+    }
+
+    /**
+     * Dirties the nodes in batches: the nodes found at each step of the visitation, such as the
+     * reverse deps of a node, are split into at most {@code shardCount} shards of at least {@code
+     * minShardSize} nodes, and each shard is dirtied by one task of {@code forkJoinPool}. This
+     * saves the overhead of a task per node when a heavily depended-on node changes. The pool is
+     * not shut down, so that it can be used again by the next invalidation.
+     */
+    protected DirtyingNodeVisitor(
+        QueryableGraph graph,
+        DirtyTrackingProgressReceiver progressReceiver,
+        InvalidationState state,
+        ForkJoinPool forkJoinPool,
+        int shardCount,
+        int minShardSize) {
+      super(graph, progressReceiver, state, forkJoinPool, /*ownPool=*/ false);
+      Preconditions.checkArgument(shardCount > 0, shardCount);
+      Preconditions.checkArgument(minShardSize > 0, minShardSize);
+      this.supportInterruptions = true;
+      this.shardCount = shardCount;
+      this.minShardSize = minShardSize;
     }
 
     @Override
@@ -389,6 +450,31 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
       visit(keys, invalidationType, null);
     }
 
+    @Override
+    protected void enqueueInitialVisitations(
+        ImmutableList<Pair<SkyKey, InvalidationType>> visitations) {
+      if (getShardCount(visitations.size()) < 2) {
+        super.enqueueInitialVisitations(visitations);
+        return;
+      }
+      // Visit the keys of each type together, so that they are sharded like any other step.
+      ImmutableListMultimap.Builder<InvalidationType, SkyKey> keysByTypeBuilder =
+          ImmutableListMultimap.builder();
+      for (Pair<SkyKey, InvalidationType> visitData : visitations) {
+        keysByTypeBuilder.put(visitData.second, visitData.first);
+      }
+      final ImmutableListMultimap<InvalidationType, SkyKey> keysByType = keysByTypeBuilder.build();
+      for (final InvalidationType invalidationType : keysByType.keySet()) {
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                visit(keysByType.get(invalidationType), invalidationType);
+              }
+            });
+      }
+    }
+
     /**
      * Queues a task to dirty the nodes named by {@param keys}. May be called from multiple threads.
      * It is possible that the same node is enqueued many times. However, we require that a node
@@ -420,7 +506,7 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         Iterable<SkyKey> keys,
         final InvalidationType invalidationType,
         @Nullable SkyKey enqueueingKeyForExistenceCheck) {
-      final boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+      boolean isChanged = (invalidationType == InvalidationType.CHANGED);
       Set<SkyKey> setToCheck = isChanged ? changed : dirtied;
       int size = Iterables.size(keys);
       ArrayList<SkyKey> keysToGet = new ArrayList<>(size);
@@ -451,63 +537,96 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
                 "key(s) %s not in the graph, but enqueued for dirtying by %s",
                 Iterables.limit(missingKeys, 10), enqueueingKeyForExistenceCheck));
       }
+      int shards = getShardCount(keysToGet.size());
+      if (shards > 1) {
+        int shardSize = IntMath.divide(keysToGet.size(), shards, RoundingMode.CEILING);
+        for (final List<SkyKey> shard : Lists.partition(keysToGet, shardSize)) {
+          executor.execute(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (SkyKey key : shard) {
+                    if (!dirty(key, entries.get(key), invalidationType)) {
+                      // Interrupted: the rest of the shard is still pending.
+                      return;
+                    }
+                  }
+                }
+              });
+        }
+        return;
+      }
       for (final SkyKey key : keysToGet) {
         executor.execute(
             new Runnable() {
               @Override
               public void run() {
-                ThinNodeEntry entry = entries.get(key);
+                dirty(key, entries.get(key), invalidationType);
+              }
+            });
+      }
+    }
 
-                if (entry == null) {
-                  if (supportInterruptions) {
-                    pendingVisitations.remove(Pair.of(key, invalidationType));
-                  }
-                  return;
-                }
+    /** Returns the number of shards to split a step of {@code size} nodes into. */
+    private int getShardCount(int size) {
+      return shardCount == 0 ? 0 : Math.min(shardCount, size / minShardSize);
+    }
 
-                if (entry.isChanged() || (!isChanged && entry.isDirty())) {
-                  // If this node is already marked changed, or we are only marking this node
-                  // dirty, and it already is, move along.
-                  if (supportInterruptions) {
-                    pendingVisitations.remove(Pair.of(key, invalidationType));
-                  }
-                  return;
-                }
+    /**
+     * Marks {@code entry} dirty, or changed, and enqueues its reverse deps. Returns false if
+     * interrupted, in which case the node is left pending.
+     */
+    private boolean dirty(
+        SkyKey key, @Nullable ThinNodeEntry entry, InvalidationType invalidationType) {
+      boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+      if (entry == null) {
+        if (supportInterruptions) {
+          pendingVisitations.remove(Pair.of(key, invalidationType));
+        }
+        return true;
+      }
 
-                // It is not safe to interrupt the logic from this point until the end of the
-                // method.
-                // Any exception thrown should be unrecoverable.
-                // This entry remains in the graph in this dirty state until it is re-evaluated.
-                MarkedDirtyResult markedDirtyResult = null;
-                try {
-                  markedDirtyResult = entry.markDirty(isChanged);
-                } catch (InterruptedException e) {
-                  Thread.currentThread().interrupt();
-                  // This can only happen if the main thread has been interrupted, and so the
-                  // AbstractQueueVisitor is shutting down. We haven't yet removed the pending
-                  // visitation, so we can resume next time.
-                  return;
-                }
-                if (markedDirtyResult == null) {
-                  // Another thread has already dirtied this node. Don't do anything in this thread.
-                  if (supportInterruptions) {
-                    pendingVisitations.remove(Pair.of(key, invalidationType));
-                  }
-                  return;
-                }
-                // Propagate dirtiness upwards and mark this node dirty/changed. Reverse deps should
-                // only be marked dirty (because only a dependency of theirs has changed).
-                visit(markedDirtyResult.getReverseDepsUnsafe(), InvalidationType.DIRTIED, key);
+      if (entry.isChanged() || (!isChanged && entry.isDirty())) {
+        // If this node is already marked changed, or we are only marking this node
+        // dirty, and it already is, move along.
+        if (supportInterruptions) {
+          pendingVisitations.remove(Pair.of(key, invalidationType));
+        }
+        return true;
+      }
 
-                progressReceiver.invalidated(key,
-                    EvaluationProgressReceiver.InvalidationState.DIRTY);
-                // Remove the node from the set as the last operation.
-                if (supportInterruptions) {
-                  pendingVisitations.remove(Pair.of(key, invalidationType));
-                }
-              }
-            });
+      // It is not safe to interrupt the logic from this point until the end of the
+      // method.
+      // Any exception thrown should be unrecoverable.
+      // This entry remains in the graph in this dirty state until it is re-evaluated.
+      MarkedDirtyResult markedDirtyResult = null;
+      try {
+        markedDirtyResult = entry.markDirty(isChanged);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        // This can only happen if the main thread has been interrupted, and so the
+        // AbstractQueueVisitor is shutting down. We haven't yet removed the pending
+        // visitation, so we can resume next time.
+        return false;
       }
+      if (markedDirtyResult == null) {
+        // Another thread has already dirtied this node. Don't do anything in this thread.
+        if (supportInterruptions) {
+          pendingVisitations.remove(Pair.of(key, invalidationType));
+        }
+        return true;
+      }
+      // Propagate dirtiness upwards and mark this node dirty/changed. Reverse deps should
+      // only be marked dirty (because only a dependency of theirs has changed).
+      visit(markedDirtyResult.getReverseDepsUnsafe(), InvalidationType.DIRTIED, key);
+
+      progressReceiver.invalidated(key,
+          EvaluationProgressReceiver.InvalidationState.DIRTY);
+      // Remove the node from the set as the last operation.
+      if (supportInterruptions) {
+        pendingVisitations.remove(Pair.of(key, invalidationType));
+      }
+      return true;
     }
   }
 }
@@ -0,0 +1,257 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.util.Preconditions;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import javax.annotation.Nullable;
+
+/**
+ * {@link InMemoryNodeEntry} whose hot operations on done nodes do not take the entry's monitor.
+ *
+ * <p>Nodes such as configurations and toolchains are requested by tens of thousands of parents,
+ * most of them after the node is done. With {@link InMemoryNodeEntry}, every one of those requests
+ * takes the monitor of the node twice, once to register the parent as a reverse dep and once to
+ * read the value, and the threads of the evaluator end up queueing on it. This entry instead
+ * publishes the value of a done node in a volatile field, which {@link #isDone}, {@link
+ * #getValue}, {@link #getVersion} and friends read without locking, and pushes the reverse deps
+ * added to a done node onto a lock-free stack. The stack is merged into the reverse deps of the
+ * superclass, under the monitor, by any operation that reads or changes them, and when it grows
+ * past {@link #MAX_PENDING_REVERSE_DEPS}.
+ *
+ * <p>The stack is open (null or a {@link PendingReverseDep}) only while the node is done. It is
+ * opened by {@link #markDone} before the value is published, and closed by {@link #markDirty}
+ * before the node stops being done, so a parent that races with the node being dirtied either
+ * pushes its key before the stack is closed, in which case it is merged and reported as a reverse
+ * dep of the dirtied node, or finds it closed and falls back to the locked path of the superclass.
+ *
+ * <p>The price is two more references per node. Operations on nodes that are not done are
+ * unchanged.
+ */
+class LockFreeInMemoryNodeEntry extends InMemoryNodeEntry {
+  /** Size of the stack of pending reverse deps at which the pusher merges it. */
+  static final int MAX_PENDING_REVERSE_DEPS = 1024;
+
+  /** Value of {@link #pendingReverseDeps} while the node is not done. */
+  private static final Object CLOSED = new Object();
+
+  private static final AtomicReferenceFieldUpdater<LockFreeInMemoryNodeEntry, Object>
+      PENDING_REVERSE_DEPS_UPDATER =
+          AtomicReferenceFieldUpdater.newUpdater(
+              LockFreeInMemoryNodeEntry.class, Object.class, "pendingReverseDeps");
+
+  /** A reverse dep pushed onto the stack, and the ones pushed before it. */
+  private static final class PendingReverseDep {
+    private final SkyKey key;
+    @Nullable private final PendingReverseDep next;
+    private final int size;
+
+    private PendingReverseDep(SkyKey key, @Nullable PendingReverseDep next) {
+      this.key = key;
+      this.next = next;
+      this.size = next == null ? 1 : next.size + 1;
+    }
+  }
+
+  /** The value of the node while it is done, and null otherwise. */
+  @Nullable private volatile SkyValue doneValue = null;
+
+  /**
+   * {@link #CLOSED}, or the reverse deps added since the node was done and not yet merged, most
+   * recent first.
+   */
+  private volatile Object pendingReverseDeps = CLOSED;
+
+  @Override
+  public boolean isDone() {
+    return doneValue != null;
+  }
+
+  @Override
+  public SkyValue getValue() {
+    SkyValue value = doneValue;
+    Preconditions.checkState(value != null, "no value until done. ValueEntry: %s", this);
+    return ValueWithMetadata.justValue(value);
+  }
+
+  @Override
+  public SkyValue getValueMaybeWithMetadata() {
+    SkyValue value = doneValue;
+    Preconditions.checkState(value != null, "no value until done: %s", this);
+    return value;
+  }
+
+  @Override
+  @Nullable
+  public ErrorInfo getErrorInfo() {
+    SkyValue value = doneValue;
+    Preconditions.checkState(value != null, "no errors until done. NodeEntry: %s", this);
+    return ValueWithMetadata.getMaybeErrorInfo(value);
+  }
+
+  @Override
+  public SkyValue toValue() {
+    SkyValue value = doneValue;
+    if (value != null) {
+      return ValueWithMetadata.getMaybeErrorInfo(value) == null
+          ? ValueWithMetadata.justValue(value)
+          : null;
+    }
+    return super.toValue();
+  }
+
+  @Override
+  public Version getVersion() {
+    // The version is written before the value is published, and only changes once the node is
+    // dirtied, so reading it after the value is safe.
+    if (doneValue != null) {
+      return lastChangedVersion;
+    }
+    return super.getVersion();
+  }
+
+  @Override
+  public boolean isDirty() {
+    return doneValue == null && super.isDirty();
+  }
+
+  @Override
+  public boolean isChanged() {
+    return doneValue == null && super.isChanged();
+  }
+
+  @Override
+  protected void markDone() {
+    super.markDone();
+    pendingReverseDeps = null;
+    doneValue = value;
+  }
+
+  @Override
+  public DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
+    if (doneValue != null) {
+      if (reverseDep == null || !keepEdges()) {
+        return DependencyState.DONE;
+      }
+      if (pushReverseDep(reverseDep)) {
+        return DependencyState.DONE;
+      }
+    }
+    synchronized (this) {
+      mergePendingReverseDeps();
+      return super.addReverseDepAndCheckIfDone(reverseDep);
+    }
+  }
+
+  /**
+   * Pushes {@code reverseDep} onto the stack of pending reverse deps, and returns false if the
+   * stack is closed because the node is not done anymore.
+   */
+  private boolean pushReverseDep(SkyKey reverseDep) {
+    while (true) {
+      Object head = pendingReverseDeps;
+      if (head == CLOSED) {
+        return false;
+      }
+      PendingReverseDep newHead = new PendingReverseDep(reverseDep, (PendingReverseDep) head);
+      if (PENDING_REVERSE_DEPS_UPDATER.compareAndSet(this, head, newHead)) {
+        if (newHead.size >= MAX_PENDING_REVERSE_DEPS) {
+          synchronized (this) {
+            mergePendingReverseDeps();
+          }
+        }
+        return true;
+      }
+    }
+  }
+
+  /** Merges the pending reverse deps into those of the superclass. Must hold the monitor. */
+  private void mergePendingReverseDeps() {
+    while (true) {
+      Object head = pendingReverseDeps;
+      if (head == null || head == CLOSED) {
+        return;
+      }
+      if (PENDING_REVERSE_DEPS_UPDATER.compareAndSet(this, head, null)) {
+        addReverseDeps((PendingReverseDep) head);
+        return;
+      }
+    }
+  }
+
+  /** Adds the reverse deps of the stack headed by {@code head} in the order they were pushed. */
+  private void addReverseDeps(PendingReverseDep head) {
+    SkyKey[] keys = new SkyKey[head.size];
+    for (PendingReverseDep pending = head; pending != null; pending = pending.next) {
+      keys[pending.size - 1] = pending.key;
+    }
+    ReverseDepsUtility.addReverseDeps(this, Arrays.asList(keys));
+  }
+
+  @Override
+  public synchronized DependencyState checkIfDoneForDirtyReverseDep(SkyKey reverseDep) {
+    mergePendingReverseDeps();
+    return super.checkIfDoneForDirtyReverseDep(reverseDep);
+  }
+
+  @Override
+  public synchronized void removeReverseDep(SkyKey reverseDep) {
+    mergePendingReverseDeps();
+    super.removeReverseDep(reverseDep);
+  }
+
+  @Override
+  public synchronized Iterable<SkyKey> getReverseDepsForDoneEntry() {
+    mergePendingReverseDeps();
+    return super.getReverseDepsForDoneEntry();
+  }
+
+  @Override
+  public synchronized Iterable<SkyKey> getAllReverseDepsForNodeBeingDeleted() {
+    mergePendingReverseDeps();
+    return super.getAllReverseDepsForNodeBeingDeleted();
+  }
+
+  @Override
+  public synchronized MarkedDirtyResult markDirty(boolean isChanged) {
+    if (doneValue == null) {
+      return super.markDirty(isChanged);
+    }
+    // Close the stack first, so that parents racing with this call take the locked path once the
+    // pending reverse deps are merged.
+    Object head = PENDING_REVERSE_DEPS_UPDATER.getAndSet(this, CLOSED);
+    if (head instanceof PendingReverseDep) {
+      addReverseDeps((PendingReverseDep) head);
+    }
+    MarkedDirtyResult result = super.markDirty(isChanged);
+    doneValue = null;
+    return result;
+  }
+
+  /**
+   * Values are never evicted, since a parent that reads the value without the lock must see it as
+   * long as the node is done.
+   */
+  @Override
+  synchronized boolean evictValue() {
+    return false;
+  }
+
+  @Override
+  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+    mergePendingReverseDeps();
+    return super.cloneNodeEntry();
+  }
+}
@@ -18,7 +18,11 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadHostile;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Map;
 import javax.annotation.Nullable;
@@ -80,6 +84,20 @@ public interface MemoizingEvaluator {
    */
   void deleteDirty(long versionAgeLimit);
 
+  /**
+   * Ensures that once the current or next {@link #evaluate} call is done, the values of the done
+   * nodes matching this predicate are dropped to save memory, keeping the nodes, their edges and
+   * their versions. The nodes that depend on them are left alone. A node is recomputed when it is
+   * next requested, and if none of its deps changed, its new value is assumed to equal the dropped
+   * one, so the nodes that depend on it are not re-evaluated. This is therefore only sound for
+   * nodes whose functions are deterministic and cheap to run again.
+   *
+   * <p>Unlike the other methods of this class, this one may be called from any thread, including
+   * while evaluating.
+   */
+  @ThreadSafe
+  void evict(Predicate<SkyKey> pred);
+
   /**
    * Returns the values in the graph.
    *
@@ -143,6 +161,52 @@ public interface MemoizingEvaluator {
     ProcessableGraph transform(ProcessableGraph graph);
   }
 
+  /**
+   * Sets the ranking of ready nodes used by subsequent calls to {@link #evaluate}, or restores the
+   * default order, in which nodes are evaluated as they become ready, if {@code priority} is null.
+   */
+  void setEvaluationPriority(@Nullable EvaluationPriority priority);
+
+  /**
+   * Returns the counts of the calls to each {@link SkyFunction} made by all evaluations of this
+   * evaluator so far.
+   */
+  SkyFunctionMetrics getSkyFunctionMetrics();
+
+  /**
+   * Writes a snapshot of the done nodes whose keys are accepted by {@code persistable} to {@code
+   * out}, so that a later evaluator can restore them with {@link #restoreSnapshot}. Nodes with a
+   * dep that cannot be written are left out. Must not be called during an evaluation.
+   *
+   * @return the number of nodes written
+   */
+  int writeSnapshot(OutputStream out, String identity, Predicate<SkyKey> persistable)
+      throws IOException, InterruptedException;
+
+  /**
+   * Restores the nodes written by {@link #writeSnapshot} with the same {@code identity}. May only
+   * be called before the first evaluation. The caller must invalidate the restored nodes whose
+   * inputs changed since the snapshot was written before the next evaluation.
+   *
+   * @return the number of nodes restored
+   * @throws IOException if the snapshot cannot be restored, in which case nothing is restored
+   */
+  int restoreSnapshot(InputStream in, String identity) throws IOException, InterruptedException;
+
+  /**
+   * Starts recording the nodes computed by the following evaluations, and the roots they are asked
+   * for, until {@link #writeTrace} is called. Calling it again while recording starts over.
+   */
+  void startTrace();
+
+  /**
+   * Stops recording and writes the {@link EvaluationTrace} of the evaluations since {@link
+   * #startTrace} to {@code out}. Must not be called during an evaluation.
+   *
+   * @return the number of nodes written
+   */
+  int writeTrace(OutputStream out) throws IOException;
+
   /**
    * Write the graph to the output stream. Not necessarily thread-safe. Use only for debugging
    * purposes.
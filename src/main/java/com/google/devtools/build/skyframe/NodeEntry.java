@@ -133,6 +133,15 @@ public interface NodeEntry extends ThinNodeEntry {
   @ThreadSafe
   SkyValue toValue() throws InterruptedException;
 
+  /**
+   * Returns whether this done entry had its value evicted to save memory. Such an entry keeps its
+   * edges, but has no value until it is requested again through {@link
+   * #addReverseDepAndCheckIfDone} or {@link #checkIfDoneForDirtyReverseDep}, which dirty it so that
+   * it is recomputed.
+   */
+  @ThreadSafe
+  boolean isEvicted();
+
   /**
    * Returns the error, if any, associated to this node. This method may only be called after the
    * evaluation of this node is complete, i.e., after {@link #setValue} has been called.
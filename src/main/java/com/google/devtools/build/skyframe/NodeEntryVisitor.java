@@ -24,8 +24,11 @@ import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 
 /**
  * Threadpool manager for {@link ParallelEvaluator}. Wraps a {@link QuiescingExecutor} and keeps
@@ -60,6 +63,47 @@ class NodeEntryVisitor {
    */
   private final Function<SkyKey, Runnable> runnableMaker;
 
+  /**
+   * The ranking of ready nodes, or null if they are evaluated in the order they are enqueued. With
+   * a ranking, each enqueued node is added to {@link #readyNodes}, and {@link
+   * #evaluateHighestPriority} is submitted to the executor in its place. Since every
+   * runnable takes exactly one node off the queue, the executor still tracks all pending nodes for
+   * quiescence, but always runs the ready node with the highest priority.
+   */
+  @Nullable private final EvaluationPriority priority;
+
+  @Nullable private final PriorityBlockingQueue<ReadyNode> readyNodes;
+  private final AtomicLong enqueuedNodes = new AtomicLong();
+
+  private final Runnable evaluateHighestPriority =
+      new Runnable() {
+        @Override
+        public void run() {
+          runnableMaker.apply(readyNodes.remove().key).run();
+        }
+      };
+
+  /** A node waiting for a thread, ordered by priority and then by the order it was enqueued. */
+  private static final class ReadyNode implements Comparable<ReadyNode> {
+    private final SkyKey key;
+    private final long priority;
+    private final long sequenceNumber;
+
+    private ReadyNode(SkyKey key, long priority, long sequenceNumber) {
+      this.key = key;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public int compareTo(ReadyNode other) {
+      if (priority != other.priority) {
+        return priority > other.priority ? -1 : 1;
+      }
+      return Long.compare(sequenceNumber, other.sequenceNumber);
+    }
+  }
+
   NodeEntryVisitor(
       ForkJoinPool forkJoinPool,
       DirtyTrackingProgressReceiver progressReceiver,
@@ -70,12 +114,15 @@ class NodeEntryVisitor {
         .build();
     this.progressReceiver = progressReceiver;
     this.runnableMaker = runnableMaker;
+    this.priority = null;
+    this.readyNodes = null;
   }
 
   NodeEntryVisitor(
       int threadCount,
       DirtyTrackingProgressReceiver progressReceiver,
-      Function<SkyKey, Runnable> runnableMaker) {
+      Function<SkyKey, Runnable> runnableMaker,
+      @Nullable EvaluationPriority priority) {
     quiescingExecutor =
         new AbstractQueueVisitor(
             threadCount,
@@ -87,6 +134,8 @@ class NodeEntryVisitor {
             NODE_ENTRY_VISITOR_ERROR_CLASSIFIER);
     this.progressReceiver = progressReceiver;
     this.runnableMaker = runnableMaker;
+    this.priority = priority;
+    this.readyNodes = priority == null ? null : new PriorityBlockingQueue<ReadyNode>();
   }
 
   void waitForCompletion() throws InterruptedException {
@@ -101,7 +150,13 @@ class NodeEntryVisitor {
       return;
     }
     progressReceiver.enqueueing(key);
-    quiescingExecutor.execute(runnableMaker.apply(key));
+    if (priority == null) {
+      quiescingExecutor.execute(runnableMaker.apply(key));
+    } else {
+      readyNodes.add(
+          new ReadyNode(key, priority.getPriority(key), enqueuedNodes.getAndIncrement()));
+      quiescingExecutor.execute(evaluateHighestPriority);
+    }
   }
 
   /**
@@ -37,6 +37,7 @@ import com.google.devtools.build.skyframe.NodeEntry.DirtyState;
 import com.google.devtools.build.skyframe.ParallelEvaluatorContext.EnqueueParentBehavior;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
 import com.google.devtools.build.skyframe.SkyFunctionException.ReifiedSkyFunctionException;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionMetrics;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -47,6 +48,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -109,6 +111,39 @@ public final class ParallelEvaluator implements Evaluator {
       boolean keepGoing,
       int threadCount,
       DirtyTrackingProgressReceiver progressReceiver) {
+    this(
+        graph,
+        graphVersion,
+        skyFunctions,
+        reporter,
+        emittedEventState,
+        storedEventFilter,
+        errorInfoManager,
+        keepGoing,
+        threadCount,
+        progressReceiver,
+        /*priority=*/ null,
+        new SkyFunctionMetrics());
+  }
+
+  /**
+   * Creates an evaluator whose threads pick ready nodes in the order given by {@code priority}, or
+   * in the order they became ready if it is null, and that adds the calls it makes to {@link
+   * SkyFunction}s to {@code metrics}.
+   */
+  public ParallelEvaluator(
+      ProcessableGraph graph,
+      Version graphVersion,
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final ExtendedEventHandler reporter,
+      EmittedEventState emittedEventState,
+      EventFilter storedEventFilter,
+      ErrorInfoManager errorInfoManager,
+      boolean keepGoing,
+      int threadCount,
+      DirtyTrackingProgressReceiver progressReceiver,
+      @Nullable EvaluationPriority priority,
+      SkyFunctionMetrics metrics) {
     this.graph = graph;
     evaluatorContext =
         new ParallelEvaluatorContext(
@@ -122,7 +157,9 @@ public final class ParallelEvaluator implements Evaluator {
             storedEventFilter,
             errorInfoManager,
             createEvaluateRunnable(),
-            threadCount);
+            threadCount,
+            priority,
+            metrics);
     cycleDetector = new SimpleCycleDetector();
   }
 
@@ -152,7 +189,8 @@ public final class ParallelEvaluator implements Evaluator {
             storedEventFilter,
             errorInfoManager,
             createEvaluateRunnable(),
-            Preconditions.checkNotNull(forkJoinPool));
+            Preconditions.checkNotNull(forkJoinPool),
+            new SkyFunctionMetrics());
   }
 
   /**
@@ -351,6 +389,7 @@ public final class ParallelEvaluator implements Evaluator {
           // Tell the receiver that the value was not actually changed this run.
           evaluatorContext.getProgressReceiver()
                 .evaluated(skyKey, new SkyValueSupplier(state), EvaluationState.CLEAN);
+          evaluatorContext.getMetrics().recordPruned(skyKey.functionName());
           if (!evaluatorContext.keepGoing() && state.getErrorInfo() != null) {
             if (!evaluatorContext.getVisitor().preventNewEvaluations()) {
               return DirtyOutcome.ALREADY_PROCESSED;
@@ -362,6 +401,7 @@ public final class ParallelEvaluator implements Evaluator {
           return DirtyOutcome.ALREADY_PROCESSED;
         case NEEDS_REBUILDING:
           maybeMarkRebuilding(state);
+          evaluatorContext.getMetrics().recordReevaluated(skyKey.functionName());
           // Fall through to REBUILDING case.
         case REBUILDING:
           return DirtyOutcome.NEEDS_EVALUATION;
@@ -401,6 +441,7 @@ public final class ParallelEvaluator implements Evaluator {
             value = factory.compute(skyKey, env);
           } finally {
             long elapsedTimeNanos = BlazeClock.instance().nanoTime() - startTime;
+            evaluatorContext.getMetrics().recordEvaluation(functionName, elapsedTimeNanos);
             if (elapsedTimeNanos > 0) {
               evaluatorContext.getProgressReceiver().computed(skyKey, elapsedTimeNanos);
               Profiler.instance()
@@ -572,6 +613,7 @@ public final class ParallelEvaluator implements Evaluator {
           return;
         }
 
+        evaluatorContext.getMetrics().recordRestart(functionName);
         for (Entry<SkyKey, ? extends NodeEntry> e :
             graph.createIfAbsentBatch(skyKey, Reason.ENQUEUING_CHILD, uniqueNewDeps).entrySet()) {
           SkyKey newDirectDep = e.getKey();
@@ -747,11 +789,39 @@ public final class ParallelEvaluator implements Evaluator {
         "nokeep_going evaluations are not allowed if graph edges are not kept: %s",
         skyKeys);
 
-    Profiler.instance().startTask(ProfilerTask.SKYFRAME_EVAL, skyKeySet);
+    Profiler profiler = Profiler.instance();
+    ImmutableMap<SkyFunctionName, FunctionMetrics> metricsBefore =
+        profiler.isActive() && profiler.isProfiling(ProfilerTask.SKYFUNCTION_METRICS)
+            ? evaluatorContext.getMetrics().snapshot()
+            : null;
+    profiler.startTask(ProfilerTask.SKYFRAME_EVAL, skyKeySet);
     try {
       return doMutatingEvaluation(skyKeySet);
     } finally {
-      Profiler.instance().completeTask(ProfilerTask.SKYFRAME_EVAL);
+      if (metricsBefore != null) {
+        logMetrics(profiler, metricsBefore);
+      }
+      profiler.completeTask(ProfilerTask.SKYFRAME_EVAL);
+    }
+  }
+
+  /** Logs one profiler event per {@link SkyFunction} that was called during this evaluation. */
+  private void logMetrics(
+      Profiler profiler, ImmutableMap<SkyFunctionName, FunctionMetrics> metricsBefore) {
+    for (Entry<SkyFunctionName, FunctionMetrics> entry :
+        SkyFunctionMetrics.difference(evaluatorContext.getMetrics().snapshot(), metricsBefore)
+            .entrySet()) {
+      FunctionMetrics metrics = entry.getValue();
+      profiler.logEvent(
+          ProfilerTask.SKYFUNCTION_METRICS,
+          String.format(
+              "%s: %d evaluations, %d restarts, %d ms, %d reevaluated, %d pruned",
+              entry.getKey(),
+              metrics.getEvaluations(),
+              metrics.getRestarts(),
+              TimeUnit.NANOSECONDS.toMillis(metrics.getWallTimeNanos()),
+              metrics.getReevaluated(),
+              metrics.getPruned()));
     }
   }
 
@@ -1156,11 +1226,11 @@ public final class ParallelEvaluator implements Evaluator {
 
   /**
    * Return true if the entry does not need to be re-evaluated this build. The entry will need to be
-   * re-evaluated if it is not done, but also if it was not completely evaluated last build and this
-   * build is keepGoing.
+   * re-evaluated if it is not done or its value was evicted, but also if it was not completely
+   * evaluated last build and this build is keepGoing.
    */
   static boolean isDoneForBuild(@Nullable NodeEntry entry) {
-    return entry != null && entry.isDone();
+    return entry != null && entry.isDone() && !entry.isEvicted();
   }
 
   static void injectValues(
@@ -16,6 +16,8 @@ package com.google.devtools.build.skyframe;
 import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.events.Event;
@@ -50,6 +52,21 @@ class ParallelEvaluatorContext {
   private final DirtyTrackingProgressReceiver progressReceiver;
   private final EventFilter storedEventFilter;
   private final ErrorInfoManager errorInfoManager;
+  private final SkyFunctionMetrics metrics;
+
+  /**
+   * The most {@link SkyKeyComputeState}s kept at once by an evaluation. The states are also softly
+   * referenced, so that they are dropped before the evaluation runs out of memory.
+   */
+  private static final long MAX_COMPUTE_STATES =
+      Long.parseLong(System.getProperty("skyframe.ParallelEvaluator.MaxComputeStates", "100000"));
+
+  /**
+   * The states of the nodes whose {@link SkyFunction} asked for one and then returned because of
+   * missing deps. Entries are removed when the node is committed.
+   */
+  private final Cache<SkyKey, SkyKeyComputeState> computeStates =
+      CacheBuilder.newBuilder().softValues().maximumSize(MAX_COMPUTE_STATES).build();
 
   /**
    * The visitor managing the thread pool. Used to enqueue parents when an entry is finished, and,
@@ -70,7 +87,9 @@ class ParallelEvaluatorContext {
       EventFilter storedEventFilter,
       ErrorInfoManager errorInfoManager,
       final Function<SkyKey, Runnable> runnableMaker,
-      final int threadCount) {
+      final int threadCount,
+      @Nullable final EvaluationPriority priority,
+      SkyFunctionMetrics metrics) {
     this.graph = graph;
     this.graphVersion = graphVersion;
     this.skyFunctions = skyFunctions;
@@ -81,13 +100,14 @@ class ParallelEvaluatorContext {
     this.progressReceiver = Preconditions.checkNotNull(progressReceiver);
     this.storedEventFilter = storedEventFilter;
     this.errorInfoManager = errorInfoManager;
+    this.metrics = Preconditions.checkNotNull(metrics);
     visitorSupplier =
         Suppliers.memoize(
             new Supplier<NodeEntryVisitor>() {
               @Override
               public NodeEntryVisitor get() {
                 return new NodeEntryVisitor(
-                    threadCount, progressReceiver, runnableMaker);
+                    threadCount, progressReceiver, runnableMaker, priority);
               }
             });
   }
@@ -103,7 +123,8 @@ class ParallelEvaluatorContext {
       EventFilter storedEventFilter,
       ErrorInfoManager errorInfoManager,
       final Function<SkyKey, Runnable> runnableMaker,
-      final ForkJoinPool forkJoinPool) {
+      final ForkJoinPool forkJoinPool,
+      SkyFunctionMetrics metrics) {
     this.graph = graph;
     this.graphVersion = graphVersion;
     this.skyFunctions = skyFunctions;
@@ -114,6 +135,7 @@ class ParallelEvaluatorContext {
     this.progressReceiver = Preconditions.checkNotNull(progressReceiver);
     this.storedEventFilter = storedEventFilter;
     this.errorInfoManager = errorInfoManager;
+    this.metrics = Preconditions.checkNotNull(metrics);
     visitorSupplier =
         Suppliers.memoize(
             new Supplier<NodeEntryVisitor>() {
@@ -208,6 +230,29 @@ class ParallelEvaluatorContext {
     return errorInfoManager;
   }
 
+  SkyFunctionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the state stored for {@code key} by a previous call to its function, or stores and
+   * returns a new one from {@code stateSupplier}.
+   */
+  @SuppressWarnings("unchecked") // Only the function of the key stores states under it.
+  <T extends SkyKeyComputeState> T getComputeState(SkyKey key, Supplier<T> stateSupplier) {
+    SkyKeyComputeState state = computeStates.getIfPresent(key);
+    if (state == null) {
+      state = stateSupplier.get();
+      computeStates.put(key, state);
+    }
+    return (T) state;
+  }
+
+  /** Forgets the state of {@code key}, whose node is done. */
+  void removeComputeState(SkyKey key) {
+    computeStates.invalidate(key);
+  }
+
   /** Receives the events from the NestedSet and delegates to the reporter. */
   private static class NestedSetEventReceiver implements NestedSetVisitor.Receiver<TaggedEvents> {
 
@@ -14,6 +14,7 @@
 package com.google.devtools.build.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import java.util.Map;
@@ -272,6 +273,19 @@ public interface SkyFunction {
      */
     ExtendedEventHandler getListener();
 
+    /**
+     * Returns the state that the previous call to {@link SkyFunction#compute} for the same key, if
+     * any, stored in the object returned here before requesting missing deps. If there is no such
+     * object, because this is the first call, or because the evaluator has since dropped it,
+     * returns a new one from {@code stateSupplier}.
+     *
+     * <p>The state lets a function skip the work it already did on a restart. The evaluator
+     * forgets it once the function returns a value or throws, and may drop it at any time before
+     * that to bound its memory use, so it must only hold results that the function can recompute.
+     * See {@link SkyKeyComputeState}.
+     */
+    <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier);
+
     /** Returns whether we are currently in error bubbling. */
     @VisibleForTesting
     boolean inErrorBubblingForTesting();
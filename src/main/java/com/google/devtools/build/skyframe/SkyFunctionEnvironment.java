@@ -18,6 +18,7 @@ import static com.google.devtools.build.skyframe.ParallelEvaluator.maybeGetValue
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -56,6 +57,7 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
           System.getProperty("skyframe.ParallelEvaluator.PrefetchOldDeps", "true"));
 
   private boolean building = true;
+  private boolean computeStateRequested = false;
   private SkyKey depErrorKey = null;
   private final SkyKey skyKey;
   /**
@@ -488,6 +490,18 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
     return eventHandler;
   }
 
+  @Override
+  public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+    checkActive();
+    if (bubbleErrorInfo != null) {
+      // The values seen while bubbling up an error may differ from those seen by the previous
+      // calls, so their state must not be mixed with what this call computes.
+      return stateSupplier.get();
+    }
+    computeStateRequested = true;
+    return evaluatorContext.getComputeState(skyKey, stateSupplier);
+  }
+
   void doneBuilding() {
     building = false;
   }
@@ -518,6 +532,11 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
    */
   void commit(NodeEntry primaryEntry, EnqueueParentBehavior enqueueParents)
       throws InterruptedException {
+    if (computeStateRequested) {
+      // Functions that keep a state ask for it on every call. Should one not, its state is only
+      // dropped with the rest of the evaluation's, which is harmless since the node is done.
+      evaluatorContext.removeComputeState(skyKey);
+    }
     // Construct the definitive error info, if there is one.
     if (errorInfo == null) {
       errorInfo = evaluatorContext.getErrorInfoManager().getErrorInfoToUse(
@@ -568,6 +587,10 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
     // Note that if this update didn't actually change the value entry, this version may not
     // be the graph version.
     valueVersion = primaryEntry.getVersion();
+    if (!valueVersion.equals(evaluatorContext.getGraphVersion())) {
+      // Only a dirty entry can keep its previous version, by being given an equal value.
+      evaluatorContext.getMetrics().recordPruned(skyKey.functionName());
+    }
     Preconditions.checkState(
         valueVersion.atMost(evaluatorContext.getGraphVersion()),
         "%s should be at most %s in the version partial ordering",
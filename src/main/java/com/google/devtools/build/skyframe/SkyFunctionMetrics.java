@@ -0,0 +1,196 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, for each {@link SkyFunctionName}, how many times its {@link SkyFunction} was called by
+ * the evaluator, how many of those calls were restarts because of missing deps, and the wall time
+ * they took. For incremental evaluations, it also counts how many of its nodes were dirtied, how
+ * many of those were re-evaluated, and how many were found unchanged, which prunes the
+ * re-evaluation of their parents. The counts are cumulative: to get those of a single evaluation,
+ * take a {@link #snapshot} before and after it and {@link #difference} them.
+ */
+@ThreadSafe
+public final class SkyFunctionMetrics {
+  private final ConcurrentHashMap<SkyFunctionName, Counters> counters = new ConcurrentHashMap<>();
+
+  /** Records a call to the function of {@code functionName} that took {@code elapsedNanos}. */
+  void recordEvaluation(SkyFunctionName functionName, long elapsedNanos) {
+    Counters functionCounters = getCounters(functionName);
+    functionCounters.evaluations.increment();
+    functionCounters.wallTimeNanos.add(elapsedNanos);
+  }
+
+  /** Records that the last call to the function of {@code functionName} requested missing deps. */
+  void recordRestart(SkyFunctionName functionName) {
+    getCounters(functionName).restarts.increment();
+  }
+
+  /** Records that a done node of {@code functionName} was marked dirty. */
+  void recordDirtied(SkyFunctionName functionName) {
+    getCounters(functionName).dirtied.increment();
+  }
+
+  /** Records that a dirty node of {@code functionName} will be re-evaluated. */
+  void recordReevaluated(SkyFunctionName functionName) {
+    getCounters(functionName).reevaluated.increment();
+  }
+
+  /**
+   * Records that a dirty node of {@code functionName} kept its value, either because none of its
+   * deps changed, or because its re-evaluation gave an equal value.
+   */
+  void recordPruned(SkyFunctionName functionName) {
+    getCounters(functionName).pruned.increment();
+  }
+
+  private Counters getCounters(SkyFunctionName functionName) {
+    // Avoid the locking of computeIfAbsent once every function has run.
+    Counters functionCounters = counters.get(functionName);
+    return functionCounters != null
+        ? functionCounters
+        : counters.computeIfAbsent(functionName, name -> new Counters());
+  }
+
+  /** Returns the current counts of each function that was called or dirtied at least once. */
+  public ImmutableMap<SkyFunctionName, FunctionMetrics> snapshot() {
+    ImmutableMap.Builder<SkyFunctionName, FunctionMetrics> builder = ImmutableMap.builder();
+    for (Map.Entry<SkyFunctionName, Counters> entry : counters.entrySet()) {
+      Counters functionCounters = entry.getValue();
+      builder.put(
+          entry.getKey(),
+          new FunctionMetrics(
+              functionCounters.evaluations.sum(),
+              functionCounters.restarts.sum(),
+              functionCounters.wallTimeNanos.sum(),
+              functionCounters.dirtied.sum(),
+              functionCounters.reevaluated.sum(),
+              functionCounters.pruned.sum()));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the counts of each function that was called or dirtied between the two snapshots, the
+   * first of which must have been taken after the second.
+   */
+  public static ImmutableMap<SkyFunctionName, FunctionMetrics> difference(
+      Map<SkyFunctionName, FunctionMetrics> after, Map<SkyFunctionName, FunctionMetrics> before) {
+    ImmutableMap.Builder<SkyFunctionName, FunctionMetrics> builder = ImmutableMap.builder();
+    for (Map.Entry<SkyFunctionName, FunctionMetrics> entry : after.entrySet()) {
+      FunctionMetrics metrics = entry.getValue();
+      FunctionMetrics previous = before.get(entry.getKey());
+      if (previous != null) {
+        metrics =
+            new FunctionMetrics(
+                metrics.evaluations - previous.evaluations,
+                metrics.restarts - previous.restarts,
+                metrics.wallTimeNanos - previous.wallTimeNanos,
+                metrics.dirtied - previous.dirtied,
+                metrics.reevaluated - previous.reevaluated,
+                metrics.pruned - previous.pruned);
+      }
+      if (metrics.evaluations > 0 || metrics.dirtied > 0) {
+        builder.put(entry.getKey(), metrics);
+      }
+    }
+    return builder.build();
+  }
+
+  private static final class Counters {
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder restarts = new LongAdder();
+    private final LongAdder wallTimeNanos = new LongAdder();
+    private final LongAdder dirtied = new LongAdder();
+    private final LongAdder reevaluated = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+  }
+
+  /** The counts of one {@link SkyFunction}. */
+  public static final class FunctionMetrics {
+    private final long evaluations;
+    private final long restarts;
+    private final long wallTimeNanos;
+    private final long dirtied;
+    private final long reevaluated;
+    private final long pruned;
+
+    FunctionMetrics(
+        long evaluations,
+        long restarts,
+        long wallTimeNanos,
+        long dirtied,
+        long reevaluated,
+        long pruned) {
+      this.evaluations = evaluations;
+      this.restarts = restarts;
+      this.wallTimeNanos = wallTimeNanos;
+      this.dirtied = dirtied;
+      this.reevaluated = reevaluated;
+      this.pruned = pruned;
+    }
+
+    /** The number of calls to the function, including restarts. */
+    public long getEvaluations() {
+      return evaluations;
+    }
+
+    /** The number of calls that returned because of missing deps. */
+    public long getRestarts() {
+      return restarts;
+    }
+
+    /** The wall time of all calls, summed over the evaluator threads. */
+    public long getWallTimeNanos() {
+      return wallTimeNanos;
+    }
+
+    /** The number of done nodes that were marked dirty by invalidation. */
+    public long getDirtied() {
+      return dirtied;
+    }
+
+    /** The number of dirty nodes whose function was called again. */
+    public long getReevaluated() {
+      return reevaluated;
+    }
+
+    /**
+     * The number of dirty nodes that kept their value, with or without being re-evaluated, and so
+     * did not cause their parents to be re-evaluated.
+     */
+    public long getPruned() {
+      return pruned;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("evaluations", evaluations)
+          .add("restarts", restarts)
+          .add("wallTimeNanos", wallTimeNanos)
+          .add("dirtied", dirtied)
+          .add("reevaluated", reevaluated)
+          .add("pruned", pruned)
+          .toString();
+    }
+  }
+}
@@ -64,6 +64,11 @@ public final class SkyFunctionName implements Serializable {
     return name;
   }
 
+  /** Shares deserialized names with the ones returned by {@link #create}. */
+  private Object readResolve() {
+    return create(name);
+  }
+
   @Override
   public String toString() {
     return name;
@@ -0,0 +1,26 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+/**
+ * Marker interface for the partial state of a {@link SkyFunction#compute} call, which the
+ * function can get from {@link SkyFunction.Environment#getState} so that it does not redo the
+ * work done before it requested missing deps when it is restarted.
+ *
+ * <p>The evaluator may drop the state at any time, for instance when it is low on memory, so a
+ * function must compute the same value whether or not the state it gets was used by a previous
+ * call. Only results derived from deps that were already available, or from no deps at all, may
+ * therefore be kept in the state.
+ */
+public interface SkyKeyComputeState {}
@@ -0,0 +1,205 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns dense int ids to {@link SkyKey}s, so that graph edges can be stored as int arrays by
+ * {@link CompactInMemoryNodeEntry}.
+ *
+ * <p>Keys are stored once, in chunks indexed by id. The reverse mapping is an open-addressing table
+ * of ids, split into segments that are locked independently, so that it costs about four ints per
+ * key instead of the entry, boxed id and key reference of a {@code ConcurrentHashMap}.
+ *
+ * <p>Each id counts the edges that store it: {@link #acquire} adds one and {@link #release} removes
+ * one. When the last edge goes, the key is dropped and its id is reused by the next key of the
+ * same segment. An edge to a deleted node that has not yet been consolidated away is still
+ * counted, so its id cannot be reused under it.
+ */
+@ThreadSafe
+final class SkyKeyIndex {
+  private static final int SEGMENT_BITS = 6;
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+  /**
+   * Keys by id, and the number of edges that store each id. The chunks are never replaced, only the
+   * arrays that hold them, under the lock of {@code this}. The entries of an id are only written
+   * under the lock of the segment that owns it.
+   */
+  private volatile SkyKey[][] keyChunks = new SkyKey[1][CHUNK_SIZE];
+
+  private volatile int[][] refCountChunks = new int[1][CHUNK_SIZE];
+
+  /** The smallest id that has never been given out. */
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  SkyKeyIndex() {
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Returns the id of {@code key}, assigning one if it has none yet, and counts one more edge that
+   * stores it. The caller must {@link #release} the id when the edge is dropped.
+   */
+  int acquire(SkyKey key) {
+    int hash = spread(key.hashCode());
+    return segmentFor(hash).acquire(key, hash);
+  }
+
+  /** Counts one less edge that stores {@code id}, which may be reused once none is left. */
+  void release(int id) {
+    int hash = spread(getKey(id).hashCode());
+    segmentFor(hash).release(id, hash);
+  }
+
+  /** Returns the key with the given id, which must be held by an edge of the caller. */
+  SkyKey getKey(int id) {
+    return keyChunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)];
+  }
+
+  /** Returns the number of keys with an id. */
+  int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+  }
+
+  /** Returns an id that has never been given out, making room for it. */
+  private int newId() {
+    int id = nextId.getAndIncrement();
+    Preconditions.checkState(id >= 0, "Too many keys");
+    int chunk = id >>> CHUNK_BITS;
+    if (chunk >= keyChunks.length) {
+      synchronized (this) {
+        if (chunk >= keyChunks.length) {
+          int length = Math.max(keyChunks.length * 2, chunk + 1);
+          SkyKey[][] newKeyChunks = Arrays.copyOf(keyChunks, length);
+          int[][] newRefCountChunks = Arrays.copyOf(refCountChunks, length);
+          for (int i = keyChunks.length; i < length; i++) {
+            newKeyChunks[i] = new SkyKey[CHUNK_SIZE];
+            newRefCountChunks[i] = new int[CHUNK_SIZE];
+          }
+          refCountChunks = newRefCountChunks;
+          keyChunks = newKeyChunks;
+        }
+      }
+    }
+    return id;
+  }
+
+  private static int spread(int hash) {
+    // Murmur3 finalizer, so that both the high bits (segment) and low bits (slot) are mixed.
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  /**
+   * Ids of the keys whose hashes fall in a segment, plus one so that zero marks empty slots, and the
+   * ids the segment freed.
+   */
+  private final class Segment {
+    private int[] table = new int[16];
+    private int size = 0;
+    private int[] freeIds = new int[0];
+    private int freeCount = 0;
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized int acquire(SkyKey key, int hash) {
+      int mask = table.length - 1;
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int idPlusOne = table[slot];
+        if (idPlusOne == 0) {
+          int id = freeCount > 0 ? freeIds[--freeCount] : newId();
+          keyChunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)] = key;
+          refCountChunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)] = 1;
+          table[slot] = id + 1;
+          if (++size > table.length / 2) {
+            resize();
+          }
+          return id;
+        }
+        if (getKey(idPlusOne - 1).equals(key)) {
+          refCountChunks[(idPlusOne - 1) >>> CHUNK_BITS][(idPlusOne - 1) & (CHUNK_SIZE - 1)]++;
+          return idPlusOne - 1;
+        }
+      }
+    }
+
+    synchronized void release(int id, int hash) {
+      int[] refCounts = refCountChunks[id >>> CHUNK_BITS];
+      int offset = id & (CHUNK_SIZE - 1);
+      Preconditions.checkState(refCounts[offset] > 0, "Id %s was not acquired", id);
+      if (--refCounts[offset] > 0) {
+        return;
+      }
+      int mask = table.length - 1;
+      int hole = hash & mask;
+      while (table[hole] != id + 1) {
+        hole = (hole + 1) & mask;
+      }
+      // Shift back the ids after the hole whose probe sequence passes through it.
+      for (int slot = (hole + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+        int home = spread(getKey(table[slot] - 1).hashCode()) & mask;
+        if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+          table[hole] = table[slot];
+          hole = slot;
+        }
+      }
+      table[hole] = 0;
+      size--;
+      keyChunks[id >>> CHUNK_BITS][offset] = null;
+      if (freeCount == freeIds.length) {
+        freeIds = Arrays.copyOf(freeIds, Math.max(16, freeCount * 2));
+      }
+      freeIds[freeCount++] = id;
+    }
+
+    private void resize() {
+      int[] oldTable = table;
+      table = new int[oldTable.length * 2];
+      int mask = table.length - 1;
+      for (int idPlusOne : oldTable) {
+        if (idPlusOne != 0) {
+          int slot = spread(getKey(idPlusOne - 1).hashCode()) & mask;
+          while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          table[slot] = idPlusOne;
+        }
+      }
+    }
+  }
+}
@@ -17,6 +17,7 @@ import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.Postable;
 import com.google.devtools.build.lib.util.Preconditions;
+import java.util.Arrays;
 import java.util.Objects;
 import javax.annotation.Nullable;
 
@@ -248,6 +249,42 @@ public abstract class ValueWithMetadata implements SkyValue {
     }
   }
 
+  /**
+   * Returns true if a node whose last value was {@code oldValue} may keep its version with {@code
+   * newValue}: they are {@link FingerprintedSkyValue}s of the same class with equal fingerprints,
+   * even if they are {@link NotComparableSkyValue}s, or they are otherwise comparable and equal, and
+   * they carry the same events.
+   */
+  static boolean unchanged(SkyValue oldValue, SkyValue newValue) {
+    if (oldValue.getClass() == ValueWithEvents.class
+        && newValue.getClass() == ValueWithEvents.class) {
+      ValueWithEvents oldWithEvents = (ValueWithEvents) oldValue;
+      ValueWithEvents newWithEvents = (ValueWithEvents) newValue;
+      return sameContent(oldWithEvents.value, newWithEvents.value)
+          && oldWithEvents.transitiveEvents.shallowEquals(newWithEvents.transitiveEvents)
+          && oldWithEvents.transitivePostables.shallowEquals(newWithEvents.transitivePostables);
+    }
+    return sameContent(oldValue, newValue);
+  }
+
+  private static boolean sameContent(SkyValue oldValue, SkyValue newValue) {
+    if (oldValue instanceof FingerprintedSkyValue && oldValue.getClass() == newValue.getClass()) {
+      byte[] oldFingerprint = ((FingerprintedSkyValue) oldValue).getFingerprint();
+      byte[] newFingerprint = ((FingerprintedSkyValue) newValue).getFingerprint();
+      if (oldFingerprint != null && newFingerprint != null) {
+        return Arrays.equals(oldFingerprint, newFingerprint);
+      }
+    }
+    return !(newValue instanceof NotComparableSkyValue) && oldValue.equals(newValue);
+  }
+
+  /** Returns true if {@code value} is a {@link FingerprintedSkyValue} with a fingerprint. */
+  static boolean hasFingerprint(SkyValue value) {
+    SkyValue justValue = justValue(value);
+    return justValue instanceof FingerprintedSkyValue
+        && ((FingerprintedSkyValue) justValue).getFingerprint() != null;
+  }
+
   public static SkyValue justValue(SkyValue value) {
     if (value instanceof ValueWithMetadata) {
       return ((ValueWithMetadata) value).getValue();
@@ -60,6 +60,10 @@ static void Usage(char *program_name, const char *fmt, ...) {
           "  -w <file>  make a file or directory writable for the sandboxed "
           "process\n"
           "  -e <dir>  mount an empty tmpfs on a directory\n"
+          "  -I <dir>  mount an empty, read-only tmpfs on a directory, and "
+          "create the\n"
+          "    mount points of the -M/-m pairs right below it, so that it only "
+          "shows those\n"
           "  -M/-m <source/target>  directory to mount inside the sandbox\n"
           "    Multiple directories can be specified and each of them will be "
           "mounted readonly.\n"
@@ -89,7 +93,7 @@ static void ParseCommandLine(unique_ptr<vector<char *>> args) {
   int c;
   bool source_specified = false;
 
-  while ((c = getopt(args->size(), args->data(), ":W:T:t:l:L:w:e:M:m:HNRUD")) !=
+  while ((c = getopt(args->size(), args->data(), ":W:T:t:l:L:w:e:I:M:m:HNRUD")) !=
          -1) {
     if (c != 'M' && c != 'm') source_specified = false;
     switch (c) {
@@ -138,6 +142,10 @@ static void ParseCommandLine(unique_ptr<vector<char *>> args) {
         ValidateIsAbsolutePath(optarg, args->front(), static_cast<char>(c));
         opt.tmpfs_dirs.emplace_back(optarg);
         break;
+      case 'I':
+        ValidateIsAbsolutePath(optarg, args->front(), static_cast<char>(c));
+        opt.input_tmpfs_dirs.emplace_back(optarg);
+        break;
       case 'M':
         ValidateIsAbsolutePath(optarg, args->front(), static_cast<char>(c));
         // Add the current source path to both source and target lists
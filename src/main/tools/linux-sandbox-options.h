@@ -36,6 +36,8 @@ struct Options {
   std::vector<std::string> writable_files;
   // Directories where to mount an empty tmpfs (-e)
   std::vector<std::string> tmpfs_dirs;
+  // Directories where to mount an empty tmpfs to bind mount inputs into (-I)
+  std::vector<std::string> input_tmpfs_dirs;
   // Source of files or directories to explicitly bind mount in the sandbox (-M)
   std::vector<std::string> bind_mount_sources;
   // Target of files or directories to explicitly bind mount in the sandbox (-m)
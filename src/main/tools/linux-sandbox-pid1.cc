@@ -41,6 +41,7 @@
 #include <sys/wait.h>
 #include <unistd.h>
 #include <string>
+#include <unordered_set>
 
 #include "src/main/tools/linux-sandbox-options.h"
 #include "src/main/tools/linux-sandbox.h"
@@ -154,6 +155,43 @@ static void SetupUtsNamespace() {
   }
 }
 
+// Returns whether path is right below one of the input tmpfs directories (-I),
+// which are created and mounted before the paths below them are.
+static bool IsInInputTmpfs(const std::string &path,
+                           const std::unordered_set<std::string> &dirs) {
+  size_t slash = path.rfind('/');
+  return slash != std::string::npos && slash > 0 &&
+         dirs.count(path.substr(0, slash)) > 0;
+}
+
+// Creates an empty file or directory to mount onto, unless there already is
+// one. Mount points inside an input tmpfs (-I) only exist once it is mounted.
+static void CreateMountPoint(const std::string &path, bool directory) {
+  struct stat sb;
+  if (lstat(path.c_str(), &sb) == 0) {
+    return;
+  }
+  if (directory) {
+    if (mkdir(path.c_str(), 0755) < 0) {
+      DIE("mkdir(%s, 0755)", path.c_str());
+    }
+  } else {
+    int fd = open(path.c_str(), O_WRONLY | O_CREAT | O_CLOEXEC, 0644);
+    if (fd < 0) {
+      DIE("open(%s, O_WRONLY | O_CREAT | O_CLOEXEC, 0644)", path.c_str());
+    }
+    close(fd);
+  }
+}
+
+static void BindMount(const std::string &source, const std::string &target) {
+  PRINT_DEBUG("bind mount: %s -> %s", source.c_str(), target.c_str());
+  if (mount(source.c_str(), target.c_str(), nullptr, MS_BIND, nullptr) < 0) {
+    DIE("mount(%s, %s, nullptr, MS_BIND, nullptr)", source.c_str(),
+        target.c_str());
+  }
+}
+
 static void MountFilesystems() {
   for (const std::string &tmpfs_dir : opt.tmpfs_dirs) {
     PRINT_DEBUG("tmpfs: %s", tmpfs_dir.c_str());
@@ -174,13 +212,38 @@ static void MountFilesystems() {
         opt.working_dir.c_str());
   }
 
+  std::unordered_set<std::string> input_tmpfs_dirs(
+      opt.input_tmpfs_dirs.begin(), opt.input_tmpfs_dirs.end());
+  for (size_t i = 0; i < opt.bind_mount_sources.size(); i++) {
+    const std::string& target = opt.bind_mount_targets.at(i);
+    if (!IsInInputTmpfs(target, input_tmpfs_dirs)) {
+      BindMount(opt.bind_mount_sources.at(i), target);
+    }
+  }
+
+  // An input tmpfs only shows the inputs that are bound into it, so that the
+  // sandboxed process does not see the undeclared files next to them. Like
+  // the bind mounts, it is made read-only below.
+  for (const std::string &input_tmpfs_dir : opt.input_tmpfs_dirs) {
+    PRINT_DEBUG("input tmpfs: %s", input_tmpfs_dir.c_str());
+    CreateMountPoint(input_tmpfs_dir, true);
+    if (mount("tmpfs", input_tmpfs_dir.c_str(), "tmpfs",
+              MS_NOSUID | MS_NODEV | MS_NOATIME, "mode=0755") < 0) {
+      DIE("mount(tmpfs, %s, tmpfs, MS_NOSUID | MS_NODEV | MS_NOATIME, "
+          "mode=0755)",
+          input_tmpfs_dir.c_str());
+    }
+  }
   for (size_t i = 0; i < opt.bind_mount_sources.size(); i++) {
     const std::string& source = opt.bind_mount_sources.at(i);
     const std::string& target = opt.bind_mount_targets.at(i);
-    PRINT_DEBUG("bind mount: %s -> %s", source.c_str(), target.c_str());
-    if (mount(source.c_str(), target.c_str(), nullptr, MS_BIND, nullptr) < 0) {
-      DIE("mount(%s, %s, nullptr, MS_BIND, nullptr)", source.c_str(),
-          target.c_str());
+    if (IsInInputTmpfs(target, input_tmpfs_dirs)) {
+      struct stat sb;
+      if (stat(source.c_str(), &sb) < 0) {
+        DIE("stat(%s)", source.c_str());
+      }
+      CreateMountPoint(target, S_ISDIR(sb.st_mode));
+      BindMount(source, target);
     }
   }
 
@@ -115,7 +115,8 @@ public class DigestUtilsTest {
    */
   @Test
   public void testCalculationConcurrency() throws Exception {
-    for (HashFunction hf : Arrays.asList(HashFunction.MD5, HashFunction.SHA1)) {
+    for (HashFunction hf :
+        Arrays.asList(HashFunction.MD5, HashFunction.SHA1, HashFunction.MURMUR3_128)) {
       assertDigestCalculationConcurrency(true, true, 4096, 4096, hf);
       assertDigestCalculationConcurrency(true, true, 4097, 4097, hf);
       assertDigestCalculationConcurrency(true, false, 4096, 4096, hf);
@@ -152,7 +153,8 @@ public class DigestUtilsTest {
       fail("Digests cache should remain disabled until configureCache is called");
     } catch (NullPointerException expected) {
     }
-    assertRecoverFromMalformedDigest(HashFunction.MD5, HashFunction.SHA1);
+    assertRecoverFromMalformedDigest(
+        HashFunction.MD5, HashFunction.SHA1, HashFunction.MURMUR3_128);
     try {
       DigestUtils.getCacheStats();
       fail("Digests cache was unexpectedly enabled through the test");
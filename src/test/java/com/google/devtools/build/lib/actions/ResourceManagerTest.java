@@ -469,6 +469,33 @@ public class ResourceManagerTest {
     assertThat(rm.inUse()).isFalse();
   }
 
+  @Test
+  public void testUnmanagedMemoryReducesAvailableRam() throws Exception {
+    acquire(100, 0, 0, 0);
+    assertThat(rm.isAvailable(800, 0, 0, 0)).isTrue();
+    rm.setUnmanagedMemoryMb(300);
+    assertThat(rm.isAvailable(800, 0, 0, 0)).isFalse();
+    assertThat(rm.isAvailable(600, 0, 0, 0)).isTrue();
+
+    TestThread thread1 =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            acquire(800, 0, 0, 0); // Will be blocked by the unmanaged memory.
+            release(800, 0, 0, 0);
+          }
+        };
+    thread1.start();
+    while (rm.getWaitCount() == 0) {
+      Thread.yield();
+    }
+    rm.setUnmanagedMemoryMb(0);
+    thread1.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+
+    release(100, 0, 0, 0);
+    assertThat(rm.inUse()).isFalse();
+  }
+
   private static class ResourceOwnerStub implements ActionExecutionMetadata {
 
     @Override
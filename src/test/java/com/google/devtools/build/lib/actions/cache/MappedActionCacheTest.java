@@ -0,0 +1,184 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skyframe.FileArtifactValue;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Test for the MappedActionCache class. */
+@RunWith(JUnit4.class)
+public class MappedActionCacheTest {
+  private Path cacheRoot;
+  private MappedActionCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    cacheRoot = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("mapped_cache");
+    FileSystemUtils.deleteTree(cacheRoot);
+    cache = new MappedActionCache(cacheRoot);
+  }
+
+  @After
+  public final void deleteCache() throws Exception {
+    cache.close();
+    FileSystemUtils.deleteTree(cacheRoot);
+  }
+
+  private static ActionCache.Entry newEntry(String key) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(key + "Key", ImmutableMap.<String, String>of(), true);
+    entry.addFile(
+        PathFragment.create(key + "/input"), FileArtifactValue.createDirectory(1234));
+    entry.getFileDigest();
+    return entry;
+  }
+
+  private void putKey(ActionCache cache, String key) {
+    cache.put(key, newEntry(key));
+  }
+
+  @Test
+  public void testPutGetAndRemove() {
+    assertThat(cache.get("key")).isNull();
+    putKey(cache, "key");
+    assertThat(cache.get("key").toString()).isEqualTo(newEntry("key").toString());
+    assertThat(cache.get("key").getPaths()).containsExactly("key/input");
+    putKey(cache, "key");
+    assertThat(cache.toString()).startsWith("Action cache (1 records):\n");
+    cache.remove("key");
+    assertThat(cache.get("key")).isNull();
+    assertThat(cache.toString()).startsWith("Action cache (0 records):\n");
+  }
+
+  @Test
+  public void testSaveAndReload() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      putKey(cache, Integer.toString(i));
+    }
+    cache.remove("0");
+    cache.save();
+
+    MappedActionCache newCache = new MappedActionCache(cacheRoot);
+    assertThat(newCache.get("0")).isNull();
+    for (int i = 1; i < 100; i++) {
+      String key = Integer.toString(i);
+      assertThat(newCache.get(key).toString()).isEqualTo(newEntry(key).toString());
+    }
+    assertThat(newCache.toString()).startsWith("Action cache (99 records):\n");
+  }
+
+  @Test
+  public void testIndexGrows() throws Exception {
+    int count = 100000;
+    for (int i = 0; i < count; i++) {
+      putKey(cache, Integer.toString(i));
+    }
+    for (int i = 0; i < count; i += 997) {
+      String key = Integer.toString(i);
+      assertThat(cache.get(key).toString()).isEqualTo(newEntry(key).toString());
+    }
+    assertThat(cache.toString()).startsWith("Action cache (" + count + " records):\n");
+    assertThat(MappedActionCache.indexFile(cacheRoot).getFileSize())
+        .isGreaterThan(16L * 2 * count);
+  }
+
+  @Test
+  public void testCorruptedRecordIsAMiss() throws Exception {
+    putKey(cache, "key");
+    cache.save();
+    // Flip the last byte of the only record, which invalidates its checksum.
+    try (RandomAccessFile file =
+        new RandomAccessFile(MappedActionCache.dataFile(cacheRoot, 0).getPathString(), "rw")) {
+      int length = file.readInt();
+      file.seek(8 + length - 1);
+      int last = file.read();
+      file.seek(8 + length - 1);
+      file.write(last ^ 0xff);
+    }
+
+    MappedActionCache newCache = new MappedActionCache(cacheRoot);
+    assertThat(newCache.get("key")).isNull();
+    putKey(newCache, "key");
+    assertThat(newCache.get("key").toString()).isEqualTo(newEntry("key").toString());
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      putKey(cache, Integer.toString(i));
+    }
+    for (int i = 0; i < 100; i++) {
+      if (i % 2 == 0) {
+        putKey(cache, Integer.toString(i));
+      } else {
+        cache.remove(Integer.toString(i));
+      }
+    }
+    long sizeBefore = cache.save();
+
+    cache.compactForTesting();
+    assertThat(MappedActionCache.dataFile(cacheRoot, 0).exists()).isFalse();
+    assertThat(MappedActionCache.dataFile(cacheRoot, 1).exists()).isTrue();
+    assertThat(cache.toString()).startsWith("Action cache (50 records):\n");
+    assertThat(cache.get("1")).isNull();
+    assertThat(cache.get("2").toString()).isEqualTo(newEntry("2").toString());
+    putKey(cache, "new");
+    assertThat(cache.save()).isLessThan(sizeBefore);
+    cache.close();
+
+    MappedActionCache newCache = new MappedActionCache(cacheRoot);
+    assertThat(newCache.get("new").toString()).isEqualTo(newEntry("new").toString());
+    assertThat(newCache.get("98").toString()).isEqualTo(newEntry("98").toString());
+    assertThat(newCache.get("99")).isNull();
+  }
+
+  @Test
+  public void testFailedCompactionKeepsCacheUsable() throws Exception {
+    putKey(cache, "key");
+    cache.save();
+    // Make the data file of the next generation impossible to create.
+    Path blocker = MappedActionCache.dataFile(cacheRoot, 1);
+    blocker.createDirectory();
+    blocker.getChild("file").getOutputStream().close();
+
+    try {
+      cache.compactForTesting();
+      fail();
+    } catch (IOException expected) {
+      // Expected.
+    }
+    assertThat(cache.get("key").toString()).isEqualTo(newEntry("key").toString());
+    putKey(cache, "other");
+    cache.save();
+    cache.close();
+    FileSystemUtils.deleteTree(blocker);
+    MappedActionCache newCache = new MappedActionCache(cacheRoot);
+    assertThat(newCache.get("other").toString()).isEqualTo(newEntry("other").toString());
+  }
+}
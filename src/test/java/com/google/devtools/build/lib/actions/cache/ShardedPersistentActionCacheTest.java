@@ -0,0 +1,196 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.vfs.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Test for the ShardedPersistentActionCache class. */
+@RunWith(JUnit4.class)
+public class ShardedPersistentActionCacheTest {
+  private static final int NUM_SHARDS = 4;
+
+  private static class ManualClock implements Clock {
+    @Override public long currentTimeMillis() {
+      return 0;
+    }
+
+    @Override public long nanoTime() {
+      return 0;
+    }
+  }
+
+  private Scratch scratch = new Scratch();
+  private Path dataRoot;
+  private ManualClock clock = new ManualClock();
+  private ShardedPersistentActionCache cache;
+
+  @Before
+  public final void createFiles() throws Exception  {
+    dataRoot = scratch.resolve("/cache/test.dat");
+    cache = new ShardedPersistentActionCache(dataRoot, clock, NUM_SHARDS);
+  }
+
+  private Path mapFile(int shard) {
+    return ShardedPersistentActionCache.cacheFile(dataRoot, shard, NUM_SHARDS);
+  }
+
+  private Path journalFile(int shard) {
+    return ShardedPersistentActionCache.journalFile(dataRoot, shard, NUM_SHARDS);
+  }
+
+  private static ActionCache.Entry newEntry(String key) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(key + "Key", ImmutableMap.<String, String>of(), false);
+    entry.getFileDigest();
+    return entry;
+  }
+
+  private void putKey(ActionCache cache, String key) {
+    cache.put(key, newEntry(key));
+  }
+
+  @Test
+  public void testPutGetAndRemove() {
+    assertThat(cache.get("key")).isNull();
+    putKey(cache, "key");
+    assertThat(cache.get("key").toString()).isEqualTo(newEntry("key").toString());
+    cache.remove("key");
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void testSaveAndReload() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      putKey(cache, Integer.toString(i));
+    }
+    cache.save();
+    cache.awaitCompactions();
+
+    ShardedPersistentActionCache newCache =
+        new ShardedPersistentActionCache(dataRoot, clock, NUM_SHARDS);
+    for (int i = 0; i < 100; i++) {
+      String key = Integer.toString(i);
+      assertThat(newCache.get(key).toString()).isEqualTo(cache.get(key).toString());
+    }
+    assertThat(newCache.toString()).startsWith("Action cache (100 records):\n");
+  }
+
+  @Test
+  public void testSaveOnlyTouchesChangedShards() throws Exception {
+    for (int i = 0; i < 300; i++) {
+      putKey(cache, Integer.toString(i));
+    }
+    cache.save();
+    cache.awaitCompactions();
+    // The first save only journals the entries, which are then compacted in the background.
+    for (int shard = 0; shard < NUM_SHARDS; shard++) {
+      assertThat(mapFile(shard).exists()).isTrue();
+      assertThat(journalFile(shard).exists()).isFalse();
+    }
+
+    // The entry goes into a single shard, whose change is appended to its journal.
+    putKey(cache, "0");
+    cache.save();
+    cache.awaitCompactions();
+    int journals = 0;
+    for (int shard = 0; shard < NUM_SHARDS; shard++) {
+      if (journalFile(shard).exists()) {
+        journals++;
+      }
+    }
+    assertThat(journals).isEqualTo(1);
+
+    ShardedPersistentActionCache newCache =
+        new ShardedPersistentActionCache(dataRoot, clock, NUM_SHARDS);
+    assertThat(newCache.get("0").toString()).isEqualTo(cache.get("0").toString());
+  }
+
+  @Test
+  public void testSaveOnlyAppendsNewFilenamesToIndexJournal() throws Exception {
+    String indexName = "filename_index_v" + CompactPersistentActionCache.VERSION;
+    Path indexFile = dataRoot.getChild(indexName + ".blaze");
+    Path indexJournal = dataRoot.getChild(indexName + ".journal");
+    for (int i = 0; i < 300; i++) {
+      putKey(cache, Integer.toString(i));
+    }
+    cache.save();
+    assertThat(indexJournal.exists()).isFalse();
+    long indexSize = indexFile.getFileSize();
+
+    putKey(cache, "new");
+    cache.save();
+    assertThat(indexFile.getFileSize()).isEqualTo(indexSize);
+    assertThat(indexJournal.exists()).isTrue();
+
+    ShardedPersistentActionCache newCache =
+        new ShardedPersistentActionCache(dataRoot, clock, NUM_SHARDS);
+    assertThat(newCache.get("new").toString()).isEqualTo(cache.get("new").toString());
+  }
+
+  @Test
+  public void testFilesOfOtherShardCountsAreDeleted() throws Exception {
+    ShardedPersistentActionCache oldCache = new ShardedPersistentActionCache(dataRoot, clock, 2);
+    putKey(oldCache, "key");
+    oldCache.save();
+    oldCache.awaitCompactions();
+    Path oldMapFile = ShardedPersistentActionCache.cacheFile(dataRoot, 0, 2);
+    assertThat(oldMapFile.exists()).isTrue();
+
+    new ShardedPersistentActionCache(dataRoot, clock, NUM_SHARDS);
+    assertThat(oldMapFile.exists()).isFalse();
+    assertThat(ShardedPersistentActionCache.journalFile(dataRoot, 0, 2).exists()).isFalse();
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int thread = t;
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 200; i++) {
+                  String key = thread + "/" + i;
+                  putKey(cache, key);
+                  assertThat(cache.get(key)).isNotNull();
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    cache.save();
+    cache.awaitCompactions();
+
+    ShardedPersistentActionCache newCache =
+        new ShardedPersistentActionCache(dataRoot, clock, NUM_SHARDS);
+    assertThat(newCache.toString()).startsWith("Action cache (1600 records):\n");
+  }
+}
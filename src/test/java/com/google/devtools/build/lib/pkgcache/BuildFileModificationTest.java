@@ -22,12 +22,16 @@ import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
 import com.google.devtools.build.lib.analysis.util.AnalysisMock;
+import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Rule;
 import com.google.devtools.build.lib.skyframe.DiffAwareness;
+import com.google.devtools.build.lib.skyframe.PackageLookupValue;
 import com.google.devtools.build.lib.skyframe.PrecomputedValue;
 import com.google.devtools.build.lib.skyframe.SequencedSkyframeExecutor;
+import com.google.devtools.build.lib.skyframe.SkyFunctions;
 import com.google.devtools.build.lib.skyframe.SkyValueDirtinessChecker;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.syntax.SkylarkSemanticsOptions;
@@ -40,8 +44,12 @@ import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.common.options.OptionsParser;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -206,4 +214,67 @@ public class BuildFileModificationTest extends FoundationTestCase {
     Package newPkg = getPackage("pkg");
     assertThat(newPkg).isNotSameAs(oldPkg);
   }
+
+  private void sync(PackageCacheOptions packageCacheOptions) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(SkylarkSemanticsOptions.class);
+    skyframeExecutor.sync(
+        reporter,
+        packageCacheOptions,
+        parser.getOptions(SkylarkSemanticsOptions.class),
+        outputBase,
+        rootDirectory,
+        analysisMock.getDefaultsPackageContent(),
+        UUID.randomUUID(),
+        ImmutableMap.<String, String>of(),
+        new TimestampGranularityMonitor(clock),
+        parser);
+  }
+
+  @Test
+  public void testGraphSnapshotKeepsPackageLookupsAndGlobs() throws Exception {
+    FileSystem oldFileSystem = Path.getFileSystemForSerialization();
+    try {
+      Path.setFileSystemForSerialization(scratch.getFileSystem());
+      OptionsParser parser = OptionsParser.newOptionsParser(PackageCacheOptions.class);
+      analysisMock.getInvocationPolicyEnforcer().enforce(parser);
+      PackageCacheOptions packageCacheOptions = parser.getOptions(PackageCacheOptions.class);
+      packageCacheOptions.globbingThreads = 7;
+      skyframeExecutor.setGraphSnapshotFile(outputBase.getRelative("graph_snapshot"));
+      sync(packageCacheOptions);
+      scratch.file("pkg/BUILD", "filegroup(name = 'foo', srcs = glob(['*.txt']))");
+      scratch.file("pkg/a.txt");
+      getPackage("pkg");
+      skyframeExecutor.saveGraphSnapshot();
+
+      // A new evaluator restores the snapshot on its first sync, and reuses the restored nodes.
+      skyframeExecutor.resetEvaluator();
+      sync(packageCacheOptions);
+      Map<SkyKey, SkyValue> restored = new HashMap<>();
+      for (Map.Entry<SkyKey, SkyValue> entry :
+          skyframeExecutor.getEvaluatorForTesting().getValues().entrySet()) {
+        if (entry.getKey().functionName().equals(SkyFunctions.PACKAGE_LOOKUP)
+            || entry.getKey().functionName().equals(SkyFunctions.GLOB)) {
+          restored.put(entry.getKey(), entry.getValue());
+        }
+      }
+      assertThat(restored)
+          .containsKey(PackageLookupValue.key(PackageIdentifier.createInMainRepo("pkg")));
+      assertThat(getPackage("pkg").getTarget("foo")).isNotNull();
+      for (Map.Entry<SkyKey, SkyValue> entry : restored.entrySet()) {
+        assertThat(skyframeExecutor.getEvaluatorForTesting().getExistingValueForTesting(
+                entry.getKey()))
+            .isSameAs(entry.getValue());
+      }
+
+      // Files that change while no evaluator is watching are still noticed.
+      scratch.file("pkg/b.txt");
+      skyframeExecutor.resetEvaluator();
+      sync(packageCacheOptions);
+      Rule foo = (Rule) getPackage("pkg").getTarget("foo");
+      assertThat(foo.getLabels())
+          .containsAllOf(Label.parseAbsolute("//pkg:a.txt"), Label.parseAbsolute("//pkg:b.txt"));
+    } finally {
+      Path.setFileSystemForSerialization(oldFileSystem);
+    }
+  }
 }
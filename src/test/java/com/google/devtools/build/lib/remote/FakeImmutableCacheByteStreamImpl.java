@@ -23,8 +23,8 @@ import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class FakeImmutableCacheByteStreamImpl extends ByteStreamImplBase {
   private final Map<ReadRequest, ReadResponse> cannedReplies;
@@ -42,7 +42,7 @@ class FakeImmutableCacheByteStreamImpl extends ByteStreamImplBase {
           ReadResponse.newBuilder().setData(ByteString.copyFromUtf8(e.getValue())).build());
     }
     cannedReplies = b.build();
-    numErrors = new HashMap<>();
+    numErrors = new ConcurrentHashMap<>();
   }
 
   public FakeImmutableCacheByteStreamImpl(Digest digest, String contents) {
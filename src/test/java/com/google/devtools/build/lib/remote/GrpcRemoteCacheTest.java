@@ -26,6 +26,8 @@ import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.remote.Digests.ActionKey;
@@ -59,6 +61,14 @@ import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -124,6 +134,10 @@ public class GrpcRemoteCacheTest {
   }
 
   private GrpcRemoteCache newClient() throws IOException {
+    return newClient(Options.getDefaults(RemoteOptions.class));
+  }
+
+  private GrpcRemoteCache newClient(RemoteOptions remoteOptions) throws IOException {
     AuthAndTLSOptions authTlsOptions = Options.getDefaults(AuthAndTLSOptions.class);
     authTlsOptions.authEnabled = true;
     authTlsOptions.authCredentials = "/exec/root/creds.json";
@@ -145,7 +159,7 @@ public class GrpcRemoteCacheTest {
             InProcessChannelBuilder.forName(fakeServerName).directExecutor().build(),
             ImmutableList.of(new ChannelOptionsInterceptor(channelOptions))),
         channelOptions,
-        Options.getDefaults(RemoteOptions.class));
+        remoteOptions);
   }
 
   @Test
@@ -214,6 +228,91 @@ public class GrpcRemoteCacheTest {
     assertThat(execRoot.getRelative("a/bar").isExecutable()).isTrue();
   }
 
+  @Test
+  public void testDownloadManyResultsWithOutErr() throws Exception {
+    GrpcRemoteCache client = newClient();
+    ImmutableMap.Builder<Digest, String> contents = ImmutableMap.builder();
+    ActionResult.Builder result = ActionResult.newBuilder();
+    for (int i = 0; i < 50; i++) {
+      Digest digest = Digests.computeDigestUtf8("contents-" + i);
+      contents.put(digest, "contents-" + i);
+      result.addOutputFilesBuilder().setPath("out/file-" + i).setDigest(digest);
+    }
+    Digest stdoutDigest = Digests.computeDigestUtf8("stdout-contents");
+    contents.put(stdoutDigest, "stdout-contents");
+    result.setStdoutDigest(stdoutDigest);
+    serviceRegistry.addService(new FakeImmutableCacheByteStreamImpl(contents.build()));
+
+    client.download(result.build(), execRoot, outErr);
+    for (int i = 0; i < 50; i++) {
+      assertThat(FileSystemUtils.readContent(execRoot.getRelative("out/file-" + i), UTF_8))
+          .isEqualTo("contents-" + i);
+    }
+    assertThat(outErr.outAsLatin1()).isEqualTo("stdout-contents");
+  }
+
+  @Test
+  public void testFailedDownloadWaitsForOtherDownloadsToStop() throws Exception {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    options.experimentalRemoteRetry = false;
+    GrpcRemoteCache client = newClient(options);
+    Digest slowDigest = Digests.computeDigestUtf8("slow-contents");
+    Digest missingDigest = Digests.computeDigestUtf8("missing-contents");
+    CountDownLatch slowStarted = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean slowFinished = new AtomicBoolean();
+    serviceRegistry.addService(
+        new ByteStreamImplBase() {
+          @Override
+          public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+            if (request.getResourceName().contains(missingDigest.getHash())) {
+              Uninterruptibles.awaitUninterruptibly(slowStarted);
+              responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+              return;
+            }
+            slowStarted.countDown();
+            // Keeps the download busy regardless of its interruption.
+            Uninterruptibles.awaitUninterruptibly(release);
+            responseObserver.onNext(
+                ReadResponse.newBuilder()
+                    .setData(ByteString.copyFromUtf8("slow-contents"))
+                    .build());
+            responseObserver.onCompleted();
+            slowFinished.set(true);
+          }
+        });
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    result.addOutputFilesBuilder().setPath("a/slow").setDigest(slowDigest);
+    result.addOutputFilesBuilder().setPath("a/missing").setDigest(missingDigest);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> download =
+          executor.submit(
+              () -> {
+                client.download(result.build(), execRoot, null);
+                return null;
+              });
+      try {
+        download.get(200, TimeUnit.MILLISECONDS);
+        fail("download returned while another download was still running");
+      } catch (TimeoutException expected) {
+        // Expected.
+      }
+      release.countDown();
+      try {
+        download.get();
+        fail("expected IOException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(IOException.class);
+      }
+      assertThat(slowFinished.get()).isTrue();
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testUploadBlobCacheHitWithRetries() throws Exception {
     final GrpcRemoteCache client = newClient();
@@ -308,15 +407,15 @@ public class GrpcRemoteCacheTest {
         Chunker.Chunk chunk = chunker.next();
         Digest digest = chunk.getDigest();
         long offset = chunk.getOffset();
-        byte[] data = chunk.getData();
+        ByteString data = chunk.getData();
         if (offset == 0) {
           assertThat(request.getResourceName()).contains(digest.getHash());
         } else {
           assertThat(request.getResourceName()).isEmpty();
         }
         assertThat(request.getFinishWrite())
-            .isEqualTo(offset + data.length == digest.getSizeBytes());
-        assertThat(request.getData().toByteArray()).isEqualTo(data);
+            .isEqualTo(offset + data.size() == digest.getSizeBytes());
+        assertThat(request.getData()).isEqualTo(data);
       } catch (IOException e) {
         fail("An error occurred:" + e);
       }
@@ -59,6 +59,12 @@ public class TreeNodeRepositoryTest {
     return new TreeNodeRepository(rootPath, inputFileCache);
   }
 
+  private TreeNodeRepository createTestTreeNodeRepository(MerkleTreeCache cache) {
+    ActionInputFileCache inputFileCache =
+        new SingleBuildFileCache(rootPath.getPathString(), scratch.getFileSystem());
+    return new TreeNodeRepository(rootPath, inputFileCache, cache);
+  }
+
   @Test
   @SuppressWarnings("ReferenceEquality")
   public void testSubtreeReusage() throws Exception {
@@ -141,6 +147,62 @@ public class TreeNodeRepositoryTest {
     assertThat(digests).containsExactly(rootDigest, aDigest, barDigest, fooDigest);
   }
 
+  @Test
+  @SuppressWarnings("ReferenceEquality")
+  public void testMerkleTreeCacheSharesSubtreesAcrossRepositories() throws Exception {
+    Artifact foo = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
+    Artifact bar = new Artifact(scratch.file("/exec/root/b/bar", "2"), rootDir);
+    Artifact baz = new Artifact(scratch.file("/exec/root/c/baz", "3"), rootDir);
+    MerkleTreeCache cache = new MerkleTreeCache(10);
+    cache.newBuild();
+
+    TreeNodeRepository repo1 = createTestTreeNodeRepository(cache);
+    TreeNode root1 = repo1.buildFromActionInputs(ImmutableList.<ActionInput>of(foo, bar));
+    repo1.computeMerkleDigests(root1);
+    TreeNodeRepository repo2 = createTestTreeNodeRepository(cache);
+    TreeNode root2 = repo2.buildFromActionInputs(ImmutableList.<ActionInput>of(foo, baz));
+    repo2.computeMerkleDigests(root2);
+
+    TreeNode aNode = root1.getChildEntries().get(0).getChild();
+    assertThat(root2.getChildEntries().get(0).getChild() == aNode).isTrue();
+    assertThat(repo2.getMerkleDigest(aNode)).isEqualTo(repo1.getMerkleDigest(aNode));
+    assertThat(cache.getStats()).contains("1 subtrees reused");
+
+    // The repository can still find the data of shared subtrees.
+    ArrayList<Directory> directories = new ArrayList<>();
+    ArrayList<ActionInput> actionInputs = new ArrayList<>();
+    repo2.getDataFromDigests(repo2.getAllDigests(root2), actionInputs, directories);
+    assertThat(actionInputs).containsExactly(foo, baz);
+    assertThat(directories).containsExactlyElementsIn(repo2.treeToDirectories(root2));
+  }
+
+  @Test
+  public void testMerkleTreeCacheRevalidatesInNewBuild() throws Exception {
+    Artifact foo = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
+    MerkleTreeCache cache = new MerkleTreeCache(10);
+    cache.newBuild();
+    TreeNodeRepository repo = createTestTreeNodeRepository(cache);
+    TreeNode root = repo.buildFromActionInputs(ImmutableList.<ActionInput>of(foo));
+    repo.computeMerkleDigests(root);
+    Digest oldDigest = repo.getMerkleDigest(root);
+
+    // Unchanged inputs are revalidated, but not rehashed.
+    cache.newBuild();
+    repo = createTestTreeNodeRepository(cache);
+    root = repo.buildFromActionInputs(ImmutableList.<ActionInput>of(foo));
+    repo.computeMerkleDigests(root);
+    assertThat(repo.getMerkleDigest(root)).isEqualTo(oldDigest);
+    assertThat(cache.getStats()).contains("2 revalidated, 0 computed");
+
+    scratch.overwriteFile("/exec/root/a/foo", "2");
+    cache.newBuild();
+    repo = createTestTreeNodeRepository(cache);
+    root = repo.buildFromActionInputs(ImmutableList.<ActionInput>of(foo));
+    repo.computeMerkleDigests(root);
+    assertThat(repo.getMerkleDigest(root)).isNotEqualTo(oldDigest);
+    assertThat(cache.getStats()).contains("0 revalidated, 2 computed");
+  }
+
   @Test
   public void testEmptyTree() throws Exception {
     SortedMap<PathFragment, ActionInput> inputs = new TreeMap<>();
@@ -0,0 +1,153 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.remote.Digests.ActionKey;
+import com.google.devtools.build.lib.remote.blobstore.ConcurrentMapBlobStore;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.remoteexecution.v1test.ActionResult;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import com.google.devtools.remoteexecution.v1test.OutputFile;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TwoTierRemoteActionCache}. */
+@RunWith(JUnit4.class)
+public class TwoTierRemoteActionCacheTest {
+  private Path execRoot;
+  private FileOutErr outErr;
+  private SimpleBlobStoreActionCache diskCache;
+  private SimpleBlobStoreActionCache remoteCache;
+  private TwoTierRemoteActionCache cache;
+
+  @Before
+  public final void setUp() throws Exception {
+    FileSystem fs = new InMemoryFileSystem();
+    execRoot = fs.getPath("/exec/root");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    Path stdout = fs.getPath("/tmp/stdout");
+    Path stderr = fs.getPath("/tmp/stderr");
+    FileSystemUtils.createDirectoryAndParents(stdout.getParentDirectory());
+    outErr = new FileOutErr(stdout, stderr);
+    diskCache =
+        new SimpleBlobStoreActionCache(
+            new ConcurrentMapBlobStore(new ConcurrentHashMap<String, byte[]>()));
+    remoteCache =
+        new SimpleBlobStoreActionCache(
+            new ConcurrentMapBlobStore(new ConcurrentHashMap<String, byte[]>()));
+    cache =
+        new TwoTierRemoteActionCache(
+            diskCache, remoteCache, MoreExecutors.newDirectExecutorService());
+  }
+
+  private static ActionKey actionKey(String name) {
+    return Digests.unsafeActionKeyFromDigest(Digests.computeDigestUtf8(name));
+  }
+
+  @Test
+  public void testRemoteHitPopulatesDiskTier() throws Exception {
+    ActionKey key = actionKey("action");
+    Digest contents = remoteCache.uploadBlob("foo".getBytes(UTF_8));
+    ActionResult result =
+        ActionResult.newBuilder()
+            .addOutputFiles(OutputFile.newBuilder().setPath("out/foo").setDigest(contents))
+            .build();
+    remoteCache.setCachedActionResult(key, result);
+
+    assertThat(cache.getCachedActionResult(key)).isEqualTo(result);
+    cache.download(result, execRoot, outErr);
+
+    assertThat(FileSystemUtils.readContent(execRoot.getRelative("out/foo"), UTF_8))
+        .isEqualTo("foo");
+    assertThat(diskCache.getCachedActionResult(key)).isEqualTo(result);
+    assertThat(diskCache.containsKey(contents)).isTrue();
+    assertThat(cache.getStats()).contains("Remote cache: 1 hits, 0 misses");
+  }
+
+  @Test
+  public void testDiskHitSkipsRemoteTier() throws Exception {
+    ActionKey key = actionKey("action");
+    Digest contents = diskCache.uploadBlob("bar".getBytes(UTF_8));
+    ActionResult result =
+        ActionResult.newBuilder()
+            .addOutputFiles(OutputFile.newBuilder().setPath("out/bar").setDigest(contents))
+            .build();
+    diskCache.setCachedActionResult(key, result);
+
+    assertThat(cache.getCachedActionResult(key)).isEqualTo(result);
+    cache.download(result, execRoot, outErr);
+
+    assertThat(FileSystemUtils.readContent(execRoot.getRelative("out/bar"), UTF_8))
+        .isEqualTo("bar");
+    assertThat(remoteCache.getCachedActionResult(key)).isNull();
+    assertThat(cache.getStats()).contains("Disk cache: 1 hits, 0 misses");
+  }
+
+  @Test
+  public void testMissInBothTiers() throws Exception {
+    assertThat(cache.getCachedActionResult(actionKey("missing"))).isNull();
+    assertThat(cache.getStats()).contains("Remote cache: 0 hits, 1 misses");
+  }
+
+  @Test
+  public void testUploadPopulatesDiskTier() throws Exception {
+    ActionKey key = actionKey("action");
+    Path out = execRoot.getRelative("out/baz");
+    FileSystemUtils.createDirectoryAndParents(out.getParentDirectory());
+    FileSystemUtils.writeContent(out, UTF_8, "baz");
+    FileSystemUtils.writeContent(outErr.getOutputPath(), UTF_8, "stdout");
+
+    cache.upload(key, execRoot, ImmutableList.of(out), outErr);
+
+    ActionResult result = diskCache.getCachedActionResult(key);
+    assertThat(result.getOutputFiles(0).getDigest()).isEqualTo(Digests.computeDigestUtf8("baz"));
+    assertThat(result.getStdoutDigest()).isEqualTo(Digests.computeDigestUtf8("stdout"));
+    assertThat(remoteCache.getCachedActionResult(key)).isEqualTo(result);
+  }
+
+  @Test
+  public void testVerifyingInputStreamRejectsChangedContents() throws Exception {
+    Digest digest = Digests.computeDigestUtf8("foo");
+    try (InputStream in =
+        new TwoTierRemoteActionCache.VerifyingInputStream(
+            new ByteArrayInputStream("foo".getBytes(UTF_8)), digest)) {
+      assertThat(ByteStreams.toByteArray(in)).isEqualTo("foo".getBytes(UTF_8));
+    }
+    try (InputStream in =
+        new TwoTierRemoteActionCache.VerifyingInputStream(
+            new ByteArrayInputStream("bar".getBytes(UTF_8)), digest)) {
+      ByteStreams.toByteArray(in);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("File contents changed");
+    }
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link UploadCoordinator}. */
+@RunWith(JUnit4.class)
+public class UploadCoordinatorTest {
+  private static final Digest FOO = Digests.computeDigestUtf8("foo");
+  private static final Digest BAR = Digests.computeDigestUtf8("bar");
+
+  /** A fake CAS that reports the given digests as missing and records the queries. */
+  private static class FakeFinder implements UploadCoordinator.MissingDigestsFinder {
+    private final ImmutableSet<Digest> missing;
+    private final List<ImmutableList<Digest>> queries = new ArrayList<>();
+
+    FakeFinder(Digest... missing) {
+      this.missing = ImmutableSet.copyOf(missing);
+    }
+
+    @Override
+    public synchronized ImmutableSet<Digest> findMissingDigests(Iterable<Digest> digests) {
+      queries.add(ImmutableList.copyOf(digests));
+      ImmutableSet.Builder<Digest> result = ImmutableSet.builder();
+      for (Digest digest : digests) {
+        if (missing.contains(digest)) {
+          result.add(digest);
+        }
+      }
+      return result.build();
+    }
+  }
+
+  @Test
+  public void testPresentDigestsAreOnlyQueriedOnce() throws Exception {
+    FakeFinder finder = new FakeFinder(BAR);
+    UploadCoordinator coordinator = new UploadCoordinator(finder, 0);
+
+    assertThat(coordinator.getMissingDigests(ImmutableList.of(FOO, BAR))).containsExactly(BAR);
+    assertThat(coordinator.getMissingDigests(ImmutableList.of(FOO, BAR))).containsExactly(BAR);
+    assertThat(finder.queries)
+        .containsExactly(ImmutableList.of(FOO, BAR), ImmutableList.of(BAR))
+        .inOrder();
+  }
+
+  @Test
+  public void testUploadedDigestsAreNotQueriedAgain() throws Exception {
+    FakeFinder finder = new FakeFinder(FOO);
+    UploadCoordinator coordinator = new UploadCoordinator(finder, 0);
+
+    UploadCoordinator.Claim claim =
+        coordinator.claimUploads(coordinator.getMissingDigests(ImmutableList.of(FOO)));
+    assertThat(claim.getOwnedDigests()).containsExactly(FOO);
+    claim.finish(/*success=*/ true);
+
+    assertThat(coordinator.getMissingDigests(ImmutableList.of(FOO))).isEmpty();
+    assertThat(finder.queries).hasSize(1);
+  }
+
+  @Test
+  public void testConcurrentUploadsAreDeduplicated() throws Exception {
+    UploadCoordinator coordinator = new UploadCoordinator(new FakeFinder(FOO), 0);
+
+    UploadCoordinator.Claim first = coordinator.claimUploads(ImmutableList.of(FOO));
+    UploadCoordinator.Claim second = coordinator.claimUploads(ImmutableList.of(FOO));
+    assertThat(first.getOwnedDigests()).containsExactly(FOO);
+    assertThat(second.getOwnedDigests()).isEmpty();
+
+    first.finish(/*success=*/ true);
+    second.finish(/*success=*/ true);
+    second.awaitConcurrentUploads();
+  }
+
+  @Test
+  public void testFailedConcurrentUploadIsReported() throws Exception {
+    UploadCoordinator coordinator = new UploadCoordinator(new FakeFinder(FOO), 0);
+
+    UploadCoordinator.Claim first = coordinator.claimUploads(ImmutableList.of(FOO));
+    UploadCoordinator.Claim second = coordinator.claimUploads(ImmutableList.of(FOO));
+    first.finish(/*success=*/ false);
+    second.finish(/*success=*/ true);
+    try {
+      second.awaitConcurrentUploads();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains(FOO.getHash());
+    }
+
+    // The digest can be claimed again after the failure.
+    assertThat(coordinator.claimUploads(ImmutableList.of(FOO)).getOwnedDigests())
+        .containsExactly(FOO);
+  }
+
+  @Test
+  public void testQueriesIssuedWhileInFlightAreBatched() throws Exception {
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    FakeFinder finder =
+        new FakeFinder() {
+          @Override
+          public ImmutableSet<Digest> findMissingDigests(Iterable<Digest> digests) {
+            ImmutableSet<Digest> result = super.findMissingDigests(digests);
+            entered.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new IllegalStateException(e);
+            }
+            return result;
+          }
+        };
+    UploadCoordinator coordinator = new UploadCoordinator(finder, 0);
+    int numCallers = 10;
+    ExecutorService executor = Executors.newFixedThreadPool(numCallers);
+    List<Future<ImmutableSet<Digest>>> results = new ArrayList<>();
+    results.add(executor.submit(() -> coordinator.getMissingDigests(ImmutableList.of(FOO))));
+    entered.await();
+    // These callers all arrive while the first query is in flight.
+    for (int i = 1; i < numCallers; i++) {
+      Digest digest = Digests.computeDigestUtf8("input-" + i);
+      results.add(
+          executor.submit(() -> coordinator.getMissingDigests(ImmutableList.of(FOO, digest))));
+    }
+    while (coordinator.getPendingQueryCount() < numCallers - 1) {
+      Thread.yield();
+    }
+    release.countDown();
+    for (Future<ImmutableSet<Digest>> result : results) {
+      assertThat(result.get()).isEmpty();
+    }
+    executor.shutdown();
+
+    // FOO is queried only once, and all the other digests go out in a single follow-up query.
+    assertThat(finder.queries).hasSize(2);
+    assertThat(finder.queries.get(0)).containsExactly(FOO);
+    assertThat(finder.queries.get(1)).hasSize(numCallers - 1);
+  }
+
+  @Test
+  public void testUncontendedQueryDoesNotWaitForBatchWindow() throws Exception {
+    FakeFinder finder = new FakeFinder(BAR);
+    UploadCoordinator coordinator = new UploadCoordinator(finder, TimeUnit.HOURS.toMillis(1));
+
+    // Would time out if the caller waited for the batch window.
+    assertThat(coordinator.getMissingDigests(ImmutableList.of(FOO, BAR))).containsExactly(BAR);
+    assertThat(coordinator.getMissingDigests(ImmutableList.of(BAR))).containsExactly(BAR);
+    assertThat(finder.queries).hasSize(2);
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheBlobStore}. */
+@RunWith(JUnit4.class)
+public class DiskCacheBlobStoreTest {
+  private Path root;
+
+  @Before
+  public final void setRoot() throws Exception {
+    root = new Scratch().dir("/cache");
+  }
+
+  private static void put(SimpleBlobStore store, String key, String value) throws Exception {
+    store.put(key, new ByteArrayInputStream(value.getBytes(UTF_8)));
+  }
+
+  private static String get(SimpleBlobStore store, String key) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    return store.get(key, out) ? new String(out.toByteArray(), UTF_8) : null;
+  }
+
+  @Test
+  public void testPutGetUsesShardedLayout() throws Exception {
+    DiskCacheBlobStore store = DiskCacheBlobStore.createForTesting(root, 1024);
+    put(store, "abcdef", "hello");
+    assertThat(store.containsKey("abcdef")).isTrue();
+    assertThat(get(store, "abcdef")).isEqualTo("hello");
+    assertThat(root.getRelative("cas/ab/abcdef").exists()).isTrue();
+    assertThat(root.getChild("abcdef").exists()).isFalse();
+    assertThat(root.getChild("tmp").getDirectoryEntries()).isEmpty();
+    assertThat(store.getTotalSizeBytes()).isEqualTo(5);
+  }
+
+  @Test
+  public void testMissingKey() throws Exception {
+    DiskCacheBlobStore store = DiskCacheBlobStore.createForTesting(root, 1024);
+    assertThat(store.containsKey("0123")).isFalse();
+    assertThat(get(store, "0123")).isNull();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    DiskCacheBlobStore store = DiskCacheBlobStore.createForTesting(root, 25);
+    put(store, "aa01", "0123456789");
+    put(store, "bb02", "0123456789");
+    // Touch the first blob so that the second one becomes the least recently used.
+    assertThat(get(store, "aa01")).isNotNull();
+    put(store, "cc03", "0123456789");
+
+    assertThat(store.containsKey("aa01")).isTrue();
+    assertThat(store.containsKey("bb02")).isFalse();
+    assertThat(store.containsKey("cc03")).isTrue();
+    assertThat(store.getTotalSizeBytes()).isEqualTo(20);
+  }
+
+  @Test
+  public void testReloadsIndexFromDisk() throws Exception {
+    DiskCacheBlobStore store = DiskCacheBlobStore.createForTesting(root, 1024);
+    put(store, "aa01", "0123456789");
+    put(store, "bb02", "01234");
+    store.close();
+
+    DiskCacheBlobStore reopened = DiskCacheBlobStore.createForTesting(root, 1024);
+    assertThat(reopened.getTotalSizeBytes()).isEqualTo(15);
+    assertThat(get(reopened, "bb02")).isEqualTo("01234");
+  }
+
+  @Test
+  public void testShrinksOversizedCacheOnOpen() throws Exception {
+    DiskCacheBlobStore store = DiskCacheBlobStore.createForTesting(root, 1024);
+    put(store, "aa01", "0123456789");
+    put(store, "bb02", "0123456789");
+    store.close();
+
+    DiskCacheBlobStore reopened = DiskCacheBlobStore.createForTesting(root, 15);
+    assertThat(reopened.getTotalSizeBytes()).isAtMost(15L);
+  }
+
+  @Test
+  public void testBlobsPutWhileLoadingIndexAreMostRecentlyUsed() throws Exception {
+    DiskCacheBlobStore store = DiskCacheBlobStore.createForTesting(root, 1024);
+    put(store, "aa01", "0123456789");
+    put(store, "bb02", "0123456789");
+    store.close();
+
+    List<Runnable> tasks = new ArrayList<>();
+    DiskCacheBlobStore reopened = DiskCacheBlobStore.createForTesting(root, 25, tasks::add);
+    put(reopened, "cc03", "0123456789");
+    // Nothing is evicted before the index is loaded, as it does not know the old blobs yet.
+    assertThat(tasks).hasSize(1);
+    assertThat(reopened.getTotalSizeBytes()).isEqualTo(10);
+
+    while (!tasks.isEmpty()) {
+      tasks.remove(0).run();
+    }
+    assertThat(reopened.containsKey("cc03")).isTrue();
+    assertThat(reopened.getTotalSizeBytes()).isEqualTo(20);
+    assertThat(root.getChild("tmp").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testDeletesOnlyStaleTempFilesOnOpen() throws Exception {
+    Path tmp = root.getChild("tmp");
+    tmp.createDirectory();
+    Path stale = tmp.getChild("stale");
+    FileSystemUtils.writeContentAsLatin1(stale, "crashed");
+    stale.setLastModifiedTime(
+        System.currentTimeMillis() - 2 * DiskCacheBlobStore.STALE_TEMP_FILE_AGE_MILLIS);
+    // Another server sharing the directory is in the middle of a put.
+    Path inFlight = tmp.getChild("in-flight");
+    FileSystemUtils.writeContentAsLatin1(inFlight, "writing");
+
+    DiskCacheBlobStore.createForTesting(root, 1024);
+
+    assertThat(stale.exists()).isFalse();
+    assertThat(inFlight.exists()).isTrue();
+  }
+}
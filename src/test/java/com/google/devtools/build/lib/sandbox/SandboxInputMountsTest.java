@@ -0,0 +1,245 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SandboxInputMounts}. */
+@RunWith(JUnit4.class)
+public class SandboxInputMountsTest extends SandboxTestCase {
+  private Path execRoot;
+  private Map<PathFragment, Path> inputs;
+  private Set<PathFragment> boundPaths;
+  private Set<PathFragment> filteredDirs;
+
+  @Before
+  public final void setupExecRoot() throws IOException {
+    execRoot = testRoot.getRelative("execroot");
+    execRoot.createDirectory();
+    inputs = new HashMap<>();
+  }
+
+  /** Creates {@code count} files in {@code dir} and makes them inputs. */
+  private void addInputs(String dir, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      PathFragment input = PathFragment.create(dir).getRelative("file" + i + ".h");
+      FileSystemUtils.createDirectoryAndParents(execRoot.getRelative(dir));
+      FileSystemUtils.createEmptyFile(execRoot.getRelative(input));
+      inputs.put(input, execRoot.getRelative(input));
+    }
+  }
+
+  private void findInputMounts(String... blocked) throws IOException {
+    findInputMounts(SandboxInputMounts.MAX_INPUT_MOUNTS, blocked);
+  }
+
+  private void findInputMounts(int maxMounts, String... blocked) throws IOException {
+    boundPaths = new HashSet<>();
+    filteredDirs = new HashSet<>();
+    SandboxInputMounts.findInputMounts(
+        execRoot,
+        inputs,
+        PathFragment.create("bazel-out"),
+        paths(blocked),
+        maxMounts,
+        boundPaths,
+        filteredDirs);
+  }
+
+  private static ImmutableSet<PathFragment> paths(String... paths) {
+    ImmutableSet.Builder<PathFragment> fragments = ImmutableSet.builder();
+    for (String path : paths) {
+      fragments.add(PathFragment.create(path));
+    }
+    return fragments.build();
+  }
+
+  /** Returns the inputs that {@link #addInputs} created in {@code dir}. */
+  private static ImmutableSet<PathFragment> inputPaths(String dir, int count) {
+    ImmutableSet.Builder<PathFragment> paths = ImmutableSet.builder();
+    for (int i = 0; i < count; i++) {
+      paths.add(PathFragment.create(dir).getRelative("file" + i + ".h"));
+    }
+    return paths.build();
+  }
+
+  @Test
+  public void outermostCompleteDirectoryIsBound() throws Exception {
+    addInputs("third_party/lib/include", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    addInputs("third_party/lib/include/detail", 1);
+
+    findInputMounts();
+
+    // third_party holds nothing but lib, so it is complete as well.
+    assertThat(boundPaths).containsExactlyElementsIn(paths("third_party"));
+    assertThat(filteredDirs).isEmpty();
+  }
+
+  @Test
+  public void directoryWithUndeclaredFilesIsFiltered() throws Exception {
+    addInputs("src", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("src/undeclared.h"));
+    addInputs("src/lib", 1);
+    addInputs("src/main", 2);
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("src/main/undeclared.h"));
+
+    findInputMounts();
+
+    // Only the inputs are bound into the views, and a complete directory is bound as a whole.
+    assertThat(filteredDirs).containsExactlyElementsIn(paths("src", "src/main"));
+    assertThat(boundPaths)
+        .containsExactlyElementsIn(
+            ImmutableSet.<PathFragment>builder()
+                .addAll(inputPaths("src", SandboxInputMounts.MIN_INPUTS_PER_MOUNT))
+                .addAll(inputPaths("src/main", 2))
+                .add(PathFragment.create("src/lib"))
+                .build());
+  }
+
+  @Test
+  public void directoryWithFewInputsIsNotMounted() throws Exception {
+    addInputs("include", SandboxInputMounts.MIN_INPUTS_PER_MOUNT - 1);
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("include/undeclared.h"));
+    addInputs("complete", SandboxInputMounts.MIN_INPUTS_PER_MOUNT - 1);
+
+    findInputMounts();
+
+    assertThat(boundPaths).isEmpty();
+    assertThat(filteredDirs).isEmpty();
+  }
+
+  @Test
+  public void directoryWithOutputsIsNotMounted() throws Exception {
+    addInputs("pkg/include", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    addInputs("pkg/src", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+
+    findInputMounts("pkg/src/out.o");
+
+    assertThat(boundPaths).containsExactlyElementsIn(paths("pkg/include"));
+    assertThat(filteredDirs).isEmpty();
+  }
+
+  @Test
+  public void outputDirectoryIsNotMounted() throws Exception {
+    // Other actions may write undeclared files next to these while the spawn runs.
+    addInputs("bazel-out/k8-fastbuild/genfiles/include", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    addInputs("include", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+
+    findInputMounts();
+
+    assertThat(boundPaths).containsExactlyElementsIn(paths("include"));
+    assertThat(filteredDirs).isEmpty();
+  }
+
+  @Test
+  public void directoryWithSymlinkIsFilteredAndWithMappedInputIsNotMounted() throws Exception {
+    addInputs("linked", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    execRoot.getRelative("linked/link.h").createSymbolicLink(PathFragment.create("file0.h"));
+    inputs.put(PathFragment.create("linked/link.h"), execRoot.getRelative("linked/link.h"));
+    addInputs("mapped", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    inputs.put(PathFragment.create("mapped/file0.h"), execRoot.getRelative("linked/file0.h"));
+
+    findInputMounts();
+
+    // A bind mount of the symlink shows the file it points to, as the staged symlink would.
+    assertThat(filteredDirs).containsExactlyElementsIn(paths("linked"));
+    assertThat(boundPaths)
+        .containsExactlyElementsIn(
+            ImmutableSet.<PathFragment>builder()
+                .addAll(inputPaths("linked", SandboxInputMounts.MIN_INPUTS_PER_MOUNT))
+                .add(PathFragment.create("linked/link.h"))
+                .build());
+  }
+
+  @Test
+  public void viewThatDoesNotFitIsSplit() throws Exception {
+    int inputs = SandboxInputMounts.MIN_INPUTS_PER_MOUNT;
+    addInputs("include/complete", inputs);
+    addInputs("include/partial", inputs);
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("include/partial/undeclared.h"));
+    addInputs("include/small", 1);
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("include/small/undeclared.h"));
+
+    // The view of include would take 1 + 1 + (1 + inputs) + (1 + 1) mounts, so it is split, and
+    // the subdirectory with too few inputs is staged.
+    findInputMounts(inputs + 4);
+
+    assertThat(filteredDirs).containsExactlyElementsIn(paths("include/partial"));
+    assertThat(boundPaths)
+        .containsExactlyElementsIn(
+            ImmutableSet.<PathFragment>builder()
+                .addAll(inputPaths("include/partial", inputs))
+                .add(PathFragment.create("include/complete"))
+                .build());
+
+    // The complete directory has the most inputs per mount, so it is mounted first.
+    findInputMounts(inputs + 1);
+
+    assertThat(boundPaths).containsExactlyElementsIn(paths("include/complete"));
+    assertThat(filteredDirs).isEmpty();
+  }
+
+  @Test
+  public void onlyOutermostMountPointsAreCreated() throws Exception {
+    addInputs("include", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    addInputs("src", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("src/undeclared.h"));
+    addInputs("src/lib", SandboxInputMounts.MIN_INPUTS_PER_MOUNT);
+    addInputs("few", 1);
+    Path sandboxExecRoot = testRoot.getRelative("sandbox/execroot");
+    SortedMap<Path, Path> inputMounts = new TreeMap<>();
+    SortedSet<Path> inputTmpfsDirs = new TreeSet<>();
+
+    Map<PathFragment, Path> stagedInputs =
+        SandboxInputMounts.extractInputMounts(
+            execRoot,
+            PathFragment.create("bazel-out"),
+            inputs,
+            ImmutableSet.<PathFragment>of(),
+            ImmutableSet.of(sandboxExecRoot),
+            sandboxExecRoot,
+            inputMounts,
+            inputTmpfsDirs);
+    SandboxInputMounts.createMountPoints(inputMounts, inputTmpfsDirs);
+
+    assertThat(stagedInputs.keySet()).containsExactlyElementsIn(inputPaths("few", 1));
+    assertThat(inputTmpfsDirs).containsExactly(sandboxExecRoot.getRelative("src"));
+    assertThat(inputMounts)
+        .containsEntry(sandboxExecRoot.getRelative("src/lib"), execRoot.getRelative("src/lib"));
+    assertThat(inputMounts)
+        .containsEntry(
+            sandboxExecRoot.getRelative("src/file0.h"), execRoot.getRelative("src/file0.h"));
+    // The sandbox creates the mount points inside the tmpfs once it is mounted.
+    assertThat(sandboxExecRoot.getRelative("include").isDirectory()).isTrue();
+    assertThat(sandboxExecRoot.getRelative("src").getDirectoryEntries()).isEmpty();
+  }
+}
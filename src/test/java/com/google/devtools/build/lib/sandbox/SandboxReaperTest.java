@@ -0,0 +1,71 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SandboxReaper}. */
+@RunWith(JUnit4.class)
+public class SandboxReaperTest extends SandboxTestCase {
+
+  private List<Path> createSandboxes(int count) throws IOException {
+    List<Path> sandboxes = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Path sandbox = testRoot.getRelative("sandbox" + i);
+      FileSystemUtils.createDirectoryAndParents(sandbox.getRelative("execroot/pkg"));
+      FileSystemUtils.createEmptyFile(sandbox.getRelative("execroot/pkg/out.o"));
+      sandboxes.add(sandbox);
+    }
+    return sandboxes;
+  }
+
+  @Test
+  public void reapDeletesAllSandboxesWithinQueueBound() throws Exception {
+    List<Path> sandboxes = createSandboxes(20);
+    SandboxReaper reaper = new SandboxReaper(1, 2);
+    for (Path sandbox : sandboxes) {
+      reaper.reap(sandbox);
+    }
+    reaper.shutdown();
+
+    for (Path sandbox : sandboxes) {
+      assertThat(sandbox.exists()).isFalse();
+    }
+    assertThat(reaper.getReaped()).isEqualTo(20);
+    assertThat(reaper.getFailed()).isEqualTo(0);
+    assertThat(reaper.getQueueDepth()).isEqualTo(0);
+    assertThat(reaper.getMaxQueueDepth()).isAtLeast(1);
+    assertThat(reaper.getMaxQueueDepth()).isAtMost(2);
+  }
+
+  @Test
+  public void reapAfterShutdownLeavesSandbox() throws Exception {
+    Path sandbox = createSandboxes(1).get(0);
+    SandboxReaper reaper = new SandboxReaper(1, 1);
+    reaper.shutdown();
+    reaper.reap(sandbox);
+
+    assertThat(sandbox.exists()).isTrue();
+    assertThat(reaper.getQueueDepth()).isEqualTo(0);
+  }
+}
@@ -23,6 +23,8 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -90,6 +92,94 @@ public class SymlinkedExecRootTest extends SandboxTestCase {
     assertThat(execRoot.getRelative("wow/writable/temp.txt").exists()).isFalse();
   }
 
+  @Test
+  public void scrubKeepsOnlyStagedInputs() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+
+    SymlinkedExecRoot symlinkedExecRoot = new SymlinkedExecRoot(execRoot);
+    symlinkedExecRoot.createFileSystem(
+        ImmutableMap.of(
+            PathFragment.create("such/input.txt"), helloTxt,
+            PathFragment.create("such/replaced.txt"), helloTxt),
+        ImmutableSet.of(PathFragment.create("very/output.txt")),
+        ImmutableSet.of(execRoot.getRelative("wow/writable")));
+
+    // Pretend to do some work inside the execRoot.
+    execRoot.getRelative("tempdir").createDirectory();
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("very/output.txt"));
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("wow/writable/temp.txt"));
+    execRoot.getRelative("such/replaced.txt").delete();
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("such/replaced.txt"));
+
+    symlinkedExecRoot.scrub();
+
+    assertThat(execRoot.getRelative("such/input.txt").isSymbolicLink()).isTrue();
+    assertThat(execRoot.getRelative("such/replaced.txt").exists(Symlinks.NOFOLLOW)).isFalse();
+    assertThat(execRoot.getRelative("tempdir").exists()).isFalse();
+    assertThat(execRoot.getRelative("very").exists()).isFalse();
+    assertThat(execRoot.getRelative("wow").exists()).isFalse();
+  }
+
+  @Test
+  public void createFileSystemAfterScrubAppliesDifference() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+    Path worldTxt = workspaceDir.getRelative("world.txt");
+    FileSystemUtils.createEmptyFile(worldTxt);
+
+    SymlinkedExecRoot symlinkedExecRoot = new SymlinkedExecRoot(execRoot);
+    symlinkedExecRoot.createFileSystem(
+        ImmutableMap.of(
+            PathFragment.create("such/input.txt"), helloTxt,
+            PathFragment.create("such/changed.txt"), helloTxt,
+            PathFragment.create("old/input.txt"), helloTxt),
+        ImmutableSet.<PathFragment>of(),
+        ImmutableSet.<Path>of());
+    symlinkedExecRoot.scrub();
+    symlinkedExecRoot.createFileSystem(
+        ImmutableMap.of(
+            PathFragment.create("such/input.txt"), helloTxt,
+            PathFragment.create("such/changed.txt"), worldTxt,
+            PathFragment.create("new/input.txt"), worldTxt),
+        ImmutableSet.of(PathFragment.create("very/output.txt")),
+        ImmutableSet.<Path>of());
+
+    assertThat(execRoot.getRelative("such/input.txt").resolveSymbolicLinks()).isEqualTo(helloTxt);
+    assertThat(execRoot.getRelative("such/changed.txt").resolveSymbolicLinks())
+        .isEqualTo(worldTxt);
+    assertThat(execRoot.getRelative("new/input.txt").resolveSymbolicLinks()).isEqualTo(worldTxt);
+    assertThat(execRoot.getRelative("old").exists()).isFalse();
+    assertThat(execRoot.getRelative("very").isDirectory()).isTrue();
+  }
+
+  @Test
+  public void createFileSystemAfterScrubRejectsInputBelowKeptInput() throws Exception {
+    Path inputDir = workspaceDir.getRelative("dir");
+    inputDir.createDirectory();
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+
+    SymlinkedExecRoot symlinkedExecRoot = new SymlinkedExecRoot(execRoot);
+    symlinkedExecRoot.createFileSystem(
+        ImmutableMap.of(PathFragment.create("dir"), inputDir),
+        ImmutableSet.<PathFragment>of(),
+        ImmutableSet.<Path>of());
+    symlinkedExecRoot.scrub();
+    try {
+      symlinkedExecRoot.createFileSystem(
+          ImmutableMap.of(
+              PathFragment.create("dir"), inputDir,
+              PathFragment.create("dir/hello.txt"), helloTxt),
+          ImmutableSet.<PathFragment>of(),
+          ImmutableSet.<Path>of());
+      fail("expected IOException");
+    } catch (IOException e) {
+      // Ignored.
+    }
+    assertThat(inputDir.getDirectoryEntries()).isEmpty();
+  }
+
   @Test
   public void copyOutputs() throws Exception {
     Path outputFile = execRoot.getRelative("very/output.txt");
@@ -137,4 +227,38 @@ public class SymlinkedExecRootTest extends SandboxTestCase {
     assertThat(outputsDir.getRelative("very/output.dir/test.txt").isFile(Symlinks.NOFOLLOW))
         .isTrue();
   }
+
+  @Test
+  public void copyOutputsMovesLargeTreeInParallel() throws Exception {
+    Path outputDir = execRoot.getRelative("tree");
+    ExecutorService outputMover = Executors.newFixedThreadPool(4);
+    SymlinkedExecRoot symlinkedExecRoot = new SymlinkedExecRoot(execRoot, outputMover);
+    symlinkedExecRoot.createFileSystem(
+        ImmutableMap.<PathFragment, Path>of(),
+        ImmutableSet.of(outputDir.relativeTo(execRoot)),
+        ImmutableSet.<Path>of());
+
+    for (int i = 0; i < SymlinkedExecRoot.MIN_FILES_FOR_PARALLEL_MOVE; i++) {
+      Path file = outputDir.getRelative("dir" + (i % 4)).getRelative("file" + i);
+      FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+      FileSystemUtils.writeContentAsLatin1(file, "content" + i);
+    }
+    // A leftover target directory that is not empty cannot be replaced by a rename.
+    outputsDir.getRelative("tree").createDirectory();
+    FileSystemUtils.createEmptyFile(outputsDir.getRelative("tree/stale"));
+
+    try {
+      symlinkedExecRoot.copyOutputs(outputsDir, ImmutableSet.of(outputDir.relativeTo(execRoot)));
+    } finally {
+      outputMover.shutdown();
+    }
+
+    for (int i = 0; i < SymlinkedExecRoot.MIN_FILES_FOR_PARALLEL_MOVE; i++) {
+      PathFragment file = PathFragment.create("tree/dir" + (i % 4) + "/file" + i);
+      assertThat(FileSystemUtils.readContentAsLatin1(outputsDir.getRelative(file)))
+          .isEqualTo(("content" + i).toCharArray());
+      assertThat(execRoot.getRelative(file).exists()).isFalse();
+    }
+    assertThat(outputsDir.getRelative("tree/stale").exists()).isTrue();
+  }
 }
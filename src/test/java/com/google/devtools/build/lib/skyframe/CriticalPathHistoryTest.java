@@ -0,0 +1,71 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CriticalPathHistory}. */
+@RunWith(JUnit4.class)
+public class CriticalPathHistoryTest {
+  private Path file;
+
+  @Before
+  public final void createFile() throws Exception {
+    file = new InMemoryFileSystem().getPath("/output_base/action_cache/critical_path_history");
+  }
+
+  @Test
+  public void emptyIfMissing() {
+    CriticalPathHistory history = CriticalPathHistory.load(file);
+    assertThat(history.size()).isEqualTo(0);
+    assertThat(history.getRemainingMillis("bazel-out/a")).isEqualTo(0);
+  }
+
+  @Test
+  public void saveAndLoad() throws Exception {
+    CriticalPathHistory history = CriticalPathHistory.load(file);
+    history.update(ImmutableMap.of("bazel-out/a", 1000L, "bazel-out/b", 10L));
+    history.save();
+
+    CriticalPathHistory loaded = CriticalPathHistory.load(file);
+    assertThat(loaded.size()).isEqualTo(2);
+    assertThat(loaded.getRemainingMillis("bazel-out/a")).isEqualTo(1000L);
+    assertThat(loaded.getRemainingMillis("bazel-out/b")).isEqualTo(10L);
+  }
+
+  @Test
+  public void fasterTimesOnlyHalveHistory() {
+    CriticalPathHistory history = CriticalPathHistory.load(file);
+    history.update(ImmutableMap.of("bazel-out/a", 1000L, "bazel-out/b", 10L));
+    history.update(ImmutableMap.of("bazel-out/a", 1L, "bazel-out/b", 20L));
+    assertThat(history.getRemainingMillis("bazel-out/a")).isEqualTo(500L);
+    assertThat(history.getRemainingMillis("bazel-out/b")).isEqualTo(20L);
+  }
+
+  @Test
+  public void corruptFileIsIgnored() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(file, "not a history");
+    assertThat(CriticalPathHistory.load(file).size()).isEqualTo(0);
+  }
+}
@@ -26,6 +26,8 @@ import com.google.common.collect.Maps;
 import com.google.common.testing.EqualsTester;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.events.NullEventHandler;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.ExternalFileAction;
@@ -34,6 +36,7 @@ import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossReposit
 import com.google.devtools.build.lib.skyframe.PackageLookupValue.BuildFileName;
 import com.google.devtools.build.lib.testutil.ManualClock;
 import com.google.devtools.build.lib.testutil.TestConstants;
+import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileStatus;
@@ -684,6 +687,21 @@ public abstract class GlobFunctionTest {
     assertGlobMatches("symlinks/*.txt", "symlinks/existing.txt");
   }
 
+  @Test
+  public void testSerialization() throws Exception {
+    GlobValue value =
+        new GlobValue(
+            NestedSetBuilder.create(
+                Order.STABLE_ORDER, PathFragment.create("foo"), PathFragment.create("bar/wiz")));
+    GlobValue deserialized =
+        (GlobValue) TestUtils.deserializeObject(TestUtils.serializeObject(value));
+    assertThat(deserialized.getMatches())
+        .containsExactly(PathFragment.create("foo"), PathFragment.create("bar/wiz"))
+        .inOrder();
+    assertThat(TestUtils.deserializeObject(TestUtils.serializeObject(GlobValue.EMPTY)))
+        .isSameAs(GlobValue.EMPTY);
+  }
+
   private static final class CustomInMemoryFs extends InMemoryFileSystem {
 
     private Map<Path, FileStatus> stubbedStats = Maps.newHashMap();
@@ -278,6 +278,40 @@ public class PackageFunctionTest extends BuildViewTestCase {
         .inOrder();
   }
 
+  private void modifyFooBuildFile(String... lines) throws Exception {
+    scratch.overwriteFile("foo/BUILD", lines);
+    getSkyframeExecutor()
+        .invalidateFilesUnderPathForTesting(
+            reporter,
+            ModifiedFileSet.builder().modify(PathFragment.create("foo/BUILD")).build(),
+            rootDirectory);
+  }
+
+  @Test
+  public void testFingerprintCoversTargetsAndTheirLocations() throws Exception {
+    scratch.file("foo/BUILD", "sh_library(name = 'foo', srcs = ['a.sh'])");
+    preparePackageLoading(rootDirectory);
+    SkyKey skyKey = PackageValue.key(PackageIdentifier.parse("@//foo"));
+    PackageValue value = validPackage(skyKey);
+
+    // The package is loaded again, and only its comments changed.
+    modifyFooBuildFile("sh_library(name = 'foo', srcs = ['a.sh'])  # A comment.", "# Another.");
+    PackageValue commented = validPackage(skyKey);
+    assertThat(commented).isNotSameAs(value);
+    assertThat(commented.getFingerprint()).isEqualTo(value.getFingerprint());
+
+    // The targets are the same, but their locations print differently.
+    modifyFooBuildFile("# A comment.", "sh_library(name = 'foo', srcs = ['a.sh'])");
+    PackageValue moved = validPackage(skyKey);
+    assertThat(moved.getFingerprint()).isNotEqualTo(value.getFingerprint());
+    assertThat(moved.getPackage().getTarget("foo").getLocation().getStartLine()).isEqualTo(2);
+
+    modifyFooBuildFile("sh_library(name = 'foo', srcs = ['b.sh'])");
+    PackageValue changed = validPackage(skyKey);
+    assertThat(changed.getFingerprint()).isNotEqualTo(value.getFingerprint());
+    assertThat(changed.getPackage().getTarget("b.sh")).isNotNull();
+  }
+
   @Test
   public void testGlobOrderStableWithLegacyAndSkyframeComponents() throws Exception {
     scratch.file("foo/BUILD", "sh_library(name = 'foo', srcs = glob(['*.txt']))");
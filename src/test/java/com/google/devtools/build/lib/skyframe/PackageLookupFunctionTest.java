@@ -41,6 +41,7 @@ import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossReposit
 import com.google.devtools.build.lib.skyframe.PackageLookupValue.BuildFileName;
 import com.google.devtools.build.lib.skyframe.PackageLookupValue.ErrorReason;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -327,6 +328,19 @@ public abstract class PackageLookupFunctionTest extends FoundationTestCase {
         .testEquals();
   }
 
+  @Test
+  public void testMarkerValuesStayUniqueAfterSerialization() throws Exception {
+    assertThat(TestUtils.deserializeObject(
+            TestUtils.serializeObject(PackageLookupValue.NO_BUILD_FILE_VALUE)))
+        .isSameAs(PackageLookupValue.NO_BUILD_FILE_VALUE);
+    assertThat(TestUtils.deserializeObject(
+            TestUtils.serializeObject(PackageLookupValue.DELETED_PACKAGE_VALUE)))
+        .isSameAs(PackageLookupValue.DELETED_PACKAGE_VALUE);
+    assertThat(TestUtils.deserializeObject(
+            TestUtils.serializeObject(PackageLookupValue.NO_SUCH_REPOSITORY_VALUE)))
+        .isSameAs(PackageLookupValue.NO_SUCH_REPOSITORY_VALUE);
+  }
+
   protected void createAndCheckInvalidPackageLabel(boolean expectedPackageExists) throws Exception {
     scratch.overwriteFile("WORKSPACE", "local_repository(name='local', path='local/repo')");
     scratch.file("local/repo/WORKSPACE");
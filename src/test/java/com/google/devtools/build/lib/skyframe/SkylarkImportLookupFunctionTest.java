@@ -27,7 +27,9 @@ import com.google.devtools.build.lib.skyframe.util.SkyframeExecutorTestUtils;
 import com.google.devtools.build.lib.syntax.SkylarkSemanticsOptions;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.ErrorInfo;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -152,6 +154,35 @@ public class SkylarkImportLookupFunctionTest extends BuildViewTestCase {
     get(key("//pkg:subdir/ext2.bzl"));
   }
 
+  @Test
+  public void testFingerprintCoversSyntaxOfImports() throws Exception {
+    scratch.file("pkg/BUILD");
+    scratch.file("pkg/ext1.bzl", "a = 1  # One.");
+    scratch.file("pkg/ext2.bzl", "load('ext1', 'a')", "b = a");
+    SkyKey skyKey = key("//pkg:ext2.bzl");
+    SkylarkImportLookupValue value = get(skyKey).get(skyKey);
+    assertThat(value.getFingerprint()).isNotNull();
+
+    modifyFile("pkg/ext1.bzl", "a = 2");
+    SkylarkImportLookupValue changed = get(skyKey).get(skyKey);
+    assertThat(changed.getFingerprint()).isNotEqualTo(value.getFingerprint());
+
+    // Evaluated again from the same syntax, at the same positions.
+    modifyFile("pkg/ext1.bzl", "a = 1  # Uno.");
+    SkylarkImportLookupValue reverted = get(skyKey).get(skyKey);
+    assertThat(reverted).isNotSameAs(changed);
+    assertThat(reverted.getFingerprint()).isEqualTo(value.getFingerprint());
+  }
+
+  private void modifyFile(String relativePath, String... lines) throws Exception {
+    scratch.overwriteFile(relativePath, lines);
+    getSkyframeExecutor()
+        .invalidateFilesUnderPathForTesting(
+            reporter,
+            ModifiedFileSet.builder().modify(PathFragment.create(relativePath)).build(),
+            rootDirectory);
+  }
+
   private EvaluationResult<SkylarkImportLookupValue> get(SkyKey skylarkImportLookupKey)
       throws Exception {
     EvaluationResult<SkylarkImportLookupValue> result =
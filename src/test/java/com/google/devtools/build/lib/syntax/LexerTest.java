@@ -485,4 +485,23 @@ public class LexerTest {
     assertThat(names(tokens("r'\\"))).isEqualTo("STRING NEWLINE EOF");
     assertThat(lastError).isEqualTo("/some/path.txt:1: unterminated string literal at eof");
   }
+
+  @Test
+  public void testSyntaxFingerprintIgnoresCommentsButNotPositions() throws Exception {
+    byte[] fingerprint = createLexer("# one\nx = 1\n  # two\ny = [2]\n").getSyntaxFingerprint();
+    assertThat(createLexer("# uno\nx = 1\n# a longer comment\ny = [2]\n").getSyntaxFingerprint())
+        .isEqualTo(fingerprint);
+    // Tokens that move change the locations the AST reports.
+    assertThat(createLexer("# one\nx = 1\n  # two\ny =  [2]\n").getSyntaxFingerprint())
+        .isNotEqualTo(fingerprint);
+    assertThat(createLexer("x = 1\n  # two\ny = [2]\n").getSyntaxFingerprint())
+        .isNotEqualTo(fingerprint);
+    assertThat(createLexer("# one\nx = 1\n  # two\ny = [3]\n").getSyntaxFingerprint())
+        .isNotEqualTo(fingerprint);
+  }
+
+  @Test
+  public void testSyntaxFingerprintOfEmptyInput() throws Exception {
+    assertThat(createLexer("").getSyntaxFingerprint()).isNotNull();
+  }
 }
@@ -215,6 +215,30 @@ public class PersistentMapTest {
     assertThat(journalFile.exists()).isFalse();
   }
 
+  @Test
+  public void saveWithoutChangesAfterKeepingJournal() throws Exception {
+    createMap();
+    map.put("foo", "bar");
+    map.save();
+    map.updateJournal = false;
+    map.keepJournal = true;
+    map.put("baz", "bang");
+    map.save();
+    assertThat(journalFile.exists()).isTrue();
+
+    // The journal already holds all the changes, so there is nothing left to save.
+    map.keepJournal = false;
+    long size = map.save();
+    assertThat(journalFile.exists()).isTrue();
+    assertThat(size).isEqualTo(journalFile.getFileSize() + mapFile.getFileSize());
+
+    // Compacting rewrites the map file regardless.
+    map.compact();
+    assertThat(journalFile.exists()).isFalse();
+    createMap();
+    assertThat(map).containsExactly("foo", "bar", "baz", "bang");
+  }
+
   @Test
   public void multipleJournalUpdates() throws Exception {
     createMap();
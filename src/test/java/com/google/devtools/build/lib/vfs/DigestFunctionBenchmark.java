@@ -0,0 +1,112 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.unix.UnixFileSystem;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the speed of the supported digest functions on files whose sizes follow the
+ * distribution of a typical build: many small source files, some larger generated files and a few
+ * very large outputs.
+ *
+ * <p>Usage: {@code DigestFunctionBenchmark [iterations]}. Each digest function first digests all
+ * the files once to warm up the JIT and the page cache, and is then timed over the given number of
+ * iterations (5 by default).
+ */
+public final class DigestFunctionBenchmark {
+  /** The number of files of each size in the benchmarked file set. */
+  private static final ImmutableList<FileSize> FILE_SIZES =
+      ImmutableList.of(
+          new FileSize(2000, 4 * 1024),
+          new FileSize(500, 64 * 1024),
+          new FileSize(50, 1024 * 1024),
+          new FileSize(4, 64 * 1024 * 1024),
+          new FileSize(1, 512 * 1024 * 1024));
+
+  private static final class FileSize {
+    private final int count;
+    private final int bytes;
+
+    private FileSize(int count, int bytes) {
+      this.count = count;
+      this.bytes = bytes;
+    }
+  }
+
+  private DigestFunctionBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    FileSystem fs = OS.getCurrent() == OS.WINDOWS ? new JavaIoFileSystem() : new UnixFileSystem();
+    Path root = fs.getPath(Files.createTempDirectory("digest_benchmark").toString());
+    try {
+      List<Path> files = createFiles(root);
+      long totalBytes = 0;
+      for (Path file : files) {
+        totalBytes += file.getFileSize();
+      }
+      System.out.printf("%d files, %d MB%n", files.size(), totalBytes >> 20);
+      for (HashFunction hashFunction : HashFunction.values()) {
+        digestAll(files, hashFunction);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          digestAll(files, hashFunction);
+        }
+        long nanos = (System.nanoTime() - start) / iterations;
+        System.out.printf(
+            "%-12s %8d ms/iteration %8.1f MB/s%n",
+            hashFunction,
+            TimeUnit.NANOSECONDS.toMillis(nanos),
+            (totalBytes / (1024.0 * 1024.0)) / (nanos / 1e9));
+      }
+    } finally {
+      FileSystemUtils.deleteTree(root);
+    }
+  }
+
+  private static List<Path> createFiles(Path root) throws IOException {
+    Random random = new Random(0);
+    byte[] buffer = new byte[1024 * 1024];
+    List<Path> files = new ArrayList<>();
+    for (FileSize size : FILE_SIZES) {
+      for (int i = 0; i < size.count; i++) {
+        Path file = root.getChild(size.bytes + "_" + i);
+        try (OutputStream out = file.getOutputStream()) {
+          for (int written = 0; written < size.bytes; written += buffer.length) {
+            random.nextBytes(buffer);
+            out.write(buffer, 0, Math.min(buffer.length, size.bytes - written));
+          }
+        }
+        files.add(file);
+      }
+    }
+    return files;
+  }
+
+  private static void digestAll(List<Path> files, HashFunction hashFunction) throws IOException {
+    for (Path file : files) {
+      file.getDigest(hashFunction);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMultiplexer}. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+
+  /** A worker whose process is played by the test through a pair of pipes. */
+  private static final class FakeWorker extends Worker {
+    private final PipedInputStream stdin = new PipedInputStream();
+    private final PipedOutputStream stdinWriter;
+    private final PipedOutputStream stdout = new PipedOutputStream();
+    private final PipedInputStream stdoutReader;
+    private volatile boolean destroyed;
+
+    FakeWorker(WorkerKey key, Path workDir) throws IOException {
+      super(key, 1, workDir, workDir.getRelative("worker-1-Fake.log"));
+      stdinWriter = new PipedOutputStream(stdin);
+      stdoutReader = new PipedInputStream(stdout);
+    }
+
+    @Override
+    void createProcess() {}
+
+    @Override
+    void destroy() throws IOException {
+      super.destroy();
+      destroyed = true;
+    }
+
+    @Override
+    boolean isAlive() {
+      return !destroyed;
+    }
+
+    @Override
+    InputStream getInputStream() {
+      return stdoutReader;
+    }
+
+    @Override
+    OutputStream getOutputStream() {
+      return stdinWriter;
+    }
+  }
+
+  private WorkerKey key;
+  private FakeWorker worker;
+  private WorkerMultiplexer multiplexer;
+
+  @Before
+  public final void startMultiplexer() throws Exception {
+    Path execRoot = new InMemoryFileSystem().getPath("/execroot");
+    key =
+        new WorkerKey(
+            ImmutableList.of("worker", "--persistent_worker"),
+            ImmutableMap.<String, String>of(),
+            execRoot,
+            "Fake",
+            HashCode.fromInt(0),
+            ImmutableMap.<PathFragment, Path>of(),
+            ImmutableSet.<PathFragment>of(),
+            /*mustBeSandboxed=*/ false,
+            /*proxied=*/ true);
+    worker = new FakeWorker(key, execRoot);
+    multiplexer = new WorkerMultiplexer(worker);
+    multiplexer.start();
+  }
+
+  private static WorkRequest request(String argument) {
+    return WorkRequest.newBuilder().addArguments(argument).build();
+  }
+
+  private void respond(WorkRequest request) throws IOException {
+    WorkResponse.newBuilder()
+        .setOutput(request.getArguments(0))
+        .setRequestId(request.getRequestId())
+        .build()
+        .writeDelimitedTo(worker.stdout);
+    worker.stdout.flush();
+  }
+
+  @Test
+  public void responsesInAnyOrderReachTheirRequests() throws Exception {
+    int firstId = multiplexer.putRequest(request("first"));
+    int secondId = multiplexer.putRequest(request("second"));
+    WorkRequest first = WorkRequest.parseDelimitedFrom(worker.stdin);
+    WorkRequest second = WorkRequest.parseDelimitedFrom(worker.stdin);
+    assertThat(first.getRequestId()).isEqualTo(firstId);
+    assertThat(second.getRequestId()).isEqualTo(secondId);
+    assertThat(firstId).isNotEqualTo(secondId);
+    assertThat(firstId).isNotEqualTo(0);
+
+    respond(second);
+    respond(first);
+
+    assertThat(multiplexer.getResponse(firstId).getOutput()).isEqualTo("first");
+    assertThat(multiplexer.getResponse(secondId).getOutput()).isEqualTo("second");
+  }
+
+  @Test
+  public void closedStdoutEndsPendingRequests() throws Exception {
+    int requestId = multiplexer.putRequest(request("lost"));
+    worker.stdout.close();
+
+    assertThat(multiplexer.getResponse(requestId)).isNull();
+    assertThat(multiplexer.isAlive()).isFalse();
+    try {
+      multiplexer.putRequest(request("late"));
+      fail("expected IOException");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void responseWithoutRequestIdFailsPendingRequests() throws Exception {
+    int requestId = multiplexer.putRequest(request("first"));
+    WorkResponse.newBuilder().setOutput("singleplex").build().writeDelimitedTo(worker.stdout);
+    worker.stdout.flush();
+
+    try {
+      multiplexer.getResponse(requestId);
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("does not support multiplexing");
+    }
+    assertThat(multiplexer.isAlive()).isFalse();
+  }
+
+  @Test
+  public void interruptKillsProcessAndEndsOtherRequests() throws Exception {
+    final int interruptedId = multiplexer.putRequest(request("interrupted"));
+    int otherId = multiplexer.putRequest(request("other"));
+    final AtomicBoolean interrupted = new AtomicBoolean();
+    Thread waiter =
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              multiplexer.getResponse(interruptedId);
+            } catch (InterruptedException e) {
+              interrupted.set(true);
+            } catch (IOException e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        };
+    waiter.start();
+    waiter.interrupt();
+    waiter.join();
+
+    assertThat(interrupted.get()).isTrue();
+    assertThat(worker.destroyed).isTrue();
+    assertThat(multiplexer.isAlive()).isFalse();
+    assertThat(multiplexer.getResponse(otherId)).isNull();
+  }
+
+  @Test
+  public void proxySeesOnlyTheOutputOfItsFailedResponse() throws Exception {
+    WorkerProxy proxy = new WorkerProxy(key, 2, multiplexer);
+    proxy.putRequest(request("first"));
+    respond(WorkRequest.parseDelimitedFrom(worker.stdin));
+    assertThat(proxy.getResponse().getOutput()).isEqualTo("first");
+    assertThat(proxy.getRecordingStreamMessage()).isEmpty();
+
+    proxy.putRequest(request("second"));
+    worker.stdout.write("Exception in thread main".getBytes(UTF_8));
+    worker.stdout.close();
+    try {
+      proxy.getResponse();
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertThat(proxy.getRecordingStreamMessage()).contains("Exception in thread main");
+    }
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the memory limit of {@link WorkerPool}. */
+@RunWith(JUnit4.class)
+public class WorkerPoolTest {
+
+  private Worker first;
+  private Worker second;
+  private Worker third;
+  private Worker firstProxy;
+  private Worker secondProxy;
+
+  @Before
+  public final void createWorkers() throws Exception {
+    Path execRoot = new InMemoryFileSystem().getPath("/execroot");
+    WorkerKey key =
+        new WorkerKey(
+            ImmutableList.of("worker", "--persistent_worker"),
+            ImmutableMap.<String, String>of(),
+            execRoot,
+            "Fake",
+            HashCode.fromInt(0),
+            ImmutableMap.<PathFragment, Path>of(),
+            ImmutableSet.<PathFragment>of(),
+            /*mustBeSandboxed=*/ false,
+            /*proxied=*/ false);
+    first = new Worker(key, 1, execRoot, execRoot.getRelative("worker-1-Fake.log"));
+    second = new Worker(key, 2, execRoot, execRoot.getRelative("worker-2-Fake.log"));
+    third = new Worker(key, 3, execRoot, execRoot.getRelative("worker-3-Fake.log"));
+    WorkerMultiplexer multiplexer =
+        new WorkerMultiplexer(
+            new Worker(key, 4, execRoot, execRoot.getRelative("worker-4-Fake.log")));
+    firstProxy = new WorkerProxy(key, 5, multiplexer);
+    secondProxy = new WorkerProxy(key, 6, multiplexer);
+  }
+
+  private Map<Worker, Long> residentSetKb(long first, long second, long third) {
+    Map<Worker, Long> residentSetKb = new HashMap<>();
+    residentSetKb.put(this.first, first);
+    residentSetKb.put(this.second, second);
+    residentSetKb.put(this.third, third);
+    return residentSetKb;
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedIdleWorkersUntilUnderLimit() {
+    assertThat(
+            WorkerPool.selectWorkersToEvict(
+                ImmutableList.of(second, first, third), residentSetKb(100, 200, 300), 350))
+        .containsExactly(second, first)
+        .inOrder();
+  }
+
+  @Test
+  public void evictsNothingUnderLimit() {
+    assertThat(
+            WorkerPool.selectWorkersToEvict(
+                ImmutableList.of(first, second, third), residentSetKb(100, 200, 300), 600))
+        .isEmpty();
+  }
+
+  @Test
+  public void busyWorkersAreNeverEvicted() {
+    // The third worker is busy, so it counts towards the limit but cannot be evicted.
+    assertThat(
+            WorkerPool.selectWorkersToEvict(
+                ImmutableList.of(first, second), residentSetKb(100, 200, 300), 100))
+        .containsExactly(first, second)
+        .inOrder();
+  }
+
+  @Test
+  public void sharedProcessIsCountedOnceAndEvictedWhole() {
+    Map<Worker, Long> residentSetKb = new HashMap<>();
+    residentSetKb.put(first, 100L);
+    residentSetKb.put(firstProxy, 500L);
+    residentSetKb.put(secondProxy, 500L);
+    assertThat(
+            WorkerPool.selectWorkersToEvict(
+                ImmutableList.of(firstProxy, first, secondProxy), residentSetKb, 600))
+        .isEmpty();
+    assertThat(
+            WorkerPool.selectWorkersToEvict(
+                ImmutableList.of(firstProxy, first, secondProxy), residentSetKb, 550))
+        .containsExactly(firstProxy, secondProxy)
+        .inOrder();
+  }
+
+  @Test
+  public void proxiesOfBusyProcessAreNeverEvicted() {
+    Map<Worker, Long> residentSetKb = new HashMap<>();
+    residentSetKb.put(first, 100L);
+    residentSetKb.put(firstProxy, 500L);
+    residentSetKb.put(secondProxy, 500L);
+    // The second proxy is busy, so evicting the first one would not free any memory.
+    assertThat(
+            WorkerPool.selectWorkersToEvict(
+                ImmutableList.of(firstProxy, first), residentSetKb, 100))
+        .containsExactly(first);
+  }
+
+  @Test
+  public void residentSetIsParsedFromProcStatus() {
+    String status = "Name:\tjava\nVmPeak:\t 4000000 kB\nVmRSS:\t  123456 kB\nThreads:\t42\n";
+    assertThat(Worker.parseResidentSetKb(status)).isEqualTo(123456);
+    assertThat(Worker.parseResidentSetKb("Name:\tkthreadd\nThreads:\t1\n")).isEqualTo(0);
+  }
+
+  @Test
+  public void evictionPolicyOnlyEvictsRequestedWorkers() {
+    WorkerEvictionPolicy policy = new WorkerEvictionPolicy();
+    second.requestEviction();
+    assertThat(policy.evict(null, new DefaultPooledObject<>(first), 3)).isFalse();
+    assertThat(policy.evict(null, new DefaultPooledObject<>(second), 3)).isTrue();
+    second.cancelEviction();
+    assertThat(policy.evict(null, new DefaultPooledObject<>(second), 3)).isFalse();
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link CompactInMemoryNodeEntry}, which must also pass all the tests of {@link
+ * InMemoryNodeEntry}.
+ */
+@RunWith(JUnit4.class)
+public class CompactInMemoryNodeEntryTest extends InMemoryNodeEntryTest {
+  private static final SkyValue VALUE = new SkyValue() {};
+
+  private final SkyKeyIndex keyIndex = new SkyKeyIndex();
+
+  @Override
+  protected InMemoryNodeEntry newEntry() {
+    return new CompactInMemoryNodeEntry(keyIndex);
+  }
+
+  @Test
+  public void reverseDepsAreStoredAsIds() throws Exception {
+    InMemoryNodeEntry entry = newEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    entry.setValue(VALUE, IntVersion.of(0L));
+    List<SkyKey> parents = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      parents.add(key("parent" + i));
+      entry.addReverseDepAndCheckIfDone(key("parent" + i));
+    }
+    entry.removeReverseDep(key("parent0"));
+
+    assertThat(entry.getReverseDepsForDoneEntry())
+        .containsExactlyElementsIn(parents.subList(1, parents.size()));
+    assertThat(entry.getReverseDepsRawForReverseDepsUtil()).isNotInstanceOf(ArrayList.class);
+    // The id of the removed reverse dep was released when the reverse deps were consolidated.
+    assertThat(keyIndex.size()).isEqualTo(99);
+  }
+
+  @Test
+  public void directDepsAreCheckedAfterDirtying() throws Exception {
+    InMemoryNodeEntry entry = newEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.add(key("single"));
+    helper.startGroup();
+    helper.add(key("groupA"));
+    helper.add(key("groupB"));
+    helper.endGroup();
+    entry.addTemporaryDirectDeps(helper);
+    entry.signalDep();
+    entry.signalDep();
+    entry.signalDep();
+    entry.setValue(VALUE, IntVersion.of(0L));
+
+    GroupedList<SkyKey> expected = new GroupedList<>();
+    expected.appendGroup(ImmutableList.of(key("single")));
+    expected.appendGroup(ImmutableList.of(key("groupA"), key("groupB")));
+    assertThat(entry.getGroupedDirectDeps()).isEqualTo(expected);
+
+    assertThat(keyIndex.size()).isEqualTo(3);
+
+    entry.markDirty(/*isChanged=*/ false);
+    assertThat(keyIndex.size()).isEqualTo(0);
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    assertThat(entry.getNextDirtyDirectDeps()).containsExactly(key("single"));
+  }
+
+  @Test
+  public void removalFromGraphReleasesIds() throws Exception {
+    InMemoryNodeEntry entry = newEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.add(key("dep1"));
+    helper.add(key("dep2"));
+    entry.addTemporaryDirectDeps(helper);
+    entry.signalDep();
+    entry.signalDep();
+    entry.setValue(VALUE, IntVersion.of(0L));
+    entry.addReverseDepAndCheckIfDone(key("parent1"));
+    entry.addReverseDepAndCheckIfDone(key("parent2"));
+    assertThat(entry.getReverseDepsForDoneEntry()).hasSize(2);
+    assertThat(keyIndex.size()).isEqualTo(4);
+
+    entry.removedFromGraph();
+    assertThat(keyIndex.size()).isEqualTo(0);
+  }
+}
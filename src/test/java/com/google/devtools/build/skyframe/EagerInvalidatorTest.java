@@ -40,6 +40,7 @@ import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
@@ -627,4 +628,36 @@ public class EagerInvalidatorTest {
       assertThat(receiver.getUnenqueuedDirtyKeys()).hasSize(2);
     }
   }
+
+  /** Test suite for the dirtying invalidator, when it dirties the nodes in sharded batches. */
+  @RunWith(JUnit4.class)
+  public static class ShardedDirtyingInvalidatorTest extends DirtyingInvalidatorTest {
+    // Shared by all invalidations of a test, like the pool of InMemoryMemoizingEvaluator.
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void shutDownPool() {
+      pool.shutdown();
+    }
+
+    @Override
+    protected void invalidate(
+        InMemoryGraph graph, DirtyTrackingProgressReceiver progressReceiver, SkyKey... keys)
+        throws InterruptedException {
+      state.update(ImmutableList.copyOf(keys));
+      if (state.isEmpty()) {
+        return;
+      }
+      DirtyingNodeVisitor dirtyingNodeVisitor =
+          new DirtyingNodeVisitor(
+              graph,
+              progressReceiver,
+              state,
+              pool,
+              /*shardCount=*/ 3,
+              /*minShardSize=*/ 1);
+      visitor.set(dirtyingNodeVisitor);
+      dirtyingNodeVisitor.run();
+    }
+  }
 }
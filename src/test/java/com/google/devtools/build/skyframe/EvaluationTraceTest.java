@@ -0,0 +1,146 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link EvaluationTrace}. */
+@RunWith(JUnit4.class)
+public class EvaluationTraceTest {
+  private GraphTester tester;
+  private InMemoryMemoizingEvaluator evaluator;
+  private SequentialBuildDriver driver;
+
+  @Before
+  public void createEvaluator() {
+    tester = new GraphTester();
+    tester.set("a", new StringValue("a"));
+    tester.set("b", new StringValue("b"));
+    tester.set("c", new StringValue("c"));
+    tester.getOrCreate("ab").addDependency("a").addDependency("b").setComputedValue(CONCATENATE);
+    tester.getOrCreate("abc").addDependency("ab").addDependency("c").setComputedValue(CONCATENATE);
+    evaluator =
+        new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), new RecordingDifferencer());
+    driver = new SequentialBuildDriver(evaluator);
+  }
+
+  private void eval(String key) throws InterruptedException {
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(ImmutableList.of(skyKey(key)), false, 1, NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+  }
+
+  private EvaluationTrace writeAndReadTrace(int expectedNodes) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(evaluator.writeTrace(out)).isEqualTo(expectedNodes);
+    return EvaluationTrace.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test
+  public void testTraceHasTheDepGroupsOfComputedNodes() throws Exception {
+    evaluator.startTrace();
+    eval("ab");
+    EvaluationTrace trace = writeAndReadTrace(3);
+
+    assertThat(trace.getRoots()).hasLength(1);
+    int root = trace.getRoots()[0];
+    assertThat(trace.getFunctionName(root)).isEqualTo(SkyFunctionName.FOR_TESTING);
+    // Each dep of a GraphTester function is requested in a group of its own.
+    int[][] groups = trace.getDepGroups(root);
+    assertThat(groups).hasLength(2);
+    for (int[] group : groups) {
+      assertThat(group).hasLength(1);
+      assertThat(trace.getDepGroups(group[0])).isEmpty();
+      assertThat(trace.getValueSize(group[0])).isGreaterThan(0);
+    }
+    assertThat(groups[0][0]).isNotEqualTo(groups[1][0]);
+    assertThat(trace.getComputeNanos(root)).isGreaterThan(0L);
+  }
+
+  @Test
+  public void testNodesThatWereAlreadyDoneAreLeaves() throws Exception {
+    eval("ab");
+    evaluator.startTrace();
+    eval("abc");
+    // abc and c were computed; ab was only requested.
+    EvaluationTrace trace = writeAndReadTrace(3);
+
+    int root = trace.getRoots()[0];
+    int[][] groups = trace.getDepGroups(root);
+    assertThat(groups).hasLength(2);
+    int ab = groups[0][0];
+    assertThat(trace.getDepGroups(ab)).isEmpty();
+    assertThat(trace.getComputeNanos(ab)).isEqualTo(0L);
+  }
+
+  /** A value that cannot be serialized. */
+  private static final class OpaqueValue implements SkyValue {
+    @SuppressWarnings("unused")
+    private final Object state = new Object();
+  }
+
+  @Test
+  public void testValuesThatCannotBeSerializedHaveUnknownSizes() throws Exception {
+    tester.set("x", new OpaqueValue());
+    tester
+        .getOrCreate("ax")
+        .addDependency("a")
+        .addDependency("x")
+        .setConstantValue(new StringValue("ax"));
+    evaluator.startTrace();
+    eval("ax");
+    EvaluationTrace trace = writeAndReadTrace(3);
+
+    int[][] groups = trace.getDepGroups(trace.getRoots()[0]);
+    assertThat(trace.getValueSize(groups[0][0])).isGreaterThan(0);
+    assertThat(trace.getValueSize(groups[1][0])).isEqualTo(EvaluationTrace.UNKNOWN_SIZE);
+    // The sizes of the values that follow are still measured.
+    assertThat(trace.getValueSize(trace.getRoots()[0])).isGreaterThan(0);
+  }
+
+  @Test
+  public void testWriteTraceStopsRecording() throws Exception {
+    evaluator.startTrace();
+    eval("ab");
+    writeAndReadTrace(3);
+    try {
+      evaluator.writeTrace(new ByteArrayOutputStream());
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testReadRejectsOtherFormats() throws Exception {
+    try {
+      EvaluationTrace.read(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.GraphTester.ValueComputer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GraphSnapshot}. */
+@RunWith(JUnit4.class)
+public class GraphSnapshotTest {
+  private GraphTester tester;
+  private RecordingDifferencer differencer;
+  private InMemoryMemoizingEvaluator evaluator;
+  private SequentialBuildDriver driver;
+
+  @Before
+  public void createEvaluator() {
+    tester = new GraphTester();
+    tester.set("a", new StringValue("a"));
+    tester.set("b", new StringValue("b"));
+    tester.getOrCreate("ab").addDependency("a").addDependency("b").setComputedValue(CONCATENATE);
+    differencer = new RecordingDifferencer();
+    evaluator = new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer);
+    driver = new SequentialBuildDriver(evaluator);
+  }
+
+  private static final class NotSerializableValue implements SkyValue {
+    @SuppressWarnings("unused")
+    private final Object field = new Object();
+  }
+
+  private static <T extends SkyValue> T eval(SequentialBuildDriver driver, String key)
+      throws InterruptedException {
+    EvaluationResult<T> result =
+        driver.evaluate(ImmutableList.of(skyKey(key)), false, 1, NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    return result.get(skyKey(key));
+  }
+
+  private byte[] writeSnapshot(Predicate<SkyKey> persistable, int expectedNodes) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(evaluator.writeSnapshot(out, "identity", persistable)).isEqualTo(expectedNodes);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testRestoredValuesAreReused() throws Exception {
+    assertThat(this.<StringValue>eval(driver, "ab").getValue()).isEqualTo("ab");
+    byte[] snapshot = writeSnapshot(Predicates.<SkyKey>alwaysTrue(), 3);
+
+    // The functions of the new evaluator compute other values, so the restored ones are visible.
+    GraphTester newTester = new GraphTester();
+    newTester.set("a", new StringValue("x"));
+    newTester.set("b", new StringValue("y"));
+    newTester.getOrCreate("ab").setConstantValue(new StringValue("xy"));
+    RecordingDifferencer newDifferencer = new RecordingDifferencer();
+    InMemoryMemoizingEvaluator newEvaluator =
+        new InMemoryMemoizingEvaluator(newTester.getSkyFunctionMap(), newDifferencer);
+    assertThat(newEvaluator.restoreSnapshot(new ByteArrayInputStream(snapshot), "identity"))
+        .isEqualTo(3);
+    SequentialBuildDriver newDriver = new SequentialBuildDriver(newEvaluator);
+    assertThat(this.<StringValue>eval(newDriver, "ab").getValue()).isEqualTo("ab");
+  }
+
+  @Test
+  public void testInvalidatedRestoredNodeIsReevaluated() throws Exception {
+    eval(driver, "ab");
+    byte[] snapshot = writeSnapshot(Predicates.<SkyKey>alwaysTrue(), 3);
+
+    InMemoryMemoizingEvaluator newEvaluator =
+        new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer);
+    newEvaluator.restoreSnapshot(new ByteArrayInputStream(snapshot), "identity");
+    tester.set("a", new StringValue("c"));
+    differencer.invalidate(ImmutableList.of(skyKey("a")));
+    SequentialBuildDriver newDriver = new SequentialBuildDriver(newEvaluator);
+    assertThat(this.<StringValue>eval(newDriver, "ab").getValue()).isEqualTo("cb");
+  }
+
+  @Test
+  public void testNodesWithUnwrittenDepsAreLeftOut() throws Exception {
+    tester.set("c", new NotSerializableValue());
+    tester
+        .getOrCreate("bc")
+        .addDependency("b")
+        .addDependency("c")
+        .setComputedValue(
+            new ValueComputer() {
+              @Override
+              public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env) {
+                return new StringValue("bc");
+              }
+            });
+    eval(driver, "ab");
+    eval(driver, "bc");
+    // "a" is not persistable and "c" cannot be serialized, so only "b" is written.
+    byte[] snapshot = writeSnapshot(Predicates.not(Predicates.equalTo(skyKey("a"))), 1);
+
+    InMemoryMemoizingEvaluator newEvaluator =
+        new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), new RecordingDifferencer());
+    newEvaluator.restoreSnapshot(new ByteArrayInputStream(snapshot), "identity");
+    assertThat(newEvaluator.getValues().keySet()).containsExactly(skyKey("b"));
+  }
+
+  @Test
+  public void testRecordsAfterUnserializableValuesAreRestored() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      tester.set("s" + i, new StringValue("s" + i));
+      tester.set("n" + i, new NotSerializableValue());
+      eval(driver, "s" + i);
+      eval(driver, "n" + i);
+    }
+    byte[] snapshot = writeSnapshot(Predicates.<SkyKey>alwaysTrue(), 10);
+
+    InMemoryMemoizingEvaluator newEvaluator =
+        new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), new RecordingDifferencer());
+    assertThat(newEvaluator.restoreSnapshot(new ByteArrayInputStream(snapshot), "identity"))
+        .isEqualTo(10);
+    for (int i = 0; i < 10; i++) {
+      StringValue value = (StringValue) newEvaluator.getExistingValueForTesting(skyKey("s" + i));
+      assertThat(value.getValue()).isEqualTo("s" + i);
+    }
+  }
+
+  @Test
+  public void testIdentityMismatchLeavesGraphEmpty() throws Exception {
+    eval(driver, "ab");
+    byte[] snapshot = writeSnapshot(Predicates.<SkyKey>alwaysTrue(), 3);
+
+    InMemoryMemoizingEvaluator newEvaluator =
+        new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), new RecordingDifferencer());
+    try {
+      newEvaluator.restoreSnapshot(new ByteArrayInputStream(snapshot), "other identity");
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).contains("other identity");
+    }
+    assertThat(newEvaluator.getValues()).isEmpty();
+  }
+}
@@ -50,13 +50,17 @@ public class InMemoryNodeEntryTest {
   private static final NestedSet<Postable> NO_POSTS =
       NestedSetBuilder.<Postable>emptySet(Order.STABLE_ORDER);
 
-  private static SkyKey key(String name) {
+  protected static SkyKey key(String name) {
     return LegacySkyKey.create(NODE_TYPE, name);
   }
 
+  protected InMemoryNodeEntry newEntry() {
+    return new InMemoryNodeEntry();
+  }
+
   @Test
   public void createEntry() {
-    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    InMemoryNodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     assertThat(entry.isDone()).isFalse();
     assertThat(entry.isReady()).isTrue();
@@ -67,7 +71,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void signalEntry() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep1 = key("dep1");
     addTemporaryDirectDep(entry, dep1);
@@ -93,7 +97,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void reverseDeps() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey mother = key("mother");
     SkyKey father = key("father");
     assertThat(entry.addReverseDepAndCheckIfDone(mother))
@@ -112,7 +116,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void errorValue() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     ReifiedSkyFunctionException exception = new ReifiedSkyFunctionException(
         new GenericFunctionException(new SomeErrorException("oops"), Transience.PERSISTENT),
@@ -126,7 +130,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void errorAndValue() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     ReifiedSkyFunctionException exception = new ReifiedSkyFunctionException(
         new GenericFunctionException(new SomeErrorException("oops"), Transience.PERSISTENT),
@@ -139,7 +143,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnNullErrorAndValue() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     try {
       setValue(entry, /*value=*/null, /*errorInfo=*/null, /*graphVersion=*/0L);
@@ -151,7 +155,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnTooManySignals() {
-    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    InMemoryNodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     try {
       entry.signalDep();
@@ -163,7 +167,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnDifferentValue() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     try {
@@ -177,7 +181,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void dirtyLifecycle() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -209,7 +213,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void changedLifecycle() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -238,7 +242,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void markDirtyThenChanged() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, key("dep"));
     entry.signalDep();
@@ -262,7 +266,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void markChangedThenDirty() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, key("dep"));
     entry.signalDep();
@@ -285,7 +289,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnTwiceMarkedChanged() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     assertThat(entry.isDirty()).isFalse();
@@ -301,7 +305,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnTwiceMarkedDirty() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, key("dep"));
     entry.signalDep();
@@ -317,7 +321,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnAddReverseDepTwice() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey parent = key("parent");
     assertThat(entry.addReverseDepAndCheckIfDone(parent))
         .isEqualTo(DependencyState.NEEDS_SCHEDULING);
@@ -333,7 +337,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnAddReverseDepTwiceAfterDone() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     SkyKey parent = key("parent");
@@ -350,7 +354,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void crashOnAddReverseDepBeforeAfterDone() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey parent = key("parent");
     assertThat(entry.addReverseDepAndCheckIfDone(parent))
         .isEqualTo(DependencyState.NEEDS_SCHEDULING);
@@ -367,7 +371,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneBeforeBuild() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     SkyKey dep = key("dep");
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     addTemporaryDirectDep(entry, dep);
@@ -415,7 +419,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneAfterBuild() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -438,7 +442,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void noPruneWhenDetailsChange() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -476,7 +480,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneWhenDepGroupReordered() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     SkyKey dep1InGroup = key("dep1InGroup");
@@ -517,7 +521,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void errorInfoCannotBePruned() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -544,7 +548,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void getDependencyGroup() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     SkyKey dep2 = key("dep2");
@@ -568,7 +572,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void maintainDependencyGroupAfterRemoval() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     SkyKey dep2 = key("dep2");
@@ -598,7 +602,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void pruneWhenDepsChange() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     SkyKey dep = key("dep");
     addTemporaryDirectDep(entry, dep);
@@ -622,7 +626,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void checkDepsOneByOne() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
     List<SkyKey> deps = new ArrayList<>();
     for (int ii = 0; ii < 10; ii++) {
@@ -649,7 +653,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void signalOnlyNewParents() throws InterruptedException {
-    NodeEntry entry = new InMemoryNodeEntry();
+    NodeEntry entry = newEntry();
     entry.addReverseDepAndCheckIfDone(key("parent"));
     setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
     entry.markDirty(/*isChanged=*/true);
@@ -663,7 +667,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void testClone() throws InterruptedException {
-    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    InMemoryNodeEntry entry = newEntry();
     IntVersion version = IntVersion.of(0);
     IntegerValue originalValue = new IntegerValue(42);
     SkyKey originalChild = key("child");
@@ -707,7 +711,7 @@ public class InMemoryNodeEntryTest {
 
   @Test
   public void getGroupedDirectDeps() throws InterruptedException {
-    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    InMemoryNodeEntry entry = newEntry();
     ImmutableList<ImmutableSet<SkyKey>> groupedDirectDeps = ImmutableList.of(
         ImmutableSet.of(key("1A")),
         ImmutableSet.of(key("2A"), key("2B")),
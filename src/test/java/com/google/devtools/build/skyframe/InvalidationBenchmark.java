@@ -0,0 +1,177 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares dirtying with a task per node to sharded dirtying, when a few nodes that most of the
+ * graph depends on change, such as the files of the configuration.
+ *
+ * <p>The graph has a few "hub" nodes, a middle layer whose nodes each depend on all the hubs, and a
+ * top layer whose nodes each depend on one middle node. All hubs are marked changed, and the time
+ * to dirty the whole graph is measured. The graph is built again, untimed, before each run.
+ *
+ * <p>Usage: {@code InvalidationBenchmark [threads] [parents] [hubs] [min shard size]
+ * [iterations]}. Each mode is run once to warm up the JIT, and then timed over the given number of
+ * iterations. The defaults are the number of processors, 200000 parents, 4 hubs, shards of at
+ * least 64 nodes and 5 iterations.
+ */
+public final class InvalidationBenchmark {
+  private static final SkyFunctionName HUB = SkyFunctionName.create("HUB");
+  private static final SkyFunctionName MIDDLE = SkyFunctionName.create("MIDDLE");
+  private static final SkyFunctionName TOP = SkyFunctionName.create("TOP");
+  private static final SkyValue VALUE = new SkyValue() {};
+
+  /** A way of dirtying the graph. */
+  private interface Mode {
+    void invalidate(InMemoryGraph graph, List<SkyKey> changed) throws InterruptedException;
+  }
+
+  private InvalidationBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    final int threads =
+        args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int parents = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    int hubs = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    final int minShardSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+    int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+    System.out.printf(
+        "%d threads, %d parents, %d hubs, shards of at least %d nodes%n",
+        threads, parents, hubs, minShardSize);
+
+    final ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      run(
+          "task per node",
+          new Mode() {
+            @Override
+            public void invalidate(InMemoryGraph graph, List<SkyKey> changed)
+                throws InterruptedException {
+              EagerInvalidator.invalidate(
+                  graph, changed, newProgressReceiver(), new DirtyingInvalidationState());
+            }
+          },
+          parents,
+          hubs,
+          iterations);
+      run(
+          "task per node, fork-join",
+          new Mode() {
+            @Override
+            public void invalidate(InMemoryGraph graph, List<SkyKey> changed)
+                throws InterruptedException {
+              EagerInvalidator.invalidate(
+                  graph,
+                  changed,
+                  newProgressReceiver(),
+                  new DirtyingInvalidationState(),
+                  new ForkJoinPool(threads),
+                  /*supportInterruptions=*/ true);
+            }
+          },
+          parents,
+          hubs,
+          iterations);
+      run(
+          "sharded",
+          new Mode() {
+            @Override
+            public void invalidate(InMemoryGraph graph, List<SkyKey> changed)
+                throws InterruptedException {
+              EagerInvalidator.invalidateInShards(
+                  graph,
+                  changed,
+                  newProgressReceiver(),
+                  new DirtyingInvalidationState(),
+                  pool,
+                  /*shardCount=*/ threads,
+                  minShardSize);
+            }
+          },
+          parents,
+          hubs,
+          iterations);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static DirtyTrackingProgressReceiver newProgressReceiver() {
+    return new DirtyTrackingProgressReceiver(/*progressReceiver=*/ null);
+  }
+
+  private static void run(String name, Mode mode, int parents, int hubs, int iterations)
+      throws InterruptedException {
+    runOnce(mode, parents, hubs);
+    long nanos = 0;
+    for (int i = 0; i < iterations; i++) {
+      nanos += runOnce(mode, parents, hubs);
+    }
+    nanos /= iterations;
+    System.out.printf(
+        "%-26s %8d ms/iteration %10.0f nodes/s%n",
+        name,
+        TimeUnit.NANOSECONDS.toMillis(nanos),
+        (hubs + 2 * parents) / (nanos / 1e9));
+  }
+
+  /** Builds the graph, dirties it with {@code mode}, and returns the time taken by the latter. */
+  private static long runOnce(Mode mode, int parents, int hubCount) throws InterruptedException {
+    InMemoryGraph graph = new InMemoryGraphImpl();
+    List<SkyKey> hubs = new ArrayList<>(hubCount);
+    for (int i = 0; i < hubCount; i++) {
+      SkyKey hub = LegacySkyKey.create(HUB, i);
+      hubs.add(hub);
+      createDoneNode(graph, hub, ImmutableList.<SkyKey>of());
+    }
+    for (int i = 0; i < parents; i++) {
+      SkyKey middle = LegacySkyKey.create(MIDDLE, i);
+      createDoneNode(graph, middle, hubs);
+      createDoneNode(graph, LegacySkyKey.create(TOP, i), ImmutableList.of(middle));
+    }
+
+    long start = System.nanoTime();
+    mode.invalidate(graph, hubs);
+    long nanos = System.nanoTime() - start;
+
+    for (NodeEntry entry : graph.getAllValues().values()) {
+      if (!entry.isDirty()) {
+        throw new IllegalStateException(entry.toString());
+      }
+    }
+    return nanos;
+  }
+
+  private static void createDoneNode(InMemoryGraph graph, SkyKey key, List<SkyKey> deps)
+      throws InterruptedException {
+    NodeEntry entry =
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    for (SkyKey dep : deps) {
+      graph.get(null, Reason.OTHER, dep).addReverseDepAndCheckIfDone(key);
+      entry.addTemporaryDirectDeps(GroupedListHelper.create(dep));
+      entry.signalDep();
+    }
+    entry.setValue(VALUE, IntVersion.of(0L));
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link LockFreeInMemoryNodeEntry}, which must also pass all the tests of {@link
+ * InMemoryNodeEntry}.
+ */
+@RunWith(JUnit4.class)
+public class LockFreeInMemoryNodeEntryTest extends InMemoryNodeEntryTest {
+  private static final SkyValue VALUE = new SkyValue() {};
+
+  @Override
+  protected InMemoryNodeEntry newEntry() {
+    return new LockFreeInMemoryNodeEntry();
+  }
+
+  private InMemoryNodeEntry newDoneEntry() throws InterruptedException {
+    InMemoryNodeEntry entry = newEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    entry.setValue(VALUE, IntVersion.of(0L));
+    return entry;
+  }
+
+  @Test
+  public void concurrentReverseDepsOnDoneEntry() throws Exception {
+    final InMemoryNodeEntry entry = newDoneEntry();
+    int threads = 8;
+    final int reverseDepsPerThread = LockFreeInMemoryNodeEntry.MAX_PENDING_REVERSE_DEPS + 100;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      futures.add(
+          executor.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int i = 0; i < reverseDepsPerThread; i++) {
+                    assertThat(entry.addReverseDepAndCheckIfDone(key(thread + "/" + i)))
+                        .isEqualTo(DependencyState.DONE);
+                    assertThat(entry.getValue()).isSameAs(VALUE);
+                  }
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    List<SkyKey> expected = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < reverseDepsPerThread; i++) {
+        expected.add(key(t + "/" + i));
+      }
+    }
+    assertThat(entry.getReverseDepsForDoneEntry()).containsExactlyElementsIn(expected);
+  }
+
+  @Test
+  public void pendingReverseDepsAreDirtied() throws Exception {
+    InMemoryNodeEntry entry = newDoneEntry();
+    entry.addReverseDepAndCheckIfDone(key("parent1"));
+    entry.addReverseDepAndCheckIfDone(key("parent2"));
+    assertThat(entry.markDirty(/*isChanged=*/ true).getReverseDepsUnsafe())
+        .containsExactly(key("parent1"), key("parent2"));
+    assertThat(entry.isDone()).isFalse();
+    assertThat(entry.isChanged()).isTrue();
+    // The entry is not done anymore, so new parents go through the locked path.
+    assertThat(entry.addReverseDepAndCheckIfDone(key("parent3")))
+        .isEqualTo(DependencyState.NEEDS_SCHEDULING);
+    assertThat(entry.getInProgressReverseDeps()).containsExactly(key("parent3"));
+  }
+
+  @Test
+  public void pendingReverseDepsAreRemoved() throws Exception {
+    InMemoryNodeEntry entry = newDoneEntry();
+    entry.addReverseDepAndCheckIfDone(key("parent1"));
+    entry.addReverseDepAndCheckIfDone(key("parent2"));
+    entry.removeReverseDep(key("parent1"));
+    assertThat(entry.getReverseDepsForDoneEntry()).containsExactlyElementsIn(
+        ImmutableList.of(key("parent2")));
+  }
+}
@@ -24,6 +24,7 @@ import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
 import static com.google.devtools.build.skyframe.GraphTester.COPY;
 import static com.google.devtools.build.skyframe.GraphTester.NODE_TYPE;
 import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Predicates;
@@ -403,6 +404,197 @@ public class MemoizingEvaluatorTest {
     tester.evaluator.deleteDirty(0);
   }
 
+  @Test
+  public void evictedValueIsRecomputedOnDemand() throws Exception {
+    SkyKey leaf = GraphTester.toSkyKey("leaf");
+    SkyKey mid = GraphTester.toSkyKey("mid");
+    SkyKey top = GraphTester.toSkyKey("top");
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(COPY);
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(COPY);
+    tester.set(leaf, new StringValue("leafy"));
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("leafy"));
+    Version midVersion = tester.evaluator.getExistingEntryForTesting(mid).getVersion();
+
+    tester.evaluator.evict(Predicates.equalTo(mid));
+    // Evictions are applied when the next evaluation is done.
+    tester.evalAndGet(/*keepGoing=*/false, leaf);
+    NodeEntry midEntry = tester.evaluator.getExistingEntryForTesting(mid);
+    assertThat(midEntry.isEvicted()).isTrue();
+    assertThat(midEntry.toValue()).isNull();
+    // The nodes that depend on mid are not touched.
+    NodeEntry topEntry = tester.evaluator.getExistingEntryForTesting(top);
+    assertThat(topEntry.isDone()).isTrue();
+    assertThat(topEntry.isDirty()).isFalse();
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("leafy"));
+    assertThat(tester.evaluator.getExistingEntryForTesting(mid).isEvicted()).isTrue();
+
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, mid)).isEqualTo(new StringValue("leafy"));
+    midEntry = tester.evaluator.getExistingEntryForTesting(mid);
+    assertThat(midEntry.isEvicted()).isFalse();
+    assertThat(midEntry.getVersion()).isEqualTo(midVersion);
+  }
+
+  @Test
+  public void evictedValueIsRecomputedWithoutReevaluatingParents() throws Exception {
+    SkyKey leaf = GraphTester.toSkyKey("leaf");
+    SkyKey mid = GraphTester.toSkyKey("mid");
+    SkyKey other = GraphTester.toSkyKey("other");
+    SkyKey otherLeaf = GraphTester.toSkyKey("otherLeaf");
+    SkyKey top = GraphTester.toSkyKey("top");
+    tester.getOrCreate(top).addDependency(mid).addDependency(other).setComputedValue(CONCATENATE);
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(COPY);
+    tester.getOrCreate(other).addDependency(otherLeaf).setConstantValue(new StringValue("other"));
+    tester.set(leaf, new StringValue("leafy"));
+    tester.set(otherLeaf, new StringValue("otherLeafy"));
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top))
+        .isEqualTo(new StringValue("leafyother"));
+
+    tester.evaluator.evict(Predicates.equalTo(mid));
+    tester.evalAndGet(/*keepGoing=*/false, leaf);
+    assertThat(tester.evaluator.getExistingEntryForTesting(mid).isEvicted()).isTrue();
+
+    // top is checked because otherLeaf changed, which revives mid. top would give an error if
+    // re-evaluated, but mid evaluates to the same value as before, and so does other.
+    tester.getOrCreate(top, /*markAsModified=*/false).setHasError(true);
+    tester.set(otherLeaf, new StringValue("otherCrunchy"));
+    tester.invalidate();
+    EvaluationResult<StringValue> result = tester.eval(/*keepGoing=*/false, top);
+    assertThat(result.hasError()).isFalse();
+    assertThat(result.get(top)).isEqualTo(new StringValue("leafyother"));
+    assertThat(tester.getExistingValue(mid)).isEqualTo(new StringValue("leafy"));
+  }
+
+  @Test
+  public void evictedValueIsRecomputedWhenDepChanges() throws Exception {
+    SkyKey leaf = GraphTester.toSkyKey("leaf");
+    SkyKey mid = GraphTester.toSkyKey("mid");
+    SkyKey top = GraphTester.toSkyKey("top");
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(COPY);
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(COPY);
+    tester.set(leaf, new StringValue("leafy"));
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("leafy"));
+
+    tester.evaluator.evict(Predicates.equalTo(mid));
+    tester.evalAndGet(/*keepGoing=*/false, leaf);
+    assertThat(tester.evaluator.getExistingEntryForTesting(mid).isEvicted()).isTrue();
+
+    tester.set(leaf, new StringValue("crunchy"));
+    tester.invalidate();
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("crunchy"));
+    assertThat(tester.getExistingValue(mid)).isEqualTo(new StringValue("crunchy"));
+  }
+
+  @Test
+  public void nodesWithoutDepsAreNotEvicted() throws Exception {
+    SkyKey leaf = GraphTester.toSkyKey("leaf");
+    tester.set(leaf, new StringValue("leafy"));
+    tester.evalAndGet(/*keepGoing=*/false, leaf);
+
+    tester.evaluator.evict(Predicates.<SkyKey>alwaysTrue());
+    tester.evalAndGet(/*keepGoing=*/false, leaf);
+    assertThat(tester.evaluator.getExistingEntryForTesting(leaf).isDone()).isTrue();
+    assertThat(tester.getExistingValue(leaf)).isEqualTo(new StringValue("leafy"));
+  }
+
+  @Test
+  public void skyFunctionMetricsCountEvaluationsAndRestarts() throws Exception {
+    SkyKey leaf = GraphTester.toSkyKey("leaf");
+    SkyKey mid = GraphTester.toSkyKey("mid");
+    SkyKey top = GraphTester.toSkyKey("top");
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(COPY);
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(COPY);
+    tester.getOrCreate(leaf).setConstantValue(new StringValue("leafy"));
+    SkyFunctionMetrics metrics = tester.evaluator.getSkyFunctionMetrics();
+
+    tester.evalAndGet(/*keepGoing=*/false, top);
+    Map<SkyFunctionName, SkyFunctionMetrics.FunctionMetrics> afterFirstBuild = metrics.snapshot();
+    // top and mid are restarted once their deps are done.
+    assertThat(afterFirstBuild.get(NODE_TYPE).getEvaluations()).isEqualTo(5);
+    assertThat(afterFirstBuild.get(NODE_TYPE).getRestarts()).isEqualTo(2);
+
+    tester.evalAndGet(/*keepGoing=*/false, top);
+    assertThat(SkyFunctionMetrics.difference(metrics.snapshot(), afterFirstBuild)).isEmpty();
+  }
+
+  @Test
+  public void skyFunctionMetricsCountDirtiedReevaluatedAndPrunedNodes() throws Exception {
+    SkyKey leaf = GraphTester.toSkyKey("leaf");
+    SkyKey mid = GraphTester.toSkyKey("mid");
+    SkyKey top = GraphTester.toSkyKey("top");
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(COPY);
+    tester.getOrCreate(mid).addDependency(leaf).setConstantValue(new StringValue("mid"));
+    tester.set(leaf, new StringValue("leafy"));
+    SkyFunctionMetrics metrics = tester.evaluator.getSkyFunctionMetrics();
+    tester.evalAndGet(/*keepGoing=*/false, top);
+    Map<SkyFunctionName, SkyFunctionMetrics.FunctionMetrics> afterFirstBuild = metrics.snapshot();
+    assertThat(afterFirstBuild.get(NODE_TYPE).getDirtied()).isEqualTo(0);
+
+    tester.set(leaf, new StringValue("crunchy"));
+    tester.invalidate();
+    tester.evalAndGet(/*keepGoing=*/false, top);
+    SkyFunctionMetrics.FunctionMetrics incremental =
+        SkyFunctionMetrics.difference(metrics.snapshot(), afterFirstBuild).get(NODE_TYPE);
+    assertThat(incremental.getDirtied()).isEqualTo(3);
+    // leaf and mid are re-evaluated, but mid gives the same value, so top is verified clean without
+    // being re-evaluated.
+    assertThat(incremental.getReevaluated()).isEqualTo(2);
+    assertThat(incremental.getPruned()).isEqualTo(2);
+  }
+
+  /** Counts the calls that saw it, and caches the first dep of the function in the test below. */
+  private static class CountingComputeState implements SkyKeyComputeState {
+    private int calls;
+    private StringValue firstValue;
+  }
+
+  @Test
+  public void computeStateIsKeptAcrossRestartsOfTheSameEvaluation() throws Exception {
+    SkyKey top = GraphTester.toSkyKey("top");
+    final SkyKey first = GraphTester.toSkyKey("first");
+    final SkyKey second = GraphTester.toSkyKey("second");
+    tester.getOrCreate(first).setConstantValue(new StringValue("1"));
+    tester.getOrCreate(second).setConstantValue(new StringValue("2"));
+    final List<Integer> callsSeenByState = new ArrayList<>();
+    tester
+        .getOrCreate(top)
+        .setBuilder(
+            new SkyFunction() {
+              @Override
+              public SkyValue compute(SkyKey skyKey, Environment env)
+                  throws InterruptedException {
+                CountingComputeState state = env.getState(CountingComputeState::new);
+                callsSeenByState.add(++state.calls);
+                if (state.firstValue == null) {
+                  state.firstValue = (StringValue) env.getValue(first);
+                  if (state.firstValue == null) {
+                    return null;
+                  }
+                }
+                StringValue secondValue = (StringValue) env.getValue(second);
+                if (secondValue == null) {
+                  return null;
+                }
+                return new StringValue(state.firstValue.getValue() + secondValue.getValue());
+              }
+
+              @Override
+              public String extractTag(SkyKey skyKey) {
+                return null;
+              }
+            });
+
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("12"));
+    // One state is shared by the first call and the restarts after each dep is done.
+    assertThat(callsSeenByState).containsExactly(1, 2, 3).inOrder();
+
+    callsSeenByState.clear();
+    tester.getOrCreate(second, /*markAsModified=*/true).setConstantValue(new StringValue("3"));
+    tester.invalidate();
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("13"));
+    // The state was dropped when top was done, so the rebuild starts from a new one.
+    assertThat(callsSeenByState).containsExactly(1);
+  }
+
   @Test
   public void deleteNonexistentValues() throws Exception {
     tester.getOrCreate("d1").setConstantValue(new StringValue("1"));
@@ -3528,6 +3720,64 @@ public class MemoizingEvaluatorTest {
     }
   }
 
+  /** A StringValue that is not comparable but has a fingerprint, like a package. */
+  private static final class FingerprintedStringValue extends StringValue
+      implements FingerprintedSkyValue, NotComparableSkyValue {
+    private final byte[] fingerprint;
+
+    private FingerprintedStringValue(String value, String fingerprint) {
+      super(value);
+      this.fingerprint = fingerprint.getBytes(UTF_8);
+    }
+
+    @Override
+    public byte[] getFingerprint() {
+      return fingerprint;
+    }
+  }
+
+  @Test
+  public void changePruningWithEqualFingerprint() throws Exception {
+    initializeTester();
+    SkyKey parent = GraphTester.toSkyKey("parent");
+    SkyKey child = GraphTester.toSkyKey("child");
+    tester
+        .getOrCreate(child)
+        .setConstantValue(new FingerprintedStringValue("child", "fingerprint"));
+    final AtomicInteger parentEvaluated = new AtomicInteger();
+    tester
+        .getOrCreate(parent)
+        .addDependency(child)
+        .setComputedValue(
+            new ValueComputer() {
+              @Override
+              public SkyValue compute(Map<SkyKey, SkyValue> deps, Environment env) {
+                parentEvaluated.incrementAndGet();
+                return new StringValue("parent");
+              }
+            });
+    assertStringValue("parent", tester.evalAndGet(/*keepGoing=*/ false, parent));
+    assertThat(parentEvaluated.get()).isEqualTo(1);
+
+    // The new child value is not equal to the old one, but has the same fingerprint.
+    tester
+        .getOrCreate(child, /*markAsModified=*/ true)
+        .setConstantValue(new FingerprintedStringValue("other child", "fingerprint"));
+    tester.invalidate();
+    assertStringValue("parent", tester.evalAndGet(/*keepGoing=*/ false, parent));
+    assertThat(parentEvaluated.get()).isEqualTo(1);
+    // The child stores its new value, so that it is up to date for new dependents.
+    assertStringValue("other child", tester.evalAndGet(/*keepGoing=*/ false, child));
+
+    tester
+        .getOrCreate(child, /*markAsModified=*/ true)
+        .setConstantValue(new FingerprintedStringValue("other child", "other fingerprint"));
+    tester.invalidate();
+    assertStringValue("parent", tester.evalAndGet(/*keepGoing=*/ false, parent));
+    assertThat(parentEvaluated.get()).isEqualTo(2);
+    assertStringValue("other child", tester.evalAndGet(/*keepGoing=*/ false, child));
+  }
+
   private static void assertStringValue(String expected, SkyValue val) {
     assertThat(((StringValue) val).getValue()).isEqualTo(expected);
   }
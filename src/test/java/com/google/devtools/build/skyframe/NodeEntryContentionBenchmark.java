@@ -0,0 +1,142 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the node entry implementations on high fan-in nodes, such as the configuration and
+ * toolchain nodes that most of a build depends on.
+ *
+ * <p>A few done "hub" nodes are requested by many parents, spread over all the threads of the
+ * benchmark. Each request registers the parent as a reverse dep of a hub and reads the hub's value
+ * and version, which is what {@link ParallelEvaluator} does for a dep that is already done. The
+ * reverse deps of the hubs are read once at the end, as the next invalidation would.
+ *
+ * <p>Usage: {@code NodeEntryContentionBenchmark [threads] [parents] [hubs] [iterations]}. Each
+ * implementation is run once to warm up the JIT, and then timed over the given number of
+ * iterations. The defaults are the number of processors, 200000 parents, 4 hubs and 5 iterations.
+ */
+public final class NodeEntryContentionBenchmark {
+  private static final SkyFunctionName PARENT = SkyFunctionName.create("PARENT");
+  private static final SkyValue VALUE = new SkyValue() {};
+
+  private static final ImmutableMap<String, Supplier<InMemoryNodeEntry>> ENTRIES =
+      ImmutableMap.<String, Supplier<InMemoryNodeEntry>>of(
+          "InMemoryNodeEntry",
+          new Supplier<InMemoryNodeEntry>() {
+            @Override
+            public InMemoryNodeEntry get() {
+              return new InMemoryNodeEntry();
+            }
+          },
+          "LockFreeInMemoryNodeEntry",
+          new Supplier<InMemoryNodeEntry>() {
+            @Override
+            public InMemoryNodeEntry get() {
+              return new LockFreeInMemoryNodeEntry();
+            }
+          });
+
+  private NodeEntryContentionBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    int threads =
+        args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int parents = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    int hubs = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+    System.out.printf("%d threads, %d parents, %d hubs%n", threads, parents, hubs);
+
+    List<SkyKey> parentKeys = new ArrayList<>(parents);
+    for (int i = 0; i < parents; i++) {
+      parentKeys.add(LegacySkyKey.create(PARENT, i));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Map.Entry<String, Supplier<InMemoryNodeEntry>> entry : ENTRIES.entrySet()) {
+        run(executor, threads, parentKeys, hubs, entry.getValue());
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          run(executor, threads, parentKeys, hubs, entry.getValue());
+        }
+        long nanos = (System.nanoTime() - start) / iterations;
+        System.out.printf(
+            "%-26s %8d ms/iteration %10.0f requests/s%n",
+            entry.getKey(),
+            TimeUnit.NANOSECONDS.toMillis(nanos),
+            parents / (nanos / 1e9));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static void run(
+      ExecutorService executor,
+      int threads,
+      final List<SkyKey> parentKeys,
+      int hubCount,
+      Supplier<InMemoryNodeEntry> entries)
+      throws Exception {
+    final InMemoryNodeEntry[] hubs = new InMemoryNodeEntry[hubCount];
+    for (int i = 0; i < hubCount; i++) {
+      hubs[i] = entries.get();
+      hubs[i].addReverseDepAndCheckIfDone(null); // Start evaluation.
+      hubs[i].setValue(VALUE, IntVersion.of(0L));
+    }
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      final int threadCount = threads;
+      futures.add(
+          executor.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int i = thread; i < parentKeys.size(); i += threadCount) {
+                    InMemoryNodeEntry hub = hubs[i % hubs.length];
+                    if (hub.addReverseDepAndCheckIfDone(parentKeys.get(i))
+                            != NodeEntry.DependencyState.DONE
+                        || hub.getValue() != VALUE
+                        || hub.getVersion() == null) {
+                      throw new IllegalStateException(hub.toString());
+                    }
+                  }
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    int reverseDeps = 0;
+    for (InMemoryNodeEntry hub : hubs) {
+      reverseDeps += Iterables.size(hub.getReverseDepsForDoneEntry());
+    }
+    if (reverseDeps != parentKeys.size()) {
+      throw new IllegalStateException(reverseDeps + " reverse deps");
+    }
+  }
+}
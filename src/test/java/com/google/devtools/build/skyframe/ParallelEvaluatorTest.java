@@ -46,6 +46,7 @@ import com.google.devtools.build.skyframe.NotifyingHelper.Listener;
 import com.google.devtools.build.skyframe.NotifyingHelper.Order;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -1505,6 +1506,81 @@ public class ParallelEvaluatorTest {
     }
   }
 
+  @Test
+  public void readyNodesAreEvaluatedInPriorityOrder() throws Exception {
+    final SkyFunctionName childType = SkyFunctionName.create("child");
+    final SkyFunctionName parentType = SkyFunctionName.create("parent");
+    final List<Integer> evaluatedChildren = Collections.synchronizedList(new ArrayList<Integer>());
+    final List<SkyKey> childKeys = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      childKeys.add(LegacySkyKey.create(childType, i));
+    }
+
+    ImmutableMap<SkyFunctionName, SkyFunction> skyFunctions =
+        ImmutableMap.<SkyFunctionName, SkyFunction>of(
+            childType,
+            new SkyFunction() {
+              @Override
+              public SkyValue compute(SkyKey skyKey, Environment env) {
+                evaluatedChildren.add((Integer) skyKey.argument());
+                return new StringValue(skyKey.argument().toString());
+              }
+
+              @Override
+              public String extractTag(SkyKey skyKey) {
+                return null;
+              }
+            },
+            parentType,
+            new SkyFunction() {
+              @Override
+              public SkyValue compute(SkyKey skyKey, Environment env)
+                  throws InterruptedException {
+                Map<SkyKey, SkyValue> values = env.getValues(childKeys);
+                if (env.valuesMissing()) {
+                  return null;
+                }
+                return new StringValue(Integer.toString(values.size()));
+              }
+
+              @Override
+              public String extractTag(SkyKey skyKey) {
+                return null;
+              }
+            });
+    // The children are requested together, and all become ready at once, so the single thread
+    // evaluates them by decreasing number.
+    EvaluationPriority priority =
+        new EvaluationPriority() {
+          @Override
+          public long getPriority(SkyKey key) {
+            if (!key.functionName().equals(childType)) {
+              return Long.MAX_VALUE;
+            }
+            return (Integer) key.argument();
+          }
+        };
+    ParallelEvaluator evaluator =
+        new ParallelEvaluator(
+            new InMemoryGraphImpl(),
+            graphVersion,
+            skyFunctions,
+            new Reporter(new EventBus(), eventCollector),
+            new MemoizingEvaluator.EmittedEventState(),
+            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+            ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
+            /*keepGoing=*/ false,
+            /*threadCount=*/ 1,
+            revalidationReceiver,
+            priority,
+            new SkyFunctionMetrics());
+
+    EvaluationResult<StringValue> result =
+        evaluator.eval(ImmutableList.of(LegacySkyKey.create(parentType, "parent")));
+    assertThat(result.get(LegacySkyKey.create(parentType, "parent")).getValue()).isEqualTo("10");
+    assertThat(evaluatedChildren).containsExactly(9, 8, 7, 6, 5, 4, 3, 2, 1, 0).inOrder();
+  }
+
   private static class SomeOtherErrorException extends Exception {
     public SomeOtherErrorException(String msg) {
       super(msg);
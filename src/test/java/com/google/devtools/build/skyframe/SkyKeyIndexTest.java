@@ -0,0 +1,118 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SkyKeyIndex}. */
+@RunWith(JUnit4.class)
+public class SkyKeyIndexTest {
+  private static final SkyFunctionName NODE_TYPE = SkyFunctionName.create("Type");
+
+  private final SkyKeyIndex index = new SkyKeyIndex();
+
+  @Test
+  public void idsAreDenseAndStable() {
+    // Enough keys to grow the segments and the chunks of keys.
+    int keys = 100000;
+    for (int i = 0; i < keys; i++) {
+      assertThat(index.acquire(LegacySkyKey.create(NODE_TYPE, i))).isEqualTo(i);
+    }
+    for (int i = 0; i < keys; i++) {
+      SkyKey key = LegacySkyKey.create(NODE_TYPE, i);
+      assertThat(index.acquire(key)).isEqualTo(i);
+      assertThat(index.getKey(i)).isEqualTo(key);
+    }
+    assertThat(index.size()).isEqualTo(keys);
+  }
+
+  @Test
+  public void releasedIdsAreReused() {
+    SkyKey first = LegacySkyKey.create(NODE_TYPE, "first");
+    SkyKey second = LegacySkyKey.create(NODE_TYPE, "second");
+    int id = index.acquire(first);
+    assertThat(index.acquire(first)).isEqualTo(id);
+    index.release(id);
+    assertThat(index.getKey(id)).isEqualTo(first);
+    index.release(id);
+    assertThat(index.size()).isEqualTo(0);
+    assertThat(index.getKey(id)).isNull();
+
+    // Keys of the same segment as the released one reuse its id.
+    int sameSegment = 0;
+    while (index.acquire(LegacySkyKey.create(NODE_TYPE, sameSegment)) != id) {
+      sameSegment++;
+    }
+    assertThat(index.acquire(second)).isNotEqualTo(id);
+    assertThat(index.acquire(first)).isNotEqualTo(id);
+    assertThat(index.getKey(id)).isEqualTo(LegacySkyKey.create(NODE_TYPE, sameSegment));
+  }
+
+  @Test
+  public void keysStayFindableAfterOthersAreReleased() {
+    int keys = 10000;
+    int[] ids = new int[keys];
+    for (int i = 0; i < keys; i++) {
+      ids[i] = index.acquire(LegacySkyKey.create(NODE_TYPE, i));
+    }
+    for (int i = 0; i < keys; i += 2) {
+      index.release(ids[i]);
+    }
+    assertThat(index.size()).isEqualTo(keys / 2);
+    for (int i = 1; i < keys; i += 2) {
+      assertThat(index.acquire(LegacySkyKey.create(NODE_TYPE, i))).isEqualTo(ids[i]);
+    }
+    assertThat(index.size()).isEqualTo(keys / 2);
+  }
+
+  @Test
+  public void concurrentIds() throws Exception {
+    final int keys = 20000;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<int[]>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      futures.add(
+          executor.submit(
+              new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                  int[] ids = new int[keys];
+                  for (int i = 0; i < keys; i++) {
+                    ids[i] = index.acquire(LegacySkyKey.create(NODE_TYPE, i));
+                  }
+                  return ids;
+                }
+              }));
+    }
+    int[] expected = futures.get(0).get();
+    for (Future<int[]> future : futures) {
+      assertThat(future.get()).isEqualTo(expected);
+    }
+    executor.shutdown();
+    assertThat(index.size()).isEqualTo(keys);
+    for (int i = 0; i < keys; i++) {
+      assertThat(index.getKey(expected[i])).isEqualTo(LegacySkyKey.create(NODE_TYPE, i));
+    }
+  }
+}
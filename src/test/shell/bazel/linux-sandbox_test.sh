@@ -201,6 +201,27 @@ function test_mount_additional_paths_multiple_sources_mount_to_one_target() {
   rm -rf ${MOUNT_TARGET_ROOT}/foo
 }
 
+function test_input_tmpfs_only_shows_bound_inputs() {
+  mkdir -p ${TEST_TMPDIR}/src/lib ${SANDBOX_DIR}/src
+  touch ${TEST_TMPDIR}/src/declared.h ${TEST_TMPDIR}/src/undeclared.h
+  touch ${TEST_TMPDIR}/src/lib/lib.h
+  $linux_sandbox $SANDBOX_DEFAULT_OPTS -D \
+    -I ${SANDBOX_DIR}/src \
+    -M ${TEST_TMPDIR}/src/declared.h -m ${SANDBOX_DIR}/src/declared.h \
+    -M ${TEST_TMPDIR}/src/lib -m ${SANDBOX_DIR}/src/lib \
+    -- /bin/bash -c "ls -A src src/lib; touch src/new.h 2>&1 || echo read-only" \
+    &> $TEST_log || code=$?
+  expect_log "input tmpfs: ${SANDBOX_DIR}/src\$"
+  expect_log "bind mount: ${TEST_TMPDIR}/src/declared.h -> ${SANDBOX_DIR}/src/declared.h\$"
+  expect_log "^declared.h\$"
+  expect_log "^lib.h\$"
+  expect_not_log "undeclared.h"
+  expect_log "read-only"
+  expect_log "child exited normally with exitcode 0"
+  # The mount points inside the tmpfs only exist in the sandbox.
+  assert_equals "" "$(ls -A ${SANDBOX_DIR}/src)"
+}
+
 function test_redirect_output() {
   $linux_sandbox $SANDBOX_DEFAULT_OPTS -l $OUT -L $ERR -- /bin/bash -c "echo out; echo err >&2" &> $TEST_log || code=$?
   assert_equals "out" "$(cat $OUT)"
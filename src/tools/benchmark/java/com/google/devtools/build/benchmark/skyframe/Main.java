@@ -0,0 +1,107 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.benchmark.skyframe;
+
+import com.google.devtools.build.skyframe.EvaluationTrace;
+import com.google.devtools.common.options.Options;
+import com.google.devtools.common.options.OptionsParsingException;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Main class for replaying a Skyframe evaluation trace. */
+public class Main {
+
+  private static final Logger logger = Logger.getLogger(Main.class.getName());
+
+  public static void main(String[] args) throws InterruptedException {
+    ReplayOptions opt = null;
+    EvaluationTrace trace = null;
+    try {
+      opt = parseArgs(args);
+      try (InputStream in = new BufferedInputStream(new FileInputStream(opt.tracePath))) {
+        trace = EvaluationTrace.read(in);
+      }
+    } catch (Exception e) {
+      if (e.getMessage() != null && !e.getMessage().isEmpty()) {
+        logger.log(Level.SEVERE, e.getMessage());
+      }
+      System.exit(1);
+    }
+
+    System.out.println(
+        "Replaying " + trace.size() + " nodes and " + trace.getRoots().length + " roots");
+    Random random = new Random(opt.seed);
+    for (int run = 1; run <= opt.runs; run++) {
+      TraceReplayer replayer = new TraceReplayer(trace, opt.timeScale);
+      long cleanNanos = replayer.evaluate(opt.threads);
+      StringBuilder line = new StringBuilder();
+      line.append("Run ").append(run).append(": clean ").append(toMillis(cleanNanos)).append(" ms");
+      if (opt.changedLeaves > 0) {
+        int changed = replayer.changeLeaves(opt.changedLeaves, random);
+        long incrementalNanos = replayer.evaluate(opt.threads);
+        line.append(", incremental (")
+            .append(changed)
+            .append(" leaves changed) ")
+            .append(toMillis(incrementalNanos))
+            .append(" ms");
+      }
+      line.append(", heap ").append(usedHeapMegabytes()).append(" MB");
+      // Also keeps the graph reachable while the heap is measured.
+      line.append(" for ")
+          .append(replayer.getEvaluator().getDoneValues().size())
+          .append(" values");
+      System.out.println(line);
+    }
+  }
+
+  public static ReplayOptions parseArgs(String[] args) throws OptionsParsingException {
+    ReplayOptions opt = Options.parse(ReplayOptions.class, args).getOptions();
+
+    if (opt.tracePath.isEmpty()) {
+      System.err.println(Options.getUsage(ReplayOptions.class));
+      throw new IllegalArgumentException("--trace should not be empty.");
+    }
+    if (opt.runs < 1) {
+      throw new IllegalArgumentException("--runs should be positive.");
+    }
+    if (opt.threads < 1) {
+      throw new IllegalArgumentException("--threads should be positive.");
+    }
+    if (opt.timeScale < 0) {
+      throw new IllegalArgumentException("--time_scale should not be negative.");
+    }
+    if (opt.changedLeaves < 0) {
+      throw new IllegalArgumentException("--changed_leaves should not be negative.");
+    }
+
+    return opt;
+  }
+
+  private static long toMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /** Returns the heap used after a full collection, which includes the graph being replayed. */
+  private static long usedHeapMegabytes() {
+    System.gc();
+    Runtime runtime = Runtime.getRuntime();
+    return (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+  }
+}
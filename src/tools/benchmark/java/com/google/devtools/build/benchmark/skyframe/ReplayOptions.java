@@ -0,0 +1,88 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.benchmark.skyframe;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.proto.OptionFilters.OptionEffectTag;
+
+/** Class that contains arguments for replaying a Skyframe evaluation trace. */
+public class ReplayOptions extends OptionsBase {
+
+  @Option(
+    name = "trace",
+    defaultValue = "",
+    category = "replay",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.NO_OP},
+    valueHelp = "path",
+    help = "trace written by a build with --experimental_skyframe_trace."
+  )
+  public String tracePath;
+
+  @Option(
+    name = "runs",
+    defaultValue = "3",
+    category = "replay",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.NO_OP},
+    help = "how many times the trace is replayed, each time from an empty graph."
+  )
+  public int runs;
+
+  @Option(
+    name = "threads",
+    defaultValue = "200",
+    category = "replay",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.NO_OP},
+    help = "number of evaluator threads, as --loading_phase_threads and --jobs would give."
+  )
+  public int threads;
+
+  @Option(
+    name = "time_scale",
+    defaultValue = "1.0",
+    category = "replay",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.NO_OP},
+    help =
+        "factor applied to the recorded compute time of each node;"
+            + " 0 measures the overhead of the evaluator alone."
+  )
+  public double timeScale;
+
+  @Option(
+    name = "changed_leaves",
+    defaultValue = "0",
+    category = "replay",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.NO_OP},
+    help =
+        "if positive, after each clean replay, this many random leaves are changed and the trace"
+            + " is replayed again incrementally."
+  )
+  public int changedLeaves;
+
+  @Option(
+    name = "seed",
+    defaultValue = "0",
+    category = "replay",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.NO_OP},
+    help = "seed of the random choice of changed leaves."
+  )
+  public long seed;
+}
@@ -0,0 +1,197 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.benchmark.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.EvaluationTrace;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.LegacySkyKey;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Evaluates the graph of an {@link EvaluationTrace} with an {@link InMemoryMemoizingEvaluator}.
+ *
+ * <p>Each node gets a key of its recorded function, and all functions share a synthetic {@link
+ * SkyFunction} that requests the recorded groups of deps one after the other, restarting whenever
+ * one is missing, then spins for the recorded compute time times the time scale, and returns a
+ * value that holds as many bytes as the recorded value size. A value whose size is unknown holds the
+ * average of the known sizes of its function, or nothing if none is known. Replayed values are never
+ * equal to each other, so every re-evaluated node causes its parents to be re-evaluated.
+ */
+public class TraceReplayer {
+
+  private final EvaluationTrace trace;
+  private final double timeScale;
+  private final ImmutableList<SkyKey> keys;
+  private final int[] valueSizes;
+  private final ImmutableList<SkyKey> roots;
+  private final List<SkyKey> leaves = new ArrayList<>();
+  private final RecordingDifferencer differencer = new RecordingDifferencer();
+  private final MemoizingEvaluator evaluator;
+  private final SequentialBuildDriver driver;
+
+  /**
+   * Creates a replayer with an empty graph.
+   *
+   * @param timeScale the factor applied to the recorded compute times; 0 measures the evaluator
+   *     alone
+   */
+  public TraceReplayer(EvaluationTrace trace, double timeScale) {
+    this.trace = trace;
+    this.timeScale = timeScale;
+    ImmutableList.Builder<SkyKey> keys = ImmutableList.builder();
+    ImmutableMap.Builder<SkyFunctionName, SkyFunction> functions = ImmutableMap.builder();
+    List<SkyFunctionName> functionNames = new ArrayList<>();
+    SkyFunction function = new ReplayFunction();
+    for (int node = 0; node < trace.size(); node++) {
+      SkyFunctionName functionName = trace.getFunctionName(node);
+      keys.add(LegacySkyKey.create(functionName, node));
+      if (!functionNames.contains(functionName)) {
+        functionNames.add(functionName);
+        functions.put(functionName, function);
+      }
+    }
+    this.keys = keys.build();
+    this.valueSizes = estimateValueSizes(trace);
+    ImmutableList.Builder<SkyKey> roots = ImmutableList.builder();
+    for (int root : trace.getRoots()) {
+      roots.add(this.keys.get(root));
+    }
+    this.roots = roots.build();
+    for (int node = 0; node < trace.size(); node++) {
+      if (trace.getDepGroups(node).length == 0) {
+        leaves.add(this.keys.get(node));
+      }
+    }
+    this.evaluator = new InMemoryMemoizingEvaluator(functions.build(), differencer);
+    this.driver = new SequentialBuildDriver(evaluator);
+  }
+
+  private static int[] estimateValueSizes(EvaluationTrace trace) {
+    Map<SkyFunctionName, long[]> knownSizes = new HashMap<>();
+    for (int node = 0; node < trace.size(); node++) {
+      if (trace.getValueSize(node) != EvaluationTrace.UNKNOWN_SIZE) {
+        long[] totalAndCount = knownSizes.get(trace.getFunctionName(node));
+        if (totalAndCount == null) {
+          totalAndCount = new long[2];
+          knownSizes.put(trace.getFunctionName(node), totalAndCount);
+        }
+        totalAndCount[0] += trace.getValueSize(node);
+        totalAndCount[1]++;
+      }
+    }
+    int[] sizes = new int[trace.size()];
+    for (int node = 0; node < trace.size(); node++) {
+      if (trace.getValueSize(node) != EvaluationTrace.UNKNOWN_SIZE) {
+        sizes[node] = trace.getValueSize(node);
+      } else {
+        long[] totalAndCount = knownSizes.get(trace.getFunctionName(node));
+        sizes[node] = totalAndCount == null ? 0 : (int) (totalAndCount[0] / totalAndCount[1]);
+      }
+    }
+    return sizes;
+  }
+
+  /** Returns the evaluator the trace is replayed with. */
+  public MemoizingEvaluator getEvaluator() {
+    return evaluator;
+  }
+
+  /**
+   * Evaluates the roots of the trace, which is a clean build the first time and an incremental one
+   * afterwards.
+   *
+   * @return the wall time of the evaluation
+   */
+  public long evaluate(int threads) throws InterruptedException {
+    long startNanos = System.nanoTime();
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(roots, /*keepGoing=*/ true, threads, NullEventHandler.INSTANCE);
+    long elapsedNanos = System.nanoTime() - startNanos;
+    if (result.hasError()) {
+      throw new IllegalStateException("Replay failed: " + result);
+    }
+    return elapsedNanos;
+  }
+
+  /**
+   * Invalidates {@code count} leaves of the graph, or all of them if there are fewer, so that the
+   * next {@link #evaluate} re-evaluates them and everything that depends on them.
+   *
+   * @return the number of leaves invalidated
+   */
+  public int changeLeaves(int count, Random random) {
+    List<SkyKey> changed = new ArrayList<>(leaves);
+    int size = Math.min(count, changed.size());
+    // Partial Fisher-Yates shuffle: the first size keys are a uniform sample.
+    for (int i = 0; i < size; i++) {
+      int j = i + random.nextInt(changed.size() - i);
+      SkyKey key = changed.get(i);
+      changed.set(i, changed.get(j));
+      changed.set(j, key);
+    }
+    differencer.invalidate(changed.subList(0, size));
+    return size;
+  }
+
+  private class ReplayFunction implements SkyFunction {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      int node = (Integer) skyKey.argument();
+      for (int[] group : trace.getDepGroups(node)) {
+        List<SkyKey> deps = new ArrayList<>(group.length);
+        for (int dep : group) {
+          deps.add(keys.get(dep));
+        }
+        env.getValues(deps);
+        if (env.valuesMissing()) {
+          return null;
+        }
+      }
+      long deadline = System.nanoTime() + (long) (trace.getComputeNanos(node) * timeScale);
+      while (System.nanoTime() < deadline) {
+        // Spin rather than sleep, so that the evaluator threads stay busy as in the real build.
+      }
+      return new ReplayValue(valueSizes[node]);
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  /** A value that is only equal to itself and retains as much memory as the value it stands for. */
+  private static final class ReplayValue implements SkyValue {
+    private final byte[] payload;
+
+    private ReplayValue(int size) {
+      this.payload = new byte[size];
+    }
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.benchmark.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.EvaluationTrace;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.LegacySkyKey;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionMetrics.FunctionMetrics;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Test for {@link TraceReplayer}. */
+@RunWith(JUnit4.class)
+public class TraceReplayerTest {
+
+  private static final SkyFunctionName CHAIN = SkyFunctionName.create("CHAIN");
+  private static final int LENGTH = 10;
+
+  private EvaluationTrace trace;
+
+  private static SkyKey chainKey(int n) {
+    return LegacySkyKey.create(CHAIN, n);
+  }
+
+  /** Node n requests node n - 1, and then node 0. */
+  private static final class ChainFunction implements SkyFunction {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      int n = (Integer) skyKey.argument();
+      if (n > 0 && env.getValue(chainKey(n - 1)) == null) {
+        return null;
+      }
+      if (n > 1 && env.getValue(chainKey(0)) == null) {
+        return null;
+      }
+      return new SkyValue() {};
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  @Before
+  public void recordTrace() throws Exception {
+    InMemoryMemoizingEvaluator evaluator =
+        new InMemoryMemoizingEvaluator(
+            ImmutableMap.of(CHAIN, new ChainFunction()), new RecordingDifferencer());
+    evaluator.startTrace();
+    new SequentialBuildDriver(evaluator)
+        .evaluate(
+            ImmutableList.of(chainKey(LENGTH - 1)),
+            /*keepGoing=*/ false,
+            1,
+            NullEventHandler.INSTANCE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(evaluator.writeTrace(out)).isEqualTo(LENGTH);
+    trace = EvaluationTrace.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test
+  public void testReplayEvaluatesAllNodes() throws Exception {
+    TraceReplayer replayer = new TraceReplayer(trace, 0);
+    replayer.evaluate(4);
+    FunctionMetrics metrics = replayer.getEvaluator().getSkyFunctionMetrics().snapshot().get(CHAIN);
+    // Every node but the first restarts once for node n - 1, which is discovered from the top, but
+    // not for node 0, which is done by then.
+    assertThat(metrics.getRestarts()).isEqualTo(LENGTH - 1);
+    assertThat(metrics.getEvaluations()).isEqualTo(LENGTH + LENGTH - 1);
+  }
+
+  @Test
+  public void testChangedLeavesAreReevaluatedWithTheirReverseDeps() throws Exception {
+    TraceReplayer replayer = new TraceReplayer(trace, 0);
+    replayer.evaluate(4);
+    assertThat(replayer.changeLeaves(5, new Random(0))).isEqualTo(1);
+    replayer.evaluate(4);
+    FunctionMetrics metrics = replayer.getEvaluator().getSkyFunctionMetrics().snapshot().get(CHAIN);
+    assertThat(metrics.getDirtied()).isEqualTo(LENGTH);
+    assertThat(metrics.getPruned()).isEqualTo(0);
+  }
+}
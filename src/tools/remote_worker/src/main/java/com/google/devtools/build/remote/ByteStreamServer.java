@@ -29,7 +29,6 @@ import com.google.devtools.build.lib.remote.SimpleBlobStoreActionCache;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.remoteexecution.v1test.Digest;
-import com.google.protobuf.ByteString;
 import com.google.rpc.Code;
 import com.google.rpc.Status;
 import io.grpc.protobuf.StatusProto;
@@ -82,8 +81,7 @@ final class ByteStreamServer extends ByteStreamImplBase {
       // TODO(olaola): refactor to fix this if the need arises.
       Chunker c = new Chunker.Builder().addInput(cache.downloadBlob(digest)).build();
       while (c.hasNext()) {
-        responseObserver.onNext(
-            ReadResponse.newBuilder().setData(ByteString.copyFrom(c.next().getData())).build());
+        responseObserver.onNext(ReadResponse.newBuilder().setData(c.next().getData()).build());
       }
       responseObserver.onCompleted();
     } catch (CacheNotFoundException e) {
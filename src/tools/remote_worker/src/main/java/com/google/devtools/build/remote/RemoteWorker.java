@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.remote.RemoteOptions;
 import com.google.devtools.build.lib.remote.SimpleBlobStoreActionCache;
 import com.google.devtools.build.lib.remote.SimpleBlobStoreFactory;
 import com.google.devtools.build.lib.remote.blobstore.ConcurrentMapBlobStore;
+import com.google.devtools.build.lib.remote.blobstore.DiskCacheBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import com.google.devtools.build.lib.shell.Command;
@@ -176,6 +177,15 @@ public final class RemoteWorker {
       rootLog.getHandlers()[0].setLevel(FINE);
     }
 
+    if (!FileSystem.getDigestFunction().isCryptographic()) {
+      logger.severe(
+          "The remote worker requires a cryptographic digest function, but "
+              + FileSystem.getDigestFunction()
+              + " was requested with -Dbazel.DigestFunction.");
+      System.exit(1);
+      return;
+    }
+
     FileSystem fs = getFileSystem();
     Path sandboxPath = null;
     if (remoteWorkerOptions.sandboxing) {
@@ -195,12 +205,19 @@ public final class RemoteWorker {
       return;
     }
 
-    SimpleBlobStore blobStore =
-        usingRemoteCache
-            ? SimpleBlobStoreFactory.create(remoteOptions)
-            : remoteWorkerOptions.casPath != null
-                ? new OnDiskBlobStore(fs.getPath(remoteWorkerOptions.casPath))
-                : new ConcurrentMapBlobStore(new ConcurrentHashMap<String, byte[]>());
+    SimpleBlobStore blobStore;
+    if (usingRemoteCache) {
+      blobStore = SimpleBlobStoreFactory.create(remoteOptions);
+    } else if (remoteWorkerOptions.casPath != null && remoteWorkerOptions.casMaxSizeMb > 0) {
+      blobStore =
+          DiskCacheBlobStore.create(
+              fs.getPath(remoteWorkerOptions.casPath),
+              remoteWorkerOptions.casMaxSizeMb * 1024 * 1024);
+    } else if (remoteWorkerOptions.casPath != null) {
+      blobStore = new OnDiskBlobStore(fs.getPath(remoteWorkerOptions.casPath));
+    } else {
+      blobStore = new ConcurrentMapBlobStore(new ConcurrentHashMap<String, byte[]>());
+    }
 
     RemoteWorker worker =
         new RemoteWorker(
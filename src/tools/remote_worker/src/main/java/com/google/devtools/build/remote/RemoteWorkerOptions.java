@@ -53,6 +53,19 @@ public class RemoteWorkerOptions extends OptionsBase {
   )
   public String casPath;
 
+  @Option(
+    name = "cas_max_size_mb",
+    defaultValue = "0",
+    category = "build_worker",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If positive, the directory given by --cas_path is used as a sharded disk cache that "
+            + "holds at most this many megabytes; least recently used blobs are evicted in the "
+            + "background. If zero, blobs are never evicted."
+  )
+  public long casMaxSizeMb;
+
   @Option(
     name = "debug",
     defaultValue = "false",